@@ -6,25 +6,34 @@
 
     app.controller('FileController', function ($http) {
         var main = this;
+        var PAGE_SIZE = 500;
+        // increased on every navigation, pages of old requests get dropped
+        var generation = 0;
         main.files = [];
         main.breadcrumbs = [];
 
-        $http.get('/files').success(function (data) {
-            main.files = data;
-        });
+        this.loadPage = function (path, offset, current) {
+            $http.get('/files' + path, {params: {offset: offset, limit: PAGE_SIZE}})
+                .success(function (data) {
+                    if (current !== generation) {
+                        return;
+                    }
+                    main.files = main.files.concat(data);
+                    if (data.length === PAGE_SIZE) {
+                        main.loadPage(path, offset + PAGE_SIZE, current);
+                    }
+                });
+        };
 
         this.loadFiles = function (file) {
-            $http.get('/files' + file.path).success(function (data) {
-                main.setupBreadcrumbs(file.path);
-                main.files = data;
-            });
+            main.loadPath(file.path);
         };
 
         this.loadPath = function (path) {
-            $http.get('/files' + path).success(function (data) {
-                main.setupBreadcrumbs(path);
-                main.files = data;
-            });
+            generation++;
+            main.files = [];
+            main.setupBreadcrumbs(path);
+            main.loadPage(path, 0, generation);
         };
 
         this.setupBreadcrumbs = function (path) {
@@ -43,5 +52,7 @@
                 }
             });
         };
+
+        main.loadPath('/');
     });
 })();
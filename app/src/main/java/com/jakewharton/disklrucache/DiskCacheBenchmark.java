@@ -0,0 +1,237 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.jakewharton.disklrucache;
+
+import org.namelessrom.devicecontrol.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of {@link DiskLruCache} and {@link ShardedDiskLruCache}
+ * with 1, 2, 4 and 8 threads.
+ *
+ * <p>Every thread reads random entries of a prefilled cache and replaces one of
+ * them every {@link #WRITE_INTERVAL} operations, which is roughly what the icon
+ * cache sees while scrolling. Every round gets a warmup phase, which is not
+ * measured, like JMH does.
+ */
+public final class DiskCacheBenchmark {
+  private static final String TAG = DiskCacheBenchmark.class.getSimpleName();
+
+  public static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+  private static final int ENTRIES = 256;
+  private static final int VALUE_SIZE = 4 * 1024;
+  private static final int WRITE_INTERVAL = 16;
+  private static final long MAX_SIZE = 64L * 1024 * 1024;
+
+  private static final long WARMUP_MILLIS = 250;
+  private static final long MEASURE_MILLIS = 1000;
+
+  public static final class Result {
+    public final int threads;
+    public final long baselineOpsPerSecond;
+    public final long shardedOpsPerSecond;
+
+    private Result(int threads, long baselineOpsPerSecond, long shardedOpsPerSecond) {
+      this.threads = threads;
+      this.baselineOpsPerSecond = baselineOpsPerSecond;
+      this.shardedOpsPerSecond = shardedOpsPerSecond;
+    }
+
+    @Override public String toString() {
+      return String.format("%s threads: %s ops/s unsharded, %s ops/s sharded",
+          threads, baselineOpsPerSecond, shardedOpsPerSecond);
+    }
+  }
+
+  /** The operations of both caches, they do not share an interface. */
+  private interface Target {
+    boolean read(String key) throws IOException;
+
+    void write(String key, byte[] value) throws IOException;
+
+    void close() throws IOException;
+  }
+
+  private DiskCacheBenchmark() { }
+
+  /**
+   * Runs the benchmark in {@code directory}, which gets deleted afterwards.
+   * Blocks for a few seconds.
+   */
+  public static List<Result> run(File directory) throws IOException, InterruptedException {
+    final byte[] value = new byte[VALUE_SIZE];
+    new Random(0).nextBytes(value);
+
+    final ArrayList<Result> results = new ArrayList<>(THREAD_COUNTS.length);
+    try {
+      for (int threads : THREAD_COUNTS) {
+        final long baseline = measure(openBaseline(new File(directory, "baseline")),
+            threads, value);
+        final long sharded = measure(openSharded(new File(directory, "sharded")),
+            threads, value);
+        results.add(new Result(threads, baseline, sharded));
+      }
+    } finally {
+      Util.deleteContents(directory);
+    }
+    return results;
+  }
+
+  private static Target openBaseline(File directory) throws IOException {
+    final DiskLruCache cache = DiskLruCache.open(directory, 0, 1, MAX_SIZE);
+    return new Target() {
+      @Override public boolean read(String key) throws IOException {
+        final DiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+          return false;
+        }
+        drain(snapshot.getInputStream(0));
+        snapshot.close();
+        return true;
+      }
+
+      @Override public void write(String key, byte[] value) throws IOException {
+        final DiskLruCache.Editor editor = cache.edit(key);
+        if (editor != null) {
+          final OutputStream out = editor.newOutputStream(0);
+          out.write(value);
+          out.close();
+          editor.commit();
+        }
+      }
+
+      @Override public void close() throws IOException {
+        cache.delete();
+      }
+    };
+  }
+
+  private static Target openSharded(File directory) throws IOException {
+    final ShardedDiskLruCache cache = ShardedDiskLruCache.open(directory, 0, 1, MAX_SIZE,
+        ShardedDiskLruCache.DEFAULT_SHARD_COUNT);
+    return new Target() {
+      @Override public boolean read(String key) throws IOException {
+        final ShardedDiskLruCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+          return false;
+        }
+        drain(snapshot.getInputStream(0));
+        snapshot.close();
+        return true;
+      }
+
+      @Override public void write(String key, byte[] value) throws IOException {
+        final ShardedDiskLruCache.Editor editor = cache.edit(key);
+        if (editor != null) {
+          final OutputStream out = editor.newOutputStream(0);
+          out.write(value);
+          out.close();
+          editor.commit();
+        }
+      }
+
+      @Override public void close() throws IOException {
+        cache.delete();
+      }
+    };
+  }
+
+  /** Returns the operations per second of the measured phase. */
+  private static long measure(final Target target, final int threads, final byte[] value)
+      throws IOException, InterruptedException {
+    try {
+      for (int i = 0; i < ENTRIES; i++) {
+        target.write(key(i), value);
+      }
+
+      final AtomicBoolean measuring = new AtomicBoolean();
+      final AtomicBoolean running = new AtomicBoolean(true);
+      final AtomicLong operations = new AtomicLong();
+      final CountDownLatch done = new CountDownLatch(threads);
+
+      for (int t = 0; t < threads; t++) {
+        final Random random = new Random(t);
+        new Thread(new Runnable() {
+          @Override public void run() {
+            long count = 0;
+            boolean counting = false;
+            try {
+              while (running.get()) {
+                if (!counting && measuring.get()) {
+                  // only count what happens during the measured phase
+                  counting = true;
+                  count = 0;
+                }
+                final String key = key(random.nextInt(ENTRIES));
+                if (count % WRITE_INTERVAL == WRITE_INTERVAL - 1) {
+                  target.write(key, value);
+                } else {
+                  target.read(key);
+                }
+                count++;
+              }
+            } catch (IOException e) {
+              Logger.e(TAG, "benchmark failed", e);
+            } finally {
+              if (counting) {
+                operations.addAndGet(count);
+              }
+              done.countDown();
+            }
+          }
+        }, "DiskCacheBenchmark #" + t).start();
+      }
+
+      Thread.sleep(WARMUP_MILLIS);
+      final long start = System.nanoTime();
+      measuring.set(true);
+      Thread.sleep(MEASURE_MILLIS);
+      running.set(false);
+      final long elapsed = System.nanoTime() - start;
+      done.await();
+
+      return (operations.get() * TimeUnit.SECONDS.toNanos(1)) / Math.max(1, elapsed);
+    } finally {
+      target.close();
+    }
+  }
+
+  private static String key(int index) {
+    return "entry-" + index;
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    final byte[] buffer = new byte[VALUE_SIZE];
+    while (in.read(buffer) != -1) {
+      // Read everything, like decoding an icon would.
+    }
+  }
+}
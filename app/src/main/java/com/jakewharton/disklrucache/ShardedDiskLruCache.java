@@ -0,0 +1,1090 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.jakewharton.disklrucache;
+
+import org.namelessrom.devicecontrol.Logger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DiskLruCache}, which partitions its keys across independent shards.
+ *
+ * <p>Every shard lives in its own sub directory and keeps its own journal in the
+ * format of {@link DiskLruCache}. Edits and removals only lock the shard of
+ * their key. Reads do not lock at all, they look up the entry in a concurrent
+ * map, open its files and queue the READ line for the journal. Queued reads,
+ * eviction and journal compaction get handled on a background thread.
+ * Compaction writes the new journal without holding the shard lock and only
+ * takes it to append the lines, which got written in the meantime, and to swap
+ * the files.
+ *
+ * <p>Reads are not atomic across values of an entry, if an entry has more than
+ * one value, an edit committed during a read may show up in some of the
+ * returned streams only.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+  private static final String TAG = ShardedDiskLruCache.class.getSimpleName();
+
+  public static final int DEFAULT_SHARD_COUNT = 4;
+
+  private static final String CLEAN = "CLEAN";
+  private static final String DIRTY = "DIRTY";
+  private static final String REMOVE = "REMOVE";
+  private static final String READ = "READ";
+
+  private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+  /** Queued reads get written to the journal once there are that many. */
+  private static final int PENDING_READ_THRESHOLD = 64;
+
+  private static final Comparator<Entry> ACCESS_ORDER = new Comparator<Entry>() {
+    @Override public int compare(Entry lhs, Entry rhs) {
+      return lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0 : 1);
+    }
+  };
+
+  private final File directory;
+  private final int appVersion;
+  private final int valueCount;
+  private final Shard[] shards;
+  private volatile long maxSize;
+  private volatile boolean closed;
+
+  /** Orders all accesses, the entry with the lowest value got used least recently. */
+  private final AtomicLong clock = new AtomicLong();
+
+  /** This cache uses a single background thread for maintenance of all shards. */
+  final ThreadPoolExecutor executorService =
+      new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+  private ShardedDiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+      int shardCount) {
+    this.directory = directory;
+    this.appVersion = appVersion;
+    this.valueCount = valueCount;
+    this.maxSize = maxSize;
+    this.shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard(new File(directory, Integer.toString(i)));
+    }
+  }
+
+  /**
+   * Opens the cache in {@code directory}, creating a cache if none exists
+   * there. A cache of {@link DiskLruCache} in the same directory gets
+   * deleted.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes this cache should use to store
+   * @param shardCount the number of shards. Must be positive.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+      long maxSize, int shardCount) throws IOException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (valueCount <= 0) {
+      throw new IllegalArgumentException("valueCount <= 0");
+    }
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount <= 0");
+    }
+
+    // An unsharded cache keeps its journal at the top level, start over.
+    if (new File(directory, DiskLruCache.JOURNAL_FILE).exists()) {
+      Util.deleteContents(directory);
+    }
+
+    ShardedDiskLruCache cache =
+        new ShardedDiskLruCache(directory, appVersion, valueCount, maxSize, shardCount);
+    for (Shard shard : cache.shards) {
+      shard.open();
+    }
+    return cache;
+  }
+
+  private Shard shardFor(String key) {
+    return shards[(key.hashCode() & 0x7fffffff) % shards.length];
+  }
+
+  private long shardMaxSize() {
+    return maxSize / shards.length;
+  }
+
+  /**
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+   * exist is not currently readable. If a value is returned, it is moved to
+   * the head of the LRU queue. Does not block on edits or compaction.
+   */
+  public Snapshot get(String key) throws IOException {
+    checkNotClosed();
+    validateKey(key);
+    Shard shard = shardFor(key);
+    Entry entry = shard.entries.get(key);
+    if (entry == null || !entry.readable) {
+      return null;
+    }
+
+    long sequenceNumber = entry.sequenceNumber;
+    long[] lengths = entry.lengths.clone();
+    InputStream[] ins = new InputStream[valueCount];
+    try {
+      for (int i = 0; i < valueCount; i++) {
+        ins[i] = new FileInputStream(entry.getCleanFile(i));
+      }
+    } catch (FileNotFoundException e) {
+      // Evicted in the meantime or deleted manually.
+      for (int i = 0; i < valueCount; i++) {
+        if (ins[i] != null) {
+          Util.closeQuietly(ins[i]);
+        } else {
+          break;
+        }
+      }
+      return null;
+    }
+
+    entry.lastAccess = clock.incrementAndGet();
+    shard.recordRead(key);
+    return new Snapshot(key, sequenceNumber, ins, lengths);
+  }
+
+  /**
+   * Returns an editor for the entry named {@code key}, or null if another
+   * edit is in progress.
+   */
+  public Editor edit(String key) throws IOException {
+    return edit(key, DiskLruCache.ANY_SEQUENCE_NUMBER);
+  }
+
+  private Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    checkNotClosed();
+    validateKey(key);
+    Shard shard = shardFor(key);
+    synchronized (shard) {
+      shard.checkNotClosed();
+      Entry entry = shard.entries.get(key);
+      if (expectedSequenceNumber != DiskLruCache.ANY_SEQUENCE_NUMBER && (entry == null
+          || entry.sequenceNumber != expectedSequenceNumber)) {
+        return null; // Snapshot is stale.
+      }
+      if (entry == null) {
+        entry = new Entry(shard, key);
+        shard.entries.put(key, entry);
+      } else if (entry.currentEditor != null) {
+        return null; // Another edit is in progress.
+      }
+
+      Editor editor = new Editor(entry);
+      entry.currentEditor = editor;
+      entry.lastAccess = clock.incrementAndGet();
+
+      // Flush the journal before creating files to prevent file leaks.
+      shard.writeJournalLocked(DIRTY + ' ' + key + '\n');
+      shard.journalWriter.flush();
+      return editor;
+    }
+  }
+
+  /** Returns the directory where this cache stores its data. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the maximum number of bytes that this cache should use to store
+   * its data.
+   */
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Changes the maximum number of bytes the cache can store and queues a job
+   * to trim the existing store, if necessary.
+   */
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    for (Shard shard : shards) {
+      shard.scheduleMaintenance();
+    }
+  }
+
+  /**
+   * Returns the number of bytes currently being used to store the values in
+   * this cache. This may be greater than the max size if a background
+   * deletion is pending.
+   */
+  public long size() {
+    long size = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        size += shard.size;
+      }
+    }
+    return size;
+  }
+
+  /** Returns the number of shards. */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  private void completeEdit(Editor editor, boolean success) throws IOException {
+    Entry entry = editor.entry;
+    Shard shard = entry.shard;
+    synchronized (shard) {
+      if (entry.currentEditor != editor) {
+        throw new IllegalStateException();
+      }
+
+      // If this edit is creating the entry for the first time, every index must have a value.
+      if (success && !entry.readable) {
+        for (int i = 0; i < valueCount; i++) {
+          if (!editor.written[i]) {
+            editor.abort();
+            throw new IllegalStateException(
+                "Newly created entry didn't create value for index " + i);
+          }
+          if (!entry.getDirtyFile(i).exists()) {
+            editor.abort();
+            return;
+          }
+        }
+      }
+
+      for (int i = 0; i < valueCount; i++) {
+        File dirty = entry.getDirtyFile(i);
+        if (success) {
+          if (dirty.exists()) {
+            File clean = entry.getCleanFile(i);
+            dirty.renameTo(clean);
+            long oldLength = entry.lengths[i];
+            long newLength = clean.length();
+            entry.lengths[i] = newLength;
+            shard.size = shard.size - oldLength + newLength;
+          }
+        } else {
+          deleteIfExists(dirty);
+        }
+      }
+
+      shard.redundantOpCount.incrementAndGet();
+      entry.currentEditor = null;
+      if (entry.readable | success) {
+        if (success) {
+          entry.sequenceNumber = shard.nextSequenceNumber++;
+        }
+        entry.readable = true;
+        shard.writeJournalLocked(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+      } else {
+        shard.entries.remove(entry.key);
+        shard.writeJournalLocked(REMOVE + ' ' + entry.key + '\n');
+      }
+      shard.journalWriter.flush();
+
+      if (shard.size > shardMaxSize() || shard.journalRebuildRequired()) {
+        shard.scheduleMaintenance();
+      }
+    }
+  }
+
+  /**
+   * Drops the entry for {@code key} if it exists and can be removed. Entries
+   * actively being edited cannot be removed.
+   *
+   * @return true if an entry was removed.
+   */
+  public boolean remove(String key) throws IOException {
+    checkNotClosed();
+    validateKey(key);
+    Shard shard = shardFor(key);
+    boolean removed;
+    synchronized (shard) {
+      shard.checkNotClosed();
+      removed = shard.removeLocked(key);
+    }
+    if (removed && shard.journalRebuildRequired()) {
+      shard.scheduleMaintenance();
+    }
+    return removed;
+  }
+
+  /** Returns true if this cache has been closed. */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("cache is closed");
+    }
+  }
+
+  /** Force buffered operations to the filesystem. */
+  public void flush() throws IOException {
+    checkNotClosed();
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        shard.checkNotClosed();
+        shard.trimToSizeLocked();
+        shard.drainReadsLocked();
+        shard.journalWriter.flush();
+      }
+    }
+  }
+
+  /** Closes this cache. Stored values will remain on the filesystem. */
+  public void close() throws IOException {
+    if (closed) {
+      return; // Already closed.
+    }
+    closed = true;
+    for (Shard shard : shards) {
+      shard.close();
+    }
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in the cache directory including files that weren't created by
+   * the cache.
+   */
+  public void delete() throws IOException {
+    close();
+    Util.deleteContents(directory);
+  }
+
+  private void validateKey(String key) {
+    if (!DiskLruCache.LEGAL_KEY_PATTERN.matcher(key).matches()) {
+      throw new IllegalArgumentException("keys must match regex "
+          + DiskLruCache.STRING_KEY_PATTERN + ": \"" + key + "\"");
+    }
+  }
+
+  private static void deleteIfExists(File file) throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException();
+    }
+  }
+
+  private static void renameTo(File from, File to, boolean deleteDestination) throws IOException {
+    if (deleteDestination) {
+      deleteIfExists(to);
+    }
+    if (!from.renameTo(to)) {
+      throw new IOException();
+    }
+  }
+
+  private static String inputStreamToString(InputStream in) throws IOException {
+    return Util.readFully(new InputStreamReader(in, Util.UTF_8));
+  }
+
+  /** One partition of the cache with its own directory, journal and lock. */
+  private final class Shard {
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final File journalFileBackup;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    /** Keys, which got read but whose READ line is not part of the journal yet. */
+    private final ConcurrentLinkedQueue<String> pendingReads = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
+    private final AtomicInteger redundantOpCount = new AtomicInteger();
+    private final AtomicBoolean maintenanceQueued = new AtomicBoolean();
+
+    // guarded by this
+    private Writer journalWriter;
+    private long size;
+    private long nextSequenceNumber;
+    /** Lines written while a compaction is running, null if none is running. */
+    private ArrayList<String> compactionLog;
+
+    private Shard(File directory) {
+      this.directory = directory;
+      this.journalFile = new File(directory, DiskLruCache.JOURNAL_FILE);
+      this.journalFileTmp = new File(directory, DiskLruCache.JOURNAL_FILE_TEMP);
+      this.journalFileBackup = new File(directory, DiskLruCache.JOURNAL_FILE_BACKUP);
+    }
+
+    private final Runnable maintenance = new Runnable() {
+      @Override public void run() {
+        maintenanceQueued.set(false);
+        try {
+          synchronized (Shard.this) {
+            if (journalWriter == null) {
+              return; // Closed.
+            }
+            trimToSizeLocked();
+            drainReadsLocked();
+          }
+          compact();
+        } catch (IOException e) {
+          Logger.e(TAG, "maintenance of " + directory + " failed", e);
+        }
+      }
+    };
+
+    private void open() throws IOException {
+      // If a bkp file exists, use it instead.
+      if (journalFileBackup.exists()) {
+        // If journal file also exists just delete backup file.
+        if (journalFile.exists()) {
+          journalFileBackup.delete();
+        } else {
+          renameTo(journalFileBackup, journalFile, false);
+        }
+      }
+
+      if (journalFile.exists()) {
+        try {
+          readJournal();
+          processJournal();
+          return;
+        } catch (IOException journalIsCorrupt) {
+          Logger.w(TAG, "%s is corrupt: %s, removing", directory,
+              journalIsCorrupt.getMessage());
+          if (journalWriter != null) {
+            Util.closeQuietly(journalWriter);
+            journalWriter = null;
+          }
+          entries.clear();
+          size = 0;
+          Util.deleteContents(directory);
+        }
+      }
+
+      directory.mkdirs();
+      rebuildJournal();
+    }
+
+    private void readJournal() throws IOException {
+      StrictLineReader reader =
+          new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
+      try {
+        String magic = reader.readLine();
+        String version = reader.readLine();
+        String appVersionString = reader.readLine();
+        String valueCountString = reader.readLine();
+        String blank = reader.readLine();
+        if (!DiskLruCache.MAGIC.equals(magic)
+            || !DiskLruCache.VERSION_1.equals(version)
+            || !Integer.toString(appVersion).equals(appVersionString)
+            || !Integer.toString(valueCount).equals(valueCountString)
+            || !"".equals(blank)) {
+          throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+              + valueCountString + ", " + blank + "]");
+        }
+
+        int lineCount = 0;
+        while (true) {
+          try {
+            readJournalLine(reader.readLine());
+            lineCount++;
+          } catch (EOFException endOfJournal) {
+            break;
+          }
+        }
+        redundantOpCount.set(lineCount - entries.size());
+
+        // If we ended on a truncated line, rebuild the journal before appending to it.
+        if (reader.hasUnterminatedLine()) {
+          rebuildJournal();
+        } else {
+          journalWriter = new BufferedWriter(new OutputStreamWriter(
+              new FileOutputStream(journalFile, true), Util.US_ASCII));
+        }
+      } finally {
+        Util.closeQuietly(reader);
+      }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+      int firstSpace = line.indexOf(' ');
+      if (firstSpace == -1) {
+        throw new IOException("unexpected journal line: " + line);
+      }
+
+      int keyBegin = firstSpace + 1;
+      int secondSpace = line.indexOf(' ', keyBegin);
+      final String key;
+      if (secondSpace == -1) {
+        key = line.substring(keyBegin);
+        if (firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
+          entries.remove(key);
+          return;
+        }
+      } else {
+        key = line.substring(keyBegin, secondSpace);
+      }
+
+      Entry entry = entries.get(key);
+      if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
+        // Reads get queued, they may land after the removal of their entry.
+        if (entry != null) {
+          entry.lastAccess = clock.incrementAndGet();
+        }
+        return;
+      }
+      if (entry == null) {
+        entry = new Entry(this, key);
+        entries.put(key, entry);
+      }
+      entry.lastAccess = clock.incrementAndGet();
+
+      if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
+        String[] parts = line.substring(secondSpace + 1).split(" ");
+        entry.readable = true;
+        entry.currentEditor = null;
+        entry.setLengths(parts);
+      } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
+        entry.currentEditor = new Editor(entry);
+      } else {
+        throw new IOException("unexpected journal line: " + line);
+      }
+    }
+
+    /**
+     * Computes the initial size and collects garbage as a part of opening the
+     * shard. Dirty entries are assumed to be inconsistent and will be deleted.
+     */
+    private void processJournal() throws IOException {
+      deleteIfExists(journalFileTmp);
+      for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+        Entry entry = i.next();
+        if (entry.currentEditor == null) {
+          for (int t = 0; t < valueCount; t++) {
+            size += entry.lengths[t];
+          }
+        } else {
+          entry.currentEditor = null;
+          for (int t = 0; t < valueCount; t++) {
+            deleteIfExists(entry.getCleanFile(t));
+            deleteIfExists(entry.getDirtyFile(t));
+          }
+          i.remove();
+        }
+      }
+    }
+
+    /** Creates a new journal while opening the shard, before anyone else can access it. */
+    private void rebuildJournal() throws IOException {
+      if (journalWriter != null) {
+        journalWriter.close();
+      }
+      writeJournal(journalFileTmp, journalLinesLocked());
+      swapJournalLocked();
+    }
+
+    /**
+     * Creates a new journal that omits redundant information, without blocking
+     * readers and only blocking writers while swapping the journal files.
+     */
+    private void compact() throws IOException {
+      final List<String> lines;
+      final int redundantOps;
+      synchronized (this) {
+        if (journalWriter == null || compactionLog != null || !journalRebuildRequired()) {
+          return;
+        }
+        lines = journalLinesLocked();
+        compactionLog = new ArrayList<>();
+        // Everything after this point ends up in the compaction log.
+        redundantOps = redundantOpCount.getAndSet(0);
+      }
+
+      IOException failure = null;
+      try {
+        writeJournal(journalFileTmp, lines);
+      } catch (IOException e) {
+        failure = e;
+      }
+
+      synchronized (this) {
+        final ArrayList<String> log = compactionLog;
+        compactionLog = null;
+        if (failure != null || journalWriter == null) {
+          redundantOpCount.addAndGet(redundantOps);
+          deleteIfExists(journalFileTmp);
+          if (failure != null) {
+            throw failure;
+          }
+          return; // Closed.
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(journalFileTmp, true), Util.US_ASCII));
+        try {
+          for (String line : log) {
+            writer.write(line);
+          }
+        } finally {
+          writer.close();
+        }
+
+        journalWriter.close();
+        swapJournalLocked();
+      }
+    }
+
+    private void writeJournal(File file, List<String> lines) throws IOException {
+      Writer writer = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(file), Util.US_ASCII));
+      try {
+        writer.write(DiskLruCache.MAGIC);
+        writer.write("\n");
+        writer.write(DiskLruCache.VERSION_1);
+        writer.write("\n");
+        writer.write(Integer.toString(appVersion));
+        writer.write("\n");
+        writer.write(Integer.toString(valueCount));
+        writer.write("\n");
+        writer.write("\n");
+
+        for (String line : lines) {
+          writer.write(line);
+        }
+      } finally {
+        writer.close();
+      }
+    }
+
+    private void swapJournalLocked() throws IOException {
+      if (journalFile.exists()) {
+        renameTo(journalFile, journalFileBackup, true);
+      }
+      renameTo(journalFileTmp, journalFile, false);
+      journalFileBackup.delete();
+
+      journalWriter = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+    }
+
+    /** Returns the lines of a compact journal, least recently used entries first. */
+    private List<String> journalLinesLocked() throws IOException {
+      ArrayList<Entry> sorted = new ArrayList<>(entries.values());
+      Collections.sort(sorted, ACCESS_ORDER);
+      ArrayList<String> lines = new ArrayList<>(sorted.size());
+      for (Entry entry : sorted) {
+        if (entry.currentEditor != null) {
+          lines.add(DIRTY + ' ' + entry.key + '\n');
+        } else {
+          lines.add(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        }
+      }
+      return lines;
+    }
+
+    private void writeJournalLocked(String line) throws IOException {
+      journalWriter.write(line);
+      if (compactionLog != null) {
+        compactionLog.add(line);
+      }
+    }
+
+    private void recordRead(String key) {
+      pendingReads.add(key);
+      redundantOpCount.incrementAndGet();
+      if (pendingReadCount.incrementAndGet() >= PENDING_READ_THRESHOLD
+          || journalRebuildRequired()) {
+        scheduleMaintenance();
+      }
+    }
+
+    private void drainReadsLocked() throws IOException {
+      String key;
+      while ((key = pendingReads.poll()) != null) {
+        pendingReadCount.decrementAndGet();
+        if (entries.containsKey(key)) {
+          writeJournalLocked(READ + ' ' + key + '\n');
+        }
+      }
+    }
+
+    private boolean removeLocked(String key) throws IOException {
+      Entry entry = entries.get(key);
+      if (entry == null || entry.currentEditor != null) {
+        return false;
+      }
+
+      for (int i = 0; i < valueCount; i++) {
+        File file = entry.getCleanFile(i);
+        if (file.exists() && !file.delete()) {
+          throw new IOException("failed to delete " + file);
+        }
+        size -= entry.lengths[i];
+        entry.lengths[i] = 0;
+      }
+
+      redundantOpCount.incrementAndGet();
+      writeJournalLocked(REMOVE + ' ' + key + '\n');
+      entries.remove(key);
+      return true;
+    }
+
+    private void trimToSizeLocked() throws IOException {
+      final long maxSize = shardMaxSize();
+      if (size <= maxSize) {
+        return;
+      }
+      ArrayList<Entry> sorted = new ArrayList<>(entries.values());
+      Collections.sort(sorted, ACCESS_ORDER);
+      for (Entry entry : sorted) {
+        if (size <= maxSize) {
+          break;
+        }
+        removeLocked(entry.key);
+      }
+    }
+
+    private boolean journalRebuildRequired() {
+      final int redundantOps = redundantOpCount.get();
+      return redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOps >= entries.size();
+    }
+
+    private void scheduleMaintenance() {
+      if (maintenanceQueued.compareAndSet(false, true)) {
+        executorService.execute(maintenance);
+      }
+    }
+
+    private void checkNotClosed() {
+      if (journalWriter == null) {
+        throw new IllegalStateException("cache is closed");
+      }
+    }
+
+    private synchronized void close() throws IOException {
+      if (journalWriter == null) {
+        return;
+      }
+      for (Entry entry : new ArrayList<>(entries.values())) {
+        if (entry.currentEditor != null) {
+          entry.currentEditor.abort();
+        }
+      }
+      trimToSizeLocked();
+      drainReadsLocked();
+      journalWriter.close();
+      journalWriter = null;
+    }
+  }
+
+  /** A snapshot of the values for an entry. */
+  public final class Snapshot implements Closeable {
+    private final String key;
+    private final long sequenceNumber;
+    private final InputStream[] ins;
+    private final long[] lengths;
+
+    private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
+      this.key = key;
+      this.sequenceNumber = sequenceNumber;
+      this.ins = ins;
+      this.lengths = lengths;
+    }
+
+    /**
+     * Returns an editor for this snapshot's entry, or null if either the
+     * entry has changed since this snapshot was created or if another edit
+     * is in progress.
+     */
+    public Editor edit() throws IOException {
+      return ShardedDiskLruCache.this.edit(key, sequenceNumber);
+    }
+
+    /** Returns the unbuffered stream with the value for {@code index}. */
+    public InputStream getInputStream(int index) {
+      return ins[index];
+    }
+
+    /** Returns the string value for {@code index}. */
+    public String getString(int index) throws IOException {
+      return inputStreamToString(getInputStream(index));
+    }
+
+    /** Returns the byte length of the value for {@code index}. */
+    public long getLength(int index) {
+      return lengths[index];
+    }
+
+    public void close() {
+      for (InputStream in : ins) {
+        Util.closeQuietly(in);
+      }
+    }
+  }
+
+  private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      // Eat all writes silently. Nom nom.
+    }
+  };
+
+  /** Edits the values for an entry. */
+  public final class Editor {
+    private final Entry entry;
+    private final boolean[] written;
+    private boolean hasErrors;
+    private boolean committed;
+
+    private Editor(Entry entry) {
+      this.entry = entry;
+      this.written = (entry.readable) ? null : new boolean[valueCount];
+    }
+
+    /**
+     * Returns an unbuffered input stream to read the last committed value,
+     * or null if no value has been committed.
+     */
+    public InputStream newInputStream(int index) throws IOException {
+      synchronized (entry.shard) {
+        if (entry.currentEditor != this) {
+          throw new IllegalStateException();
+        }
+        if (!entry.readable) {
+          return null;
+        }
+        try {
+          return new FileInputStream(entry.getCleanFile(index));
+        } catch (FileNotFoundException e) {
+          return null;
+        }
+      }
+    }
+
+    /**
+     * Returns the last committed value as a string, or null if no value
+     * has been committed.
+     */
+    public String getString(int index) throws IOException {
+      InputStream in = newInputStream(index);
+      return in != null ? inputStreamToString(in) : null;
+    }
+
+    /**
+     * Returns a new unbuffered output stream to write the value at
+     * {@code index}. If the underlying output stream encounters errors
+     * when writing to the filesystem, this edit will be aborted when
+     * {@link #commit} is called. The returned output stream does not throw
+     * IOExceptions.
+     */
+    public OutputStream newOutputStream(int index) throws IOException {
+      if (index < 0 || index >= valueCount) {
+        throw new IllegalArgumentException("Expected index " + index + " to "
+            + "be greater than 0 and less than the maximum value count "
+            + "of " + valueCount);
+      }
+      synchronized (entry.shard) {
+        if (entry.currentEditor != this) {
+          throw new IllegalStateException();
+        }
+        if (!entry.readable) {
+          written[index] = true;
+        }
+        File dirtyFile = entry.getDirtyFile(index);
+        FileOutputStream outputStream;
+        try {
+          outputStream = new FileOutputStream(dirtyFile);
+        } catch (FileNotFoundException e) {
+          // Attempt to recreate the shard directory.
+          entry.shard.directory.mkdirs();
+          try {
+            outputStream = new FileOutputStream(dirtyFile);
+          } catch (FileNotFoundException e2) {
+            // We are unable to recover. Silently eat the writes.
+            return NULL_OUTPUT_STREAM;
+          }
+        }
+        return new FaultHidingOutputStream(outputStream);
+      }
+    }
+
+    /** Sets the value at {@code index} to {@code value}. */
+    public void set(int index, String value) throws IOException {
+      Writer writer = null;
+      try {
+        writer = new OutputStreamWriter(newOutputStream(index), Util.UTF_8);
+        writer.write(value);
+      } finally {
+        Util.closeQuietly(writer);
+      }
+    }
+
+    /**
+     * Commits this edit so it is visible to readers.  This releases the
+     * edit lock so another edit may be started on the same key.
+     */
+    public void commit() throws IOException {
+      if (hasErrors) {
+        completeEdit(this, false);
+        remove(entry.key); // The previous entry is stale.
+      } else {
+        completeEdit(this, true);
+      }
+      committed = true;
+    }
+
+    /**
+     * Aborts this edit. This releases the edit lock so another edit may be
+     * started on the same key.
+     */
+    public void abort() throws IOException {
+      completeEdit(this, false);
+    }
+
+    public void abortUnlessCommitted() {
+      if (!committed) {
+        try {
+          abort();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+
+    private class FaultHidingOutputStream extends FilterOutputStream {
+      private FaultHidingOutputStream(OutputStream out) {
+        super(out);
+      }
+
+      @Override public void write(int oneByte) {
+        try {
+          out.write(oneByte);
+        } catch (IOException e) {
+          hasErrors = true;
+        }
+      }
+
+      @Override public void write(byte[] buffer, int offset, int length) {
+        try {
+          out.write(buffer, offset, length);
+        } catch (IOException e) {
+          hasErrors = true;
+        }
+      }
+
+      @Override public void close() {
+        try {
+          out.close();
+        } catch (IOException e) {
+          hasErrors = true;
+        }
+      }
+
+      @Override public void flush() {
+        try {
+          out.flush();
+        } catch (IOException e) {
+          hasErrors = true;
+        }
+      }
+    }
+  }
+
+  private final class Entry {
+    private final Shard shard;
+    private final String key;
+
+    /** Lengths of this entry's files. */
+    private final long[] lengths;
+
+    /** True if this entry has ever been published. */
+    private volatile boolean readable;
+
+    /** The ongoing edit or null if this entry is not being edited. */
+    private Editor currentEditor;
+
+    /** The sequence number of the most recently committed edit to this entry. */
+    private volatile long sequenceNumber;
+
+    /** The value of the clock at the last access of this entry. */
+    private volatile long lastAccess;
+
+    private Entry(Shard shard, String key) {
+      this.shard = shard;
+      this.key = key;
+      this.lengths = new long[valueCount];
+    }
+
+    public String getLengths() throws IOException {
+      StringBuilder result = new StringBuilder();
+      for (long size : lengths) {
+        result.append(' ').append(size);
+      }
+      return result.toString();
+    }
+
+    /** Set lengths using decimal numbers like "10123". */
+    private void setLengths(String[] strings) throws IOException {
+      if (strings.length != valueCount) {
+        throw invalidLengths(strings);
+      }
+
+      try {
+        for (int i = 0; i < strings.length; i++) {
+          lengths[i] = Long.parseLong(strings[i]);
+        }
+      } catch (NumberFormatException e) {
+        throw invalidLengths(strings);
+      }
+    }
+
+    private IOException invalidLengths(String[] strings) throws IOException {
+      throw new IOException("unexpected journal line: " + java.util.Arrays.toString(strings));
+    }
+
+    public File getCleanFile(int i) {
+      return new File(shard.directory, key + "." + i);
+    }
+
+    public File getDirtyFile(int i) {
+      return new File(shard.directory, key + "." + i + ".tmp");
+    }
+  }
+}
@@ -29,15 +29,40 @@ import android.os.Message;
 
 import com.stericson.roottools.RootTools;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 public abstract class Command {
 
-    ExecutionMonitor executionMonitor = null;
-    boolean executing = false;
+    /**
+     * One thread watches the timeouts of all commands, instead of one thread per command.
+     */
+    private static final ScheduledExecutorService timeoutMonitor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Command Timeout Monitor");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    ScheduledFuture<?> executionMonitor = null;
+    volatile boolean executing = false;
+    // the shell the command runs on, only that one gets closed on a timeout
+    private volatile Shell shell = null;
+
+    private final CountDownLatch finishedLatch = new CountDownLatch(1);
 
     Handler mHandler;
     String[] command = { };
-    boolean finished = false;
-    boolean terminated = false;
+    volatile boolean finished = false;
+    volatile boolean terminated = false;
+    volatile boolean cancelled = false;
     int exitCode = -1;
     int id = 0;
     int timeout = RootTools.default_Command_Timeout;
@@ -64,9 +89,51 @@ public abstract class Command {
     protected void finishCommand() {
         executing = false;
         finished = true;
+        if (executionMonitor != null) {
+            executionMonitor.cancel(false);
+        }
         this.notifyAll();
+        finishedLatch.countDown();
+    }
+
+    /**
+     * Blocks until the command finished, got terminated or got cancelled.
+     */
+    public void waitForFinish() throws InterruptedException {
+        finishedLatch.await();
     }
 
+    /**
+     * Blocks until the command finished, got terminated or got cancelled.
+     *
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return true if the command finished, false if the timeout expired
+     */
+    public boolean waitForFinish(final long timeout) throws InterruptedException {
+        return finishedLatch.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the command and releases everyone waiting for it.
+     * <p/>
+     * If the command is still queued, it will not get executed at all. If it is already executing,
+     * it runs to its end inside of the shell but its output and result get dropped.
+     *
+     * @return false if the command already finished, true otherwise
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (finished) {
+                return false;
+            }
+            cancelled = true;
+        }
+        terminated("Cancelled");
+        return true;
+    }
+
+    public boolean isCancelled() { return cancelled; }
+
     public String getCommand() {
         StringBuilder sb = new StringBuilder();
 
@@ -87,16 +154,32 @@ public abstract class Command {
         }
     }
 
-    protected void startExecution() {
-        executionMonitor = new ExecutionMonitor();
-        executionMonitor.setPriority(Thread.MIN_PRIORITY);
-        executionMonitor.start();
+    protected void startExecution(final Shell shell) {
+        this.shell = shell;
         executing = true;
+        executionMonitor = timeoutMonitor.schedule(new Runnable() {
+            @Override public void run() {
+                if (!finished) {
+                    RootTools.log("Timeout Exception has occurred.");
+                    // never block the monitor, it watches the commands of all shells
+                    final Shell owner = shell;
+                    if (owner != null) {
+                        RootTools.log("Killing the shell of command " + id);
+                        owner.kill();
+                    }
+                    terminated("Timeout Exception");
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
     }
 
     public void terminate(final String reason) {
-        Shell.closeAll();
-        RootTools.log("Terminating all shells.");
+        // other threads may run commands on other pooled shells, leave those alone
+        final Shell owner = shell;
+        if (owner != null) {
+            RootTools.log("Terminating the shell of command " + id);
+            owner.close();
+        }
         terminated(reason);
     }
 
@@ -145,6 +228,9 @@ public abstract class Command {
     }
 
     protected void output(int id, String line) {
+        if (terminated) {
+            return;
+        }
         if (mHandler != null) {
             final Message msg = mHandler.obtainMessage();
             final Bundle bundle = new Bundle();
@@ -158,22 +244,4 @@ public abstract class Command {
         }
     }
 
-    private class ExecutionMonitor extends Thread {
-        public void run() {
-            while (!finished) {
-                synchronized (this) {
-                    try {
-                        this.wait(timeout);
-                    } catch (InterruptedException ignored) { }
-                }
-
-                if (!finished) {
-                    RootTools.log("Timeout Exception has occurred.");
-                    terminate("Timeout Exception");
-                }
-            }
-        }
-    }
-
-
 }
@@ -40,38 +40,61 @@ import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Shell {
 
+    private static final int maxCommands = 1000;
+    private static final int maxInFlight = 64;
+
     private final Process proc;
     private final BufferedReader inputStream;
     private final BufferedReader errorStream;
     private final OutputStreamWriter outputStream;
-    private final List<Command> commands = new ArrayList<>();
+
+    /**
+     * Commands, which got added but are not written to the shell yet.
+     * Bounded, producers never block but get their command terminated if it is full.
+     */
+    private final BlockingQueue<Command> pending = new LinkedBlockingQueue<>(maxCommands);
+    /**
+     * Commands, which got written to the shell and are waiting for their output, in order.
+     * Bounded as well, the input thread blocks if the shell does not keep up.
+     */
+    private final BlockingQueue<Command> inFlight = new ArrayBlockingQueue<>(maxInFlight);
+    private final AtomicInteger unfinished = new AtomicInteger();
 
     //indicates whether or not to close the shell
-    private boolean close = false;
+    private volatile boolean close = false;
 
     private static String error = "";
     private static final String token = "F*D^W@#FGF";
     private static Shell rootShell = null;
     private static Shell shell = null;
     private static Shell customShell = null;
+    private static final List<Shell> pooledShells = new ArrayList<>();
 
-    private static int shellTimeout = 25000;
-    public static boolean isExecuting = false;
-    public static boolean isReading = false;
-    public boolean isClosed = false;
+    /**
+     * Signals the input thread to stop, once all commands before it got written.
+     */
+    private static final Command CLOSE_SIGNAL = new CommandCapture(-1, "exit 0");
 
-    private static final int maxCommands = 1000;
+    private static int shellTimeout = 25000;
+    public volatile boolean isExecuting = false;
+    public volatile boolean isReading = false;
+    public volatile boolean isClosed = false;
 
-    private int read = 0;
-    private int write = 0;
     private int totalExecuted = 0;
     private int totalRead = 0;
-    private boolean isCleaning = false;
+
+    private Thread inputThread;
+    private Thread outputThread;
 
     public static final String CONTEXT_NORMAL = "normal";
 
@@ -160,10 +183,12 @@ public class Shell {
                  */
                 final Thread si = new Thread(input, "Shell Input");
                 si.setPriority(Thread.NORM_PRIORITY);
+                inputThread = si;
                 si.start();
 
                 final Thread so = new Thread(output, "Shell Output");
                 so.setPriority(Thread.NORM_PRIORITY);
+                outputThread = so;
                 so.start();
             }
         } catch (InterruptedException ex) {
@@ -176,17 +201,16 @@ public class Shell {
     public boolean isClosed() { return close; }
 
     public Command add(final Command command) {
-        if (close) {
+        if (close || isClosed) {
             throw new IllegalStateException("Unable to add commands to a closed shell");
         }
 
-        //noinspection StatementWithEmptyBody
-        while (isCleaning) {
-            // Don't add commands while cleaning
+        unfinished.incrementAndGet();
+        if (!pending.offer(command)) {
+            unfinished.decrementAndGet();
+            RootTools.log("Command queue is full, dropping command");
+            command.terminated("Command queue full");
         }
-        commands.add(command);
-
-        notifyThreads();
 
         return command;
     }
@@ -195,19 +219,6 @@ public class Shell {
         add(new CommandCapture(-1, "cd " + Application.get().getFilesDirectory()));
     }
 
-    private void cleanCommands() {
-        isCleaning = true;
-        int toClean = Math.abs(maxCommands - (maxCommands / 4));
-        RootTools.log("Cleaning up: " + toClean);
-        for (int i = 0; i < toClean; i++) {
-            commands.remove(0);
-        }
-
-        read = commands.size() - 1;
-        write = commands.size() - 1;
-        isCleaning = false;
-    }
-
     private void closeQuietly(final Reader input) {
         try {
             if (input != null) { input.close(); }
@@ -221,28 +232,48 @@ public class Shell {
     }
 
     public void close() {
-        synchronized (commands) {
-            /**
-             * instruct the two threads monitoring input and output
-             * of the shell to close.
-             */
-            this.close = true;
-            notifyThreads();
+        /**
+         * instruct the two threads monitoring input and output
+         * of the shell to close.
+         */
+        this.close = true;
+        if (!pending.offer(CLOSE_SIGNAL)) {
+            // the input thread checks the close flag once the queue drained
+            RootTools.log("Command queue is full, closing once it drained");
         }
 
-        int count = 0;
-        while (isExecuting) {
+        if (inputThread != null && Thread.currentThread() != inputThread) {
             RootTools.log("Waiting on shell to finish executing before closing...");
-            count++;
-
-            //failsafe to keep from hanging...
-            if (count > 1000) {
-                break;
+            try {
+                //failsafe to keep from hanging...
+                inputThread.join(shellTimeout);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
             }
         }
 
         RootTools.log("Shell Closed!");
+        forget();
+    }
 
+    /**
+     * Closes the shell without waiting for it, the process gets destroyed right away.
+     * <p/>
+     * Used for shells, which hang on a command, joining their threads would block the caller
+     * for up to {@link #shellTimeout}.
+     */
+    public void kill() {
+        this.close = true;
+        pending.offer(CLOSE_SIGNAL);
+        RootTools.log("Killing shell");
+        try {
+            // the output thread reads EOF, cleans up and terminates the queued commands
+            proc.destroy();
+        } catch (Exception ignored) { }
+        forget();
+    }
+
+    private void forget() {
         if (this == Shell.rootShell) {
             Shell.rootShell = null;
         } else if (this == Shell.shell) {
@@ -250,6 +281,9 @@ public class Shell {
         } else if (this == Shell.customShell) {
             Shell.customShell = null;
         }
+        synchronized (pooledShells) {
+            pooledShells.remove(this);
+        }
     }
 
     public static void closeCustomShell() {
@@ -267,17 +301,50 @@ public class Shell {
         shell.close();
     }
 
+    public static void closePooledShells() {
+        final Shell[] shells;
+        synchronized (pooledShells) {
+            shells = pooledShells.toArray(new Shell[pooledShells.size()]);
+        }
+        for (final Shell pooled : shells) {
+            pooled.close();
+        }
+    }
+
     public static void closeAll() {
         closeShell();
         closeRootShell();
         closeCustomShell();
+        closePooledShells();
     }
 
-    public int getCommandQueuePosition(final Command cmd) { return commands.indexOf(cmd); }
+    public int getCommandQueuePosition(final Command cmd) {
+        int position = 0;
+        for (final Command queued : inFlight) {
+            if (queued == cmd) return position;
+            position++;
+        }
+        for (final Command queued : pending) {
+            if (queued == cmd) return position;
+            position++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the amount of commands, which got added but did not finish yet
+     */
+    public int getPendingCommandCount() { return unfinished.get(); }
+
+    /**
+     * @return true if the calling thread is the thread reading this shell's output, which is
+     * where command callbacks get invoked from
+     */
+    public boolean isOutputThread() { return Thread.currentThread() == outputThread; }
 
     public String getCommandQueuePositionString(final Command cmd) {
         return "Command is in position " + getCommandQueuePosition(cmd) +
-                " currently executing command at position " + write;
+                " currently executing command " + totalRead;
     }
 
     public static Shell getOpenShell() {
@@ -301,90 +368,75 @@ public class Shell {
     /**
      * Runnable to write commands to the open shell.
      * <p/>
-     * When writing commands we stay in a loop and wait for new
-     * commands to added to "commands"
+     * When writing commands we block on the queue of pending commands and wait for new
+     * commands to be added by the method add in this class.
      * <p/>
-     * The notification of a new command is handled by the method add in this class
+     * Written commands are handed over to the output runnable via a second queue.
      */
     private final Runnable input = new Runnable() {
         public void run() {
             try {
                 while (true) {
+                    isExecuting = !inFlight.isEmpty();
 
-                    synchronized (commands) {
-                        /**
-                         * While loop is used in the case that notifyAll is called
-                         * and there are still no commands to be written, a rare
-                         * case but one that could happen.
-                         */
-                        while (!close && write >= commands.size()) {
-                            isExecuting = false;
-                            commands.wait();
-                        }
+                    final Command cmd;
+                    if (close && pending.isEmpty()) {
+                        cmd = CLOSE_SIGNAL;
+                    } else {
+                        cmd = pending.take();
                     }
 
-                    if (write >= maxCommands) {
-
-                        /**
-                         * wait for the read to catch up.
-                         */
-                        while (read != write) {
-                            RootTools.log("Waiting for read and write to catch up before cleanup.");
-                        }
+                    if (cmd == CLOSE_SIGNAL) {
                         /**
-                         * Clean up the commands, stay neat.
+                         * close the thread, the shell is closing.
                          */
-                        cleanCommands();
+                        isExecuting = false;
+                        outputStream.write("\nexit 0\n");
+                        outputStream.flush();
+                        RootTools.log("Closing shell");
+                        return;
                     }
 
+                    /**
+                     * Hand the command over to the output runnable before writing it, so its
+                     * output can never arrive before the command is known.
+                     * This blocks if too many commands are in flight.
+                     */
+                    isExecuting = true;
+                    inFlight.put(cmd);
+
                     /**
                      * Write the new command
                      *
                      * We write the command followed by the token to indicate
                      * the end of the command execution
                      */
-                    if (write < commands.size()) {
-                        isExecuting = true;
-                        Command cmd = commands.get(write);
-                        cmd.startExecution();
+                    if (cmd.isCancelled()) {
+                        /**
+                         * Still write a no-op, the output thread expects a token for
+                         * every queued command.
+                         */
+                        RootTools.log("Skipping cancelled command");
+                        outputStream.write(":");
+                    } else {
+                        cmd.startExecution(Shell.this);
                         RootTools.log("Executing: " + cmd.getCommand());
 
                         outputStream.write(cmd.getCommand());
-                        String line = "\necho " + token + ' ' + totalExecuted + " $?\n";
-                        outputStream.write(line);
-                        outputStream.flush();
-                        write++;
-                        totalExecuted++;
-                    } else if (close) {
-                        /**
-                         * close the thread, the shell is closing.
-                         */
-                        isExecuting = false;
-                        outputStream.write("\nexit 0\n");
-                        outputStream.flush();
-                        RootTools.log("Closing shell");
-                        return;
                     }
+                    String line = "\necho " + token + ' ' + totalExecuted + " $?\n";
+                    outputStream.write(line);
+                    outputStream.flush();
+                    totalExecuted++;
                 }
             } catch (IOException | InterruptedException e) {
                 RootTools.log(e.getMessage(), 2, e);
             } finally {
-                write = 0;
                 closeQuietly(outputStream);
             }
         }
     };
 
-    protected void notifyThreads() {
-        new Thread() {
-            public void run() {
-                synchronized (commands) {
-                    commands.notifyAll();
-                }
-            }
-        }.start();
-    }
-
     /**
      * Runnable to monitor the responses from the open shell.
      */
@@ -404,12 +456,12 @@ public class Shell {
                     if (outputLine == null) { break; }
 
                     if (command == null) {
-                        if (read >= commands.size()) {
+                        command = inFlight.peek();
+                        if (command == null) {
                             if (close) { break; }
 
                             continue;
                         }
-                        command = commands.get(read);
                     }
 
                     /**
@@ -452,9 +504,10 @@ public class Shell {
                                 processErrors(command);
                                 command.setExitCode(exitCode);
                                 command.commandFinished();
+                                inFlight.poll();
+                                unfinished.decrementAndGet();
                                 command = null;
 
-                                read++;
                                 totalRead++;
                             }
                         }
@@ -471,15 +524,8 @@ public class Shell {
                 closeQuietly(errorStream);
                 closeQuietly(inputStream);
 
-                while (read < commands.size()) {
-                    if (command == null) { command = commands.get(read); }
-
-                    command.terminated("Unexpected Termination.");
-                    command = null;
-                    read++;
-                }
-
-                read = 0;
+                terminateQueued(inFlight);
+                terminateQueued(pending);
 
             } catch (IOException e) {
                 RootTools.log(e.getMessage(), 2, e);
@@ -491,6 +537,18 @@ public class Shell {
         }
     };
 
+    private void terminateQueued(final BlockingQueue<Command> queue) {
+        final Iterator<Command> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            final Command command = iterator.next();
+            iterator.remove();
+            if (command == CLOSE_SIGNAL) { continue; }
+
+            command.terminated("Unexpected Termination.");
+            unfinished.decrementAndGet();
+        }
+    }
+
     public void processErrors(Command command) {
         try {
             while (errorStream.ready() && command != null) {
@@ -558,6 +616,32 @@ public class Shell {
         return rootShell;
     }
 
+    /**
+     * Opens a new root shell, which is not shared via {@link #startRootShell()}.
+     * The caller is responsible for closing the shell.
+     */
+    public static Shell startPooledRootShell(final int timeout, final int retry)
+            throws IOException, TimeoutException, RootDeniedException {
+        Shell.shellTimeout = timeout;
+
+        RootTools.log("Starting pooled Root Shell!");
+        int retries = 0;
+        while (true) {
+            try {
+                final Shell pooled = new Shell("su");
+                synchronized (pooledShells) {
+                    pooledShells.add(pooled);
+                }
+                return pooled;
+            } catch (IOException e) {
+                if (retries++ >= retry) {
+                    RootTools.log("IOException, could not start shell");
+                    throw e;
+                }
+            }
+        }
+    }
+
     public static Shell startCustomShell(final String shellPath)
             throws IOException, TimeoutException, RootDeniedException {
         return Shell.startCustomShell(shellPath, 20000);
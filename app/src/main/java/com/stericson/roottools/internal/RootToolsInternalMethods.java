@@ -1015,7 +1015,10 @@ public final class RootToolsInternalMethods {
 
     private void commandWait(final Command cmd) {
         while (!cmd.isFinished()) {
-            RootTools.log(Constants.TAG, Shell.getOpenShell().getCommandQueuePositionString(cmd));
+            final Shell openShell = Shell.getOpenShell();
+            if (openShell != null) {
+                RootTools.log(Constants.TAG, openShell.getCommandQueuePositionString(cmd));
+            }
 
             //noinspection SynchronizationOnLocalVariableOrMethodParameter
             synchronized (cmd) {
@@ -1026,8 +1029,9 @@ public final class RootToolsInternalMethods {
                 } catch (InterruptedException ignored) { }
             }
 
-            if (!cmd.isExecuting() && !cmd.isFinished()) {
-                if (!Shell.isExecuting && !Shell.isReading) {
+            final Shell shell = Shell.getOpenShell();
+            if (shell != null && !cmd.isExecuting() && !cmd.isFinished()) {
+                if (!shell.isExecuting && !shell.isReading) {
                     Log.e(Constants.TAG,
                             "Waiting for a command to be executed in a shell that is not " +
                                     "executing and not reading! \n\n Command: " + cmd
@@ -1036,7 +1040,7 @@ public final class RootToolsInternalMethods {
                     final Exception e = new Exception();
                     e.setStackTrace(Thread.currentThread().getStackTrace());
                     e.printStackTrace();
-                } else if (Shell.isExecuting && !Shell.isReading) {
+                } else if (shell.isExecuting && !shell.isReading) {
                     Log.e(Constants.TAG,
                             "Waiting for a command to be executed in a shell that is executing " +
                                     "but not reading! \n\n Command: " + cmd
@@ -27,7 +27,10 @@ import android.os.Handler;
 import com.squareup.leakcanary.LeakCanary;
 import com.squareup.leakcanary.RefWatcher;
 
+import org.namelessrom.devicecontrol.hardware.CapabilityIndex;
 import org.namelessrom.devicecontrol.models.DeviceConfig;
+import org.namelessrom.devicecontrol.modules.appmanager.AppIndex;
+import org.namelessrom.devicecontrol.modules.appmanager.AppItem;
 import org.namelessrom.devicecontrol.utils.Utils;
 
 import java.io.File;
@@ -68,6 +71,13 @@ public class Application extends android.app.Application {
         }
     }
 
+    @Override public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mCache != null) {
+            mCache.trimMemory(level);
+        }
+    }
+
     @Override public void onCreate() {
         super.onCreate();
         mRefWatcher = LeakCanary.install(this);
@@ -103,6 +113,14 @@ public class Application extends android.app.Application {
 
         dumpInformation();
 
+        // probe the hardware once per boot, so screens can open without touching sysfs
+        CapabilityIndex.get().build();
+
+        // only packages, which changed since the last start, get their label loaded
+        AppIndex.get().load();
+
+        deleteLegacyCache();
+
         boolean isNameless = Utils.isNameless(this);
         Logger.v(this, String.format("is nameless: %s", isNameless));
 
@@ -114,22 +132,37 @@ public class Application extends android.app.Application {
     }
 
     private void buildCache() {
-        final File cacheLocation;
-        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            cacheLocation = new File(sExternalStorageDir, "bitmapCache");
-        } else {
-            cacheLocation = new File(getFilesDir(), "bitmapCache");
-        }
-        //noinspection ResultOfMethodCallIgnored
-        cacheLocation.mkdirs();
-
+        // icons get stored in the icon atlas, the bitmap cache only keeps them in memory
         BitmapLruCache.Builder builder = new BitmapLruCache.Builder(this);
         builder.setMemoryCacheEnabled(true).setMemoryCacheMaxSizeUsingHeapSize(0.25f);
-        builder.setDiskCacheEnabled(true).setDiskCacheLocation(cacheLocation);
+        builder.setKeyClassifier(new BitmapLruCache.KeyClassifier() {
+            @Override public String classify(String key) {
+                final AppItem appItem = AppIndex.get().getApp(key);
+                if (appItem == null) {
+                    return "other";
+                }
+                return (appItem.isSystemApp() ? "system" : "user");
+            }
+        });
 
         mCache = builder.build();
     }
 
+    /**
+     * Removes the disk cache of older versions, which stored one file per icon.
+     */
+    private void deleteLegacyCache() {
+        final File[] locations = {
+                new File(sExternalStorageDir, "bitmapCache"),
+                new File(getFilesDir(), "bitmapCache")
+        };
+        for (final File location : locations) {
+            if (location.exists() && Utils.deleteRecursive(location)) {
+                Logger.v(this, "deleted legacy cache at %s", location.getAbsolutePath());
+            }
+        }
+    }
+
     private void dumpInformation() {
         if (!Logger.getEnabled()) {
             return;
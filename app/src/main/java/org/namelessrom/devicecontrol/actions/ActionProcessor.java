@@ -18,9 +18,11 @@
 package org.namelessrom.devicecontrol.actions;
 
 import android.graphics.drawable.Drawable;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
 import org.namelessrom.devicecontrol.actions.cpu.CpuFreqMaxAction;
 import org.namelessrom.devicecontrol.actions.cpu.CpuFreqMinAction;
@@ -39,17 +41,21 @@ import org.namelessrom.devicecontrol.actions.gpu.Gpu3dScalingAction;
 import org.namelessrom.devicecontrol.actions.gpu.GpuFreqMaxAction;
 import org.namelessrom.devicecontrol.actions.gpu.GpuFreqMinAction;
 import org.namelessrom.devicecontrol.actions.gpu.GpuGovAction;
+import org.namelessrom.devicecontrol.hardware.CapabilityIndex;
 import org.namelessrom.devicecontrol.hardware.GovernorUtils;
 import org.namelessrom.devicecontrol.hardware.GpuUtils;
 import org.namelessrom.devicecontrol.hardware.IoUtils;
 import org.namelessrom.devicecontrol.hardware.KsmUtils;
+import org.namelessrom.devicecontrol.hardware.UksmUtils;
 import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
 import org.namelessrom.devicecontrol.utils.DrawableHelper;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 import java.util.ArrayList;
+import java.util.regex.Pattern;
 
 public class ActionProcessor {
+    private static final String TAG = ActionProcessor.class.getSimpleName();
 
     public static final String CATEGORY_CPU = "cpu";
     public static final String CATEGORY_GPU = "gpu";
@@ -97,6 +103,11 @@ public class ActionProcessor {
     public static final String ACTION_IO_SCHEDULER = IoSchedulerAction.NAME;
     public static final String ACTION_READ_AHEAD = ReadAheadAction.NAME;
 
+    // values end up in root shell commands, only allow what the nodes could ever take
+    private static final Pattern VALUE_NUMBER = Pattern.compile("[0-9]{1,12}");
+    private static final Pattern VALUE_ON_OFF = Pattern.compile("[01]");
+    private static final Pattern VALUE_TOKEN = Pattern.compile("[A-Za-z0-9_\\-]{1,64}");
+
     public static Drawable getImageForCategory(final String category) {
         if (TextUtils.equals(CATEGORY_CPU, category)) {
             return DrawableHelper.applyAccentColorFilter(R.drawable.ic_memory);
@@ -155,6 +166,9 @@ public class ActionProcessor {
         final ArrayList<Entry> actions = new ArrayList<>();
         if (TextUtils.isEmpty(category)) return actions;
 
+        // probed once per boot, see CapabilityIndex
+        final CapabilityIndex index = CapabilityIndex.get();
+
         // CPU
         if (TextUtils.equals(CATEGORY_CPU, category)) {
             actions.add(new Entry(Application.get().getString(R.string.cpu_freq_max),
@@ -166,44 +180,44 @@ public class ActionProcessor {
         }
         // GPU
         if (TextUtils.equals(CATEGORY_GPU, category)) {
-            if (Utils.fileExists(GpuUtils.get().getGpuFreqMaxPath())) {
+            if (index.exists(GpuUtils.get().getGpuFreqMaxPath())) {
                 actions.add(new Entry(Application.get().getString(R.string.gpu_freq_max),
                         ACTION_GPU_FREQUENCY_MAX));
             }
-            if (Utils.fileExists(GpuUtils.get().getGpuFreqMinPath())) {
+            if (index.exists(GpuUtils.get().getGpuFreqMinPath())) {
                 actions.add(new Entry(Application.get().getString(R.string.gpu_freq_min),
                         ACTION_GPU_FREQUENCY_MIN));
             }
-            if (Utils.fileExists(GpuUtils.get().getGpuGovPath())) {
+            if (index.exists(GpuUtils.get().getGpuGovPath())) {
                 actions.add(new Entry(Application.get().getString(R.string.gpu_governor),
                         ACTION_GPU_GOVERNOR));
             }
-            if (Utils.fileExists(GpuUtils.FILE_3D_SCALING)) {
+            if (index.exists(GpuUtils.FILE_3D_SCALING)) {
                 actions.add(new Entry(Application.get().getString(R.string.gpu_3d_scaling),
                         ACTION_3D_SCALING));
             }
         }
         // Extras
         if (TextUtils.equals(CATEGORY_EXTRAS, category)) {
-            if (Utils.fileExists(KsmUtils.KSM_PATH)) {
-                if (Utils.fileExists(Application.get().getString(R.string.file_ksm_run))) {
+            if (index.exists(KsmUtils.KSM_PATH)) {
+                if (index.exists(Application.get().getString(R.string.file_ksm_run))) {
                     actions.add(new Entry(Application.get().getString(R.string.enable_ksm),
                             ACTION_KSM_ENABLED));
                 }
-                if (Utils.fileExists(Application.get().getString(R.string.file_ksm_deferred))) {
+                if (index.exists(Application.get().getString(R.string.file_ksm_deferred))) {
                     actions.add(new Entry(Application.get().getString(R.string.deferred_timer),
                             ACTION_KSM_DEFERRED));
                 }
-                if (Utils.fileExists(KsmUtils.KSM_PAGES_TO_SCAN)) {
+                if (index.exists(KsmUtils.KSM_PAGES_TO_SCAN)) {
                     actions.add(new Entry(Application.get().getString(R.string.pages_to_scan),
                             ACTION_KSM_PAGES));
                 }
-                if (Utils.fileExists(KsmUtils.KSM_SLEEP)) {
+                if (index.exists(KsmUtils.KSM_SLEEP)) {
                     actions.add(new Entry(Application.get().getString(R.string.sleep_between_scans),
                             ACTION_KSM_SLEEP));
                 }
             }
-            if (Utils.fileExists(MpDecisionAction.MPDECISION_PATH)) {
+            if (index.exists(MpDecisionAction.MPDECISION_PATH)) {
                 actions.add(new Entry(Application.get().getString(R.string.mpdecision),
                         ACTION_MPDECISION));
             }
@@ -311,8 +325,117 @@ public class ActionProcessor {
 
     public static void getProcessAction(final String action, final String value,
             final boolean boot) {
+        final BaseAction baseAction = createAction(action, value, boot);
+        if (baseAction != null) {
+            baseAction.triggerAction();
+        }
+    }
+
+    /**
+     * Adds the writes of the action to the batch instead of applying them right away.
+     *
+     * @return false if there is no such action or the value is not valid for it
+     */
+    public static boolean addToBatch(final SysfsBatch batch, final String action,
+            final String value, final boolean boot) {
+        final BaseAction baseAction = createAction(action, value, boot);
+        if (baseAction == null) {
+            return false;
+        }
+        baseAction.addToBatch(batch);
+        return true;
+    }
+
+    /**
+     * @return The node the action writes to, the one of the first core or device for actions,
+     * which write to several, or null if the action does not write to a node
+     */
+    @Nullable public static String getPath(final String action) {
+        if (TextUtils.isEmpty(action)) {
+            return null;
+        }
+
+        switch (action) {
+            case ACTION_CPU_FREQUENCY_MAX:
+                return CpuUtils.get().getMaxCpuFrequencyPath(0);
+            case ACTION_CPU_FREQUENCY_MIN:
+                return CpuUtils.get().getMinCpuFrequencyPath(0);
+            case ACTION_CPU_GOVERNOR:
+                return GovernorUtils.get().getGovernorPath(0);
+            case ACTION_GPU_FREQUENCY_MAX:
+                return GpuUtils.get().getGpuFreqMaxPath();
+            case ACTION_GPU_FREQUENCY_MIN:
+                return GpuUtils.get().getGpuFreqMinPath();
+            case ACTION_GPU_GOVERNOR:
+                return GpuUtils.get().getGpuGovPath();
+            case ACTION_3D_SCALING:
+                return GpuUtils.FILE_3D_SCALING;
+            case ACTION_IO_SCHEDULER:
+                return IoUtils.IO_SCHEDULER_PATH[0];
+            case ACTION_READ_AHEAD:
+                return IoUtils.READ_AHEAD_PATH[0];
+            case ACTION_KSM_ENABLED:
+                return Application.get().getString(R.string.file_ksm_run);
+            case ACTION_KSM_DEFERRED:
+                return Application.get().getString(R.string.file_ksm_deferred);
+            case ACTION_KSM_PAGES:
+                return KsmUtils.KSM_PAGES_TO_SCAN;
+            case ACTION_KSM_SLEEP:
+                return KsmUtils.KSM_SLEEP;
+            case ACTION_UKSM_ENABLED:
+                return Application.get().getString(R.string.file_uksm_run);
+            case ACTION_UKSM_SLEEP:
+                return UksmUtils.UKSM_SLEEP;
+            case ACTION_UKSM_GOVERNOR:
+                return UksmUtils.UKSM_CPU_GOV;
+        }
+        return null;
+    }
+
+    /**
+     * Checks the value against the format the node of the action takes. This does not check
+     * whether the value is one of {@link #getValues(String)}, as not every action has a fixed
+     * list of values.
+     *
+     * @return true if the value may be written for the action
+     */
+    public static boolean isValidValue(final String action, final String value) {
+        if (TextUtils.isEmpty(action) || value == null) {
+            return false;
+        }
+        switch (action) {
+            case ACTION_CPU_FREQUENCY_MAX:
+            case ACTION_CPU_FREQUENCY_MIN:
+            case ACTION_GPU_FREQUENCY_MAX:
+            case ACTION_GPU_FREQUENCY_MIN:
+            case ACTION_READ_AHEAD:
+            case ACTION_KSM_PAGES:
+            case ACTION_KSM_SLEEP:
+            case ACTION_UKSM_SLEEP:
+                return VALUE_NUMBER.matcher(value).matches();
+            case ACTION_3D_SCALING:
+            case ACTION_KSM_ENABLED:
+            case ACTION_KSM_DEFERRED:
+            case ACTION_UKSM_ENABLED:
+            case ACTION_MPDECISION:
+                return VALUE_ON_OFF.matcher(value).matches();
+            case ACTION_CPU_GOVERNOR:
+            case ACTION_GPU_GOVERNOR:
+            case ACTION_IO_SCHEDULER:
+            case ACTION_UKSM_GOVERNOR:
+                return VALUE_TOKEN.matcher(value).matches();
+        }
+        return false;
+    }
+
+    @Nullable private static BaseAction createAction(final String action, final String value,
+            final boolean boot) {
         if (action == null || action.isEmpty() || value == null || value.isEmpty()) {
-            return;
+            return null;
+        }
+        if (!isValidValue(action, value)) {
+            Logger.w(TAG, "invalid value for %s: %s", action, value);
+            return null;
         }
 
         //------------------------------------------------------------------------------------------
@@ -320,64 +443,51 @@ public class ActionProcessor {
         //------------------------------------------------------------------------------------------
         switch (action) {
             case ACTION_CPU_FREQUENCY_MAX:
-                new CpuFreqMaxAction(value, boot).triggerAction();
-                break;
+                return new CpuFreqMaxAction(value, boot);
             case ACTION_CPU_FREQUENCY_MIN:
-                new CpuFreqMinAction(value, boot).triggerAction();
-                break;
+                return new CpuFreqMinAction(value, boot);
             case ACTION_CPU_GOVERNOR:
-                new CpuGovAction(value, boot).triggerAction();
-                break;
+                return new CpuGovAction(value, boot);
             //------------------------------------------------------------------------------------------
             // GPU
             //------------------------------------------------------------------------------------------
             case ACTION_GPU_FREQUENCY_MAX:
-                new GpuFreqMaxAction(value, boot).triggerAction();
-                break;
+                return new GpuFreqMaxAction(value, boot);
             case ACTION_GPU_FREQUENCY_MIN:
-                new GpuFreqMinAction(value, boot).triggerAction();
-                break;
+                return new GpuFreqMinAction(value, boot);
             case ACTION_GPU_GOVERNOR:
-                new GpuGovAction(value, boot).triggerAction();
-                break;
+                return new GpuGovAction(value, boot);
             case ACTION_3D_SCALING:
-                new Gpu3dScalingAction(value, boot).triggerAction();
-                break;
+                return new Gpu3dScalingAction(value, boot);
             //------------------------------------------------------------------------------------------
             // Filesystem
             //------------------------------------------------------------------------------------------
             case ACTION_IO_SCHEDULER:
-                new IoSchedulerAction(value, boot).triggerAction();
-                break;
+                return new IoSchedulerAction(value, boot);
             // Read Ahead ------------------------------------------------------------------------------
             case ACTION_READ_AHEAD:
-                new ReadAheadAction(value, boot).triggerAction();
-                break;
+                return new ReadAheadAction(value, boot);
             //------------------------------------------------------------------------------------------
             // Extras
             //------------------------------------------------------------------------------------------
             case ACTION_KSM_ENABLED:
-                new KsmEnableAction(value, boot).triggerAction();
-                break;
+                return new KsmEnableAction(value, boot);
             case ACTION_KSM_DEFERRED:
-                new KsmDeferredAction(value, boot).triggerAction();
-                break;
+                return new KsmDeferredAction(value, boot);
             case ACTION_KSM_PAGES:
-                new KsmPagesAction(value, boot).triggerAction();
-                break;
+                return new KsmPagesAction(value, boot);
             case ACTION_KSM_SLEEP:
-                new KsmSleepAction(value, boot).triggerAction();
-                break;
+                return new KsmSleepAction(value, boot);
             case ACTION_UKSM_SLEEP:
-                new UksmSleepAction(value, boot).triggerAction();
-                break;
+                return new UksmSleepAction(value, boot);
             case ACTION_UKSM_ENABLED:
-                new UksmEnableAction(value, boot).triggerAction();
-                break;
+                return new UksmEnableAction(value, boot);
             case ACTION_UKSM_GOVERNOR:
-                new UksmGovernorAction(value, boot).triggerAction();
-                break;
+                return new UksmGovernorAction(value, boot);
+            case ACTION_MPDECISION:
+                return new MpDecisionAction(value, boot);
         }
+        return null;
     }
 
     private static void addValuesOnOff(final ArrayList<Entry> values) {
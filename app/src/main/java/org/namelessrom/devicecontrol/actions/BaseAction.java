@@ -19,6 +19,7 @@ package org.namelessrom.devicecontrol.actions;
 
 import org.namelessrom.devicecontrol.models.BootupConfig;
 import org.namelessrom.devicecontrol.objects.BootupItem;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public abstract class BaseAction {
 
@@ -57,9 +58,20 @@ public abstract class BaseAction {
     protected abstract void setupAction();
 
     /**
-     * Called when the action should be triggered.
+     * Adds everything the action needs to write to the batch, without applying it.
      */
-    public abstract void triggerAction();
+    public abstract void addToBatch(SysfsBatch batch);
+
+    /**
+     * Called when the action should be triggered on its own.
+     */
+    public void triggerAction() {
+        final SysfsBatch batch = new SysfsBatch();
+        addToBatch(batch);
+        if (!batch.isEmpty()) {
+            batch.applyAsync(null);
+        }
+    }
 
     @Override public String toString() {
         return String.format(
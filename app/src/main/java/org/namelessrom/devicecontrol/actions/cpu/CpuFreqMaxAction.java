@@ -26,7 +26,7 @@ import org.namelessrom.devicecontrol.models.BootupConfig;
 import org.namelessrom.devicecontrol.models.DeviceConfig;
 import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
 import org.namelessrom.devicecontrol.objects.BootupItem;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public class CpuFreqMaxAction extends BaseAction {
 
@@ -57,7 +57,7 @@ public class CpuFreqMaxAction extends BaseAction {
         // TODO: what?
     }
 
-    @Override public void triggerAction() {
+    @Override public void addToBatch(final SysfsBatch batch) {
         if (TextUtils.isEmpty(value)) {
             Logger.wtf(this, "No value for action!");
             return;
@@ -66,27 +66,21 @@ public class CpuFreqMaxAction extends BaseAction {
         final boolean lockFreq = DeviceConfig.get().perfCpuLock;
 
         final int cpus = CpuUtils.get().getNumOfCpus();
-        final StringBuilder sb = new StringBuilder(lockFreq ? cpus * 3 : cpus * 2);
 
         final BootupConfig configuration = BootupConfig.get();
         String path;
         for (int i = 0; i < cpus; i++) {
             if (i != 0) {
-                sb.append(CpuUtils.get().onlineCpu(i));
+                batch.add(CpuUtils.get().getOnlinePath(i), "1");
             }
             path = CpuUtils.get().getMaxCpuFrequencyPath(i);
-            sb.append(Utils.getWriteCommand(path, value));
+            batch.add(path, value, lockFreq);
             if (bootup) {
                 configuration.addItem(new BootupItem(BootupConfig.CATEGORY_CPU,
                         "cpu_max" + i, CpuUtils.get().getMaxCpuFrequencyPath(i), value, true));
             }
-            if (lockFreq) {
-                sb.append(Utils.lockFile(path));
-            }
         }
         configuration.save();
-
-        Utils.runRootCommand(sb.toString());
     }
 
 }
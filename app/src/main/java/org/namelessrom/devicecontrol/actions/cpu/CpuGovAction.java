@@ -28,7 +28,7 @@ import org.namelessrom.devicecontrol.models.DeviceConfig;
 import org.namelessrom.devicecontrol.hardware.GovernorUtils;
 import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
 import org.namelessrom.devicecontrol.objects.BootupItem;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public class CpuGovAction extends BaseAction {
 
@@ -59,7 +59,7 @@ public class CpuGovAction extends BaseAction {
         // TODO: what?
     }
 
-    @Override public void triggerAction() {
+    @Override public void addToBatch(final SysfsBatch batch) {
         if (TextUtils.isEmpty(value)) {
             Logger.wtf(this, "No value for action!");
             return;
@@ -68,27 +68,21 @@ public class CpuGovAction extends BaseAction {
         final boolean lockGov = DeviceConfig.get().perfCpuGovLock;
 
         final int cpus = CpuUtils.get().getNumOfCpus();
-        final StringBuilder sb = new StringBuilder(cpus * 2);
 
         final BootupConfig configuration = BootupConfig.get();
         String path;
         for (int i = 0; i < cpus; i++) {
             if (i != 0) {
-                sb.append(CpuUtils.get().onlineCpu(i));
+                batch.add(CpuUtils.get().getOnlinePath(i), "1");
             }
             path = GovernorUtils.get().getGovernorPath(i);
-            sb.append(Utils.getWriteCommand(path, value));
+            batch.add(path, value, lockGov);
             if (bootup) {
                 configuration.addItem(new BootupItem(BootupConfig.CATEGORY_CPU,
                         "cpu_gov" + i, GovernorUtils.get().getGovernorPath(i), value, true));
             }
-            if (lockGov) {
-                sb.append(Utils.lockFile(path));
-            }
         }
         configuration.save();
-
-        Utils.runRootCommand(sb.toString());
     }
 
 }
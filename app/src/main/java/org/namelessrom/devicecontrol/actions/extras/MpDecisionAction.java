@@ -5,7 +5,7 @@ import android.text.TextUtils;
 import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.actions.ActionProcessor;
 import org.namelessrom.devicecontrol.actions.BaseAction;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public class MpDecisionAction extends BaseAction {
     public static final String MPDECISION_PATH = "/system/bin/mpdecision";
@@ -37,7 +37,7 @@ public class MpDecisionAction extends BaseAction {
         // TODO: what?
     }
 
-    @Override public void triggerAction() {
+    @Override public void addToBatch(final SysfsBatch batch) {
         if (TextUtils.isEmpty(value)) {
             Logger.wtf(this, "No value for action!");
             return;
@@ -45,7 +45,7 @@ public class MpDecisionAction extends BaseAction {
 
         setBootup(MPDECISION_PATH);
 
-        Utils.runRootCommand(enableMpDecision(TextUtils.equals("1", value)));
+        batch.addCommand(enableMpDecision(TextUtils.equals("1", value)));
     }
 
     private String enableMpDecision(final boolean enable) {
@@ -24,7 +24,7 @@ import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
 import org.namelessrom.devicecontrol.actions.ActionProcessor;
 import org.namelessrom.devicecontrol.actions.BaseAction;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public class KsmEnableAction extends BaseAction {
 
@@ -55,7 +55,7 @@ public class KsmEnableAction extends BaseAction {
         // TODO: what?
     }
 
-    @Override public void triggerAction() {
+    @Override public void addToBatch(final SysfsBatch batch) {
         if (TextUtils.isEmpty(value)) {
             Logger.wtf(this, "No value for action!");
             return;
@@ -64,7 +64,7 @@ public class KsmEnableAction extends BaseAction {
         final String path = Application.get().getString(R.string.file_ksm_run);
         setBootup(path);
 
-        Utils.runRootCommand(Utils.getWriteCommand(path, value));
+        batch.add(path, value);
     }
 
 }
@@ -23,7 +23,7 @@ import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.actions.ActionProcessor;
 import org.namelessrom.devicecontrol.actions.BaseAction;
 import org.namelessrom.devicecontrol.hardware.KsmUtils;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public class KsmPagesAction extends BaseAction {
 
@@ -54,7 +54,7 @@ public class KsmPagesAction extends BaseAction {
         // TODO: what?
     }
 
-    @Override public void triggerAction() {
+    @Override public void addToBatch(final SysfsBatch batch) {
         if (TextUtils.isEmpty(value)) {
             Logger.wtf(this, "No value for action!");
             return;
@@ -62,7 +62,7 @@ public class KsmPagesAction extends BaseAction {
 
         setBootup(KsmUtils.KSM_PAGES_TO_SCAN);
 
-        Utils.runRootCommand(Utils.getWriteCommand(KsmUtils.KSM_PAGES_TO_SCAN, value));
+        batch.add(KsmUtils.KSM_PAGES_TO_SCAN, value);
     }
 
 }
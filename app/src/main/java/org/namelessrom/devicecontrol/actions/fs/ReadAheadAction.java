@@ -25,7 +25,7 @@ import org.namelessrom.devicecontrol.actions.BaseAction;
 import org.namelessrom.devicecontrol.models.BootupConfig;
 import org.namelessrom.devicecontrol.hardware.IoUtils;
 import org.namelessrom.devicecontrol.objects.BootupItem;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public class ReadAheadAction extends BaseAction {
 
@@ -56,24 +56,21 @@ public class ReadAheadAction extends BaseAction {
         // TODO: what?
     }
 
-    @Override public void triggerAction() {
+    @Override public void addToBatch(final SysfsBatch batch) {
         if (TextUtils.isEmpty(value)) {
             Logger.wtf(this, "No value for action!");
             return;
         }
 
-        final StringBuilder sb = new StringBuilder();
         int c = 0;
         for (final String readAheadPath : IoUtils.READ_AHEAD_PATH) {
-            sb.append(Utils.getWriteCommand(readAheadPath, value));
+            batch.add(readAheadPath, value);
             if (bootup) {
                 BootupConfig.setBootup(
                         new BootupItem(BootupConfig.CATEGORY_EXTRAS,
                                 "readahead" + (c++), readAheadPath, value, true));
             }
         }
-
-        Utils.runRootCommand(sb.toString());
     }
 
 }
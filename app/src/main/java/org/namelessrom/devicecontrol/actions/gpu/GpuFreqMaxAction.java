@@ -23,7 +23,7 @@ import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.actions.ActionProcessor;
 import org.namelessrom.devicecontrol.actions.BaseAction;
 import org.namelessrom.devicecontrol.hardware.GpuUtils;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public class GpuFreqMaxAction extends BaseAction {
 
@@ -54,7 +54,7 @@ public class GpuFreqMaxAction extends BaseAction {
         // TODO: what?
     }
 
-    @Override public void triggerAction() {
+    @Override public void addToBatch(final SysfsBatch batch) {
         if (TextUtils.isEmpty(value)) {
             Logger.wtf(this, "No value for action!");
             return;
@@ -62,7 +62,7 @@ public class GpuFreqMaxAction extends BaseAction {
 
         setBootup(GpuUtils.get().getGpuFreqMaxPath());
 
-        Utils.runRootCommand(Utils.getWriteCommand(GpuUtils.get().getGpuFreqMaxPath(), value));
+        batch.add(GpuUtils.get().getGpuFreqMaxPath(), value);
     }
 
 }
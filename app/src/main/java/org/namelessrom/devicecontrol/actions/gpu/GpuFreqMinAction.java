@@ -23,7 +23,7 @@ import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.actions.ActionProcessor;
 import org.namelessrom.devicecontrol.actions.BaseAction;
 import org.namelessrom.devicecontrol.hardware.GpuUtils;
-import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 public class GpuFreqMinAction extends BaseAction {
 
@@ -54,7 +54,7 @@ public class GpuFreqMinAction extends BaseAction {
         // TODO: what?
     }
 
-    @Override public void triggerAction() {
+    @Override public void addToBatch(final SysfsBatch batch) {
         if (TextUtils.isEmpty(value)) {
             Logger.wtf(this, "No value for action!");
             return;
@@ -62,7 +62,7 @@ public class GpuFreqMinAction extends BaseAction {
 
         setBootup(GpuUtils.get().getGpuFreqMinPath());
 
-        Utils.runRootCommand(Utils.getWriteCommand(GpuUtils.get().getGpuFreqMinPath(), value));
+        batch.add(GpuUtils.get().getGpuFreqMinPath(), value);
     }
 
 }
@@ -0,0 +1,316 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.hardware;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.actions.ActionProcessor;
+import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
+import org.namelessrom.devicecontrol.objects.KernelInfo;
+import org.namelessrom.devicecontrol.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which sysfs / procfs paths exist and the content of static nodes, like available
+ * frequencies and governors, so screens do not have to probe them over and over again.
+ * <p/>
+ * The index is stored as a binary record and is only valid for the kernel and the boot it got
+ * built for. It gets built once per boot in the background, if the stored record belongs to a
+ * different kernel or boot, it gets thrown away and rebuilt.
+ * <p/>
+ * Missing paths and unreadable nodes get remembered as well, so cold screens skip probing the
+ * candidate paths of other devices. Nodes, which come and go at runtime, like the ones of cpu
+ * cores, which may be offline, and hotplug drivers, only get remembered once they are there.
+ */
+public class CapabilityIndex {
+    private static final String TAG = CapabilityIndex.class.getSimpleName();
+
+    private static final String FILE_NAME = "capabilities.bin";
+    private static final String BOOT_ID = "/proc/sys/kernel/random/boot_id";
+
+    private static final int MAGIC = 0x44434349;
+    private static final int VERSION = 1;
+
+    private static final long SAVE_DELAY = 5000;
+
+    private static final String CPU_CORE_PREFIX = "/sys/devices/system/cpu/cpu";
+
+    private static CapabilityIndex sInstance;
+
+    private final File mFile;
+    private final String mKernel;
+    private final String mBootId;
+
+    private final ConcurrentHashMap<String, Boolean> mPaths = new ConcurrentHashMap<>();
+    // content of static nodes, an empty string if the node could not be read
+    private final ConcurrentHashMap<String, String> mValues = new ConcurrentHashMap<>();
+
+    private volatile boolean mBuilt;
+    private volatile boolean mDirty;
+
+    private CapabilityIndex() {
+        mFile = new File(Application.get().getFilesDirectory(), FILE_NAME);
+
+        final KernelInfo kernelInfo = new KernelInfo();
+        mKernel = (kernelInfo.feedWithInformation() && kernelInfo.version != null)
+                ? kernelInfo.version : "";
+        final String bootId = Utils.readOneLine(BOOT_ID);
+        mBootId = (bootId != null ? bootId.trim() : "");
+
+        load();
+    }
+
+    public static synchronized CapabilityIndex get() {
+        if (sInstance == null) {
+            sInstance = new CapabilityIndex();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return Whether the path exists, probed once per boot
+     */
+    public boolean exists(@Nullable final String path) {
+        if (TextUtils.isEmpty(path)) {
+            return false;
+        }
+        Boolean exists = mPaths.get(path);
+        if (exists == null) {
+            exists = Utils.fileExists(path);
+            if (exists || !isRuntimeNode(path)) {
+                mPaths.put(path, exists);
+                scheduleSave();
+            }
+        }
+        return exists;
+    }
+
+    /**
+     * Same as {@link Utils#checkPaths(String[])}, but uses the index.
+     *
+     * @return The first existing path or an empty string if none exists
+     */
+    public String checkPaths(final String[] paths) {
+        for (final String s : paths) {
+            if (exists(s)) { return s; }
+        }
+        return "";
+    }
+
+    /**
+     * Reads the first line of a node, which does not change while the device is running, like
+     * available frequencies or governors.
+     *
+     * @return The first line or null if the node could not be read
+     */
+    @Nullable public String readValue(@Nullable final String path) {
+        if (TextUtils.isEmpty(path)) {
+            return null;
+        }
+        String value = mValues.get(path);
+        if (value == null) {
+            value = Utils.readOneLine(path);
+            if (value == null) {
+                value = "";
+            }
+            if (!value.isEmpty() || !isRuntimeNode(path)) {
+                mValues.put(path, value);
+                scheduleSave();
+            }
+        }
+        return (value.isEmpty() ? null : value);
+    }
+
+    /**
+     * Probes everything screens and tasker ask for and stores the index, does nothing if the
+     * index got already built during this boot. Blocks, call it from a background thread.
+     */
+    public void build() {
+        if (mBuilt) {
+            Logger.v(TAG, "index is up to date, %s paths, %s values",
+                    mPaths.size(), mValues.size());
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+
+        final GpuUtils gpuUtils = GpuUtils.get();
+        gpuUtils.getGpuBasePath();
+        gpuUtils.getGpuGovPath();
+        gpuUtils.getGpuGovsAvailablePath();
+        gpuUtils.getGpuFreqsAvailPath();
+        gpuUtils.getGpuFreqMaxPath();
+        gpuUtils.getGpuFreqMinPath();
+        gpuUtils.getGpuFreqCurPath();
+        gpuUtils.getAvailableFrequencies(false);
+
+        GovernorUtils.get().getAvailableCpuGovernors();
+        GovernorUtils.get().getAvailableGpuGovernors();
+        CpuUtils.get().getAvailableFrequencies(false);
+
+        ActionProcessor.getActions(ActionProcessor.CATEGORY_CPU);
+        ActionProcessor.getActions(ActionProcessor.CATEGORY_GPU);
+        ActionProcessor.getActions(ActionProcessor.CATEGORY_EXTRAS);
+        ActionProcessor.getActions(ActionProcessor.CATEGORY_FS);
+
+        mBuilt = true;
+        save();
+        Logger.v(TAG, "built index in %s ms, %s paths, %s values",
+                System.currentTimeMillis() - start, mPaths.size(), mValues.size());
+    }
+
+    /**
+     * @return Whether the node may appear later on, so a miss must not be remembered
+     */
+    private static boolean isRuntimeNode(final String path) {
+        if (path.contains("hotplug")) {
+            return true;
+        }
+        // per core nodes, which are gone while the core is offline
+        return path.startsWith(CPU_CORE_PREFIX) && path.length() > CPU_CORE_PREFIX.length()
+                && Character.isDigit(path.charAt(CPU_CORE_PREFIX.length()));
+    }
+
+    private void scheduleSave() {
+        mDirty = true;
+        if (!mBuilt) {
+            // build() saves once it is done
+            return;
+        }
+        Application.HANDLER.removeCallbacks(mSaver);
+        Application.HANDLER.postDelayed(mSaver, SAVE_DELAY);
+    }
+
+    private final Runnable mSaver = new Runnable() {
+        @Override public void run() {
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    save();
+                }
+            }).start();
+        }
+    };
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Logger.w(TAG, "unknown index format, rebuilding");
+                return;
+            }
+
+            final String kernel = in.readUTF();
+            final String bootId = in.readUTF();
+            if (!TextUtils.equals(kernel, mKernel) || !TextUtils.equals(bootId, mBootId)) {
+                Logger.v(TAG, "kernel or boot changed, rebuilding");
+                return;
+            }
+
+            final HashMap<String, Boolean> paths = new HashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final boolean exists = in.readBoolean();
+                if (exists || !isRuntimeNode(path)) {
+                    paths.put(path, exists);
+                }
+            }
+
+            final HashMap<String, String> values = new HashMap<>();
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final String value = in.readUTF();
+                if (!value.isEmpty() || !isRuntimeNode(path)) {
+                    values.put(path, value);
+                }
+            }
+
+            mPaths.putAll(paths);
+            mValues.putAll(values);
+            mBuilt = true;
+            Logger.v(TAG, "loaded index, %s paths, %s values", paths.size(), values.size());
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not load index", ioe);
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    private synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mKernel);
+            out.writeUTF(mBootId);
+
+            final HashMap<String, Boolean> paths = new HashMap<>(mPaths);
+            out.writeInt(paths.size());
+            for (final Map.Entry<String, Boolean> entry : paths.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue());
+            }
+
+            final HashMap<String, String> values = new HashMap<>(mValues);
+            out.writeInt(values.size());
+            for (final Map.Entry<String, String> entry : values.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            out.flush();
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not save index", ioe);
+            mDirty = true;
+            return;
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        if (!tmp.renameTo(mFile)) {
+            Logger.w(TAG, "could not replace %s", mFile.getPath());
+            mDirty = true;
+        }
+    }
+}
@@ -98,7 +98,7 @@ public class GovernorUtils {
 
     @Nullable public String[] getAvailableGovernors(final boolean isGpu) {
         String[] govArray = null;
-        final String govs = Utils.readOneLine(isGpu
+        final String govs = CapabilityIndex.get().readValue(isGpu
                 ? GpuUtils.get().getGpuGovsAvailablePath() : GOV_AVAILALBLE_PATH);
 
         if (govs != null && !govs.isEmpty()) {
@@ -35,6 +35,7 @@ import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
 import org.namelessrom.devicecontrol.models.BootupConfig;
 import org.namelessrom.devicecontrol.objects.BootupItem;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 import org.namelessrom.devicecontrol.utils.Utils;
 
 import java.util.ArrayList;
@@ -72,6 +73,7 @@ public class GpuUtils {
     private static String gpuFreqsAvailPath = null;
     private static String gpuFreqMaxPath = null;
     private static String gpuFreqMinPath = null;
+    private static String gpuFreqCurPath = null;
 
     public static final String FILE_3D_SCALING = "/sys/devices/gr3d/enable_3d_scaling";
 
@@ -105,7 +107,7 @@ public class GpuUtils {
         if (gpuBasePath == null) {
             final String[] paths = Application.get().getStringArray(R.array.gpu_base);
             for (final String s : paths) {
-                if (Utils.fileExists(s)) {
+                if (CapabilityIndex.get().exists(s)) {
                     gpuBasePath = s;
                     break;
                 }
@@ -122,7 +124,7 @@ public class GpuUtils {
             final String base = getGpuBasePath();
             final String[] paths = Application.get().getStringArray(R.array.gpu_gov_path);
             for (final String s : paths) {
-                if (Utils.fileExists(base + s)) {
+                if (CapabilityIndex.get().exists(base + s)) {
                     gpuGovPath = base + s;
                     break;
                 }
@@ -139,7 +141,7 @@ public class GpuUtils {
             final String base = getGpuBasePath();
             final String[] paths = Application.get().getStringArray(R.array.gpu_govs_avail_path);
             for (final String s : paths) {
-                if (Utils.fileExists(base + s)) {
+                if (CapabilityIndex.get().exists(base + s)) {
                     gpuGovsAvailablePath = base + s;
                     break;
                 }
@@ -156,7 +158,7 @@ public class GpuUtils {
             final String base = getGpuBasePath();
             final String[] paths = Application.get().getStringArray(R.array.gpu_freqs_avail);
             for (final String s : paths) {
-                if (Utils.fileExists(base + s)) {
+                if (CapabilityIndex.get().exists(base + s)) {
                     gpuFreqsAvailPath = base + s;
                     break;
                 }
@@ -173,7 +175,7 @@ public class GpuUtils {
             final String base = getGpuBasePath();
             final String[] paths = Application.get().getStringArray(R.array.gpu_freqs_max);
             for (final String s : paths) {
-                if (Utils.fileExists(base + s)) {
+                if (CapabilityIndex.get().exists(base + s)) {
                     gpuFreqMaxPath = base + s;
                     break;
                 }
@@ -190,7 +192,7 @@ public class GpuUtils {
             final String base = getGpuBasePath();
             final String[] paths = Application.get().getStringArray(R.array.gpu_freqs_min);
             for (final String s : paths) {
-                if (Utils.fileExists(base + s)) {
+                if (CapabilityIndex.get().exists(base + s)) {
                     gpuFreqMinPath = base + s;
                     break;
                 }
@@ -202,8 +204,25 @@ public class GpuUtils {
         return gpuFreqMinPath;
     }
 
+    @Nullable public String getGpuFreqCurPath() {
+        if (gpuFreqCurPath == null) {
+            final String base = getGpuBasePath();
+            final String[] paths = Application.get().getStringArray(R.array.gpu_freqs_cur);
+            for (final String s : paths) {
+                if (CapabilityIndex.get().exists(base + s)) {
+                    gpuFreqCurPath = base + s;
+                    break;
+                }
+            }
+            if (TextUtils.isEmpty(gpuFreqCurPath)) {
+                return null;
+            }
+        }
+        return gpuFreqCurPath;
+    }
+
     @Nullable public String[] getAvailableFrequencies(final boolean sorted) {
-        final String freqsRaw = Utils.readOneLine(getGpuFreqsAvailPath());
+        final String freqsRaw = CapabilityIndex.get().readValue(getGpuFreqsAvailPath());
         if (freqsRaw != null && !freqsRaw.isEmpty()) {
             final String[] freqs = freqsRaw.split(" ");
             if (!sorted) {
@@ -250,21 +269,14 @@ public class GpuUtils {
         return false;
     }
 
-    @NonNull public String restore(BootupConfig config) {
+    public void restore(BootupConfig config, SysfsBatch batch) {
         final ArrayList<BootupItem> items = config.getItemsByCategory(BootupConfig.CATEGORY_GPU);
-        if (items.size() == 0) {
-            return "";
-        }
-
-        final StringBuilder sbCmd = new StringBuilder();
         for (final BootupItem item : items) {
             if (!item.enabled) {
                 continue;
             }
-            sbCmd.append(Utils.getWriteCommand(item.filename, item.value));
+            batch.add(item.filename, item.value);
         }
-
-        return sbCmd.toString();
     }
 
     @NonNull public static String toMhz(final String mhz) {
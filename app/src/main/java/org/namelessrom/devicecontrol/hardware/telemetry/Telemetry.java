@@ -0,0 +1,583 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.hardware.telemetry;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.hardware.ExtraUtils;
+import org.namelessrom.devicecontrol.hardware.GpuUtils;
+import org.namelessrom.devicecontrol.hardware.KsmUtils;
+import org.namelessrom.devicecontrol.hardware.UksmUtils;
+import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
+import org.namelessrom.devicecontrol.modules.cpu.monitors.CpuCoreSampler;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * One sampling thread for all hardware values, which get shown periodically.
+ * <p/>
+ * Listeners subscribe to a set of sources with the interval they want to get updated at. Every
+ * source gets sampled at the shortest interval any of its subscribers asks for and is not
+ * sampled at all if nobody is subscribed to it, its files get closed then. Every file is kept
+ * open while its source is active and gets read at most once per tick, even if several sources
+ * share it. Listeners get an immutable {@link TelemetrySnapshot} on the main thread.
+ */
+public class Telemetry {
+    private static final String TAG = Telemetry.class.getSimpleName();
+
+    public static final int SOURCE_CPU = 1;
+    public static final int SOURCE_TEMPERATURE = 1 << 1;
+    public static final int SOURCE_GPU = 1 << 2;
+    public static final int SOURCE_KSM = 1 << 3;
+    public static final int SOURCE_UKSM = 1 << 4;
+    public static final int SOURCE_ENTROPY = 1 << 5;
+    public static final int SOURCE_MEMORY = 1 << 6;
+    public static final int SOURCE_IO = 1 << 7;
+    public static final int SOURCE_ALL = (1 << 8) - 1;
+
+    private static final int SOURCE_COUNT = 8;
+
+    private static final String MEMINFO = "/proc/meminfo";
+    private static final String BLOCK_DEVICES = "/sys/block";
+    // virtual block devices, their i/o ends up on a real disk anyway
+    private static final String[] VIRTUAL_BLOCK_DEVICES = {
+            "loop", "ram", "zram", "dm-", "md", "mtdblock", "vnswap",
+    };
+
+    public interface Listener {
+        /**
+         * Gets called on the main thread.
+         */
+        void onTelemetry(TelemetrySnapshot snapshot);
+    }
+
+    private static class Subscription implements Runnable {
+        final Listener listener;
+        final int sources;
+        final int interval;
+
+        long nextDelivery;
+        volatile boolean active = true;
+        volatile TelemetrySnapshot snapshot;
+
+        Subscription(final Listener listener, final int sources, final int interval) {
+            this.listener = listener;
+            this.sources = sources;
+            this.interval = interval;
+        }
+
+        @Override public void run() {
+            final TelemetrySnapshot tmp = snapshot;
+            if (active && tmp != null) {
+                listener.onTelemetry(tmp);
+            }
+        }
+    }
+
+    private static Telemetry sInstance;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final ArrayList<Subscription> mSubscriptions = new ArrayList<>();
+
+    // everything below only gets touched on the sampling thread
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+    private final HashMap<String, TelemetryNode> mNodes = new HashMap<>();
+    @SuppressWarnings("unchecked")
+    private final ArrayList<TelemetryNode>[] mSourceNodes = new ArrayList[SOURCE_COUNT];
+    private final long[] mSourceDue = new long[SOURCE_COUNT];
+    private int mActiveSources;
+    private long mTick;
+
+    private final CpuCoreSampler mSampler;
+    private final int[] mCpuGovernorIds;
+    private final String[] mCpuGovernors;
+    private final long[] mValues = new long[TelemetrySnapshot.VALUE_COUNT];
+    private String mGpuGovernor;
+    private long mIoSectorsRead = -1;
+    private long mIoSectorsWritten = -1;
+    private long mIoTime;
+
+    private volatile TelemetrySnapshot mLatest;
+
+    private Telemetry() {
+        mSampler = new CpuCoreSampler(CpuUtils.get().getNumOfCpus());
+        mCpuGovernorIds = new int[mSampler.getCoreCount()];
+        mCpuGovernors = new String[mSampler.getCoreCount()];
+        Arrays.fill(mCpuGovernors, mSampler.getGovernorName(CpuCoreSampler.GOVERNOR_UNKNOWN));
+        Arrays.fill(mValues, -1);
+
+        mThread = new HandlerThread("Telemetry", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public static Telemetry get() {
+        if (sInstance == null) {
+            sInstance = new Telemetry();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Subscribes the listener, replacing its earlier subscription if it has one.
+     *
+     * @param sources  The sources, like {@link #SOURCE_CPU} | {@link #SOURCE_MEMORY}
+     * @param interval The interval in milliseconds
+     */
+    public void subscribe(final Listener listener, final int sources, final int interval) {
+        synchronized (mSubscriptions) {
+            removeSubscription(listener);
+            final Subscription subscription =
+                    new Subscription(listener, sources & SOURCE_ALL, Math.max(interval, 100));
+            mSubscriptions.add(subscription);
+            Logger.v(TAG, "subscribed %s, sources: %s, interval: %s",
+                    listener, subscription.sources, subscription.interval);
+        }
+        // the new subscriber wants its first values right away
+        mHandler.removeCallbacks(mTicker);
+        mHandler.post(mRefresher);
+    }
+
+    public void unsubscribe(final Listener listener) {
+        synchronized (mSubscriptions) {
+            if (removeSubscription(listener)) {
+                Logger.v(TAG, "unsubscribed %s", listener);
+            }
+        }
+    }
+
+    private boolean removeSubscription(final Listener listener) {
+        for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+            final Subscription subscription = mSubscriptions.get(i);
+            if (subscription.listener == listener) {
+                subscription.active = false;
+                Application.HANDLER.removeCallbacks(subscription);
+                mSubscriptions.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Samples all active sources right away and notifies all subscribers.
+     */
+    public void refresh() {
+        mHandler.removeCallbacks(mTicker);
+        mHandler.post(mRefresher);
+    }
+
+    /**
+     * @return The snapshot of the last tick or null if nothing got sampled yet
+     */
+    @Nullable public TelemetrySnapshot getLatest() { return mLatest; }
+
+    /**
+     * @return The name of the cpu governor or "0" if it is not known
+     */
+    public String getGovernorName(final int governorId) {
+        synchronized (mSampler) {
+            return mSampler.getGovernorName(governorId);
+        }
+    }
+
+    private final Runnable mTicker = new Runnable() {
+        @Override public void run() {
+            tick(false);
+        }
+    };
+
+    private final Runnable mRefresher = new Runnable() {
+        @Override public void run() {
+            tick(true);
+        }
+    };
+
+    private void tick(final boolean force) {
+        final long now = SystemClock.elapsedRealtime();
+
+        final Subscription[] subscriptions;
+        synchronized (mSubscriptions) {
+            subscriptions = mSubscriptions.toArray(new Subscription[mSubscriptions.size()]);
+        }
+
+        // the shortest interval any subscriber wants for every source
+        final int[] intervals = new int[SOURCE_COUNT];
+        int sources = 0;
+        for (final Subscription subscription : subscriptions) {
+            sources |= subscription.sources;
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                if ((subscription.sources & (1 << i)) == 0) {
+                    continue;
+                }
+                if (intervals[i] == 0 || subscription.interval < intervals[i]) {
+                    intervals[i] = subscription.interval;
+                }
+            }
+        }
+        updateActiveSources(sources);
+        if (sources == 0) {
+            Logger.v(TAG, "no subscribers, stopped sampling");
+            return;
+        }
+
+        mTick++;
+        int sampled = 0;
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            if (intervals[i] == 0 || (!force && mSourceDue[i] > now)) {
+                continue;
+            }
+            sample(1 << i);
+            sampled |= (1 << i);
+            mSourceDue[i] = now + intervals[i];
+        }
+
+        final TelemetrySnapshot snapshot = new TelemetrySnapshot(now, sources, sampled, mValues,
+                mSampler.current, mSampler.max, mCpuGovernorIds, mCpuGovernors, mGpuGovernor);
+        mLatest = snapshot;
+
+        for (final Subscription subscription : subscriptions) {
+            if (force || subscription.nextDelivery <= now) {
+                subscription.nextDelivery = now + subscription.interval;
+                subscription.snapshot = snapshot;
+                Application.HANDLER.post(subscription);
+            }
+        }
+
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            if (intervals[i] != 0 && mSourceDue[i] < next) {
+                next = mSourceDue[i];
+            }
+        }
+        mHandler.removeCallbacks(mTicker);
+        mHandler.postDelayed(mTicker, Math.max(0, next - SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Opens the files of sources, which got subscribers and closes the files of sources, which
+     * lost all of them.
+     */
+    private void updateActiveSources(final int sources) {
+        final int started = sources & ~mActiveSources;
+        final int stopped = mActiveSources & ~sources;
+        mActiveSources = sources;
+
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            final int source = 1 << i;
+            if ((started & source) != 0) {
+                mSourceNodes[i] = createNodes(source);
+                mSourceDue[i] = 0;
+            } else if ((stopped & source) != 0) {
+                releaseNodes(mSourceNodes[i]);
+                mSourceNodes[i] = null;
+                if (source == SOURCE_CPU) {
+                    synchronized (mSampler) {
+                        mSampler.close();
+                    }
+                }
+                Logger.v(TAG, "stopped source %s", source);
+            }
+        }
+    }
+
+    private ArrayList<TelemetryNode> createNodes(final int source) {
+        final ArrayList<TelemetryNode> nodes = new ArrayList<>();
+        switch (source) {
+            case SOURCE_TEMPERATURE:
+                nodes.add(acquireNode(Application.get().getString(R.string.file_thermal_cpu)));
+                break;
+            case SOURCE_GPU:
+                nodes.add(acquireNode(GpuUtils.get().getGpuFreqCurPath()));
+                nodes.add(acquireNode(GpuUtils.get().getGpuFreqMaxPath()));
+                nodes.add(acquireNode(GpuUtils.get().getGpuFreqMinPath()));
+                nodes.add(acquireNode(GpuUtils.get().getGpuGovPath()));
+                break;
+            case SOURCE_KSM:
+                nodes.add(acquireNode(KsmUtils.KSM_FULL_SCANS));
+                nodes.add(acquireNode(KsmUtils.KSM_PAGES_SHARED));
+                nodes.add(acquireNode(KsmUtils.KSM_PAGES_SHARING));
+                nodes.add(acquireNode(KsmUtils.KSM_PAGES_UNSHARED));
+                nodes.add(acquireNode(KsmUtils.KSM_PAGES_VOLATILE));
+                break;
+            case SOURCE_UKSM:
+                nodes.add(acquireNode(UksmUtils.UKSM_PAGES_SHARED));
+                nodes.add(acquireNode(UksmUtils.UKSM_PAGES_SCANNED));
+                nodes.add(acquireNode(UksmUtils.UKSM_FULL_SCANS));
+                nodes.add(acquireNode(UksmUtils.UKSM_HASH_STRENGTH));
+                nodes.add(acquireNode(UksmUtils.UKSM_PAGES_SHARING));
+                nodes.add(acquireNode(UksmUtils.UKSM_SLEEP_TIMES));
+                break;
+            case SOURCE_ENTROPY:
+                nodes.add(acquireNode(ExtraUtils.ENTROPY_AVAIL));
+                break;
+            case SOURCE_MEMORY:
+                nodes.add(acquireNode(MEMINFO));
+                break;
+            case SOURCE_IO:
+                final String[] devices = new File(BLOCK_DEVICES).list();
+                if (devices != null) {
+                    for (final String device : devices) {
+                        if (!isVirtualBlockDevice(device)) {
+                            nodes.add(acquireNode(BLOCK_DEVICES + '/' + device + "/stat"));
+                        }
+                    }
+                }
+                mIoSectorsRead = -1;
+                mIoSectorsWritten = -1;
+                break;
+        }
+        return nodes;
+    }
+
+    /**
+     * @return The shared node of the path or null if the path is not known
+     */
+    @Nullable private TelemetryNode acquireNode(@Nullable final String path) {
+        if (TextUtils.isEmpty(path)) {
+            return null;
+        }
+        TelemetryNode node = mNodes.get(path);
+        if (node == null) {
+            node = new TelemetryNode(path);
+            mNodes.put(path, node);
+        }
+        node.references++;
+        return node;
+    }
+
+    private void releaseNodes(@Nullable final ArrayList<TelemetryNode> nodes) {
+        if (nodes == null) {
+            return;
+        }
+        for (final TelemetryNode node : nodes) {
+            if (node == null) {
+                continue;
+            }
+            node.references--;
+            if (node.references <= 0) {
+                node.close();
+                mNodes.remove(node.path);
+            }
+        }
+    }
+
+    private void sample(final int source) {
+        final ArrayList<TelemetryNode> nodes = mSourceNodes[Integer.numberOfTrailingZeros(source)];
+        switch (source) {
+            case SOURCE_CPU:
+                synchronized (mSampler) {
+                    mSampler.sample();
+                    for (int i = 0; i < mCpuGovernorIds.length; i++) {
+                        mCpuGovernorIds[i] = mSampler.governor[i];
+                        mCpuGovernors[i] = mSampler.getGovernorName(mSampler.governor[i]);
+                    }
+                }
+                break;
+            case SOURCE_TEMPERATURE:
+                mValues[TelemetrySnapshot.CPU_TEMPERATURE] = toCelsius(readLong(nodes, 0));
+                break;
+            case SOURCE_GPU:
+                mValues[TelemetrySnapshot.GPU_FREQUENCY_CURRENT] = readLong(nodes, 0);
+                mValues[TelemetrySnapshot.GPU_FREQUENCY_MAX] = readLong(nodes, 1);
+                mValues[TelemetrySnapshot.GPU_FREQUENCY_MIN] = readLong(nodes, 2);
+                final TelemetryNode governor = nodes.get(3);
+                mGpuGovernor = (governor != null ? governor.readText(mTick, mBuffer) : null);
+                break;
+            case SOURCE_KSM:
+                readLongs(nodes, TelemetrySnapshot.KSM_FULL_SCANS);
+                break;
+            case SOURCE_UKSM:
+                readLongs(nodes, TelemetrySnapshot.UKSM_PAGES_SHARED);
+                break;
+            case SOURCE_ENTROPY:
+                mValues[TelemetrySnapshot.ENTROPY_AVAILABLE] = readLong(nodes, 0);
+                break;
+            case SOURCE_MEMORY:
+                readMemory(nodes.get(0));
+                break;
+            case SOURCE_IO:
+                readIo(nodes);
+                break;
+        }
+    }
+
+    private long readLong(final ArrayList<TelemetryNode> nodes, final int index) {
+        final TelemetryNode node = nodes.get(index);
+        return (node != null ? node.readLong(mTick, mBuffer) : -1);
+    }
+
+    private void readLongs(final ArrayList<TelemetryNode> nodes, final int firstValue) {
+        final int size = nodes.size();
+        for (int i = 0; i < size; i++) {
+            mValues[firstValue + i] = readLong(nodes, i);
+        }
+    }
+
+    /**
+     * Thermal nodes either report degrees or millidegrees, we want degrees between 0 and 100.
+     */
+    private static long toCelsius(long temp) {
+        if (temp < 0) {
+            return -1;
+        }
+        if (temp > 1000) {
+            temp /= 1000;
+        }
+        return Math.min(temp, 100);
+    }
+
+    private void readMemory(@Nullable final TelemetryNode node) {
+        mValues[TelemetrySnapshot.MEMORY_TOTAL] = -1;
+        mValues[TelemetrySnapshot.MEMORY_FREE] = -1;
+        mValues[TelemetrySnapshot.MEMORY_AVAILABLE] = -1;
+        mValues[TelemetrySnapshot.MEMORY_CACHED] = -1;
+        mValues[TelemetrySnapshot.MEMORY_BUFFERS] = -1;
+        if (node == null || node.read(mTick, mBuffer) == null) {
+            return;
+        }
+
+        final byte[] bytes = mBuffer.array();
+        final int length = node.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+
+            int colon = lineStart;
+            while (colon < lineEnd && bytes[colon] != ':') {
+                colon++;
+            }
+            final int value = getMemoryValue(bytes, lineStart, colon - lineStart);
+            if (value != -1 && colon < lineEnd) {
+                mValues[value] = TelemetryNode.parseLong(bytes, colon + 1, lineEnd);
+            }
+
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Sums up the sectors of all disks and turns them into rates since the last sample.
+     */
+    private void readIo(final ArrayList<TelemetryNode> nodes) {
+        final long now = SystemClock.elapsedRealtime();
+        long read = 0;
+        long written = 0;
+        for (final TelemetryNode node : nodes) {
+            if (node == null || node.read(mTick, mBuffer) == null) {
+                continue;
+            }
+            // sectors read is the 3rd field, sectors written the 7th
+            final byte[] bytes = mBuffer.array();
+            final int length = node.length();
+            read += Math.max(0, TelemetryNode.parseLong(bytes, skipFields(bytes, length, 2),
+                    length));
+            written += Math.max(0, TelemetryNode.parseLong(bytes, skipFields(bytes, length, 6),
+                    length));
+        }
+
+        final long elapsed = now - mIoTime;
+        if (mIoSectorsRead < 0 || elapsed <= 0) {
+            mValues[TelemetrySnapshot.IO_READ_RATE] = -1;
+            mValues[TelemetrySnapshot.IO_WRITE_RATE] = -1;
+        } else {
+            // sectors are always 512 bytes, 2 of them make a kB
+            mValues[TelemetrySnapshot.IO_READ_RATE] =
+                    Math.max(0, read - mIoSectorsRead) * 1000 / 2 / elapsed;
+            mValues[TelemetrySnapshot.IO_WRITE_RATE] =
+                    Math.max(0, written - mIoSectorsWritten) * 1000 / 2 / elapsed;
+        }
+        mIoSectorsRead = read;
+        mIoSectorsWritten = written;
+        mIoTime = now;
+    }
+
+    /**
+     * @return The start of the field after skipping the given number of whitespace separated
+     * fields
+     */
+    private static int skipFields(final byte[] bytes, final int length, int fields) {
+        int i = 0;
+        while (i < length && bytes[i] == ' ') {
+            i++;
+        }
+        while (fields > 0 && i < length) {
+            while (i < length && bytes[i] != ' ') {
+                i++;
+            }
+            while (i < length && bytes[i] == ' ') {
+                i++;
+            }
+            fields--;
+        }
+        return i;
+    }
+
+    private static boolean isVirtualBlockDevice(final String device) {
+        for (final String prefix : VIRTUAL_BLOCK_DEVICES) {
+            if (device.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final byte[][] MEMINFO_KEYS = new byte[][]{
+            "MemTotal".getBytes(), "MemFree".getBytes(), "MemAvailable".getBytes(),
+            "Cached".getBytes(), "Buffers".getBytes(),
+    };
+    private static final int[] MEMINFO_VALUES = new int[]{
+            TelemetrySnapshot.MEMORY_TOTAL, TelemetrySnapshot.MEMORY_FREE,
+            TelemetrySnapshot.MEMORY_AVAILABLE, TelemetrySnapshot.MEMORY_CACHED,
+            TelemetrySnapshot.MEMORY_BUFFERS,
+    };
+
+    private static int getMemoryValue(final byte[] bytes, final int start, final int length) {
+        for (int i = 0; i < MEMINFO_KEYS.length; i++) {
+            final byte[] key = MEMINFO_KEYS[i];
+            if (key.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && key[j] == bytes[start + j]) {
+                j++;
+            }
+            if (j == length) {
+                return MEMINFO_VALUES[i];
+            }
+        }
+        return -1;
+    }
+}
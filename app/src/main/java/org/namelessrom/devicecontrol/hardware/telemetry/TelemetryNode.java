@@ -0,0 +1,226 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.hardware.telemetry;
+
+import android.text.TextUtils;
+
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.utils.SysfsHelper;
+import org.namelessrom.devicecontrol.utils.Utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A sysfs / procfs file, which is kept open and reread from the start. Every node gets read at
+ * most once per tick, no matter how many sources ask for it.
+ */
+class TelemetryNode {
+    private static final String TAG = TelemetryNode.class.getSimpleName();
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    final String path;
+
+    private final File mFile;
+    private RandomAccessFile mOpenFile;
+    private FileChannel mChannel;
+    private boolean mNeedsRoot;
+
+    private long mTick = -1;
+    private int mLength = -1;
+    // the buffer is shared by all nodes, keep a copy for further reads during the same tick
+    private byte[] mContent = new byte[0];
+
+    private long mTextTick = -1;
+    private byte[] mTextBytes;
+    private String mText;
+
+    int references;
+
+    TelemetryNode(final String path) {
+        this.path = path;
+        mFile = new File(path);
+    }
+
+    /**
+     * Reads the node into the buffer. If it already got read during this tick, the content of
+     * that read gets copied into the buffer instead.
+     *
+     * @return The buffer holding the content or null if the node could not be read
+     */
+    ByteBuffer read(final long tick, ByteBuffer buffer) {
+        if (mTick == tick) {
+            if (mLength < 0) {
+                return null;
+            }
+            buffer.clear();
+            buffer.put(mContent, 0, mLength);
+            return buffer;
+        }
+        mTick = tick;
+        mLength = -1;
+
+        if (mNeedsRoot) {
+            return readViaRoot(buffer);
+        }
+
+        if (mChannel == null) {
+            if (!mFile.exists()) {
+                return null;
+            }
+            try {
+                mOpenFile = new RandomAccessFile(mFile, "r");
+            } catch (FileNotFoundException fnfe) {
+                Logger.v(TAG, "can not read directly, using root -> %s", path);
+                mNeedsRoot = true;
+                return readViaRoot(buffer);
+            }
+            mChannel = mOpenFile.getChannel();
+        }
+
+        try {
+            buffer.clear();
+            final int read = mChannel.read(buffer, 0);
+            if (read >= 0) {
+                keep(buffer, read);
+                return buffer;
+            }
+        } catch (IOException ioe) {
+            // the node went away, for example with an offline core, reopen it next time
+            close();
+        }
+        return null;
+    }
+
+    private ByteBuffer readViaRoot(final ByteBuffer buffer) {
+        final String value = SysfsHelper.readOneLine(path);
+        if (value == null) {
+            return null;
+        }
+        final byte[] bytes = value.getBytes(CHARSET);
+        buffer.clear();
+        buffer.put(bytes, 0, Math.min(bytes.length, buffer.capacity()));
+        keep(buffer, buffer.position());
+        return buffer;
+    }
+
+    private void keep(final ByteBuffer buffer, final int length) {
+        if (mContent.length < length) {
+            mContent = new byte[length];
+        }
+        System.arraycopy(buffer.array(), 0, mContent, 0, length);
+        mLength = length;
+    }
+
+    /**
+     * @return The length of the last read or -1 if it failed
+     */
+    int length() { return mLength; }
+
+    /**
+     * Reads the node and parses the leading number.
+     *
+     * @return The number or -1 if the node could not be read
+     */
+    long readLong(final long tick, final ByteBuffer buffer) {
+        if (read(tick, buffer) == null) {
+            return -1;
+        }
+        return parseLong(buffer.array(), 0, mLength);
+    }
+
+    /**
+     * Reads the first line of the node. The same string instance gets returned as long as the
+     * content does not change.
+     *
+     * @return The first line or null if the node could not be read
+     */
+    String readText(final long tick, final ByteBuffer buffer) {
+        if (mTextTick == tick) {
+            return mText;
+        }
+        mTextTick = tick;
+        if (read(tick, buffer) == null) {
+            mText = null;
+            mTextBytes = null;
+            return null;
+        }
+
+        final byte[] bytes = buffer.array();
+        int length = 0;
+        while (length < mLength && bytes[length] != '\n') {
+            length++;
+        }
+
+        if (mTextBytes != null && mTextBytes.length == length) {
+            int i = 0;
+            while (i < length && mTextBytes[i] == bytes[i]) {
+                i++;
+            }
+            if (i == length) {
+                return mText;
+            }
+        }
+
+        mTextBytes = new byte[length];
+        System.arraycopy(bytes, 0, mTextBytes, 0, length);
+        mText = new String(mTextBytes, CHARSET).trim();
+        if (TextUtils.isEmpty(mText)) {
+            mText = null;
+        }
+        return mText;
+    }
+
+    void close() {
+        Utils.closeQuietly(mOpenFile);
+        mOpenFile = null;
+        mChannel = null;
+    }
+
+    static long parseLong(final byte[] bytes, int start, final int end) {
+        while (start < end && (bytes[start] == ' ' || bytes[start] == '\t')) {
+            start++;
+        }
+        boolean negative = false;
+        if (start < end && bytes[start] == '-') {
+            negative = true;
+            start++;
+        }
+
+        long value = 0;
+        boolean digits = false;
+        for (int i = start; i < end; i++) {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            digits = true;
+        }
+        if (!digits) {
+            return -1;
+        }
+        return (negative ? -value : value);
+    }
+}
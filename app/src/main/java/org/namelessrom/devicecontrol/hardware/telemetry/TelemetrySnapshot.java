@@ -0,0 +1,138 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.hardware.telemetry;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Immutable result of one telemetry tick. Only the sources, which had subscribers at the time of
+ * the tick, hold values, see {@link #has(int)}. Values, which could not be read, are -1.
+ */
+public class TelemetrySnapshot {
+    public static final int CPU_TEMPERATURE = 0;
+
+    public static final int GPU_FREQUENCY_CURRENT = 1;
+    public static final int GPU_FREQUENCY_MAX = 2;
+    public static final int GPU_FREQUENCY_MIN = 3;
+
+    public static final int KSM_FULL_SCANS = 4;
+    public static final int KSM_PAGES_SHARED = 5;
+    public static final int KSM_PAGES_SHARING = 6;
+    public static final int KSM_PAGES_UNSHARED = 7;
+    public static final int KSM_PAGES_VOLATILE = 8;
+
+    public static final int UKSM_PAGES_SHARED = 9;
+    public static final int UKSM_PAGES_SCANNED = 10;
+    public static final int UKSM_FULL_SCANS = 11;
+    public static final int UKSM_HASH_STRENGTH = 12;
+    public static final int UKSM_PAGES_SHARING = 13;
+    public static final int UKSM_SLEEP_TIMES = 14;
+
+    public static final int ENTROPY_AVAILABLE = 15;
+
+    /** Memory values are in kB */
+    public static final int MEMORY_TOTAL = 16;
+    public static final int MEMORY_FREE = 17;
+    public static final int MEMORY_AVAILABLE = 18;
+    public static final int MEMORY_CACHED = 19;
+    public static final int MEMORY_BUFFERS = 20;
+
+    /** I/O rates of all disks are in kB/s */
+    public static final int IO_READ_RATE = 21;
+    public static final int IO_WRITE_RATE = 22;
+
+    static final int VALUE_COUNT = 23;
+
+    private final long mTime;
+    private final int mSources;
+    private final int mSampled;
+
+    private final long[] mValues;
+
+    private final int[] mCpuCurrent;
+    private final int[] mCpuMax;
+    private final int[] mCpuGovernorId;
+    private final String[] mCpuGovernor;
+
+    private final String mGpuGovernor;
+
+    TelemetrySnapshot(final long time, final int sources, final int sampled, final long[] values,
+            final int[] cpuCurrent, final int[] cpuMax, final int[] cpuGovernorId,
+            final String[] cpuGovernor, final String gpuGovernor) {
+        mTime = time;
+        mSources = sources;
+        mSampled = sampled;
+        mValues = values.clone();
+        mCpuCurrent = cpuCurrent.clone();
+        mCpuMax = cpuMax.clone();
+        mCpuGovernorId = cpuGovernorId.clone();
+        mCpuGovernor = cpuGovernor.clone();
+        mGpuGovernor = gpuGovernor;
+    }
+
+    /**
+     * @return The time of the tick, as {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    public long getTime() { return mTime; }
+
+    /**
+     * @return Whether the snapshot holds values of the source
+     */
+    public boolean has(final int source) { return (mSources & source) != 0; }
+
+    /**
+     * @return Whether the source got sampled during this tick, sources, which have a lower
+     * rate, carry over their values from the last time they got sampled
+     */
+    public boolean wasSampled(final int source) { return (mSampled & source) != 0; }
+
+    /**
+     * @param value One of the value constants, like {@link #CPU_TEMPERATURE}
+     * @return The value or -1 if it could not be read
+     */
+    public long getValue(final int value) { return mValues[value]; }
+
+    /**
+     * @return The value as string or null if it could not be read
+     */
+    @Nullable public String getValueString(final int value) {
+        final long tmp = mValues[value];
+        return (tmp < 0 ? null : String.valueOf(tmp));
+    }
+
+    public int getCpuCoreCount() { return mCpuCurrent.length; }
+
+    /**
+     * @return The current frequency in kHz, 0 if the core is offline
+     */
+    public int getCpuCurrent(final int core) { return mCpuCurrent[core]; }
+
+    /**
+     * @return The maximum frequency in kHz, 0 if the core is offline
+     */
+    public int getCpuMax(final int core) { return mCpuMax[core]; }
+
+    /**
+     * @return The governor id, see {@link Telemetry#getGovernorName(int)}
+     */
+    public int getCpuGovernorId(final int core) { return mCpuGovernorId[core]; }
+
+    public String getCpuGovernor(final int core) { return mCpuGovernor[core]; }
+
+    @Nullable public String getGpuGovernor() { return mGpuGovernor; }
+}
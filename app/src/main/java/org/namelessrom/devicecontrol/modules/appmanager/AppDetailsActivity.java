@@ -516,6 +516,8 @@ public class AppDetailsActivity extends BaseActivity implements PackageStatsObse
 
     private final Runnable mClearRunnable = new Runnable() {
         @Override public void run() {
+            // the app list shows the sizes as well
+            PackageSizeIndex.get().invalidate(mAppItem);
             try {
                 AppHelper.getSize(mPm, AppDetailsActivity.this, mAppItem.getPackageName());
             } catch (Exception e) { Logger.e(this, "AppHelper.getSize(): " + e); }
@@ -0,0 +1,320 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.appmanager;
+
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.support.annotation.Nullable;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.senab.bitmapcache.BitmapLruCache;
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * Loads app icons on a small, bounded pool of threads.
+ * <p/>
+ * Requests are ordered by their distance to the visible rows, so the rows on screen always get
+ * their icons first. Requests of recycled views get cancelled and removed from the queue. While
+ * scrolling, the icons of the next rows in scroll direction get prefetched into the cache.
+ * Everything except the actual loading has to be called from the main thread.
+ */
+public class AppIconLoader {
+    private static final String TAG = AppIconLoader.class.getSimpleName();
+
+    public static final int DEFAULT_PREFETCH = 8;
+
+    private static final int THREADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static AppIconLoader sInstance;
+
+    private final BitmapLruCache mCache;
+    private final IconAtlas mAtlas;
+    private final PackageManager mPm;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    private final HashMap<AppIconImageView, Request> mRequests = new HashMap<>();
+    private final HashMap<String, Request> mPrefetches = new HashMap<>();
+
+    private int mFirstVisible = 0;
+    private int mLastVisible = Integer.MAX_VALUE;
+    private int mPrefetch = DEFAULT_PREFETCH;
+
+    private class Request implements Runnable, Comparable<Request> {
+        final AppItem appItem;
+        final int position;
+        @Nullable final AppIconImageView view;
+        @Nullable final AppIconImageView.OnImageLoadedListener listener;
+        final int sequence = mSequence.incrementAndGet();
+
+        volatile boolean cancelled;
+        volatile int priority;
+
+        Request(final AppItem appItem, final int position, @Nullable final AppIconImageView view,
+                @Nullable final AppIconImageView.OnImageLoadedListener listener) {
+            this.appItem = appItem;
+            this.position = position;
+            this.view = view;
+            this.listener = listener;
+        }
+
+        @Override public int compareTo(final Request another) {
+            if (priority != another.priority) {
+                return (priority < another.priority ? -1 : 1);
+            }
+            // newer requests first, they are closer to where the user is heading
+            return (another.sequence < sequence ? -1 : (another.sequence == sequence ? 0 : 1));
+        }
+
+        @Override public void run() {
+            if (cancelled) {
+                return;
+            }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final CacheableBitmapDrawable result = loadIcon(appItem);
+            Application.HANDLER.post(new Runnable() {
+                @Override public void run() {
+                    deliver(Request.this, result);
+                }
+            });
+        }
+    }
+
+    private AppIconLoader() {
+        mCache = Application.get().getBitmapCache();
+        mAtlas = IconAtlas.get();
+        mPm = Application.get().getPackageManager();
+
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, 10, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override public Thread newThread(final Runnable r) {
+                return new Thread(r, TAG + " #" + mCount.incrementAndGet());
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static AppIconLoader get() {
+        if (sInstance == null) {
+            sInstance = new AppIconLoader();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param rows The amount of rows ahead of the scroll direction, which get prefetched, the
+     *             app lists use one page of rows, but at least {@link #DEFAULT_PREFETCH}
+     */
+    public void setPrefetchCount(final int rows) {
+        mPrefetch = Math.max(0, rows);
+    }
+
+    /**
+     * Loads the icon into the view, replacing the pending request of the view.
+     *
+     * @param position The adapter position of the view, used to prioritize the request
+     * @return true if the icon was already in the memory cache and got set right away
+     */
+    public boolean load(final AppIconImageView view, final AppItem appItem, final int position,
+            @Nullable final AppIconImageView.OnImageLoadedListener listener) {
+        cancel(view);
+
+        final BitmapDrawable wrapper = mCache.getFromMemoryCache(appItem.getPackageName());
+        if (wrapper != null) {
+            view.setImageDrawable(wrapper);
+            return true;
+        }
+        view.setImageDrawable(null);
+
+        // take over a pending prefetch, instead of loading the icon twice
+        final Request prefetch = mPrefetches.remove(appItem.getPackageName());
+        if (prefetch != null) {
+            prefetch.cancelled = true;
+            mExecutor.remove(prefetch);
+        }
+
+        final Request request = new Request(appItem, position, view, listener);
+        request.priority = getPriority(position);
+        mRequests.put(view, request);
+        mExecutor.execute(request);
+        return false;
+    }
+
+    /**
+     * Cancels the pending request of the view, call it once the view got recycled.
+     */
+    public void cancel(final AppIconImageView view) {
+        final Request request = mRequests.remove(view);
+        if (request != null) {
+            request.cancelled = true;
+            mExecutor.remove(request);
+        }
+    }
+
+    /**
+     * Updates the visible rows, reorders the pending requests and prefetches the icons of the
+     * next rows in scroll direction.
+     *
+     * @param direction Positive if scrolling down, negative if scrolling up
+     * @param items     The items of the adapter
+     */
+    public void onScrolled(final int firstVisible, final int lastVisible, final int direction,
+            final List<AppItem> items) {
+        if (firstVisible < 0 || lastVisible < firstVisible) {
+            return;
+        }
+        if (firstVisible == mFirstVisible && lastVisible == mLastVisible) {
+            return;
+        }
+        mFirstVisible = firstVisible;
+        mLastVisible = lastVisible;
+
+        reorder();
+
+        if (direction == 0 || mPrefetch == 0) {
+            return;
+        }
+        final int start = (direction > 0 ? lastVisible + 1 : firstVisible - mPrefetch);
+        final int end = (direction > 0 ? lastVisible + mPrefetch : firstVisible - 1);
+        final int size = items.size();
+        for (int i = Math.max(0, start); i <= end && i < size; i++) {
+            prefetch(items.get(i), i);
+        }
+    }
+
+    private void prefetch(final AppItem appItem, final int position) {
+        final String pkgName = appItem.getPackageName();
+        if (mPrefetches.containsKey(pkgName) || mCache.peekInMemoryCache(pkgName) != null) {
+            return;
+        }
+        final Request request = new Request(appItem, position, null, null);
+        request.priority = getPriority(position);
+        mPrefetches.put(pkgName, request);
+        mExecutor.execute(request);
+    }
+
+    /**
+     * The queue does not reorder itself, so requests, which changed their priority, get taken
+     * out and put back in. Prefetches, which fell too far behind, get dropped.
+     */
+    private void reorder() {
+        final ArrayList<Request> changed = new ArrayList<>();
+        for (final Request request : mRequests.values()) {
+            final int priority = getPriority(request.position);
+            if (priority != request.priority && mExecutor.remove(request)) {
+                request.priority = priority;
+                changed.add(request);
+            }
+        }
+
+        final HashSet<String> dropped = new HashSet<>();
+        for (final Request request : mPrefetches.values()) {
+            final int priority = getPriority(request.position);
+            if (priority == request.priority || !mExecutor.remove(request)) {
+                continue;
+            }
+            if (priority > mPrefetch * 2) {
+                request.cancelled = true;
+                dropped.add(request.appItem.getPackageName());
+            } else {
+                request.priority = priority;
+                changed.add(request);
+            }
+        }
+        for (final String pkgName : dropped) {
+            mPrefetches.remove(pkgName);
+        }
+
+        for (final Request request : changed) {
+            mExecutor.execute(request);
+        }
+    }
+
+    /**
+     * @return 0 for visible rows, else the distance to the visible rows
+     */
+    private int getPriority(final int position) {
+        if (position < mFirstVisible) {
+            return mFirstVisible - position;
+        }
+        if (position > mLastVisible) {
+            return position - mLastVisible;
+        }
+        return 0;
+    }
+
+    private CacheableBitmapDrawable loadIcon(final AppItem appItem) {
+        final String pkgName = appItem.getPackageName();
+
+        // only a probe, the bind promotes the entry once it really gets displayed
+        CacheableBitmapDrawable result = mCache.peekInMemoryCache(pkgName);
+        if (result == null) {
+            final long lastUpdateTime = appItem.getPackageInfo().lastUpdateTime;
+            final int size = mAtlas.getIconSize();
+            final Bitmap reusable = mCache.getReusableBitmap(size, size);
+
+            Bitmap bitmap = mAtlas.load(pkgName, lastUpdateTime, reusable);
+            if (bitmap == null) {
+                Logger.d(TAG, "Loading -> %s", pkgName);
+                final Drawable drawable = appItem.getApplicationInfo().loadIcon(mPm);
+                bitmap = mAtlas.store(pkgName, lastUpdateTime, drawable, reusable);
+            }
+            result = mCache.put(pkgName, bitmap);
+        }
+        return result;
+    }
+
+    private void deliver(final Request request, final CacheableBitmapDrawable result) {
+        if (request.view == null) {
+            final String pkgName = request.appItem.getPackageName();
+            if (mPrefetches.get(pkgName) == request) {
+                mPrefetches.remove(pkgName);
+            }
+            return;
+        }
+        if (request.cancelled || mRequests.get(request.view) != request) {
+            return;
+        }
+        mRequests.remove(request.view);
+
+        request.view.setImageDrawable(result);
+        if (request.listener != null) {
+            request.listener.onImageLoaded(result);
+        }
+    }
+}
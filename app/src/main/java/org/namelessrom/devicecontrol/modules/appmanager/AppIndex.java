@@ -0,0 +1,517 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.appmanager;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.utils.SortHelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.paperdb.Paper;
+
+/**
+ * Index of all installed packages, shared by all app lists.
+ * <p/>
+ * Labels are expensive to load, so they get persisted together with the last update time of
+ * their package. When the index gets loaded, only packages which got installed or updated since
+ * then get their label loaded again. While the index is in memory, it gets updated from the
+ * package broadcasts and only the affected package gets reloaded.
+ */
+public class AppIndex {
+    private static final String TAG = AppIndex.class.getSimpleName();
+
+    private static final String NAME = "AppIndex";
+
+    // below this amount, labels get loaded right away instead of spinning up threads
+    private static final int LABEL_BATCH = 8;
+    private static final int LABEL_THREADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    public interface Listener {
+        /**
+         * Gets called on the main thread, after packages got added, removed or changed.
+         */
+        void onAppIndexChanged();
+    }
+
+    public interface Filter {
+        /**
+         * @return true if the app should not be part of the list
+         */
+        boolean isFiltered(ApplicationInfo applicationInfo);
+    }
+
+    /**
+     * Persisted part of an indexed package.
+     */
+    public static class Record {
+        public String packageName;
+        public String label;
+        // simple class names of activities, services, receivers and providers, for searching
+        public String[] components;
+        public int flags;
+        public boolean enabled;
+        public String versionName;
+        public int versionCode;
+        public long lastUpdateTime;
+    }
+
+    /**
+     * Gets serialized by Paper.
+     */
+    public static class Store {
+        public String locale;
+        public HashMap<String, Record> records = new HashMap<>();
+    }
+
+    private static AppIndex sInstance;
+
+    private final Object mLock = new Object();
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    // guarded by mLock
+    private final HashMap<String, AppItem> mItems = new HashMap<>();
+    private ArrayList<AppItem> mSorted = new ArrayList<>();
+    private Store mStore;
+    private boolean mLoaded;
+    private int mVersion;
+
+    private boolean mRegistered;
+
+    private AppIndex() {
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public static synchronized AppIndex get() {
+        if (sInstance == null) {
+            sInstance = new AppIndex();
+        }
+        return sInstance;
+    }
+
+    public void addListener(final Listener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+    public void removeListener(final Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return A number which changes every time the index changes
+     */
+    public int getVersion() {
+        synchronized (mLock) {
+            return mVersion;
+        }
+    }
+
+    /**
+     * Returns all apps, which are not filtered out, sorted by label. Loads the index if needed,
+     * which blocks, so call it from a background thread.
+     */
+    public ArrayList<AppItem> getApps(@Nullable final Filter filter) {
+        load();
+
+        synchronized (mLock) {
+            final ArrayList<AppItem> apps = new ArrayList<>(mSorted.size());
+            for (final AppItem appItem : mSorted) {
+                if (filter == null || !filter.isFiltered(appItem.getApplicationInfo())) {
+                    apps.add(appItem);
+                }
+            }
+            return apps;
+        }
+    }
+
+    /**
+     * @return The app of the package or null if it is not known (yet), does not block
+     */
+    @Nullable public AppItem getApp(final String packageName) {
+        synchronized (mLock) {
+            return mItems.get(packageName);
+        }
+    }
+
+    /**
+     * Compares the index against the installed packages and updates everything, which changed.
+     * Only packages with a new last update time get their label reloaded. Blocks.
+     */
+    public void reconcile() {
+        final PackageManager pm = Application.get().getPackageManager();
+        final List<PackageInfo> pkgInfos = pm.getInstalledPackages(0);
+        final String locale = Locale.getDefault().toString();
+
+        synchronized (mLock) {
+            if (mStore == null) {
+                mStore = Paper.get(NAME, new Store());
+            }
+            if (!TextUtils.equals(locale, mStore.locale)) {
+                // labels are localized
+                mStore.records.clear();
+                mStore.locale = locale;
+            }
+        }
+
+        final HashMap<String, Record> records = new HashMap<>(pkgInfos.size());
+        final ArrayList<PackageInfo> outdated = new ArrayList<>();
+        for (final PackageInfo pkgInfo : pkgInfos) {
+            if (pkgInfo.applicationInfo == null) {
+                continue;
+            }
+
+            final Record record;
+            synchronized (mLock) {
+                record = mStore.records.get(pkgInfo.packageName);
+            }
+            if (record == null || record.lastUpdateTime != pkgInfo.lastUpdateTime
+                    || record.label == null || record.components == null) {
+                outdated.add(pkgInfo);
+            } else {
+                updateRecord(record, pkgInfo);
+                records.put(record.packageName, record);
+            }
+        }
+        for (final Record record : createRecords(pm, outdated)) {
+            records.put(record.packageName, record);
+        }
+
+        final HashMap<String, AppItem> items = new HashMap<>(records.size());
+        for (final PackageInfo pkgInfo : pkgInfos) {
+            final Record record = records.get(pkgInfo.packageName);
+            if (record != null) {
+                items.put(record.packageName,
+                        new AppItem(pkgInfo, record.label, record.components));
+            }
+        }
+
+        synchronized (mLock) {
+            mStore.records = records;
+            mItems.clear();
+            mItems.putAll(items);
+            mLoaded = true;
+            sortLocked();
+        }
+        save();
+        Logger.v(TAG, "reconciled %s packages, loaded %s labels", records.size(),
+                outdated.size());
+        notifyListeners();
+    }
+
+    /**
+     * Loads the index, if it has not been loaded yet, and starts listening for package changes.
+     * Blocks, call it from a background thread.
+     */
+    public synchronized void load() {
+        if (!mRegistered) {
+            mRegistered = true;
+            registerReceiver();
+        }
+
+        final boolean loaded;
+        synchronized (mLock) {
+            loaded = mLoaded;
+        }
+        if (!loaded) {
+            reconcile();
+        }
+    }
+
+    /**
+     * Loads the labels and components of the packages on a bounded pool of threads, as loading
+     * a label may need to open the apk of the package.
+     */
+    private static List<Record> createRecords(final PackageManager pm,
+            final List<PackageInfo> pkgInfos) {
+        final ArrayList<Record> records = new ArrayList<>(pkgInfos.size());
+        if (pkgInfos.size() < LABEL_BATCH) {
+            for (final PackageInfo pkgInfo : pkgInfos) {
+                records.add(createRecord(pm, pkgInfo));
+            }
+            return records;
+        }
+
+        final ArrayList<Callable<Record>> tasks = new ArrayList<>(pkgInfos.size());
+        for (final PackageInfo pkgInfo : pkgInfos) {
+            tasks.add(new Callable<Record>() {
+                @Override public Record call() throws Exception {
+                    return createRecord(pm, pkgInfo);
+                }
+            });
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(LABEL_THREADS);
+        try {
+            for (final Future<Record> future : executor.invokeAll(tasks)) {
+                try {
+                    records.add(future.get());
+                } catch (ExecutionException ee) {
+                    Logger.e(TAG, "could not load label", ee);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Logger.w(TAG, "interrupted while loading labels");
+        } finally {
+            executor.shutdownNow();
+        }
+        return records;
+    }
+
+    private static Record createRecord(final PackageManager pm, final PackageInfo pkgInfo) {
+        final Record record = new Record();
+        record.packageName = pkgInfo.packageName;
+        record.label = String.valueOf(pkgInfo.applicationInfo.loadLabel(pm));
+        record.components = loadComponents(pm, pkgInfo.packageName);
+        updateRecord(record, pkgInfo);
+        return record;
+    }
+
+    private static String[] loadComponents(final PackageManager pm, final String packageName) {
+        final PackageInfo pkgInfo;
+        try {
+            pkgInfo = pm.getPackageInfo(packageName, PackageManager.GET_ACTIVITIES
+                    | PackageManager.GET_SERVICES | PackageManager.GET_RECEIVERS
+                    | PackageManager.GET_PROVIDERS | PackageManager.GET_DISABLED_COMPONENTS);
+        } catch (PackageManager.NameNotFoundException nnfe) {
+            return new String[0];
+        } catch (RuntimeException re) {
+            // packages with lots of components may exceed the binder transaction limit
+            Logger.w(TAG, "could not load components of %s", packageName);
+            return new String[0];
+        }
+
+        final LinkedHashSet<String> names = new LinkedHashSet<>();
+        addComponents(names, pkgInfo.activities);
+        addComponents(names, pkgInfo.services);
+        addComponents(names, pkgInfo.receivers);
+        addComponents(names, pkgInfo.providers);
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static void addComponents(final LinkedHashSet<String> names,
+            @Nullable final ComponentInfo[] components) {
+        if (components == null) {
+            return;
+        }
+        for (final ComponentInfo component : components) {
+            if (component.name != null) {
+                names.add(component.name.substring(component.name.lastIndexOf('.') + 1));
+            }
+        }
+    }
+
+    private static void updateRecord(final Record record, final PackageInfo pkgInfo) {
+        record.flags = pkgInfo.applicationInfo.flags;
+        record.enabled = pkgInfo.applicationInfo.enabled;
+        record.versionName = pkgInfo.versionName;
+        record.versionCode = pkgInfo.versionCode;
+        record.lastUpdateTime = pkgInfo.lastUpdateTime;
+    }
+
+    private void sortLocked() {
+        final ArrayList<AppItem> sorted = new ArrayList<>(mItems.values());
+        Collections.sort(sorted, SortHelper.sAppComparator);
+        mSorted = sorted;
+        mVersion++;
+    }
+
+    private void save() {
+        final Store store;
+        synchronized (mLock) {
+            store = new Store();
+            store.locale = mStore.locale;
+            store.records = new HashMap<>(mStore.records);
+        }
+        Paper.put(NAME, store);
+    }
+
+    private void registerReceiver() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        Application.get().registerReceiver(mPackageReceiver, filter, null, mHandler);
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override public void onReceive(final Context context, final Intent intent) {
+            final Uri data = intent.getData();
+            final String packageName = (data != null ? data.getSchemeSpecificPart() : null);
+            if (TextUtils.isEmpty(packageName)) {
+                return;
+            }
+
+            final String action = intent.getAction();
+            final boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
+                // an update sends removed and added, only handle the added one
+                if (!replacing) {
+                    removePackage(packageName);
+                }
+            } else {
+                updatePackage(packageName);
+            }
+        }
+    };
+
+    /**
+     * Updates the packages in place, after we changed them ourselves. Packages, which are not
+     * installed anymore, get removed. Listeners get notified once. Blocks.
+     */
+    public void updatePackages(final Collection<String> packageNames) {
+        final PackageManager pm = Application.get().getPackageManager();
+        boolean changed = false;
+        for (final String packageName : packageNames) {
+            changed |= applyUpdate(pm, packageName);
+        }
+        if (changed) {
+            commit();
+        }
+    }
+
+    private void removePackage(final String packageName) {
+        if (applyRemoval(packageName)) {
+            commit();
+        }
+    }
+
+    private void updatePackage(final String packageName) {
+        if (applyUpdate(Application.get().getPackageManager(), packageName)) {
+            commit();
+        }
+    }
+
+    private void commit() {
+        synchronized (mLock) {
+            sortLocked();
+        }
+        save();
+        notifyListeners();
+    }
+
+    /**
+     * @return true if the package was part of the index
+     */
+    private boolean applyRemoval(final String packageName) {
+        synchronized (mLock) {
+            if (mItems.remove(packageName) == null) {
+                return false;
+            }
+            mStore.records.remove(packageName);
+        }
+        IconAtlas.get().remove(packageName);
+        PackageSizeIndex.get().remove(packageName);
+        Logger.v(TAG, "removed %s", packageName);
+        return true;
+    }
+
+    /**
+     * @return true if the index changed
+     */
+    private boolean applyUpdate(final PackageManager pm, final String packageName) {
+        final PackageInfo pkgInfo;
+        try {
+            pkgInfo = pm.getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException nnfe) {
+            return applyRemoval(packageName);
+        }
+        if (pkgInfo.applicationInfo == null) {
+            return false;
+        }
+
+        Record record;
+        synchronized (mLock) {
+            record = (mStore != null ? mStore.records.get(packageName) : null);
+        }
+        if (record == null || record.lastUpdateTime != pkgInfo.lastUpdateTime
+                || record.components == null) {
+            record = createRecord(pm, pkgInfo);
+        } else {
+            // enabling or disabling does not change the last update time
+            updateRecord(record, pkgInfo);
+        }
+
+        synchronized (mLock) {
+            if (mStore == null) {
+                // not loaded yet, loading picks up the change anyway
+                return false;
+            }
+            mStore.records.put(packageName, record);
+            mItems.put(packageName, new AppItem(pkgInfo, record.label, record.components));
+        }
+        Logger.v(TAG, "updated %s", packageName);
+        return true;
+    }
+
+    private void notifyListeners() {
+        Application.HANDLER.post(mNotifier);
+    }
+
+    private final Runnable mNotifier = new Runnable() {
+        @Override public void run() {
+            final Listener[] listeners;
+            synchronized (mListeners) {
+                listeners = mListeners.toArray(new Listener[mListeners.size()]);
+            }
+            for (final Listener listener : listeners) {
+                listener.onAppIndexChanged();
+            }
+        }
+    };
+}
@@ -38,6 +38,7 @@ public class AppItem {
     private final PackageInfo pkgInfo;
     private final ApplicationInfo appInfo;
     private final String label;
+    private final String[] components;
 
     private boolean enabled = false;
 
@@ -50,16 +51,26 @@ public class AppItem {
     }
 
     public AppItem(final PackageInfo info, final String label) {
+        this(info, label, null);
+    }
+
+    /**
+     * @param components The simple class names of the package's components, may be null
+     */
+    public AppItem(final PackageInfo info, final String label, final String[] components) {
         this.pkgInfo = info;
         this.appInfo = info.applicationInfo;
 
         this.label = label;
+        this.components = (components != null ? components : new String[0]);
 
         this.enabled = (appInfo != null && appInfo.enabled);
     }
 
     public String getLabel() { return label; }
 
+    public String[] getComponents() { return components; }
+
     public PackageInfo getPackageInfo() { return pkgInfo; }
 
     public ApplicationInfo getApplicationInfo() { return appInfo; }
@@ -160,23 +171,7 @@ public class AppItem {
         AppHelper.uninstallPackage(activity.getPackageManager(), appItem.getPackageName());
 
         // build our command
-        final StringBuilder sb = new StringBuilder();
-
-        sb.append(String.format("pm uninstall %s;", appItem.getPackageName()));
-
-        if (appItem.isSystemApp()) {
-            sb.append("busybox mount -o rw,remount /system;");
-        }
-
-        sb.append(String.format("rm -rf %s;", appItem.getApplicationInfo().publicSourceDir));
-        sb.append(String.format("rm -rf %s;", appItem.getApplicationInfo().sourceDir));
-        sb.append(String.format("rm -rf %s;", appItem.getApplicationInfo().dataDir));
-
-        if (appItem.isSystemApp()) {
-            sb.append("busybox mount -o ro,remount /system;");
-        }
-
-        final String cmd = sb.toString();
+        final String cmd = getUninstallCommand(appItem, true);
         Logger.v(appItem.getPackageName(), cmd);
 
         // create the dialog (will not be shown for a long amount of time though)
@@ -226,4 +221,29 @@ public class AppItem {
 
     }
 
+    /**
+     * @param remount Whether to remount /system around the command, if it is a system app
+     * @return The command, which uninstalls the app and removes everything it left behind
+     */
+    public static String getUninstallCommand(final AppItem appItem, final boolean remount) {
+        final boolean remountSystem = (remount && appItem.isSystemApp());
+        final StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("pm uninstall %s;", appItem.getPackageName()));
+
+        if (remountSystem) {
+            sb.append("busybox mount -o rw,remount /system;");
+        }
+
+        sb.append(String.format("rm -rf %s;", appItem.getApplicationInfo().publicSourceDir));
+        sb.append(String.format("rm -rf %s;", appItem.getApplicationInfo().sourceDir));
+        sb.append(String.format("rm -rf %s;", appItem.getApplicationInfo().dataDir));
+
+        if (remountSystem) {
+            sb.append("busybox mount -o ro,remount /system;");
+        }
+
+        return sb.toString();
+    }
+
 }
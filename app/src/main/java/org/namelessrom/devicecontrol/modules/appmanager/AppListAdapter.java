@@ -29,7 +29,6 @@ import android.os.Build;
 import android.support.design.widget.Snackbar;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.RecyclerView;
-import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
@@ -42,24 +41,39 @@ import android.widget.TextView;
 
 import org.namelessrom.devicecontrol.R;
 import org.namelessrom.devicecontrol.theme.AppResources;
+import org.namelessrom.devicecontrol.utils.AppHelper;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHolder> {
     private final Resources res;
 
     private final Activity mActivity;
+    // all items in the order the search index got built with
     private ArrayList<AppItem> mAppList;
+    // all items in the order they are shown
+    private ArrayList<AppItem> mSorted;
     private ArrayList<AppItem> mFiltered;
 
+    private AppSearchIndex mSearchIndex;
+    // the position in mSorted of every item of mAppList, null if both have the same order
+    private int[] mRanks;
+    // positions of the filtered items in mAppList and the query they got filtered with
+    private int[] mFilteredIds;
+    private String mQuery;
+    // positions of the filtered items in mSorted
+    private int[] mFilteredPositions;
+
     private final AppItem.UninstallListener mUninstallListener;
     private final BaseAppListFragment.AppSelectedListener mAppSelectedListener;
 
     private final ArrayList<AppItem> mSelectedApps;
 
     public AppListAdapter(Activity activity, ArrayList<AppItem> appList,
-            AppItem.UninstallListener uninstallListener,
+            AppSearchIndex searchIndex, AppItem.UninstallListener uninstallListener,
             BaseAppListFragment.AppSelectedListener appSelectedListener) {
         mActivity = activity;
         mFiltered = appList;
@@ -68,18 +82,29 @@ public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHold
 
         // save original items
         mAppList = new ArrayList<>(mFiltered);
+        mSorted = mAppList;
+        mSearchIndex = searchIndex;
+        mFilteredIds = mSearchIndex.search(null, null, null);
+        mFilteredPositions = mFilteredIds;
 
         mSelectedApps = new ArrayList<>();
 
         res = mActivity.getResources();
     }
 
-    public void refill(ArrayList<AppItem> appItems) {
+    public void refill(ArrayList<AppItem> appItems, AppSearchIndex searchIndex) {
         mFiltered = appItems;
         mAppList.clear();
         mAppList.addAll(mFiltered);
+        mSorted = mAppList;
+        mRanks = null;
         mSelectedApps.clear();
 
+        mSearchIndex = searchIndex;
+        mFilteredIds = mSearchIndex.search(null, null, null);
+        mFilteredPositions = mFilteredIds;
+        mQuery = null;
+
         if (mAppSelectedListener != null) {
             mAppSelectedListener.onAppSelected("refreshing", mSelectedApps);
         }
@@ -98,6 +123,8 @@ public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHold
         private final TextView appLabel;
         private final TextView packageName;
         private final TextView appVersion;
+        private final TextView appSize;
+        private final TextView appCacheSize;
 
         private final CheckBox appSelector;
 
@@ -130,6 +157,8 @@ public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHold
             appLabel = (TextView) v.findViewById(R.id.app_label);
             packageName = (TextView) v.findViewById(R.id.app_package);
             appVersion = (TextView) v.findViewById(R.id.app_version);
+            appSize = (TextView) v.findViewById(R.id.app_size);
+            appCacheSize = (TextView) v.findViewById(R.id.app_cache_size);
 
             appSelector = (CheckBox) v.findViewById(R.id.app_selector);
             appSelector.setOnCheckedChangeListener(this);
@@ -146,6 +175,7 @@ public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHold
             appLabel.setText(appItem.getLabel());
             packageName.setText(appItem.getPackageName());
             appVersion.setText(appItem.getVersion());
+            bindSizes();
 
             int color = AppResources.get().isDarkTheme() ? Color.WHITE : Color.BLACK;
             appLabel.setTextColor(appItem.isSystemApp()
@@ -159,6 +189,21 @@ public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHold
             appSelector.setChecked(mSelectedApps.contains(appItem));
         }
 
+        /**
+         * Binds only the sizes, without touching the rest of the row.
+         */
+        public void bindSizes() {
+            final PackageSizeIndex.Sizes sizes = PackageSizeIndex.get().getSizes(appItem);
+            if (sizes == null) {
+                appSize.setText(null);
+                appCacheSize.setText(null);
+                return;
+            }
+            appSize.setText(AppHelper.convertSize(sizes.getTotalSize()));
+            appCacheSize.setText(mActivity.getString(R.string.app_cache_size,
+                    AppHelper.convertSize(sizes.cacheSize)));
+        }
+
         @Override public void onClick(View v) {
             final int id = v.getId();
             switch (id) {
@@ -239,9 +284,72 @@ public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHold
 
     @Override public void onViewAttachedToWindow(ViewHolder holder) {
         super.onViewAttachedToWindow(holder);
-        holder.appIcon.loadImage(holder.appItem, null);
+        holder.appIcon.loadImage(holder.appItem, holder.getAdapterPosition(), null);
+    }
+
+    @Override public void onViewRecycled(ViewHolder holder) {
+        super.onViewRecycled(holder);
+        holder.appIcon.cancelLoad();
+    }
+
+    /**
+     * Sorts all items and shows the current result in the new order. The search index stays as
+     * it is, it only has to be rebuilt if the items change.
+     */
+    public void sort(final Comparator<AppItem> comparator) {
+        final int size = mAppList.size();
+        final Integer[] ids = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+        }
+        Arrays.sort(ids, new Comparator<Integer>() {
+            @Override public int compare(Integer lhs, Integer rhs) {
+                return comparator.compare(mAppList.get(lhs), mAppList.get(rhs));
+            }
+        });
+
+        final ArrayList<AppItem> sorted = new ArrayList<>(size);
+        final int[] ranks = new int[size];
+        for (int i = 0; i < size; i++) {
+            sorted.add(mAppList.get(ids[i]));
+            ranks[ids[i]] = i;
+        }
+        mSorted = sorted;
+        mRanks = ranks;
+
+        mFilteredPositions = toPositions(mFilteredIds);
+        mFiltered = getItems(mFilteredPositions);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * @return The sorted positions in mSorted of the items of the search result
+     */
+    private int[] toPositions(final int[] ids) {
+        if (mRanks == null) {
+            return ids;
+        }
+        final int[] positions = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            positions[i] = mRanks[ids[i]];
+        }
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    private ArrayList<AppItem> getItems(final int[] positions) {
+        final ArrayList<AppItem> items = new ArrayList<>(positions.length);
+        for (final int position : positions) {
+            items.add(mSorted.get(position));
+        }
+        return items;
     }
 
+    /**
+     * @return The items, which are currently shown
+     */
+    public List<AppItem> getItems() { return mFiltered; }
+
     @Override public ViewHolder onCreateViewHolder(final ViewGroup parent, final int type) {
         final CardView cardView = (CardView) LayoutInflater.from(parent.getContext())
                 .inflate(R.layout.card_app_item, parent, false);
@@ -254,22 +362,56 @@ public class AppListAdapter extends RecyclerView.Adapter<AppListAdapter.ViewHold
         viewHolder.bind(appItem);
     }
 
+    /**
+     * Filters the items by label, package name, application class and component names. Only the
+     * rows, which actually appeared or disappeared, get notified.
+     */
     public void filter(String query) {
-        mFiltered.clear();
-        mFiltered.addAll(mAppList);
-
-        query = (query != null ? query.trim().toLowerCase() : null);
-        if (!TextUtils.isEmpty(query)) {
-            Iterator<AppItem> iterator = mFiltered.iterator();
-            while (iterator.hasNext()) {
-                AppItem appItem = iterator.next();
-                if (!appItem.getLabel().toLowerCase().contains(query)) {
-                    iterator.remove();
+        final int[] ids = mSearchIndex.search(query, mQuery, mFilteredIds);
+        final boolean unchanged = (ids == mFilteredIds);
+        mFilteredIds = ids;
+        mQuery = query;
+        if (unchanged) {
+            return;
+        }
+
+        final int[] previous = mFilteredPositions;
+        final int[] positions = toPositions(ids);
+        mFilteredPositions = positions;
+        mFiltered = getItems(positions);
+
+        dispatchChanges(previous, positions);
+    }
+
+    /**
+     * Both results are sorted positions in the same list, so walking them side by side gives
+     * the minimal set of removed and inserted ranges.
+     */
+    private void dispatchChanges(final int[] previous, final int[] positions) {
+        int i = 0, j = 0, row = 0;
+        while (i < previous.length || j < positions.length) {
+            if (j >= positions.length || (i < previous.length && previous[i] < positions[j])) {
+                int count = 0;
+                while (i < previous.length
+                        && (j >= positions.length || previous[i] < positions[j])) {
+                    i++;
+                    count++;
                 }
+                notifyItemRangeRemoved(row, count);
+            } else if (i >= previous.length || positions[j] < previous[i]) {
+                final int start = row;
+                while (j < positions.length
+                        && (i >= previous.length || positions[j] < previous[i])) {
+                    j++;
+                    row++;
+                }
+                notifyItemRangeInserted(start, row - start);
+            } else {
+                i++;
+                j++;
+                row++;
             }
         }
-
-        notifyDataSetChanged();
     }
 
 }
@@ -0,0 +1,218 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.appmanager;
+
+import android.content.pm.ApplicationInfo;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Search index over the label, package name, application class and component names of a sorted
+ * list of apps.
+ * <p/>
+ * Every app gets one normalized key, which is lowercase and free of accents. Queries of three
+ * or more characters only look at the apps, which contain all trigrams of the query. A query,
+ * which extends the previous one, only looks at the previous result. Results are the sorted
+ * positions of the matching apps in the list the index got built from.
+ */
+public class AppSearchIndex {
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private static final char SEPARATOR = '\n';
+
+    private final String[] mKeys;
+    private final HashMap<Long, int[]> mTrigrams = new HashMap<>();
+
+    private final int[] mAll;
+
+    /**
+     * Builds the index, call it from a background thread for big lists.
+     */
+    public AppSearchIndex(final List<AppItem> apps) {
+        final int size = apps.size();
+        mKeys = new String[size];
+        mAll = new int[size];
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            final AppItem appItem = apps.get(i);
+            final ApplicationInfo appInfo = appItem.getApplicationInfo();
+
+            sb.setLength(0);
+            sb.append(appItem.getLabel()).append(SEPARATOR).append(appItem.getPackageName());
+            if (appInfo != null && !TextUtils.isEmpty(appInfo.className)) {
+                sb.append(SEPARATOR).append(appInfo.className);
+            }
+            for (final String component : appItem.getComponents()) {
+                sb.append(SEPARATOR).append(component);
+            }
+            mKeys[i] = normalize(sb.toString());
+            mAll[i] = i;
+        }
+
+        // first count, then fill, so every posting list is one exactly sized array
+        final HashMap<Long, int[]> counts = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            final String key = mKeys[i];
+            for (int j = 0; j + 3 <= key.length(); j++) {
+                final long trigram = trigram(key, j);
+                if (trigram == -1) {
+                    continue;
+                }
+                int[] count = counts.get(trigram);
+                if (count == null) {
+                    // [0] = count, [1] = last app, to count every app only once
+                    count = new int[]{ 0, -1 };
+                    counts.put(trigram, count);
+                }
+                if (count[1] != i) {
+                    count[0]++;
+                    count[1] = i;
+                }
+            }
+        }
+        for (final HashMap.Entry<Long, int[]> entry : counts.entrySet()) {
+            mTrigrams.put(entry.getKey(), new int[entry.getValue()[0]]);
+            entry.getValue()[0] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            final String key = mKeys[i];
+            for (int j = 0; j + 3 <= key.length(); j++) {
+                final long trigram = trigram(key, j);
+                if (trigram == -1) {
+                    continue;
+                }
+                final int[] postings = mTrigrams.get(trigram);
+                final int[] count = counts.get(trigram);
+                if (count[0] == 0 || postings[count[0] - 1] != i) {
+                    postings[count[0]++] = i;
+                }
+            }
+        }
+    }
+
+    public int size() { return mKeys.length; }
+
+    /**
+     * @param query         The query, as typed by the user
+     * @param previousQuery The query of the previous result or null
+     * @param previous      The previous result or null
+     * @return The sorted positions of all matching apps
+     */
+    public int[] search(@Nullable final String query, @Nullable final String previousQuery,
+            @Nullable final int[] previous) {
+        final String normalized = (query != null ? normalize(query.trim()) : "");
+        if (normalized.isEmpty()) {
+            return mAll;
+        }
+
+        int[] candidates = mAll;
+        if (previous != null && previousQuery != null
+                && normalized.contains(normalize(previousQuery.trim()))) {
+            // the query got longer, it can only match a subset of the previous result
+            candidates = previous;
+        }
+
+        if (normalized.length() >= 3) {
+            final int[] postings = getSmallestPostings(normalized);
+            if (postings == null) {
+                return new int[0];
+            }
+            if (postings.length < candidates.length) {
+                candidates = intersect(candidates, postings);
+            }
+        }
+
+        final int[] result = new int[candidates.length];
+        int count = 0;
+        for (final int candidate : candidates) {
+            if (mKeys[candidate].contains(normalized)) {
+                result[count++] = candidate;
+            }
+        }
+
+        final int[] trimmed = new int[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * @return The shortest posting list of all trigrams of the query or null if one of them is
+     * not part of any app
+     */
+    @Nullable private int[] getSmallestPostings(final String query) {
+        int[] smallest = null;
+        for (int i = 0; i + 3 <= query.length(); i++) {
+            final long trigram = trigram(query, i);
+            if (trigram == -1) {
+                continue;
+            }
+            final int[] postings = mTrigrams.get(trigram);
+            if (postings == null) {
+                return null;
+            }
+            if (smallest == null || postings.length < smallest.length) {
+                smallest = postings;
+            }
+        }
+        return (smallest != null ? smallest : mAll);
+    }
+
+    private static int[] intersect(final int[] a, final int[] b) {
+        final int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, count = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        final int[] trimmed = new int[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * @return The three chars at the index packed into one long or -1 if they span a separator
+     */
+    private static long trigram(final String s, final int index) {
+        final char a = s.charAt(index);
+        final char b = s.charAt(index + 1);
+        final char c = s.charAt(index + 2);
+        if (a == SEPARATOR || b == SEPARATOR || c == SEPARATOR) {
+            return -1;
+        }
+        return ((long) a << 32) | ((long) b << 16) | c;
+    }
+
+    static String normalize(final String s) {
+        final String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+}
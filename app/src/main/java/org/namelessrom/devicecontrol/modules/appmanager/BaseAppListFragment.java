@@ -24,13 +24,13 @@ import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -45,18 +45,25 @@ import android.widget.TextView;
 import com.squareup.leakcanary.RefWatcher;
 
 import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
 import org.namelessrom.devicecontrol.ui.views.CustomRecyclerView;
+import org.namelessrom.devicecontrol.utils.AppHelper;
 import org.namelessrom.devicecontrol.utils.SortHelper;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 
-public abstract class BaseAppListFragment extends Fragment implements SearchView.OnQueryTextListener, SearchView.OnCloseListener, View.OnClickListener {
+public abstract class BaseAppListFragment extends Fragment implements SearchView.OnQueryTextListener, SearchView.OnCloseListener, View.OnClickListener, AppIndex.Listener, PackageSizeIndex.Listener {
     private static final int ANIM_DURATION = 450;
 
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final long[] TRIM_TARGETS = { 100 * MEGABYTE, 250 * MEGABYTE,
+            500 * MEGABYTE, 1024 * MEGABYTE };
+
     private AppListAdapter mAdapter;
 
     private CustomRecyclerView mRecyclerView;
@@ -67,6 +74,13 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
     private HorizontalScrollView mAppListBar;
 
     private boolean mIsLoading;
+    // a load got requested while loading, it runs once the current load is done
+    private boolean mReloadPending;
+    private boolean mReloadReconcile;
+    private int mIndexVersion = -1;
+
+    private int mSortId = R.id.menu_action_sort_name;
+    private Comparator<AppItem> mComparator = SortHelper.sAppComparator;
 
     public interface AppSelectedListener {
         void onAppSelected(String packageName, ArrayList<AppItem> selectedApps);
@@ -85,6 +99,11 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
             searchView.setOnCloseListener(this);
         }
 
+        final MenuItem sortItem = menu.findItem(mSortId);
+        if (sortItem != null) {
+            sortItem.setChecked(true);
+        }
+
         super.onCreateOptionsMenu(menu, inflater);
     }
 
@@ -114,7 +133,19 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
 
         // if the user hit refresh
         if (id == R.id.menu_action_refresh) {
-            loadApps(true);
+            loadApps(true, true);
+            return true;
+        } else if (id == R.id.menu_action_trim_caches) {
+            new TrimCachesTask().execute();
+            return true;
+        } else if (id == R.id.menu_action_sort_name || id == R.id.menu_action_sort_size
+                || id == R.id.menu_action_sort_cache_size) {
+            item.setChecked(true);
+            mSortId = id;
+            mComparator = getComparator(id);
+            if (mAdapter != null) {
+                mAdapter.sort(mComparator);
+            }
             return true;
         }
 
@@ -132,6 +163,7 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
         rootView.findViewById(R.id.app_bar_uninstall).setOnClickListener(this);
         rootView.findViewById(R.id.app_bar_enable).setOnClickListener(this);
         rootView.findViewById(R.id.app_bar_disable).setOnClickListener(this);
+        rootView.findViewById(R.id.app_bar_clear_cache).setOnClickListener(this);
         return rootView;
     }
 
@@ -143,11 +175,74 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
 
         final LinearLayoutManager linearLayoutManager = new LinearLayoutManager(getActivity());
         mRecyclerView.setLayoutManager(linearLayoutManager);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (mAdapter == null) {
+                    return;
+                }
+                final int first = linearLayoutManager.findFirstVisibleItemPosition();
+                final int last = linearLayoutManager.findLastVisibleItemPosition();
+                final AppIconLoader loader = AppIconLoader.get();
+                if (first >= 0 && last >= first) {
+                    // prefetch one page, bigger screens and smaller rows fling through more rows
+                    loader.setPrefetchCount(
+                            Math.max(AppIconLoader.DEFAULT_PREFETCH, last - first + 1));
+                }
+                // prioritize the visible icons and prefetch the next ones in scroll direction
+                loader.onScrolled(first, last, dy, mAdapter.getItems());
+            }
+        });
     }
 
     @Override public void onResume() {
         super.onResume();
-        loadApps(false);
+        AppIndex.get().addListener(this);
+        PackageSizeIndex.get().addListener(this);
+        // only reload if the index changed while we were gone
+        if (mAdapter == null || mIndexVersion != AppIndex.get().getVersion()) {
+            loadApps(false, false);
+        }
+    }
+
+    @Override public void onPause() {
+        super.onPause();
+        AppIndex.get().removeListener(this);
+        PackageSizeIndex.get().removeListener(this);
+    }
+
+    @Override public void onAppIndexChanged() {
+        if (mAdapter != null && mIndexVersion != AppIndex.get().getVersion()) {
+            loadApps(false, false);
+        }
+    }
+
+    @Override public void onPackageSizesChanged(boolean done) {
+        if (mAdapter == null || mIsLoading) {
+            return;
+        }
+        if (done && mComparator != SortHelper.sAppComparator) {
+            // sort once everything is there, instead of moving rows around while scrolling
+            mAdapter.sort(mComparator);
+            return;
+        }
+        for (int i = 0; i < mRecyclerView.getChildCount(); i++) {
+            final RecyclerView.ViewHolder holder =
+                    mRecyclerView.getChildViewHolder(mRecyclerView.getChildAt(i));
+            if (holder instanceof AppListAdapter.ViewHolder) {
+                ((AppListAdapter.ViewHolder) holder).bindSizes();
+            }
+        }
+    }
+
+    private static Comparator<AppItem> getComparator(final int sortId) {
+        switch (sortId) {
+            case R.id.menu_action_sort_size:
+                return PackageSizeIndex.SIZE_COMPARATOR;
+            case R.id.menu_action_sort_cache_size:
+                return PackageSizeIndex.CACHE_SIZE_COMPARATOR;
+            default:
+                return SortHelper.sAppComparator;
+        }
     }
 
     @Override public void onDestroy() {
@@ -167,13 +262,65 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
         switch (id) {
             case R.id.app_bar_uninstall:
             case R.id.app_bar_enable:
-            case R.id.app_bar_disable: {
+            case R.id.app_bar_disable:
+            case R.id.app_bar_clear_cache: {
                 showActionDialog(id);
                 break;
             }
         }
     }
 
+    /**
+     * Loads every package, not only the ones of this list, which may block on the index.
+     */
+    private class TrimCachesTask extends AsyncTask<Void, Void, ArrayList<AppItem>> {
+        private long reclaimable;
+
+        @Override protected ArrayList<AppItem> doInBackground(Void... params) {
+            final ArrayList<AppItem> apps = AppIndex.get().getApps(null);
+            reclaimable = CacheCleaner.getReclaimableBytes(apps);
+            return apps;
+        }
+
+        @Override protected void onPostExecute(final ArrayList<AppItem> apps) {
+            if (isAdded()) {
+                showTrimCachesDialog(apps, reclaimable);
+            }
+        }
+    }
+
+    private void showTrimCachesDialog(final ArrayList<AppItem> apps, final long reclaimable) {
+        if (reclaimable <= 0) {
+            Snackbar.make(mAppListBar, R.string.trim_caches_nothing, Snackbar.LENGTH_SHORT).show();
+            return;
+        }
+
+        final ArrayList<Long> targets = new ArrayList<>();
+        final ArrayList<String> entries = new ArrayList<>();
+        for (final long target : TRIM_TARGETS) {
+            if (target < reclaimable) {
+                targets.add(target);
+                entries.add(getString(R.string.trim_caches_target,
+                        AppHelper.convertSize(target)));
+            }
+        }
+        targets.add(reclaimable);
+        entries.add(getString(R.string.trim_caches_all, AppHelper.convertSize(reclaimable)));
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.trim_caches)
+                .setItems(entries.toArray(new String[entries.size()]),
+                        new DialogInterface.OnClickListener() {
+                            @Override public void onClick(DialogInterface dialog, int which) {
+                                new CleanTask(getActivity(),
+                                        CacheCleaner.forTarget(apps, targets.get(which)))
+                                        .execute();
+                            }
+                        })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
     private void showActionDialog(final int type) {
         int title;
         String message;
@@ -195,6 +342,11 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
                 message = getString(R.string.disable_msg_multi, mSelectedApps.size());
                 break;
             }
+            case R.id.app_bar_clear_cache: {
+                title = R.string.clear_cache;
+                message = getString(R.string.clear_cache_msg_multi, mSelectedApps.size());
+                break;
+            }
         }
 
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
@@ -210,11 +362,15 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
     }
 
     private void showProcessingDialog(final int type) {
+        if (type == R.id.app_bar_clear_cache) {
+            new CleanTask(getActivity(), CacheCleaner.forPackages(mSelectedApps)).execute();
+            return;
+        }
+
         int titleResId;
         int messageResId;
 
         switch (type) {
-            default:
             case R.id.app_bar_uninstall: {
                 titleResId = R.string.uninstall;
                 messageResId = R.string.uninstall_msg_multi_action;
@@ -230,25 +386,29 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
                 messageResId = R.string.disable_msg_multi_action;
                 break;
             }
+            default: {
+                Logger.w(this, "unknown action: %s", type);
+                return;
+            }
         }
 
         new ProcessTask(getActivity(), type, titleResId, messageResId, mSelectedApps).execute();
     }
 
-    private class ProcessTask extends AsyncTask<Void, Integer, Void> {
+    private class ProcessTask extends AsyncTask<Void, Integer, List<PackageBatch.Result>> {
         private final Activity activity;
-        private final int type;
+        private final int operation;
         private final int messageResId;
-        private final HashSet<AppItem> selectedApps;
+        private final ArrayList<AppItem> selectedApps;
         private final int length;
         private final ProgressDialog progressDialog;
 
         public ProcessTask(Activity activity, int type, int titleResId, int messageResId,
                 HashSet<AppItem> selectedApps) {
             this.activity = activity;
-            this.type = type;
+            this.operation = getOperation(type);
             this.messageResId = messageResId;
-            this.selectedApps = selectedApps;
+            this.selectedApps = new ArrayList<>(selectedApps);
             this.length = this.selectedApps.size();
 
             progressDialog = new ProgressDialog(this.activity);
@@ -259,55 +419,125 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
             progressDialog.setProgress(0);
         }
 
+        private int getOperation(final int type) {
+            switch (type) {
+                case R.id.app_bar_uninstall:
+                    return PackageBatch.OP_UNINSTALL;
+                case R.id.app_bar_enable:
+                    return PackageBatch.OP_ENABLE;
+                case R.id.app_bar_disable:
+                    return PackageBatch.OP_DISABLE;
+                default:
+                    // never guess, a wrong guess could uninstall the selected apps
+                    throw new IllegalArgumentException("Unknown action: " + type);
+            }
+        }
+
         @Override protected void onPreExecute() {
             progressDialog.show();
         }
 
         @Override protected void onProgressUpdate(Integer... values) {
-            // increase current app counter by one as we deliver indexes
-            final int currentApp = values[0] + 1;
-            progressDialog.setMessage(activity.getString(messageResId, currentApp, this.length));
-            progressDialog.setProgress(currentApp);
-        }
-
-        @Override protected Void doInBackground(Void... params) {
-            int counter = 0;
-            for (AppItem appItem : selectedApps) {
-                publishProgress(counter);
-                switch (type) {
-                    case R.id.app_bar_uninstall: {
-                        appItem.uninstall(activity, null, false);
-                        break;
-                    }
-                    case R.id.app_bar_enable: {
-                        appItem.enable(null);
-                        break;
-                    }
-                    case R.id.app_bar_disable: {
-                        appItem.disable(null);
-                        break;
-                    }
+            final int done = values[0];
+            progressDialog.setMessage(activity.getString(messageResId, done, this.length));
+            progressDialog.setProgress(done);
+        }
+
+        @Override protected List<PackageBatch.Result> doInBackground(Void... params) {
+            // the batch updates the app index, which reloads the list once it changed
+            return new PackageBatch(operation, selectedApps, new PackageBatch.Listener() {
+                @Override public void onProgress(int done, int total) {
+                    publishProgress(done);
                 }
-                counter++;
+            }).run();
+        }
+
+        @Override protected void onPostExecute(List<PackageBatch.Result> results) {
+            progressDialog.hide();
+
+            final ArrayList<String> failed = new ArrayList<>();
+            for (final PackageBatch.Result result : results) {
+                if (!result.success) {
+                    failed.add(result.packageName);
+                }
+            }
+
+            if (failed.isEmpty()) {
+                Snackbar.make(BaseAppListFragment.this.mAppListBar, R.string.action_completed,
+                        Snackbar.LENGTH_LONG).show();
+            } else {
+                Snackbar.make(BaseAppListFragment.this.mAppListBar,
+                        getString(R.string.action_completed_failed, failed.size(), length,
+                                TextUtils.join(", ", failed)), Snackbar.LENGTH_LONG).show();
             }
+        }
+    }
 
-            // wait for 750 ms to let everything update its state
-            try {
-                Thread.sleep(750);
-            } catch (Exception ignored) { }
-            return null;
+    private class CleanTask extends AsyncTask<Void, Integer, List<CacheCleaner.Result>> {
+        private final Activity activity;
+        private final CacheCleaner cleaner;
+        private final int length;
+        private final ProgressDialog progressDialog;
+
+        public CleanTask(Activity activity, CacheCleaner cleaner) {
+            this.activity = activity;
+            this.cleaner = cleaner;
+            this.length = cleaner.getCount();
+
+            progressDialog = new ProgressDialog(this.activity);
+            progressDialog.setTitle(R.string.clear_cache);
+            progressDialog.setMessage(
+                    activity.getString(R.string.clear_cache_msg_multi_action, 0, this.length));
+            progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progressDialog.setMax(this.length);
+            progressDialog.setProgress(0);
         }
 
-        @Override protected void onPostExecute(Void aVoid) {
+        @Override protected void onPreExecute() {
+            progressDialog.show();
+        }
+
+        @Override protected void onProgressUpdate(Integer... values) {
+            final int done = values[0];
+            progressDialog.setMessage(
+                    activity.getString(R.string.clear_cache_msg_multi_action, done, this.length));
+            progressDialog.setProgress(done);
+        }
+
+        @Override protected List<CacheCleaner.Result> doInBackground(Void... params) {
+            return cleaner.run(new CacheCleaner.Listener() {
+                @Override public void onProgress(int done, int total) {
+                    publishProgress(done);
+                }
+            });
+        }
+
+        @Override protected void onPostExecute(List<CacheCleaner.Result> results) {
             progressDialog.hide();
-            loadApps(true);
-            Snackbar.make(BaseAppListFragment.this.mAppListBar, R.string.action_completed,
+
+            int cleared = 0;
+            for (final CacheCleaner.Result result : results) {
+                if (result.bytesFreed > 0) {
+                    cleared++;
+                }
+            }
+            final String freed = AppHelper.convertSize(CacheCleaner.getBytesFreed(results));
+            Snackbar.make(BaseAppListFragment.this.mAppListBar,
+                    getString(R.string.trim_caches_result, freed, cleared),
                     Snackbar.LENGTH_LONG).show();
         }
     }
 
-    private void loadApps(boolean animate) {
-        if (mIsLoading) return;
+    /**
+     * @param reconcile Whether to compare the index against the installed packages, for changes
+     *                  we did ourselves via root, which the package broadcasts may not cover yet
+     */
+    private void loadApps(final boolean animate, final boolean reconcile) {
+        if (mIsLoading) {
+            mReloadPending = true;
+            mReloadReconcile |= reconcile;
+            return;
+        }
 
         mIsLoading = true;
         mProgressContainer.setVisibility(View.VISIBLE);
@@ -318,7 +548,7 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
                 @Override public void onAnimationStart(Animator animation) { }
 
                 @Override public void onAnimationEnd(Animator animation) {
-                    new LoadApps().execute();
+                    new LoadApps(reconcile, mComparator).execute();
                 }
 
                 @Override public void onAnimationCancel(Animator animation) { }
@@ -329,7 +559,7 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
             anim.start();
         } else {
             mProgressContainer.setAlpha(1f);
-            new LoadApps().execute();
+            new LoadApps(reconcile, mComparator).execute();
         }
     }
 
@@ -341,20 +571,32 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
     protected abstract boolean isFiltered(ApplicationInfo applicationInfo);
 
     private class LoadApps extends AsyncTask<Void, Void, ArrayList<AppItem>> {
-        @Override protected ArrayList<AppItem> doInBackground(Void... params) {
-            final PackageManager pm = Application.get().getPackageManager();
-            final ArrayList<AppItem> appList = new ArrayList<>();
-            final List<PackageInfo> pkgInfos = pm.getInstalledPackages(0);
+        private final boolean reconcile;
+        private final Comparator<AppItem> comparator;
+        private int version;
+        private AppSearchIndex searchIndex;
+
+        public LoadApps(final boolean reconcile, final Comparator<AppItem> comparator) {
+            this.reconcile = reconcile;
+            this.comparator = comparator;
+        }
 
-            for (final PackageInfo pkgInfo : pkgInfos) {
-                if (pkgInfo.applicationInfo == null || isFiltered(pkgInfo.applicationInfo)) {
-                    continue;
-                }
-                appList.add(new AppItem(pkgInfo,
-                        String.valueOf(pkgInfo.applicationInfo.loadLabel(pm))));
+        @Override protected ArrayList<AppItem> doInBackground(Void... params) {
+            final AppIndex appIndex = AppIndex.get();
+            if (reconcile) {
+                appIndex.reconcile();
             }
-            Collections.sort(appList, SortHelper.sAppComparator);
-
+            final ArrayList<AppItem> appList = appIndex.getApps(mFilter);
+            version = appIndex.getVersion();
+
+            // only packages, which are new or got updated, get their sizes collected again,
+            // trimming caches looks at all of them
+            PackageSizeIndex.get().collect(appIndex.getApps(null));
+            if (comparator != SortHelper.sAppComparator) {
+                // the index is sorted by label already
+                Collections.sort(appList, comparator);
+            }
+            searchIndex = new AppSearchIndex(appList);
             return appList;
         }
 
@@ -370,16 +612,27 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
                     if (appItems != null) {
                         if (mAdapter == null) {
                             final AppListAdapter adapter = new AppListAdapter(getActivity(),
-                                    appItems, mUninstallListener, mAppSelectedListener);
+                                    appItems, searchIndex, mUninstallListener,
+                                    mAppSelectedListener);
                             mRecyclerView.setAdapter(adapter);
                             mAdapter = adapter;
                         } else {
-                            mAdapter.refill(appItems);
+                            mAdapter.refill(appItems, searchIndex);
                         }
                     }
 
                     mProgressContainer.setVisibility(View.GONE);
                     mIsLoading = false;
+                    mIndexVersion = version;
+
+                    if (mReloadPending) {
+                        final boolean reloadReconcile = mReloadReconcile;
+                        mReloadPending = false;
+                        mReloadReconcile = false;
+                        if (isAdded()) {
+                            loadApps(false, reloadReconcile);
+                        }
+                    }
                 }
 
                 @Override public void onAnimationCancel(Animator animation) { }
@@ -393,9 +646,15 @@ public abstract class BaseAppListFragment extends Fragment implements SearchView
         }
     }
 
+    private final AppIndex.Filter mFilter = new AppIndex.Filter() {
+        @Override public boolean isFiltered(ApplicationInfo applicationInfo) {
+            return BaseAppListFragment.this.isFiltered(applicationInfo);
+        }
+    };
+
     private final AppItem.UninstallListener mUninstallListener = new AppItem.UninstallListener() {
         @Override public void OnUninstallComplete() {
-            loadApps(true);
+            loadApps(true, true);
         }
     };
 
@@ -0,0 +1,307 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.appmanager;
+
+import android.content.pm.IPackageDataObserver;
+import android.content.pm.PackageManager;
+import android.support.annotation.Nullable;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.utils.AppHelper;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.CommandResult;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.ShellPool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clears the caches of many packages at once.
+ * <p/>
+ * The cleaner works out which caches to clear from the collected package sizes, either the
+ * biggest ones until a byte target is reached or all of a given list of packages. Caches get
+ * cleared in chunks, every chunk is one root command, and the chunks run in parallel on the
+ * shell pool. Only cache and code_cache get cleared, app_* directories hold real data of some
+ * apps. Every package gets measured right before and, once the package manager reported back,
+ * again after clearing, to report what actually got freed.
+ */
+public class CacheCleaner {
+    private static final String TAG = CacheCleaner.class.getSimpleName();
+
+    private static final int CHUNK_SIZE = 16;
+    // the shell pool has two shells, more threads would only queue up behind them
+    private static final int THREADS = 2;
+
+    private static final long TIMEOUT_PER_PACKAGE = 5000;
+    private static final long MEASURE_TIMEOUT = 5000;
+
+    public interface Listener {
+        /**
+         * Gets called from a background thread, every time a package got processed.
+         */
+        void onProgress(int done, int total);
+    }
+
+    public static class Result {
+        public final String packageName;
+        public final long bytesFreed;
+        public final boolean success;
+
+        public Result(final String packageName, final long bytesFreed, final boolean success) {
+            this.packageName = packageName;
+            this.bytesFreed = bytesFreed;
+            this.success = success;
+        }
+
+        @Override public String toString() {
+            return String.format("%s: %s bytes freed%s", packageName, bytesFreed,
+                    success ? "" : " (failed)");
+        }
+    }
+
+    private static class Target {
+        final AppItem appItem;
+        final long cacheSize;
+
+        Target(final AppItem appItem, final long cacheSize) {
+            this.appItem = appItem;
+            this.cacheSize = cacheSize;
+        }
+    }
+
+    private final ArrayList<Target> mTargets;
+    @Nullable private Listener mListener;
+
+    private final PackageManager mPm;
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final List<Result> mResults = Collections.synchronizedList(new ArrayList<Result>());
+    // guarded by mResults, packages, which got their result already
+    private final HashSet<String> mReported = new HashSet<>();
+
+    private CacheCleaner(final ArrayList<Target> targets) {
+        mTargets = targets;
+        mPm = Application.get().getPackageManager();
+    }
+
+    /**
+     * @return The cache size of all apps, which got collected already
+     */
+    public static long getReclaimableBytes(final Collection<AppItem> apps) {
+        long total = 0;
+        for (final AppItem appItem : apps) {
+            final PackageSizeIndex.Sizes sizes = PackageSizeIndex.get().getSizes(appItem);
+            if (sizes != null) {
+                total += sizes.cacheSize;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Clears the biggest caches first, until {@code targetBytes} are reclaimed. Only apps with
+     * collected sizes are taken into account.
+     */
+    public static CacheCleaner forTarget(final Collection<AppItem> apps, final long targetBytes) {
+        final ArrayList<Target> candidates = new ArrayList<>(apps.size());
+        for (final AppItem appItem : apps) {
+            final PackageSizeIndex.Sizes sizes = PackageSizeIndex.get().getSizes(appItem);
+            if (sizes != null && sizes.cacheSize > 0) {
+                candidates.add(new Target(appItem, sizes.cacheSize));
+            }
+        }
+        Collections.sort(candidates, new Comparator<Target>() {
+            @Override public int compare(final Target a, final Target b) {
+                return (a.cacheSize > b.cacheSize ? -1 : (a.cacheSize == b.cacheSize ? 0 : 1));
+            }
+        });
+
+        final ArrayList<Target> targets = new ArrayList<>();
+        long reclaimed = 0;
+        for (final Target candidate : candidates) {
+            if (reclaimed >= targetBytes) {
+                break;
+            }
+            targets.add(candidate);
+            reclaimed += candidate.cacheSize;
+        }
+        return new CacheCleaner(targets);
+    }
+
+    /**
+     * Clears the caches of all given apps.
+     */
+    public static CacheCleaner forPackages(final Collection<AppItem> apps) {
+        final ArrayList<Target> targets = new ArrayList<>(apps.size());
+        for (final AppItem appItem : apps) {
+            final PackageSizeIndex.Sizes sizes = PackageSizeIndex.get().getSizes(appItem);
+            // every package gets measured right before clearing anyway
+            targets.add(new Target(appItem, (sizes != null ? sizes.cacheSize : -1)));
+        }
+        return new CacheCleaner(targets);
+    }
+
+    /**
+     * @return The number of packages, which will get their cache cleared
+     */
+    public int getCount() {
+        return mTargets.size();
+    }
+
+    /**
+     * Clears the caches and blocks until every package got processed.
+     *
+     * @param listener Gets notified about the progress or null
+     * @return The result of every package
+     */
+    public List<Result> run(@Nullable final Listener listener) {
+        mListener = listener;
+        final long start = System.currentTimeMillis();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < mTargets.size(); i += CHUNK_SIZE) {
+            final List<Target> chunk =
+                    mTargets.subList(i, Math.min(mTargets.size(), i + CHUNK_SIZE));
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    clear(chunk);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(
+                    mTargets.size() * (2 * TIMEOUT_PER_PACKAGE + 2 * MEASURE_TIMEOUT),
+                    TimeUnit.MILLISECONDS)) {
+                Logger.w(TAG, "timed out while clearing caches");
+                executor.shutdownNow();
+                publishMissing();
+            }
+        } catch (InterruptedException ie) {
+            Logger.w(TAG, "interrupted while clearing caches");
+            executor.shutdownNow();
+            publishMissing();
+            Thread.currentThread().interrupt();
+        }
+
+        // one notification for the whole batch, instead of sorting the lists for every package
+        PackageSizeIndex.get().notifyChanged();
+
+        final ArrayList<Result> results;
+        synchronized (mResults) {
+            results = new ArrayList<>(mResults);
+        }
+        Logger.v(TAG, "freed %s bytes of %s packages in %s ms", getBytesFreed(results),
+                results.size(), System.currentTimeMillis() - start);
+        return results;
+    }
+
+    /**
+     * @return The bytes freed of all results
+     */
+    public static long getBytesFreed(final List<Result> results) {
+        long total = 0;
+        for (final Result result : results) {
+            total += result.bytesFreed;
+        }
+        return total;
+    }
+
+    private void clear(final List<Target> chunk) {
+        final long[] before = new long[chunk.size()];
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < chunk.size(); i++) {
+            // the collected sizes may be old, measure right before clearing
+            final Target target = chunk.get(i);
+            final PackageSizeIndex.Sizes sizes =
+                    PackageSizeIndex.get().measure(target.appItem, MEASURE_TIMEOUT);
+            before[i] = (sizes != null ? sizes.cacheSize : Math.max(0, target.cacheSize));
+            sb.append(AppHelper.getClearCacheCommand(target.appItem.getPackageName()))
+                    .append('\n');
+        }
+
+        // the package manager deletes asynchronously, wait for it before measuring again
+        final CountDownLatch latch = new CountDownLatch(chunk.size());
+        final IPackageDataObserver observer = new IPackageDataObserver.Stub() {
+            @Override public void onRemoveCompleted(final String packageName,
+                    final boolean succeeded) {
+                latch.countDown();
+            }
+        };
+        for (final Target target : chunk) {
+            final String packageName = target.appItem.getPackageName();
+            if (!AppHelper.deleteApplicationCacheFiles(mPm, packageName, observer)) {
+                latch.countDown();
+            }
+        }
+
+        final CommandResult result = ShellPool.get().run(sb.toString(),
+                chunk.size() * TIMEOUT_PER_PACKAGE);
+        final boolean ran = (result != null && result.success());
+
+        try {
+            if (!latch.await(chunk.size() * TIMEOUT_PER_PACKAGE, TimeUnit.MILLISECONDS)) {
+                Logger.w(TAG, "package manager did not finish deleting caches in time");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (int i = 0; i < chunk.size(); i++) {
+            final AppItem appItem = chunk.get(i).appItem;
+            final PackageSizeIndex.Sizes after =
+                    PackageSizeIndex.get().measure(appItem, MEASURE_TIMEOUT);
+            final long freed = (after != null ? Math.max(0, before[i] - after.cacheSize) : 0);
+            publish(new Result(appItem.getPackageName(), freed, ran && after != null));
+        }
+    }
+
+    /**
+     * Reports every package, which did not get processed in time, as failed.
+     */
+    private void publishMissing() {
+        for (final Target target : mTargets) {
+            publish(new Result(target.appItem.getPackageName(), 0, false));
+        }
+    }
+
+    private void publish(final Result result) {
+        synchronized (mResults) {
+            // chunks, which finish after they timed out, already got reported as failed
+            if (!mReported.add(result.packageName)) {
+                return;
+            }
+            mResults.add(result);
+        }
+        if (!result.success) {
+            Logger.w(TAG, result.toString());
+        }
+        final int done = mDone.incrementAndGet();
+        if (mListener != null) {
+            mListener.onProgress(done, mTargets.size());
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.appmanager;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.Nullable;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores app icons as raw pixels in a few memory mapped atlas files.
+ * <p/>
+ * Every icon has the same size and gets one slot of an atlas, the index maps packages and their
+ * last update time to slots. Loading an icon copies its pixels straight from the mapped atlas
+ * into a bitmap, there is nothing to open or decode. Every slot starts with a small header, which
+ * names its owner, so a slot, which got overwritten before the index got saved, is not mistaken
+ * for the icon of its previous owner.
+ */
+public class IconAtlas {
+    private static final String TAG = IconAtlas.class.getSimpleName();
+
+    private static final String DIRECTORY = "icons";
+    private static final String INDEX_FILE = "atlas.idx";
+
+    private static final int MAGIC = 0x44434941;
+    private static final int VERSION = 1;
+
+    private static final int SLOTS_PER_ATLAS = 128;
+    // last update time and hash of the package name
+    private static final int SLOT_HEADER = 12;
+
+    private static final long SAVE_DELAY = 5000;
+
+    private static IconAtlas sInstance;
+
+    private final File mDirectory;
+    private final int mIconSize;
+    private final int mSlotBytes;
+
+    // guarded by this
+    private final HashMap<String, Slot> mSlots = new HashMap<>();
+    private final BitSet mUsed = new BitSet();
+    private final ArrayList<MappedByteBuffer> mAtlases = new ArrayList<>();
+    private boolean mDirty;
+
+    private static class Slot {
+        final int index;
+        long lastUpdateTime;
+
+        Slot(final int index, final long lastUpdateTime) {
+            this.index = index;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+    }
+
+    private IconAtlas() {
+        final Application app = Application.get();
+        mDirectory = new File(app.getCacheDir(), DIRECTORY);
+        mIconSize = app.getResources().getDimensionPixelSize(R.dimen.app_icon_size);
+        mSlotBytes = SLOT_HEADER + (mIconSize * mIconSize * 4);
+
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.mkdirs();
+        loadIndex();
+    }
+
+    public static synchronized IconAtlas get() {
+        if (sInstance == null) {
+            sInstance = new IconAtlas();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return The width and height of every icon in pixels
+     */
+    public int getIconSize() { return mIconSize; }
+
+    /**
+     * Loads the icon of the package, if it is stored and still up to date.
+     *
+     * @param reusable A bitmap to copy the pixels into, it gets used if it has the icon size
+     * @return The icon or null if it is not stored or outdated
+     */
+    @Nullable public Bitmap load(final String packageName, final long lastUpdateTime,
+            @Nullable final Bitmap reusable) {
+        // copy under the lock, so a store to the same slot can not tear the icon
+        synchronized (this) {
+            final Slot slot = mSlots.get(packageName);
+            if (slot == null || slot.lastUpdateTime != lastUpdateTime) {
+                return null;
+            }
+            final ByteBuffer buffer = getSlotBuffer(slot.index);
+            if (buffer == null) {
+                return null;
+            }
+
+            if (buffer.getLong() != lastUpdateTime || buffer.getInt() != packageName.hashCode()) {
+                Logger.w(TAG, "slot of %s got overwritten", packageName);
+                return null;
+            }
+
+            final Bitmap bitmap = obtainBitmap(reusable);
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Renders the icon into a bitmap of the icon size and stores it, replacing the previous icon
+     * of the package.
+     *
+     * @param reusable A bitmap to render into, it gets used if it has the icon size
+     * @return The rendered icon
+     */
+    public Bitmap store(final String packageName, final long lastUpdateTime, final Drawable icon,
+            @Nullable final Bitmap reusable) {
+        final Bitmap bitmap = obtainBitmap(reusable);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        final Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, mIconSize, mIconSize);
+        icon.draw(canvas);
+
+        synchronized (this) {
+            final Slot slot = mSlots.get(packageName);
+            final int index = (slot != null ? slot.index : mUsed.nextClearBit(0));
+            final ByteBuffer buffer = getSlotBuffer(index);
+            if (buffer == null) {
+                return bitmap;
+            }
+
+            // write the pixels first and publish the slot afterwards, so loads never see a
+            // slot, which is not completely written yet
+            buffer.putLong(lastUpdateTime);
+            buffer.putInt(packageName.hashCode());
+            bitmap.copyPixelsToBuffer(buffer);
+
+            if (slot == null) {
+                mUsed.set(index);
+                mSlots.put(packageName, new Slot(index, lastUpdateTime));
+            } else {
+                slot.lastUpdateTime = lastUpdateTime;
+            }
+            scheduleSave();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Frees the slot of the package, call it once the package got uninstalled.
+     */
+    public synchronized void remove(final String packageName) {
+        final Slot slot = mSlots.remove(packageName);
+        if (slot != null) {
+            mUsed.clear(slot.index);
+            scheduleSave();
+        }
+    }
+
+    private Bitmap obtainBitmap(@Nullable final Bitmap reusable) {
+        if (reusable != null && reusable.isMutable() && !reusable.isRecycled()
+                && reusable.getWidth() == mIconSize && reusable.getHeight() == mIconSize
+                && reusable.getConfig() == Bitmap.Config.ARGB_8888) {
+            return reusable;
+        }
+        return Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @return A buffer, which covers exactly the slot, or null if its atlas could not be mapped
+     */
+    @Nullable private ByteBuffer getSlotBuffer(final int index) {
+        final int atlas = index / SLOTS_PER_ATLAS;
+        final MappedByteBuffer mapped = mapAtlas(atlas);
+        if (mapped == null) {
+            return null;
+        }
+        final int offset = (index % SLOTS_PER_ATLAS) * mSlotBytes;
+        // every caller gets its own position and limit
+        final ByteBuffer buffer = mapped.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + mSlotBytes);
+        return buffer.slice();
+    }
+
+    @Nullable private MappedByteBuffer mapAtlas(final int atlas) {
+        while (mAtlases.size() <= atlas) {
+            mAtlases.add(null);
+        }
+        MappedByteBuffer mapped = mAtlases.get(atlas);
+        if (mapped != null) {
+            return mapped;
+        }
+
+        final long length = (long) SLOTS_PER_ATLAS * mSlotBytes;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(getAtlasFile(atlas), "rw");
+            if (file.length() != length) {
+                file.setLength(length);
+            }
+            // the mapping stays valid after closing the file
+            mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            mAtlases.set(atlas, mapped);
+            Logger.v(TAG, "mapped atlas %s", atlas);
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not map atlas " + atlas, ioe);
+        } finally {
+            Utils.closeQuietly(file);
+        }
+        return mapped;
+    }
+
+    private File getAtlasFile(final int atlas) {
+        return new File(mDirectory, String.format("atlas-%s.bin", atlas));
+    }
+
+    private void scheduleSave() {
+        mDirty = true;
+        Application.HANDLER.removeCallbacks(mSaver);
+        Application.HANDLER.postDelayed(mSaver, SAVE_DELAY);
+    }
+
+    private final Runnable mSaver = new Runnable() {
+        @Override public void run() {
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    saveIndex();
+                }
+            }).start();
+        }
+    };
+
+    private void loadIndex() {
+        final File file = new File(mDirectory, INDEX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != mIconSize) {
+                // the density or the format changed, start over
+                Logger.v(TAG, "icon size or format changed, clearing atlas");
+                Utils.closeQuietly(in);
+                in = null;
+                clear();
+                return;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String packageName = in.readUTF();
+                final long lastUpdateTime = in.readLong();
+                final int index = in.readInt();
+                mSlots.put(packageName, new Slot(index, lastUpdateTime));
+                mUsed.set(index);
+            }
+            Logger.v(TAG, "loaded index with %s icons", count);
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not load index", ioe);
+            mSlots.clear();
+            mUsed.clear();
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    private void saveIndex() {
+        final HashMap<String, Slot> slots;
+        final ArrayList<MappedByteBuffer> atlases;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            slots = new HashMap<>(mSlots);
+            atlases = new ArrayList<>(mAtlases);
+        }
+
+        // the index must never point to pixels, which did not make it to the disk
+        for (final MappedByteBuffer atlas : atlases) {
+            if (atlas != null) {
+                atlas.force();
+            }
+        }
+
+        final File file = new File(mDirectory, INDEX_FILE);
+        final File tmp = new File(mDirectory, INDEX_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mIconSize);
+            out.writeInt(slots.size());
+            for (final Map.Entry<String, Slot> entry : slots.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().lastUpdateTime);
+                out.writeInt(entry.getValue().index);
+            }
+            out.flush();
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not save index", ioe);
+            synchronized (this) {
+                mDirty = true;
+            }
+            return;
+        } finally {
+            Utils.closeQuietly(out);
+        }
+
+        if (!tmp.renameTo(file)) {
+            Logger.w(TAG, "could not replace %s", file.getPath());
+        }
+    }
+
+    private void clear() {
+        mSlots.clear();
+        mUsed.clear();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+}
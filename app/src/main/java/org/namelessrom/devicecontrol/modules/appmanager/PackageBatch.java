@@ -0,0 +1,284 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.appmanager;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.support.annotation.Nullable;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.utils.AppHelper;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.CommandResult;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.ShellPool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enables, disables or uninstalls a bunch of packages at once.
+ * <p/>
+ * Enabling and disabling is done in chunks, every chunk is one command for the root shell.
+ * User apps do not depend on each other, so they get uninstalled concurrently. System apps share
+ * the mount state of /system, so they get uninstalled in chunks, one after another, with one
+ * remount per chunk. Every package gets verified afterwards and the app index gets updated in
+ * place.
+ */
+public class PackageBatch {
+    private static final String TAG = PackageBatch.class.getSimpleName();
+
+    public static final int OP_ENABLE = 0;
+    public static final int OP_DISABLE = 1;
+    public static final int OP_UNINSTALL = 2;
+
+    private static final int CHUNK_SIZE = 16;
+    // the shell pool has two shells, more threads would only queue up behind them
+    private static final int UNINSTALL_THREADS = 2;
+
+    private static final long TIMEOUT_PER_PACKAGE = 10000;
+
+    public interface Listener {
+        /**
+         * Gets called from a background thread, every time a package got processed.
+         */
+        void onProgress(int done, int total);
+    }
+
+    public static class Result {
+        public final String packageName;
+        public final boolean success;
+        @Nullable public final String message;
+
+        public Result(final String packageName, final boolean success,
+                @Nullable final String message) {
+            this.packageName = packageName;
+            this.success = success;
+            this.message = message;
+        }
+
+        @Override public String toString() {
+            return String.format("%s: %s%s", packageName, success ? "ok" : "failed",
+                    message != null ? " (" + message + ")" : "");
+        }
+    }
+
+    private final int mOperation;
+    private final ArrayList<AppItem> mApps;
+    @Nullable private final Listener mListener;
+
+    private final PackageManager mPm;
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final List<Result> mResults = Collections.synchronizedList(new ArrayList<Result>());
+    // guarded by mResults, packages, which got their result already
+    private final HashSet<String> mReported = new HashSet<>();
+
+    public PackageBatch(final int operation, final Collection<AppItem> apps,
+            @Nullable final Listener listener) {
+        mOperation = operation;
+        mApps = new ArrayList<>(apps);
+        mListener = listener;
+        mPm = Application.get().getPackageManager();
+    }
+
+    /**
+     * Runs the batch and blocks until every package got processed.
+     *
+     * @return The result of every package
+     */
+    public List<Result> run() {
+        final long start = System.currentTimeMillis();
+
+        if (mOperation == OP_UNINSTALL) {
+            uninstall();
+        } else {
+            enableOrDisable(mOperation == OP_ENABLE);
+        }
+
+        final ArrayList<String> packageNames = new ArrayList<>(mApps.size());
+        for (final AppItem appItem : mApps) {
+            packageNames.add(appItem.getPackageName());
+        }
+        AppIndex.get().updatePackages(packageNames);
+
+        final ArrayList<Result> results;
+        synchronized (mResults) {
+            results = new ArrayList<>(mResults);
+        }
+        Logger.v(TAG, "processed %s packages in %s ms", results.size(),
+                System.currentTimeMillis() - start);
+        return results;
+    }
+
+    private void enableOrDisable(final boolean enable) {
+        final String verb = (enable ? "enable" : "disable");
+        for (final List<AppItem> chunk : chunk(mApps)) {
+            final StringBuilder sb = new StringBuilder();
+            for (final AppItem appItem : chunk) {
+                sb.append(String.format("pm %s %s > /dev/null;\n",
+                        verb, appItem.getPackageName()));
+            }
+            final boolean ran = runCommand(sb.toString(), chunk.size());
+
+            for (final AppItem appItem : chunk) {
+                final String packageName = appItem.getPackageName();
+                final ApplicationInfo appInfo = getApplicationInfo(packageName);
+                if (appInfo == null) {
+                    publish(new Result(packageName, false, "not installed"));
+                } else if (appInfo.enabled == enable) {
+                    publish(new Result(packageName, true, null));
+                } else {
+                    publish(new Result(packageName, false, ran
+                            ? (enable ? "still disabled" : "still enabled") : "shell failed"));
+                }
+            }
+        }
+    }
+
+    private void uninstall() {
+        final ArrayList<AppItem> systemApps = new ArrayList<>();
+        final ArrayList<Runnable> tasks = new ArrayList<>();
+        for (final AppItem appItem : mApps) {
+            if (appItem.isSystemApp()) {
+                systemApps.add(appItem);
+                continue;
+            }
+            tasks.add(new Runnable() {
+                @Override public void run() {
+                    AppHelper.uninstallPackage(mPm, appItem.getPackageName());
+                    final boolean ran = runCommand(AppItem.getUninstallCommand(appItem, true), 1);
+                    publish(verifyUninstall(appItem, ran));
+                }
+            });
+        }
+        if (!systemApps.isEmpty()) {
+            tasks.add(new Runnable() {
+                @Override public void run() {
+                    uninstallSystemApps(systemApps);
+                }
+            });
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(UNINSTALL_THREADS);
+        for (final Runnable task : tasks) {
+            executor.execute(task);
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(mApps.size() * TIMEOUT_PER_PACKAGE,
+                    TimeUnit.MILLISECONDS)) {
+                Logger.w(TAG, "timed out while uninstalling");
+                executor.shutdownNow();
+                publishMissing("timed out");
+            }
+        } catch (InterruptedException ie) {
+            Logger.w(TAG, "interrupted while uninstalling");
+            executor.shutdownNow();
+            publishMissing("interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reports every package, which did not get processed in time, as failed.
+     */
+    private void publishMissing(final String message) {
+        for (final AppItem appItem : mApps) {
+            publish(new Result(appItem.getPackageName(), false, message));
+        }
+    }
+
+    private void uninstallSystemApps(final List<AppItem> systemApps) {
+        for (final List<AppItem> chunk : chunk(systemApps)) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("busybox mount -o rw,remount /system;\n");
+            for (final AppItem appItem : chunk) {
+                AppHelper.uninstallPackage(mPm, appItem.getPackageName());
+                sb.append(AppItem.getUninstallCommand(appItem, false)).append('\n');
+            }
+            sb.append("busybox mount -o ro,remount /system;\n");
+            final boolean ran = runCommand(sb.toString(), chunk.size());
+
+            for (final AppItem appItem : chunk) {
+                publish(verifyUninstall(appItem, ran));
+            }
+        }
+    }
+
+    private Result verifyUninstall(final AppItem appItem, final boolean ran) {
+        final String packageName = appItem.getPackageName();
+        if (getApplicationInfo(packageName) == null) {
+            return new Result(packageName, true, null);
+        }
+        // removed system apps stay known to the package manager until the next reboot
+        final String sourceDir = appItem.getApplicationInfo().sourceDir;
+        if (appItem.isSystemApp() && sourceDir != null && !new File(sourceDir).exists()) {
+            return new Result(packageName, true, "reboot required");
+        }
+        return new Result(packageName, false, ran ? "still installed" : "shell failed");
+    }
+
+    /**
+     * @return true if the command ran until the end
+     */
+    private boolean runCommand(final String command, final int packages) {
+        final CommandResult result =
+                ShellPool.get().run(command, packages * TIMEOUT_PER_PACKAGE);
+        return (result != null && result.success());
+    }
+
+    @Nullable private ApplicationInfo getApplicationInfo(final String packageName) {
+        try {
+            return mPm.getApplicationInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException nnfe) {
+            return null;
+        }
+    }
+
+    private void publish(final Result result) {
+        synchronized (mResults) {
+            // tasks, which finish after they timed out, already got reported as failed
+            if (!mReported.add(result.packageName)) {
+                return;
+            }
+            mResults.add(result);
+        }
+        if (!result.success) {
+            Logger.w(TAG, result.toString());
+        }
+        final int done = mDone.incrementAndGet();
+        if (mListener != null) {
+            mListener.onProgress(done, mApps.size());
+        }
+    }
+
+    private static List<List<AppItem>> chunk(final List<AppItem> apps) {
+        final ArrayList<List<AppItem>> chunks = new ArrayList<>();
+        for (int i = 0; i < apps.size(); i += CHUNK_SIZE) {
+            chunks.add(apps.subList(i, Math.min(apps.size(), i + CHUNK_SIZE)));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.appmanager;
+
+import android.content.pm.PackageManager;
+import android.content.pm.PackageStats;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.objects.PackageStatsObserver;
+import org.namelessrom.devicecontrol.utils.AppHelper;
+import org.namelessrom.devicecontrol.utils.SortHelper;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.paperdb.Paper;
+
+/**
+ * Collects the sizes of all packages in the background and keeps them, until the package gets
+ * updated.
+ * <p/>
+ * Only a few requests are in flight at once, the package manager answers every request with a
+ * binder call from its own thread. Results get streamed to the listeners, which get notified on
+ * the main thread once every {@link #NOTIFY_DELAY} ms at most.
+ */
+public class PackageSizeIndex {
+    private static final String TAG = PackageSizeIndex.class.getSimpleName();
+
+    private static final String NAME = "PackageSizeIndex";
+
+    private static final int MAX_IN_FLIGHT = 4;
+    // a request, which did not get answered by now, will not get answered at all
+    private static final long REQUEST_TIMEOUT = 10000;
+
+    private static final long NOTIFY_DELAY = 500;
+    private static final long SAVE_DELAY = 5000;
+
+    public interface Listener {
+        /**
+         * Gets called on the main thread, after sizes got collected.
+         *
+         * @param done true if there is nothing left to collect
+         */
+        void onPackageSizesChanged(boolean done);
+    }
+
+    /**
+     * Persisted sizes of a package.
+     */
+    public static class Sizes {
+        public String packageName;
+        public long lastUpdateTime;
+        public long codeSize;
+        public long dataSize;
+        public long cacheSize;
+
+        public long getTotalSize() {
+            return codeSize + dataSize + cacheSize;
+        }
+    }
+
+    /**
+     * Gets serialized by Paper.
+     */
+    public static class Store {
+        public HashMap<String, Sizes> sizes = new HashMap<>();
+    }
+
+    /**
+     * Sorts by total size, biggest first. Packages without sizes go last.
+     */
+    public static final Comparator<AppItem> SIZE_COMPARATOR = new Comparator<AppItem>() {
+        @Override public int compare(final AppItem a, final AppItem b) {
+            final PackageSizeIndex index = PackageSizeIndex.get();
+            final Sizes sa = index.getSizes(a);
+            final Sizes sb = index.getSizes(b);
+            return compareSizes(a, b, (sa != null ? sa.getTotalSize() : -1),
+                    (sb != null ? sb.getTotalSize() : -1));
+        }
+    };
+
+    /**
+     * Sorts by cache size, biggest first. Packages without sizes go last.
+     */
+    public static final Comparator<AppItem> CACHE_SIZE_COMPARATOR = new Comparator<AppItem>() {
+        @Override public int compare(final AppItem a, final AppItem b) {
+            final PackageSizeIndex index = PackageSizeIndex.get();
+            final Sizes sa = index.getSizes(a);
+            final Sizes sb = index.getSizes(b);
+            return compareSizes(a, b, (sa != null ? sa.cacheSize : -1),
+                    (sb != null ? sb.cacheSize : -1));
+        }
+    };
+
+    private static PackageSizeIndex sInstance;
+
+    private final Object mLock = new Object();
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final PackageManager mPm;
+
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    // guarded by mLock
+    private Store mStore;
+
+    // only touched on mHandler
+    private final LinkedHashMap<String, Long> mQueue = new LinkedHashMap<>();
+    private final HashMap<String, Long> mInFlight = new HashMap<>();
+    private volatile boolean mNotifyScheduled;
+
+    private PackageSizeIndex() {
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mPm = Application.get().getPackageManager();
+    }
+
+    public static synchronized PackageSizeIndex get() {
+        if (sInstance == null) {
+            sInstance = new PackageSizeIndex();
+        }
+        return sInstance;
+    }
+
+    public void addListener(final Listener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+    public void removeListener(final Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return The sizes of the app or null if they are not collected yet or outdated, does not
+     * block
+     */
+    @Nullable public Sizes getSizes(final AppItem appItem) {
+        synchronized (mLock) {
+            if (mStore == null) {
+                return null;
+            }
+            final Sizes sizes = mStore.sizes.get(appItem.getPackageName());
+            if (sizes == null || sizes.lastUpdateTime != appItem.getPackageInfo().lastUpdateTime) {
+                return null;
+            }
+            return sizes;
+        }
+    }
+
+    /**
+     * Collects the sizes of all apps, which are not known yet or got updated since. Only loads
+     * the stored sizes, if needed, and returns before the collecting starts.
+     */
+    public void collect(final List<AppItem> apps) {
+        load();
+
+        final HashMap<String, Long> requested = new HashMap<>(apps.size());
+        for (final AppItem appItem : apps) {
+            requested.put(appItem.getPackageName(), appItem.getPackageInfo().lastUpdateTime);
+        }
+
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                load();
+                int queued = 0;
+                for (final Map.Entry<String, Long> entry : requested.entrySet()) {
+                    final String packageName = entry.getKey();
+                    final Sizes sizes;
+                    synchronized (mLock) {
+                        sizes = mStore.sizes.get(packageName);
+                    }
+                    if (sizes != null && sizes.lastUpdateTime == entry.getValue()) {
+                        continue;
+                    }
+                    if (!mInFlight.containsKey(packageName)) {
+                        mQueue.put(packageName, entry.getValue());
+                        queued++;
+                    }
+                }
+                Logger.v(TAG, "collecting sizes of %s out of %s packages", queued,
+                        requested.size());
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Forgets the sizes of the app and collects them again, call it after clearing its cache or
+     * data.
+     */
+    public void invalidate(final AppItem appItem) {
+        final String packageName = appItem.getPackageName();
+        final long lastUpdateTime = appItem.getPackageInfo().lastUpdateTime;
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                load();
+                synchronized (mLock) {
+                    mStore.sizes.remove(packageName);
+                }
+                mQueue.put(packageName, lastUpdateTime);
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Measures the sizes of the app right away and stores them. Blocks, never call it on the
+     * main thread. Listeners do not get notified, call {@link #notifyChanged()} once, after
+     * measuring a batch of apps, so lists do not get sorted again for every single app.
+     *
+     * @return The sizes or null if the package manager did not answer in time
+     */
+    @Nullable public Sizes measure(final AppItem appItem, final long timeout) {
+        load();
+
+        final String packageName = appItem.getPackageName();
+        final long lastUpdateTime = appItem.getPackageInfo().lastUpdateTime;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final PackageStats[] result = new PackageStats[1];
+        AppHelper.getSize(mPm, new PackageStatsObserver(
+                new PackageStatsObserver.OnPackageStatsListener() {
+                    @Override public void onPackageStats(final PackageStats packageStats) {
+                        result[0] = packageStats;
+                        latch.countDown();
+                    }
+                }, mHandler), packageName);
+
+        try {
+            if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                Logger.w(TAG, "could not measure %s in time", packageName);
+                return null;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        final Sizes sizes = createSizes(packageName, lastUpdateTime, result[0]);
+        if (sizes != null) {
+            synchronized (mLock) {
+                mStore.sizes.put(packageName, sizes);
+            }
+            scheduleSave();
+        }
+        return sizes;
+    }
+
+    /**
+     * Notifies the listeners once, after apps got measured via {@link #measure(AppItem, long)}.
+     */
+    public void notifyChanged() {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                scheduleNotify();
+            }
+        });
+    }
+
+    /**
+     * Forgets the sizes of the package, call it once the package got uninstalled.
+     */
+    public void remove(final String packageName) {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                load();
+                mQueue.remove(packageName);
+                synchronized (mLock) {
+                    if (mStore.sizes.remove(packageName) == null) {
+                        return;
+                    }
+                }
+                scheduleSave();
+            }
+        });
+    }
+
+    private void load() {
+        synchronized (mLock) {
+            if (mStore == null) {
+                mStore = Paper.get(NAME, new Store());
+            }
+        }
+    }
+
+    /**
+     * Sends requests until the maximum is in flight. Runs on mHandler.
+     */
+    private void pump() {
+        mHandler.removeCallbacks(mPump);
+
+        final long now = SystemClock.elapsedRealtime();
+        final Iterator<Map.Entry<String, Long>> expired = mInFlight.entrySet().iterator();
+        while (expired.hasNext()) {
+            final Map.Entry<String, Long> entry = expired.next();
+            if (now - entry.getValue() > REQUEST_TIMEOUT) {
+                Logger.w(TAG, "no sizes for %s", entry.getKey());
+                expired.remove();
+            }
+        }
+
+        final Iterator<Map.Entry<String, Long>> it = mQueue.entrySet().iterator();
+        while (mInFlight.size() < MAX_IN_FLIGHT && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            it.remove();
+            request(entry.getKey(), entry.getValue());
+        }
+
+        if (!mInFlight.isEmpty()) {
+            // wake up to expire requests, which never got answered
+            mHandler.postDelayed(mPump, REQUEST_TIMEOUT);
+        }
+    }
+
+    private final Runnable mPump = new Runnable() {
+        @Override public void run() {
+            pump();
+            if (mQueue.isEmpty() && mInFlight.isEmpty()) {
+                scheduleNotify();
+            }
+        }
+    };
+
+    private void request(final String packageName, final long lastUpdateTime) {
+        mInFlight.put(packageName, SystemClock.elapsedRealtime());
+        AppHelper.getSize(mPm, new PackageStatsObserver(
+                new PackageStatsObserver.OnPackageStatsListener() {
+                    @Override public void onPackageStats(final PackageStats packageStats) {
+                        onResult(packageName, lastUpdateTime, packageStats);
+                    }
+                }, mHandler), packageName);
+    }
+
+    private void onResult(final String packageName, final long lastUpdateTime,
+            @Nullable final PackageStats stats) {
+        if (mInFlight.remove(packageName) == null) {
+            // it timed out already
+            return;
+        }
+
+        final Sizes sizes = createSizes(packageName, lastUpdateTime, stats);
+        if (sizes != null) {
+            synchronized (mLock) {
+                mStore.sizes.put(packageName, sizes);
+            }
+            scheduleSave();
+        }
+
+        pump();
+        scheduleNotify();
+    }
+
+    @Nullable private static Sizes createSizes(final String packageName,
+            final long lastUpdateTime, @Nullable final PackageStats stats) {
+        if (stats == null) {
+            return null;
+        }
+        final Sizes sizes = new Sizes();
+        sizes.packageName = packageName;
+        sizes.lastUpdateTime = lastUpdateTime;
+        sizes.codeSize = stats.codeSize + stats.externalCodeSize;
+        sizes.dataSize = stats.dataSize + stats.externalDataSize + stats.externalMediaSize
+                + stats.externalObbSize;
+        sizes.cacheSize = stats.cacheSize + stats.externalCacheSize;
+        return sizes;
+    }
+
+    private void scheduleSave() {
+        mHandler.removeCallbacks(mSaver);
+        mHandler.postDelayed(mSaver, SAVE_DELAY);
+    }
+
+    private final Runnable mSaver = new Runnable() {
+        @Override public void run() {
+            final Store store = new Store();
+            synchronized (mLock) {
+                store.sizes = new HashMap<>(mStore.sizes);
+            }
+            Paper.put(NAME, store);
+        }
+    };
+
+    private void scheduleNotify() {
+        if (mQueue.isEmpty() && mInFlight.isEmpty()) {
+            Application.HANDLER.removeCallbacks(mNotifier);
+            mNotifyScheduled = false;
+            // coalesce results, which complete the queue one after another
+            Application.HANDLER.removeCallbacks(mDoneNotifier);
+            Application.HANDLER.post(mDoneNotifier);
+        } else if (!mNotifyScheduled) {
+            // throttle, results keep coming in faster than the delay
+            mNotifyScheduled = true;
+            Application.HANDLER.postDelayed(mNotifier, NOTIFY_DELAY);
+        }
+    }
+
+    private final Runnable mNotifier = new Runnable() {
+        @Override public void run() {
+            mNotifyScheduled = false;
+            notifyListeners(false);
+        }
+    };
+
+    private final Runnable mDoneNotifier = new Runnable() {
+        @Override public void run() {
+            notifyListeners(true);
+        }
+    };
+
+    private void notifyListeners(final boolean done) {
+        final Listener[] listeners;
+        synchronized (mListeners) {
+            listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        }
+        for (final Listener listener : listeners) {
+            listener.onPackageSizesChanged(done);
+        }
+    }
+
+    private static int compareSizes(final AppItem a, final AppItem b, final long sizeA,
+            final long sizeB) {
+        if (sizeA != sizeB) {
+            return (sizeA > sizeB ? -1 : 1);
+        }
+        return SortHelper.sAppComparator.compare(a, b);
+    }
+}
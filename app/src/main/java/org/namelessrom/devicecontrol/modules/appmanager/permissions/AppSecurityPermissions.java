@@ -64,6 +64,7 @@ public class AppSecurityPermissions {
     private final Context mContext;
     private final LayoutInflater mInflater;
     private final PackageManager mPm;
+    private final PermissionCatalog mCatalog;
     private final Map<String, MyPermissionGroupInfo> mPermGroups = new HashMap<>();
     private final List<MyPermissionGroupInfo> mPermGroupsList = new ArrayList<>();
     private final PermissionGroupInfoComparator mPermGroupComparator =
@@ -129,15 +130,14 @@ public class AppSecurityPermissions {
         mContext = context;
         mInflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         mPm = mContext.getPackageManager();
+        mCatalog = PermissionCatalog.get();
     }
 
     public AppSecurityPermissions(Context context, String packageName) {
         this(context);
         Set<MyPermissionInfo> permSet = new HashSet<>();
-        PackageInfo pkgInfo;
-        try {
-            pkgInfo = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-        } catch (NameNotFoundException e) {
+        PackageInfo pkgInfo = mCatalog.getPackageInfo(packageName);
+        if (pkgInfo == null) {
             Log.w(TAG, "Couldn't retrieve permissions for package:" + packageName);
             return;
         }
@@ -161,12 +161,12 @@ public class AppSecurityPermissions {
     }
 
     private void getPermissionsForPackage(String packageName, Set<MyPermissionInfo> permSet) {
-        try {
-            PackageInfo pkgInfo = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-            extractPerms(pkgInfo, permSet, pkgInfo);
-        } catch (NameNotFoundException e) {
+        PackageInfo pkgInfo = mCatalog.getPackageInfo(packageName);
+        if (pkgInfo == null) {
             Log.w(TAG, "Couldn't retrieve permissions for package: " + packageName);
+            return;
         }
+        extractPerms(pkgInfo, permSet, pkgInfo);
     }
 
     private void extractPerms(PackageInfo info, Set<MyPermissionInfo> permSet,
@@ -185,63 +185,62 @@ public class AppSecurityPermissions {
                     continue;
                 }
             }
-            try {
-                PermissionInfo tmpPermInfo = mPm.getPermissionInfo(permName, 0);
-                if (tmpPermInfo == null) {
-                    continue;
-                }
-                int existingIndex = -1;
-                if (installedPkgInfo != null && installedPkgInfo.requestedPermissions != null) {
-                    for (int j = 0; j < installedPkgInfo.requestedPermissions.length; j++) {
-                        if (permName.equals(installedPkgInfo.requestedPermissions[j])) {
-                            existingIndex = j;
-                            break;
-                        }
+            PermissionInfo cachedPermInfo = mCatalog.getPermissionInfo(permName);
+            if (cachedPermInfo == null) {
+                Log.i(TAG, "Ignoring unknown permission:" + permName);
+                continue;
+            }
+            // the catalog shares its infos, work on a copy as we may change the group
+            PermissionInfo tmpPermInfo = new PermissionInfo(cachedPermInfo);
+            int existingIndex = -1;
+            if (installedPkgInfo != null && installedPkgInfo.requestedPermissions != null) {
+                for (int j = 0; j < installedPkgInfo.requestedPermissions.length; j++) {
+                    if (permName.equals(installedPkgInfo.requestedPermissions[j])) {
+                        existingIndex = j;
+                        break;
                     }
                 }
-                final int existingFlags = installedPkgInfo != null && existingIndex >= 0 ?
-                        installedPkgInfo.requestedPermissionsFlags[existingIndex] : 0;
-                if (!isDisplayablePermission(tmpPermInfo, flagsList[i], existingFlags)) {
-                    // This is not a permission that is interesting for the user
-                    // to see, so skip it.
-                    continue;
+            }
+            final int existingFlags = installedPkgInfo != null && existingIndex >= 0 ?
+                    installedPkgInfo.requestedPermissionsFlags[existingIndex] : 0;
+            if (!isDisplayablePermission(tmpPermInfo, flagsList[i], existingFlags)) {
+                // This is not a permission that is interesting for the user
+                // to see, so skip it.
+                continue;
+            }
+            final String origGroupName = tmpPermInfo.group;
+            String groupName = origGroupName;
+            if (groupName == null) {
+                groupName = tmpPermInfo.packageName;
+                tmpPermInfo.group = groupName;
+            }
+            MyPermissionGroupInfo group = mPermGroups.get(groupName);
+            if (group == null) {
+                PermissionGroupInfo grp = null;
+                if (origGroupName != null) {
+                    grp = mCatalog.getPermissionGroupInfo(origGroupName);
                 }
-                final String origGroupName = tmpPermInfo.group;
-                String groupName = origGroupName;
-                if (groupName == null) {
-                    groupName = tmpPermInfo.packageName;
-                    tmpPermInfo.group = groupName;
+                if (grp != null) {
+                    group = new MyPermissionGroupInfo(grp);
+                } else {
+                    // We could be here either because the permission
+                    // didn't originally specify a group or the group it
+                    // gave couldn't be found.  In either case, we consider
+                    // its group to be the permission's package name.
+                    tmpPermInfo.group = tmpPermInfo.packageName;
+                    group = new MyPermissionGroupInfo(tmpPermInfo);
                 }
-                MyPermissionGroupInfo group = mPermGroups.get(groupName);
-                if (group == null) {
-                    PermissionGroupInfo grp = null;
-                    if (origGroupName != null) {
-                        grp = mPm.getPermissionGroupInfo(origGroupName, 0);
-                    }
-                    if (grp != null) {
-                        group = new MyPermissionGroupInfo(grp);
-                    } else {
-                        // We could be here either because the permission
-                        // didn't originally specify a group or the group it
-                        // gave couldn't be found.  In either case, we consider
-                        // its group to be the permission's package name.
-                        tmpPermInfo.group = tmpPermInfo.packageName;
-                        group = new MyPermissionGroupInfo(tmpPermInfo);
-                    }
-                    mPermGroups.put(tmpPermInfo.group, group);
-                }
-                final boolean newPerm = installedPkgInfo != null
-                        && (existingFlags & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0;
-                MyPermissionInfo myPerm = new MyPermissionInfo(tmpPermInfo);
-                myPerm.mNewReqFlags = flagsList[i];
-                myPerm.mExistingReqFlags = existingFlags;
-                // This is a new permission if the app is already installed and
-                // doesn't currently hold this permission.
-                myPerm.mNew = newPerm;
-                permSet.add(myPerm);
-            } catch (NameNotFoundException e) {
-                Log.i(TAG, "Ignoring unknown permission:" + permName);
+                mPermGroups.put(tmpPermInfo.group, group);
             }
+            final boolean newPerm = installedPkgInfo != null
+                    && (existingFlags & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0;
+            MyPermissionInfo myPerm = new MyPermissionInfo(tmpPermInfo);
+            myPerm.mNewReqFlags = flagsList[i];
+            myPerm.mExistingReqFlags = existingFlags;
+            // This is a new permission if the app is already installed and
+            // doesn't currently hold this permission.
+            myPerm.mNew = newPerm;
+            permSet.add(myPerm);
         }
     }
 
@@ -382,18 +381,21 @@ public class AppSecurityPermissions {
 
     private void addPermToList(List<MyPermissionInfo> permList,
             MyPermissionInfo pInfo) {
-        if (pInfo.mLabel == null) {
-            pInfo.mLabel = pInfo.loadLabel(mPm);
-        }
-        int idx = Collections.binarySearch(permList, pInfo, mPermComparator);
-        if (idx < 0) {
-            idx = -idx - 1;
-            permList.add(idx, pInfo);
+        // permissions get added in sorted order, duplicates can only follow each other
+        final int size = permList.size();
+        if (size == 0 || mPermComparator.compare(permList.get(size - 1), pInfo) != 0) {
+            permList.add(pInfo);
         }
     }
 
     private void setPermissions(List<MyPermissionInfo> permList) {
         if (permList != null) {
+            for (MyPermissionInfo pInfo : permList) {
+                pInfo.mLabel = mCatalog.getPermissionLabel(pInfo);
+            }
+            // Sort once, so every group list gets filled in order
+            Collections.sort(permList, mPermComparator);
+
             // First pass to group permissions
             for (MyPermissionInfo pInfo : permList) {
                 if (!isDisplayablePermission(pInfo, pInfo.mNewReqFlags, pInfo.mExistingReqFlags)) {
@@ -401,7 +403,6 @@ public class AppSecurityPermissions {
                 }
                 MyPermissionGroupInfo group = mPermGroups.get(pInfo.group);
                 if (group != null) {
-                    pInfo.mLabel = pInfo.loadLabel(mPm);
                     addPermToList(group.mAllPermissions, pInfo);
                     if (pInfo.mNew) {
                         addPermToList(group.mNewPermissions, pInfo);
@@ -416,21 +417,7 @@ public class AppSecurityPermissions {
         }
 
         for (MyPermissionGroupInfo pgrp : mPermGroups.values()) {
-            if (pgrp.labelRes != 0 || pgrp.nonLocalizedLabel != null) {
-                pgrp.mLabel = pgrp.loadLabel(mPm);
-            } else {
-                ApplicationInfo app;
-                try {
-                    app = mPm.getApplicationInfo(pgrp.packageName, 0);
-                    pgrp.mLabel = app.loadLabel(mPm);
-                    if (pgrp.mLabel == null) {
-                        throw new Exception("app.loadLabel returned null!");
-                    }
-                } catch (Exception e) {
-                    Logger.e(this, "Error loading label", e);
-                    pgrp.mLabel = pgrp.loadLabel(mPm);
-                }
-            }
+            pgrp.mLabel = mCatalog.getGroupLabel(pgrp);
             if (pgrp.mLabel == null) {
                 Logger.w(this, "label is null, continue");
                 continue;
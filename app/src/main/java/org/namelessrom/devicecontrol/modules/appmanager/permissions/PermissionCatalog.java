@@ -0,0 +1,328 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.appmanager.permissions;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionGroupInfo;
+import android.content.pm.PermissionInfo;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.modules.appmanager.AppIndex;
+import org.namelessrom.devicecontrol.modules.appmanager.AppItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Shared catalogue of permissions, permission groups and the permissions of packages.
+ * <p/>
+ * Everything gets resolved once, when it is needed for the first time, and stays cached until a
+ * package gets added, replaced or removed, as packages define permissions and groups. The
+ * permissions of a package get resolved again once its last update time changes. The reverse
+ * index from permissions to the packages, which got them granted, gets built on the first query
+ * and is brought up to date, whenever the app index changed since.
+ */
+public class PermissionCatalog {
+    private static final String TAG = PermissionCatalog.class.getSimpleName();
+
+    private static PermissionCatalog sInstance;
+
+    private final PackageManager mPm;
+
+    // all guarded by this
+    private final HashMap<String, PermissionInfo> mPermissions = new HashMap<>();
+    private final HashMap<String, PermissionGroupInfo> mGroups = new HashMap<>();
+    // names, which are not known to the package manager
+    private final HashSet<String> mUnknown = new HashSet<>();
+    private final HashMap<String, CharSequence> mLabels = new HashMap<>();
+    private final HashMap<String, PackageInfo> mPackages = new HashMap<>();
+    private String mLocale;
+    // bumped whenever the definitions got cleared, to drop lookups, which raced with it
+    private int mGeneration;
+
+    private HashMap<String, ArrayList<String>> mHolders = new HashMap<>();
+    private int mHoldersVersion = -1;
+
+    // serializes building the reverse index, without blocking lookups
+    private final Object mBuildLock = new Object();
+
+    private PermissionCatalog() {
+        mPm = Application.get().getPackageManager();
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        Application.get().registerReceiver(mPackageReceiver, filter);
+    }
+
+    public static synchronized PermissionCatalog get() {
+        if (sInstance == null) {
+            sInstance = new PermissionCatalog();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return The info of the permission or null if it is not defined by any package, do not
+     * modify it
+     */
+    @Nullable public PermissionInfo getPermissionInfo(final String name) {
+        final int generation;
+        synchronized (this) {
+            final PermissionInfo info = mPermissions.get(name);
+            if (info != null || mUnknown.contains(name)) {
+                return info;
+            }
+            generation = mGeneration;
+        }
+
+        PermissionInfo info = null;
+        try {
+            info = mPm.getPermissionInfo(name, 0);
+        } catch (PackageManager.NameNotFoundException ignored) { }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                if (info != null) {
+                    mPermissions.put(name, info);
+                } else {
+                    mUnknown.add(name);
+                }
+            }
+        }
+        return info;
+    }
+
+    /**
+     * @return The info of the permission group or null if it is not defined by any package, do
+     * not modify it
+     */
+    @Nullable public PermissionGroupInfo getPermissionGroupInfo(final String name) {
+        final String key = "group:" + name;
+        final int generation;
+        synchronized (this) {
+            final PermissionGroupInfo info = mGroups.get(name);
+            if (info != null || mUnknown.contains(key)) {
+                return info;
+            }
+            generation = mGeneration;
+        }
+
+        PermissionGroupInfo info = null;
+        try {
+            info = mPm.getPermissionGroupInfo(name, 0);
+        } catch (PackageManager.NameNotFoundException ignored) { }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                if (info != null) {
+                    mGroups.put(name, info);
+                } else {
+                    mUnknown.add(key);
+                }
+            }
+        }
+        return info;
+    }
+
+    /**
+     * @return The localized label of the permission
+     */
+    public synchronized CharSequence getPermissionLabel(final PermissionInfo info) {
+        checkLocale();
+        CharSequence label = mLabels.get(info.name);
+        if (label == null) {
+            label = info.loadLabel(mPm);
+            mLabels.put(info.name, label);
+        }
+        return label;
+    }
+
+    /**
+     * @return The localized label of the group, falls back to the label of the package, which
+     * defines the group, if the group has no label itself
+     */
+    @Nullable public synchronized CharSequence getGroupLabel(final PermissionGroupInfo info) {
+        checkLocale();
+        final String key = "group:" + info.name;
+        CharSequence label = mLabels.get(key);
+        if (label != null) {
+            return label;
+        }
+
+        if (info.labelRes != 0 || info.nonLocalizedLabel != null) {
+            label = info.loadLabel(mPm);
+        } else {
+            try {
+                final ApplicationInfo app = mPm.getApplicationInfo(info.packageName, 0);
+                label = app.loadLabel(mPm);
+            } catch (PackageManager.NameNotFoundException nnfe) {
+                Logger.e(TAG, "Error loading label", nnfe);
+            }
+            if (label == null) {
+                label = info.loadLabel(mPm);
+            }
+        }
+        if (label != null) {
+            mLabels.put(key, label);
+        }
+        return label;
+    }
+
+    /**
+     * @return The package with its requested permissions or null if it is not installed
+     */
+    @Nullable public PackageInfo getPackageInfo(final String packageName) {
+        final AppItem appItem = AppIndex.get().getApp(packageName);
+        synchronized (this) {
+            final PackageInfo cached = mPackages.get(packageName);
+            if (cached != null && appItem != null
+                    && cached.lastUpdateTime == appItem.getPackageInfo().lastUpdateTime) {
+                return cached;
+            }
+        }
+
+        final PackageInfo pkgInfo;
+        try {
+            pkgInfo = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+        } catch (PackageManager.NameNotFoundException nnfe) {
+            synchronized (this) {
+                mPackages.remove(packageName);
+            }
+            return null;
+        }
+        synchronized (this) {
+            mPackages.put(packageName, pkgInfo);
+        }
+        return pkgInfo;
+    }
+
+    /**
+     * Returns all installed packages, which got the permission granted. Builds or updates the
+     * reverse index if needed, which blocks, so call it from a background thread.
+     *
+     * @return The sorted package names
+     */
+    public List<String> getPackagesHolding(final String permission) {
+        final AppIndex appIndex = AppIndex.get();
+        final ArrayList<AppItem> apps = appIndex.getApps(null);
+        final int version = appIndex.getVersion();
+
+        synchronized (mBuildLock) {
+            final boolean outdated;
+            synchronized (this) {
+                outdated = (mHoldersVersion != version);
+            }
+            if (outdated) {
+                // the package manager gets queried without holding the lock, only the result
+                // gets published under it
+                final HashSet<String> installed = new HashSet<>(apps.size());
+                final HashMap<String, ArrayList<String>> holders = buildHolders(apps, installed);
+                synchronized (this) {
+                    mHolders = holders;
+                    mHoldersVersion = version;
+                    mPackages.keySet().retainAll(installed);
+                }
+            }
+        }
+
+        synchronized (this) {
+            final ArrayList<String> holders = mHolders.get(permission);
+            if (holders == null) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<>(holders);
+        }
+    }
+
+    /**
+     * @param installed Gets filled with the names of all packages
+     * @return The sorted packages, which got a permission granted, by permission
+     */
+    private HashMap<String, ArrayList<String>> buildHolders(final List<AppItem> apps,
+            final HashSet<String> installed) {
+        final long start = System.currentTimeMillis();
+        final HashMap<String, ArrayList<String>> holdersByPermission = new HashMap<>();
+        for (final AppItem appItem : apps) {
+            final String packageName = appItem.getPackageName();
+            installed.add(packageName);
+
+            // only packages, which changed, get queried again
+            final PackageInfo pkgInfo = getPackageInfo(packageName);
+            if (pkgInfo == null || pkgInfo.requestedPermissions == null) {
+                continue;
+            }
+            final String[] permissions = pkgInfo.requestedPermissions;
+            final int[] flags = pkgInfo.requestedPermissionsFlags;
+            for (int i = 0; i < permissions.length; i++) {
+                if (flags != null && (flags[i] & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
+                    continue;
+                }
+                ArrayList<String> holders = holdersByPermission.get(permissions[i]);
+                if (holders == null) {
+                    holders = new ArrayList<>();
+                    holdersByPermission.put(permissions[i], holders);
+                }
+                holders.add(packageName);
+            }
+        }
+        for (final ArrayList<String> holders : holdersByPermission.values()) {
+            Collections.sort(holders);
+        }
+        Logger.v(TAG, "indexed %s permissions of %s packages in %s ms",
+                holdersByPermission.size(), apps.size(), System.currentTimeMillis() - start);
+        return holdersByPermission;
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override public void onReceive(final Context context, final Intent intent) {
+            // packages define permissions and groups, they may have appeared, changed or gone
+            synchronized (PermissionCatalog.this) {
+                mPermissions.clear();
+                mGroups.clear();
+                mUnknown.clear();
+                mLabels.clear();
+                mGeneration++;
+            }
+        }
+    };
+
+    private void checkLocale() {
+        final String locale = Locale.getDefault().toString();
+        if (!TextUtils.equals(locale, mLocale)) {
+            // labels are localized
+            mLabels.clear();
+            mLocale = locale;
+        }
+    }
+}
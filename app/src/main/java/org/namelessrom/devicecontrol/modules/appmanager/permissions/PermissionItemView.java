@@ -2,9 +2,11 @@ package org.namelessrom.devicecontrol.modules.appmanager.permissions;
 
 import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.ImageView;
@@ -12,8 +14,12 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.modules.appmanager.AppIndex;
+import org.namelessrom.devicecontrol.modules.appmanager.AppItem;
 import org.namelessrom.devicecontrol.utils.DrawableHelper;
 
+import java.util.List;
+
 public class PermissionItemView extends LinearLayout implements View.OnClickListener {
     AppSecurityPermissions.MyPermissionGroupInfo mGroup;
     AppSecurityPermissions.MyPermissionInfo mPerm;
@@ -71,6 +77,49 @@ public class PermissionItemView extends LinearLayout implements View.OnClickList
             }
             builder.setCancelable(true);
             builder.setIcon(mGroup.loadGroupIcon(pm));
+            builder.setNeutralButton(R.string.perms_holding_apps,
+                    new DialogInterface.OnClickListener() {
+                        @Override public void onClick(DialogInterface dialog, int which) {
+                            new HoldersTask(mPerm.name, mPerm.mLabel).execute();
+                        }
+                    });
+            mDialog = builder.show();
+            mDialog.setCanceledOnTouchOutside(true);
+        }
+    }
+
+    private class HoldersTask extends AsyncTask<Void, Void, CharSequence[]> {
+        private final String mName;
+        private final CharSequence mLabel;
+
+        public HoldersTask(String name, CharSequence label) {
+            mName = name;
+            mLabel = label;
+        }
+
+        @Override protected CharSequence[] doInBackground(Void... params) {
+            final List<String> holders = PermissionCatalog.get().getPackagesHolding(mName);
+            final CharSequence[] labels = new CharSequence[holders.size()];
+            for (int i = 0; i < labels.length; i++) {
+                final AppItem appItem = AppIndex.get().getApp(holders.get(i));
+                labels[i] = (appItem != null ? appItem.getLabel() : holders.get(i));
+            }
+            return labels;
+        }
+
+        @Override protected void onPostExecute(CharSequence[] labels) {
+            if (getWindowToken() == null) {
+                return;
+            }
+            AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
+            builder.setTitle(getContext().getString(R.string.perms_holding_apps_title,
+                    mLabel, labels.length));
+            if (labels.length == 0) {
+                builder.setMessage(R.string.perms_holding_apps_none);
+            } else {
+                builder.setItems(labels, null);
+            }
+            builder.setCancelable(true);
             mDialog = builder.show();
             mDialog.setCanceledOnTouchOutside(true);
         }
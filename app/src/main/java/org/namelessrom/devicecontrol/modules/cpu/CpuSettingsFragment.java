@@ -44,6 +44,7 @@ import org.namelessrom.devicecontrol.actions.extras.MpDecisionAction;
 import org.namelessrom.devicecontrol.models.BootupConfig;
 import org.namelessrom.devicecontrol.hardware.GovernorUtils;
 import org.namelessrom.devicecontrol.models.DeviceConfig;
+import org.namelessrom.devicecontrol.modules.cpu.monitors.CpuCoreHistory;
 import org.namelessrom.devicecontrol.modules.cpu.monitors.CpuCoreMonitor;
 import org.namelessrom.devicecontrol.objects.BootupItem;
 import org.namelessrom.devicecontrol.objects.CpuCore;
@@ -132,11 +133,15 @@ public class CpuSettingsFragment extends AttachMaterialPreferenceFragment implem
         super.onDestroy();
     }
 
-    @Override public void onCores(@NonNull final List<CpuCore> cores) {
+    @Override public void onCores(@NonNull final List<CpuCore> cores,
+            @NonNull final CpuCoreHistory history) {
         final int count = cores.size();
         if (count != 0) {
             for (int i = 0; i < count; i++) {
-                generateRow(i, cores.get(i));
+                final View rowView = generateRow(i, cores.get(i));
+                if (rowView instanceof CpuCoreView) {
+                    ((CpuCoreView) rowView).setHistory(history, i);
+                }
             }
         }
     }
@@ -519,7 +524,6 @@ public class CpuSettingsFragment extends AttachMaterialPreferenceFragment implem
 
     public View generateRow(final int core, final CpuCore cpuCore) {
         if (!isAdded() || mCpuInfo == null) { return null; }
-        Logger.v(this, String.format("generateRow(%s);", cpuCore.toString()));
 
         View rowView = mCpuInfo.getChildAt(core);
         if (rowView == null) {
@@ -528,6 +532,12 @@ public class CpuSettingsFragment extends AttachMaterialPreferenceFragment implem
         }
 
         if (rowView instanceof CpuCoreView) {
+            // most ticks do not change anything, skip building the strings then
+            if (!((CpuCoreView) rowView).update(cpuCore)) {
+                return rowView;
+            }
+            Logger.v(this, "generateRow(%s);", cpuCore);
+
             final boolean isOffline = cpuCore.current == 0;
 
             ((CpuCoreView) rowView).core.setText(cpuCore.core);
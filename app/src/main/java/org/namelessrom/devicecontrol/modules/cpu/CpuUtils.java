@@ -28,10 +28,13 @@ import com.stericson.roottools.execution.Shell;
 import org.namelessrom.devicecontrol.Application;
 import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.hardware.CapabilityIndex;
 import org.namelessrom.devicecontrol.models.BootupConfig;
+import org.namelessrom.devicecontrol.modules.cpu.monitors.CpuCoreHistory;
 import org.namelessrom.devicecontrol.modules.cpu.monitors.CpuStateMonitor;
 import org.namelessrom.devicecontrol.objects.BootupItem;
 import org.namelessrom.devicecontrol.objects.CpuCore;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 import org.namelessrom.devicecontrol.utils.Utils;
 
 import java.util.ArrayList;
@@ -69,12 +72,10 @@ public class CpuUtils {
     }
 
     public static class State {
-        public final List<CpuStateMonitor.CpuState> states;
-        public final long totalTime;
+        public final List<CpuStateMonitor.Cluster> clusters;
 
-        public State(final List<CpuStateMonitor.CpuState> stateList, final long totalStateTime) {
-            states = stateList;
-            totalTime = totalStateTime;
+        public State(final List<CpuStateMonitor.Cluster> clusterList) {
+            clusters = clusterList;
         }
     }
 
@@ -83,7 +84,11 @@ public class CpuUtils {
     }
 
     public interface CoreListener {
-        void onCores(@NonNull final List<CpuCore> cores);
+        /**
+         * @param cores   The latest sample of every core
+         * @param history A read only view of the recent samples
+         */
+        void onCores(@NonNull final List<CpuCore> cores, @NonNull final CpuCoreHistory history);
     }
 
     public interface StateListener {
@@ -135,7 +140,7 @@ public class CpuUtils {
     }
 
     @Nullable public String[] getAvailableFrequencies(final boolean sorted) {
-        final String freqsRaw = Utils.readOneLine(FREQ_AVAIL);
+        final String freqsRaw = CapabilityIndex.get().readValue(FREQ_AVAIL);
         if (freqsRaw != null && !freqsRaw.isEmpty()) {
             final String[] freqs = freqsRaw.split(" ");
             if (!sorted) {
@@ -177,15 +182,10 @@ public class CpuUtils {
         return numOfCpu;
     }
 
-    public String restore(BootupConfig config) {
+    public void restore(BootupConfig config, SysfsBatch batch) {
         final ArrayList<BootupItem> items =
                 config.getItemsByCategory(BootupConfig.CATEGORY_CPU);
 
-        if (items.size() == 0) {
-            return "";
-        }
-        final StringBuilder sbCmd = new StringBuilder();
-
         String tmpString;
         int tmpInt;
         for (final BootupItem item : items) {
@@ -205,14 +205,12 @@ public class CpuUtils {
             if (tmpInt != -1) {
                 final String path = getOnlinePath(tmpInt);
                 if (!TextUtils.isEmpty(path)) {
-                    sbCmd.append(Utils.getWriteCommand(path, "0"));
-                    sbCmd.append(Utils.getWriteCommand(path, "1"));
+                    // cycle the core, the batch applies it right before the core's values
+                    batch.addWithReset(path, "0", "1");
                 }
             }
-            sbCmd.append(Utils.getWriteCommand(item.filename, item.value));
+            batch.add(item.filename, item.value);
         }
-
-        return sbCmd.toString();
     }
 
     public void getCpuFreq(final FrequencyListener listener) {
@@ -0,0 +1,173 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.cpu.monitors;
+
+import android.os.SystemClock;
+
+import org.namelessrom.devicecontrol.hardware.telemetry.Telemetry;
+import org.namelessrom.devicecontrol.hardware.telemetry.TelemetrySnapshot;
+
+/**
+ * Fixed size history of core samples, once full the oldest sample gets overwritten.
+ * <p/>
+ * Everything is stored in primitive arrays, which get allocated once, recording and reading
+ * samples does not create any garbage. Readers only get this read only view, samples get
+ * recorded by the {@link CpuCoreMonitor}.
+ */
+public class CpuCoreHistory {
+    /**
+     * Amount of samples, which covers ten minutes at the monitor's default interval of 2000 ms
+     * and five minutes at the 1000 ms the cpu settings sample at.
+     */
+    public static final int DEFAULT_SIZE = 300;
+
+    private final int mCoreCount;
+    private final int mSize;
+
+    private final long[] mTimes;
+    // [sample * mCoreCount + core]
+    private final int[] mCurrent;
+    private final int[] mMax;
+    private final int[] mGovernor;
+
+    private int mHead;
+    private int mCount;
+
+    CpuCoreHistory(final int coreCount, final int size) {
+        mCoreCount = coreCount;
+        mSize = size;
+
+        mTimes = new long[size];
+        mCurrent = new int[size * mCoreCount];
+        mMax = new int[size * mCoreCount];
+        mGovernor = new int[size * mCoreCount];
+    }
+
+    /**
+     * Records the cpu values of the snapshot.
+     */
+    synchronized void record(final TelemetrySnapshot snapshot) {
+        final int offset = mHead * mCoreCount;
+        final int cores = Math.min(mCoreCount, snapshot.getCpuCoreCount());
+        for (int i = 0; i < cores; i++) {
+            mCurrent[offset + i] = snapshot.getCpuCurrent(i);
+            mMax[offset + i] = snapshot.getCpuMax(i);
+            mGovernor[offset + i] = snapshot.getCpuGovernorId(i);
+        }
+        mTimes[mHead] = snapshot.getTime();
+
+        mHead = (mHead + 1) % mSize;
+        if (mCount < mSize) {
+            mCount++;
+        }
+    }
+
+    public int getCoreCount() { return mCoreCount; }
+
+    /**
+     * @return The maximum amount of samples, which can be held
+     */
+    public int getSize() { return mSize; }
+
+    /**
+     * @return The amount of recorded samples
+     */
+    public synchronized int getCount() { return mCount; }
+
+    /**
+     * @param age 0 for the newest sample, {@link #getCount()} - 1 for the oldest
+     * @return The time of the sample, as {@link SystemClock#elapsedRealtime()}
+     */
+    public synchronized long getTime(final int age) {
+        return mTimes[indexOf(age)];
+    }
+
+    /**
+     * @param age 0 for the newest sample, {@link #getCount()} - 1 for the oldest
+     * @return The current frequency in kHz, 0 if the core was offline
+     */
+    public synchronized int getCurrent(final int core, final int age) {
+        return mCurrent[indexOf(age) * mCoreCount + core];
+    }
+
+    /**
+     * @param age 0 for the newest sample, {@link #getCount()} - 1 for the oldest
+     * @return The maximum frequency in kHz, 0 if the core was offline
+     */
+    public synchronized int getMax(final int core, final int age) {
+        return mMax[indexOf(age) * mCoreCount + core];
+    }
+
+    /**
+     * @param age 0 for the newest sample, {@link #getCount()} - 1 for the oldest
+     * @return The governor id, see {@link #getGovernorName(int)}
+     */
+    public synchronized int getGovernorId(final int core, final int age) {
+        return mGovernor[indexOf(age) * mCoreCount + core];
+    }
+
+    public String getGovernorName(final int governorId) {
+        return Telemetry.get().getGovernorName(governorId);
+    }
+
+    /**
+     * Copies the current frequencies of the core, from the oldest to the newest sample.
+     *
+     * @param dest The array to copy to, if it is too small only the newest samples get copied
+     * @return The amount of copied samples
+     */
+    public synchronized int copyCurrent(final int core, final int[] dest) {
+        return copy(mCurrent, core, dest);
+    }
+
+    /**
+     * Copies the maximum frequencies of the core, from the oldest to the newest sample.
+     *
+     * @param dest The array to copy to, if it is too small only the newest samples get copied
+     * @return The amount of copied samples
+     */
+    public synchronized int copyMax(final int core, final int[] dest) {
+        return copy(mMax, core, dest);
+    }
+
+    /**
+     * Copies the current and maximum frequencies of the core at once, from the oldest to the
+     * newest sample, so both belong to the same samples.
+     *
+     * @return The amount of copied samples
+     */
+    public synchronized int copySamples(final int core, final int[] current, final int[] max) {
+        copy(mMax, core, max);
+        return copy(mCurrent, core, current);
+    }
+
+    private int copy(final int[] source, final int core, final int[] dest) {
+        final int count = Math.min(mCount, dest.length);
+        for (int i = 0; i < count; i++) {
+            dest[i] = source[indexOf(count - 1 - i) * mCoreCount + core];
+        }
+        return count;
+    }
+
+    private int indexOf(final int age) {
+        if (age < 0 || age >= mCount) {
+            throw new IndexOutOfBoundsException("age: " + age + ", count: " + mCount);
+        }
+        return (mHead - 1 - age + mSize) % mSize;
+    }
+}
@@ -19,30 +19,26 @@ package org.namelessrom.devicecontrol.modules.cpu.monitors;
 
 import android.app.Activity;
 
-import com.stericson.roottools.RootTools;
-import com.stericson.roottools.execution.CommandCapture;
-import com.stericson.roottools.execution.Shell;
-
-import org.namelessrom.devicecontrol.Application;
 import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
-import org.namelessrom.devicecontrol.hardware.GovernorUtils;
+import org.namelessrom.devicecontrol.hardware.telemetry.Telemetry;
+import org.namelessrom.devicecontrol.hardware.telemetry.TelemetrySnapshot;
 import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
 import org.namelessrom.devicecontrol.objects.CpuCore;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class CpuCoreMonitor {
+public class CpuCoreMonitor implements Telemetry.Listener {
     private static final int CPU_COUNT = CpuUtils.get().getNumOfCpus();
 
     private static CpuCoreMonitor cpuFrequencyMonitor;
-    private Shell mShell;
     private Activity mActivity;
 
     private boolean isStarted = false;
 
-    private final Object mLock = new Object();
+    private final CpuCoreHistory mHistory =
+            new CpuCoreHistory(CPU_COUNT, CpuCoreHistory.DEFAULT_SIZE);
 
     private CpuUtils.CoreListener mListener;
     private int mInterval;
@@ -50,7 +46,6 @@ public class CpuCoreMonitor {
     private final List<CpuCore> mCoreList = new ArrayList<>(CPU_COUNT);
 
     private CpuCoreMonitor(final Activity activity) {
-        openShell();
         mActivity = activity;
 
         final String core = mActivity.getString(R.string.core);
@@ -73,13 +68,12 @@ public class CpuCoreMonitor {
 
     public CpuCoreMonitor start(final CpuUtils.CoreListener listener, final int interval) {
         mListener = listener;
-        mInterval = interval;
-        if (!isStarted) {
-            Application.HANDLER.post(mUpdater);
+        if (!isStarted || mInterval != interval) {
+            mInterval = interval;
+            Telemetry.get().subscribe(this, Telemetry.SOURCE_CPU, mInterval);
+            Logger.i(this, (isStarted ? "updated interval: " : "started, interval: ")
+                    + String.valueOf(mInterval));
             isStarted = true;
-            Logger.i(this, "started, interval: " + String.valueOf(mInterval));
-        } else {
-            Logger.i(this, "updated interval: " + String.valueOf(mInterval));
         }
 
         return cpuFrequencyMonitor;
@@ -88,112 +82,40 @@ public class CpuCoreMonitor {
     public CpuCoreMonitor stop() {
         mListener = null;
         isStarted = false;
-        Application.HANDLER.removeCallbacks(mUpdater);
+        Telemetry.get().unsubscribe(this);
         Logger.v(this, "stopped!");
 
         return cpuFrequencyMonitor;
     }
 
+    /**
+     * @return A read only view of the recorded samples
+     */
+
     public void destroy() {
+        stop();
         mActivity = null;
         cpuFrequencyMonitor = null;
     }
 
-    private final Runnable mUpdater = new Runnable() {
-        @Override public void run() {
-            synchronized (mLock) {
-                updateStates();
-            }
+    @Override public void onTelemetry(final TelemetrySnapshot snapshot) {
+        if (!isStarted || !snapshot.has(Telemetry.SOURCE_CPU)) {
+            return;
         }
-    };
-
-    private void openShell() {
-        if (mShell == null || mShell.isClosed()) {
-            try {
-                mShell = RootTools.getShell(true);
-            } catch (Exception exc) {
-                Logger.e(this, "CpuCoreMonitor: " + exc.getMessage());
-            }
-        }
-    }
 
-    private void updateStates() {
-        final String END = " 2> /dev/null;";
-        final StringBuilder sb = new StringBuilder();
-        // command=$(
-        sb.append("command=$(");
-        for (int i = 0; i < CPU_COUNT; i++) {
-            // if cpufreq directory exists ...
-            sb.append("if [ -d \"/sys/devices/system/cpu/cpu").append(String.valueOf(i))
-                    .append("/cpufreq\" ]; then ");
-            // busybox cat /path/to/cpu/frequency
-            sb.append("busybox cat ").append(CpuUtils.get().getCpuFrequencyPath(i)).append(END);
-            // busybox cat /path/to/cpu/frequency_max
-            sb.append("busybox cat ").append(CpuUtils.get().getMaxCpuFrequencyPath(i)).append(END);
-            // busybox cat /path/to/cpu/governor
-            sb.append("busybox cat ").append(GovernorUtils.get().getGovernorPath(i)).append(END);
-            // ... else echo 0 for them
-            sb.append("else busybox echo \"0 0 0\"").append(END).append(" fi;");
+        final int cores = Math.min(CPU_COUNT, snapshot.getCpuCoreCount());
+        for (int i = 0; i < cores; i++) {
+            mCoreList.get(i).set(snapshot.getCpuCurrent(i), snapshot.getCpuMax(i),
+                    snapshot.getCpuGovernorId(i), snapshot.getCpuGovernor(i));
+        }
+        if (snapshot.wasSampled(Telemetry.SOURCE_CPU)) {
+            // forced or stale snapshots would record the same sample twice
+            mHistory.record(snapshot);
         }
-        // replace new lines with space
-        sb.append(");").append("echo $command | busybox tr -d \"\\n\"");
-        // example output: 0 162000 1890000 interactive
-        final String cmd = sb.toString();
-        Logger.v(this, "cmd: " + cmd);
-
-        final StringBuilder outputCollector = new StringBuilder();
-        final CommandCapture commandCapture = new CommandCapture(0, cmd) {
-            @Override
-            public void commandOutput(int id, String line) {
-                outputCollector.append(line);
-            }
-
-            @Override
-            public void commandCompleted(int id, int exitcode) {
-                final String output = outputCollector.toString();
-                Logger.v(this, "output: " + output);
-
-                if (mActivity != null) {
-                    final String[] parts = output.split(" ");
-                    int mult = 0;
-                    for (int i = 0; i < CPU_COUNT; i++) {
-                        CpuCore cpuCore;
-                        try {
-                            cpuCore = mCoreList.get(i);
-                        } catch (IndexOutOfBoundsException iobe) {
-                            cpuCore = new CpuCore(String.format("%s %s:",
-                                    mActivity.getString(R.string.core), String.valueOf(i)),
-                                    "0", "0", "0");
-                        }
-                        try {
-                            cpuCore.setCurrent(parts[i + mult])
-                                    .setMax(parts[i + mult + 1])
-                                    .setGovernor(parts[i + mult + 2]);
-                        } catch (IndexOutOfBoundsException iob) {
-                            cpuCore.setCurrent("0").setMax("0").setGovernor("0");
-                        }
-                        mult += 2;
-                    }
-
-                    if (mListener != null && mActivity != null) {
-                        mActivity.runOnUiThread(new Runnable() {
-                            @Override public void run() {
-                                if (mListener != null) {
-                                    mListener.onCores(mCoreList);
-                                }
-                            }
-                        });
-                    }
-                }
-
-                Application.HANDLER.removeCallbacks(mUpdater);
-                Application.HANDLER.postDelayed(mUpdater, mInterval);
-            }
-        };
-
-        openShell();
-        if (mShell != null && !mShell.isClosed() && isStarted) {
-            mShell.add(commandCapture);
+
+        final CpuUtils.CoreListener listener = mListener;
+        if (listener != null && mActivity != null) {
+            listener.onCores(mCoreList, mHistory);
         }
     }
 
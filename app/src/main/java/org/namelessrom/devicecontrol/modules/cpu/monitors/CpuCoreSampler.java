@@ -0,0 +1,298 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.modules.cpu.monitors;
+
+import android.text.TextUtils;
+
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
+import org.namelessrom.devicecontrol.utils.Utils;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.ShellPool;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Samples current frequency, maximum frequency and governor of every core.
+ * <p/>
+ * The files are kept open and get reread from the start on every sample into a reused buffer,
+ * values are parsed straight from the bytes into primitive arrays. Governors are mapped to ids,
+ * only a governor which has never been seen before creates a new string. Files we are not
+ * allowed to read get read via the root shell, all of them with one single command.
+ * <p/>
+ * Not thread safe, use it from one thread only.
+ */
+public class CpuCoreSampler {
+    private static final String TAG = CpuCoreSampler.class.getSimpleName();
+
+    private static final String GOV_CURRENT = CpuUtils.CPU_BASE + "cpu%s/cpufreq/scaling_governor";
+
+    private static final int NODE_CURRENT = 0;
+    private static final int NODE_MAX = 1;
+    private static final int NODE_GOVERNOR = 2;
+    private static final int NODE_COUNT = 3;
+
+    /** Governor id of offline cores or unreadable governors */
+    public static final int GOVERNOR_UNKNOWN = 0;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final int mCoreCount;
+
+    private final String[] mPaths;
+    private final File[] mFiles;
+    private final RandomAccessFile[] mOpenFiles;
+    private final FileChannel[] mChannels;
+    private final boolean[] mNeedsRoot;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(128);
+
+    private final ArrayList<byte[]> mGovernorBytes = new ArrayList<>();
+    private final ArrayList<String> mGovernorNames = new ArrayList<>();
+
+    /** Current frequency of every core in kHz, 0 if offline */
+    public final int[] current;
+    /** Maximum frequency of every core in kHz, 0 if offline */
+    public final int[] max;
+    /** Governor id of every core, see {@link #getGovernorName(int)} */
+    public final int[] governor;
+
+    public CpuCoreSampler(final int coreCount) {
+        mCoreCount = coreCount;
+
+        final int nodes = coreCount * NODE_COUNT;
+        mPaths = new String[nodes];
+        mFiles = new File[nodes];
+        mOpenFiles = new RandomAccessFile[nodes];
+        mChannels = new FileChannel[nodes];
+        mNeedsRoot = new boolean[nodes];
+
+        for (int i = 0; i < coreCount; i++) {
+            mPaths[i * NODE_COUNT + NODE_CURRENT] = CpuUtils.get().getCpuFrequencyPath(i);
+            mPaths[i * NODE_COUNT + NODE_MAX] = CpuUtils.get().getMaxCpuFrequencyPath(i);
+            mPaths[i * NODE_COUNT + NODE_GOVERNOR] = String.format(GOV_CURRENT, i);
+        }
+        for (int i = 0; i < nodes; i++) {
+            mFiles[i] = new File(mPaths[i]);
+        }
+
+        current = new int[coreCount];
+        max = new int[coreCount];
+        governor = new int[coreCount];
+
+        // reserve the unknown governor id
+        mGovernorBytes.add(new byte[0]);
+        mGovernorNames.add("0");
+    }
+
+    public int getCoreCount() { return mCoreCount; }
+
+    /**
+     * @return The name of the governor or "0" if it is not known
+     */
+    public String getGovernorName(final int id) {
+        if (id < 0 || id >= mGovernorNames.size()) {
+            return mGovernorNames.get(GOVERNOR_UNKNOWN);
+        }
+        return mGovernorNames.get(id);
+    }
+
+    /**
+     * Reads all nodes of all cores and updates {@link #current}, {@link #max} and
+     * {@link #governor}.
+     */
+    public void sample() {
+        boolean needsRoot = false;
+        for (int core = 0; core < mCoreCount; core++) {
+            for (int node = 0; node < NODE_COUNT; node++) {
+                final int index = core * NODE_COUNT + node;
+                if (mNeedsRoot[index]) {
+                    needsRoot = true;
+                    continue;
+                }
+                final int length = readNode(index);
+                setValue(core, node, length);
+            }
+        }
+
+        if (needsRoot) {
+            sampleViaShell();
+        }
+    }
+
+    /**
+     * Closes all files, the next sample reopens them.
+     */
+    public void close() {
+        for (int i = 0; i < mChannels.length; i++) {
+            closeNode(i);
+        }
+    }
+
+    /**
+     * Reads the node from the start into the buffer.
+     *
+     * @return The amount of bytes read or -1 if the node could not be read
+     */
+    private int readNode(final int index) {
+        FileChannel channel = mChannels[index];
+        if (channel == null) {
+            // offline cores do not have a cpufreq directory
+            if (!mFiles[index].exists()) {
+                return -1;
+            }
+            try {
+                mOpenFiles[index] = new RandomAccessFile(mFiles[index], "r");
+            } catch (FileNotFoundException fnfe) {
+                Logger.v(TAG, "can not read directly, using root -> %s", mPaths[index]);
+                mNeedsRoot[index] = true;
+                return -1;
+            }
+            channel = mOpenFiles[index].getChannel();
+            mChannels[index] = channel;
+        }
+
+        mBuffer.clear();
+        try {
+            return channel.read(mBuffer, 0);
+        } catch (IOException ioe) {
+            // the core went offline, reopen once it is back
+            closeNode(index);
+            return -1;
+        }
+    }
+
+    private void closeNode(final int index) {
+        Utils.closeQuietly(mOpenFiles[index]);
+        mOpenFiles[index] = null;
+        mChannels[index] = null;
+    }
+
+    private void setValue(final int core, final int node, final int length) {
+        final byte[] bytes = mBuffer.array();
+        switch (node) {
+            case NODE_CURRENT:
+                current[core] = parseInt(bytes, length);
+                break;
+            case NODE_MAX:
+                max[core] = parseInt(bytes, length);
+                break;
+            case NODE_GOVERNOR:
+                governor[core] = getGovernorId(bytes, trimmedLength(bytes, length));
+                break;
+        }
+    }
+
+    private static int parseInt(final byte[] bytes, final int length) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int trimmedLength(final byte[] bytes, int length) {
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == ' ')) {
+            length--;
+        }
+        return length;
+    }
+
+    private int getGovernorId(final byte[] bytes, final int length) {
+        if (length <= 0) {
+            return GOVERNOR_UNKNOWN;
+        }
+
+        final int size = mGovernorBytes.size();
+        for (int id = 1; id < size; id++) {
+            final byte[] known = mGovernorBytes.get(id);
+            if (known.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && known[i] == bytes[i]) {
+                i++;
+            }
+            if (i == length) {
+                return id;
+            }
+        }
+
+        final byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        mGovernorBytes.add(copy);
+        mGovernorNames.add(new String(copy, CHARSET));
+        return size;
+    }
+
+    private int getGovernorId(final String name) {
+        if (TextUtils.isEmpty(name)) {
+            return GOVERNOR_UNKNOWN;
+        }
+        final int index = mGovernorNames.indexOf(name);
+        if (index > GOVERNOR_UNKNOWN) {
+            return index;
+        }
+        final byte[] bytes = name.getBytes(CHARSET);
+        return getGovernorId(bytes, bytes.length);
+    }
+
+    private void sampleViaShell() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mNeedsRoot.length; i++) {
+            if (mNeedsRoot[i]) {
+                sb.append(String.format("busybox cat %s || busybox echo 0;\n", mPaths[i]));
+            }
+        }
+
+        final String output = ShellPool.get().run(sb.toString()).getStdout();
+        final String[] lines = (output != null ? output.split("\n") : new String[0]);
+
+        int line = 0;
+        for (int i = 0; i < mNeedsRoot.length; i++) {
+            if (!mNeedsRoot[i]) {
+                continue;
+            }
+            final String value = (line < lines.length ? lines[line].trim() : null);
+            line++;
+
+            final int core = i / NODE_COUNT;
+            switch (i % NODE_COUNT) {
+                case NODE_CURRENT:
+                    current[core] = Utils.tryParse(value, 0);
+                    break;
+                case NODE_MAX:
+                    max[core] = Utils.tryParse(value, 0);
+                    break;
+                case NODE_GOVERNOR:
+                    governor[core] = getGovernorId(value);
+                    break;
+            }
+        }
+    }
+}
@@ -19,28 +19,74 @@
  */
 package org.namelessrom.devicecontrol.modules.cpu.monitors;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
 import org.namelessrom.devicecontrol.utils.Utils;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
+/**
+ * Samples time_in_state of every cpufreq policy, which is one per cluster on most devices.
+ * <p/>
+ * Totals since boot and the deltas between samples are kept in primitive arrays, which only
+ * get reallocated if the frequency table changes. The last {@link #WINDOW_SIZE} deltas form a
+ * rolling window, which tells the residency of every frequency over the last few samples.
+ */
 public class CpuStateMonitor {
+    private static final String TAG = CpuStateMonitor.class.getSimpleName();
+
+    /** The amount of samples in the rolling window */
+    public static final int WINDOW_SIZE = 10;
 
-    private final ArrayList<CpuState> mStates = new ArrayList<>();
+    private static final String POLICY_BASE = CpuUtils.CPU_BASE + "cpufreq/";
+    private static final String POLICY_PREFIX = "policy";
+    private static final String CPU_FREQ = CpuUtils.CPU_BASE + "cpu%s/cpufreq";
+    private static final String TIME_IN_STATE = "/stats/time_in_state";
+    private static final String RELATED_CPUS = "/related_cpus";
 
     private static CpuStateMonitor mCpuStateMonitor;
 
-    private CpuStateMonitor() { }
+    private final Object mLock = new Object();
+
+    private final int mCpuCount;
+    private final File[] mCpuFreqDirs;
+    private boolean[] mCovered;
+
+    private volatile List<Cluster> mClusters = Collections.emptyList();
+    private volatile CpuUtils.State mState = new CpuUtils.State(mClusters);
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+    private int[] mScratchFreqs = new int[32];
+    private long[] mScratchTimes = new long[32];
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile CpuUtils.StateListener mListener;
+    private int mInterval;
+
+    private CpuStateMonitor() {
+        mCpuCount = CpuUtils.get().getNumOfCpus();
+        mCpuFreqDirs = new File[mCpuCount];
+        for (int i = 0; i < mCpuCount; i++) {
+            mCpuFreqDirs[i] = new File(String.format(CPU_FREQ, i));
+        }
+    }
 
     public static CpuStateMonitor getInstance() {
         if (mCpuStateMonitor == null) {
@@ -49,68 +95,420 @@ public class CpuStateMonitor {
         return mCpuStateMonitor;
     }
 
-    public static class CpuState implements Comparable<CpuState> {
-        public final int freq;
-        public final long duration;
+    /**
+     * The states of one cpufreq policy. States are ordered from the highest frequency to the
+     * lowest, followed by deep sleep. Times are in units of 10 milliseconds.
+     */
+    public static class Cluster {
+        public final int firstCpu;
+        public final int lastCpu;
+
+        private final File mFile;
+        private RandomAccessFile mOpenFile;
+        private FileChannel mChannel;
 
-        public CpuState(final int freq, final long duration) {
-            this.freq = freq;
-            this.duration = duration;
+        private int[] mFreqs = new int[0];
+        private long[] mTotal = new long[0];
+        private long[] mPrevious = new long[0];
+        private long[][] mWindow = new long[WINDOW_SIZE][0];
+        private long[] mWindowSum = new long[0];
+        private int mWindowHead;
+        private int mWindowCount;
+        private long mTotalTime;
+        private long mWindowTime;
+        private boolean mHasPrevious;
+
+        private Cluster(final String path, final int firstCpu, final int lastCpu) {
+            this.firstCpu = firstCpu;
+            this.lastCpu = lastCpu;
+            mFile = new File(path);
         }
 
-        public int compareTo(@NonNull final CpuState state) {
-            final Integer a = freq;
-            final Integer b = state.freq;
-            return a.compareTo(b);
+        public synchronized int getStateCount() { return mFreqs.length; }
+
+        /**
+         * @return The frequency in kHz, 0 for deep sleep
+         */
+        public synchronized int getFrequency(final int state) { return mFreqs[state]; }
+
+        /**
+         * @return The time spent in the state since boot
+         */
+        public synchronized long getTotal(final int state) { return mTotal[state]; }
+
+        public synchronized long getTotalTime() { return mTotalTime; }
+
+        /**
+         * @return The time spent in the state during the rolling window
+         */
+        public synchronized long getWindow(final int state) { return mWindowSum[state]; }
+
+        public synchronized long getWindowTime() { return mWindowTime; }
+
+        /**
+         * @return The percentage of time spent in the state during the rolling window or since
+         * boot, if there is no window yet
+         */
+        public synchronized int getResidency(final int state) {
+            final long time = (mWindowTime > 0 ? mWindowSum[state] : mTotal[state]);
+            final long total = (mWindowTime > 0 ? mWindowTime : mTotalTime);
+            if (total <= 0) {
+                return 0;
+            }
+            return (int) Math.max(0, Math.min(100, (time * 100) / total));
         }
+
+        private synchronized void update(final int[] freqs, final long[] times, final int count,
+                final long deepSleep) {
+            final int states = count + 1;
+            boolean reset = (mFreqs.length != states);
+            for (int i = 0; !reset && i < count; i++) {
+                reset = (mFreqs[i] != freqs[i]);
+            }
+            if (reset) {
+                mFreqs = new int[states];
+                mTotal = new long[states];
+                mPrevious = new long[states];
+                mWindow = new long[WINDOW_SIZE][states];
+                mWindowSum = new long[states];
+                mWindowHead = 0;
+                mWindowCount = 0;
+                mWindowTime = 0;
+                mHasPrevious = false;
+                System.arraycopy(freqs, 0, mFreqs, 0, count);
+            }
+
+            mTotalTime = 0;
+            for (int i = 0; i < states; i++) {
+                mTotal[i] = (i < count ? times[i] : deepSleep);
+                mTotalTime += mTotal[i];
+            }
+
+            if (mHasPrevious) {
+                final long[] slot = mWindow[mWindowHead];
+                mWindowTime = 0;
+                for (int i = 0; i < states; i++) {
+                    final long delta = Math.max(0, mTotal[i] - mPrevious[i]);
+                    mWindowSum[i] += delta - slot[i];
+                    slot[i] = delta;
+                    mWindowTime += mWindowSum[i];
+                }
+                mWindowHead = (mWindowHead + 1) % WINDOW_SIZE;
+                if (mWindowCount < WINDOW_SIZE) {
+                    mWindowCount++;
+                }
+            }
+            System.arraycopy(mTotal, 0, mPrevious, 0, states);
+            mHasPrevious = true;
+        }
+
+        private void close() {
+            Utils.closeQuietly(mOpenFile);
+            mOpenFile = null;
+            mChannel = null;
+        }
+    }
+
+    /**
+     * @return The clusters found at the last sample
+     */
+    @NonNull public List<Cluster> getClusters() { return mClusters; }
+
+    /**
+     * Samples once and notifies the listener on the main thread.
+     */
+    public void updateStates(@NonNull final CpuUtils.StateListener listener) {
+        sampleAll();
+        final CpuUtils.State state = mState;
+        Application.HANDLER.post(new Runnable() {
+            @Override public void run() {
+                listener.onStates(state);
+            }
+        });
     }
 
-    private long getTotalStateTime(final ArrayList<CpuState> states) {
-        long sum = 0;
-        for (final CpuState state : states) {
-            sum += state.duration;
+    /**
+     * Samples periodically in the background and notifies the listener on the main thread.
+     *
+     * @param interval The interval in milliseconds
+     */
+    public CpuStateMonitor start(@NonNull final CpuUtils.StateListener listener,
+            final int interval) {
+        synchronized (mLock) {
+            mListener = listener;
+            mInterval = interval;
+            if (mThread == null) {
+                mThread = new HandlerThread("CpuStateMonitor", Process.THREAD_PRIORITY_BACKGROUND);
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+            }
+            mHandler.removeCallbacks(mUpdater);
+            mHandler.post(mUpdater);
         }
-        return (sum < 0 ? 0 : sum);
+        return this;
     }
 
-    public void updateStates(final CpuUtils.StateListener listener) throws IOException {
-        InputStream is = null;
-        InputStreamReader ir = null;
-        BufferedReader br = null;
-        try {
-            is = new FileInputStream(CpuUtils.FREQ_TIME_IN_STATE);
-            ir = new InputStreamReader(is);
-            br = new BufferedReader(ir);
-            mStates.clear();
-            readInStates(br);
-        } finally {
-            if (br != null) br.close();
-            if (ir != null) ir.close();
-            if (is != null) is.close();
+    public CpuStateMonitor stop() {
+        synchronized (mLock) {
+            mListener = null;
+            if (mThread != null) {
+                mHandler.removeCallbacks(mUpdater);
+                mThread.quit();
+                mThread = null;
+                mHandler = null;
+            }
         }
+        return this;
+    }
 
-        final long deepSleep = ((SystemClock.elapsedRealtime() - SystemClock.uptimeMillis()) / 10);
-        mStates.add(new CpuState(0, (deepSleep < 0 ? 0 : deepSleep)));
+    private final Runnable mUpdater = new Runnable() {
+        @Override public void run() {
+            if (mListener == null) {
+                return;
+            }
+            sampleAll();
+            Application.HANDLER.post(mNotifier);
 
-        Collections.sort(mStates, Collections.reverseOrder());
+            synchronized (mLock) {
+                if (mHandler != null) {
+                    mHandler.postDelayed(mUpdater, mInterval);
+                }
+            }
+        }
+    };
 
-        Application.HANDLER.post(new Runnable() {
-            @Override
-            public void run() {
-                listener.onStates(new CpuUtils.State(mStates, getTotalStateTime(mStates)));
+    private final Runnable mNotifier = new Runnable() {
+        @Override public void run() {
+            final CpuUtils.StateListener listener = mListener;
+            if (listener != null) {
+                listener.onStates(mState);
+            }
+        }
+    };
+
+    private void sampleAll() {
+        synchronized (mLock) {
+            if (needsDiscovery()) {
+                discover();
+            }
+
+            long deepSleep = (SystemClock.elapsedRealtime() - SystemClock.uptimeMillis()) / 10;
+            if (deepSleep < 0) {
+                deepSleep = 0;
+            }
+
+            for (final Cluster cluster : mClusters) {
+                final int length = read(cluster);
+                if (length < 0) {
+                    continue;
+                }
+                final int count = parse(length);
+                if (count > 0) {
+                    sortScratch(count);
+                    cluster.update(mScratchFreqs, mScratchTimes, count, deepSleep);
+                }
+            }
+        }
+    }
+
+    private boolean needsDiscovery() {
+        if (mCovered == null) {
+            return true;
+        }
+        // cores, which were offline, may bring a new policy with them
+        for (int i = 0; i < mCpuCount; i++) {
+            if (!mCovered[i] && mCpuFreqDirs[i].exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void discover() {
+        for (final Cluster cluster : mClusters) {
+            cluster.close();
+        }
+
+        final ArrayList<Cluster> clusters = new ArrayList<>();
+        final boolean[] covered = new boolean[mCpuCount];
+
+        // newer kernels have one directory per policy, which stays around if cores go offline
+        final File[] policies = new File(POLICY_BASE).listFiles();
+        if (policies != null) {
+            for (final File policy : policies) {
+                final String name = policy.getName();
+                if (name.startsWith(POLICY_PREFIX)) {
+                    final int cpu = Utils.tryParse(name.substring(POLICY_PREFIX.length()), 0);
+                    addCluster(clusters, covered, policy.getAbsolutePath(), cpu);
+                }
+            }
+        }
+
+        if (clusters.isEmpty()) {
+            for (int i = 0; i < mCpuCount; i++) {
+                if (!covered[i] && mCpuFreqDirs[i].exists()) {
+                    addCluster(clusters, covered, mCpuFreqDirs[i].getAbsolutePath(), i);
+                }
+            }
+        }
+
+        Collections.sort(clusters, new Comparator<Cluster>() {
+            @Override public int compare(final Cluster lhs, final Cluster rhs) {
+                return (lhs.firstCpu < rhs.firstCpu ? -1 : (lhs.firstCpu == rhs.firstCpu ? 0 : 1));
             }
         });
+        Logger.v(TAG, "found %s clusters", clusters.size());
+
+        mCovered = covered;
+        mClusters = Collections.unmodifiableList(clusters);
+        mState = new CpuUtils.State(mClusters);
     }
 
-    private void readInStates(final BufferedReader br) throws IOException {
-        String line;
-        String[] nums;
-        while ((line = br.readLine()) != null) {
-            line = line.trim();
-            if (!line.isEmpty()) {
-                nums = line.split(" ");
-                mStates.add(new CpuState(Utils.parseInt(nums[0]), Long.parseLong(nums[1])));
+    private void addCluster(final List<Cluster> clusters, final boolean[] covered,
+            final String dir, final int cpu) {
+        final String path = dir + TIME_IN_STATE;
+        if (!new File(path).exists()) {
+            return;
+        }
+
+        int first = cpu;
+        int last = cpu;
+        final String related = Utils.readOneLine(dir + RELATED_CPUS);
+        if (related != null && !related.trim().isEmpty()) {
+            first = Integer.MAX_VALUE;
+            last = -1;
+            for (final String part : related.trim().split("\\s+")) {
+                final int relatedCpu = Utils.tryParse(part, -1);
+                if (relatedCpu < 0) {
+                    continue;
+                }
+                first = Math.min(first, relatedCpu);
+                last = Math.max(last, relatedCpu);
+                if (relatedCpu < covered.length) {
+                    covered[relatedCpu] = true;
+                }
+            }
+            if (last < 0) {
+                first = cpu;
+                last = cpu;
             }
+        } else {
+            // without related_cpus, the policy covers everything from here on
+            last = mCpuCount - 1;
+            for (int i = cpu; i < covered.length; i++) {
+                covered[i] = true;
+            }
+        }
+        if (cpu < covered.length) {
+            covered[cpu] = true;
+        }
+
+        clusters.add(new Cluster(path, first, last));
+    }
+
+    /**
+     * Reads time_in_state of the cluster from the start into the buffer.
+     *
+     * @return The amount of bytes read or -1 if it could not be read
+     */
+    private int read(final Cluster cluster) {
+        if (cluster.mChannel == null) {
+            if (!cluster.mFile.exists()) {
+                return -1;
+            }
+            try {
+                cluster.mOpenFile = new RandomAccessFile(cluster.mFile, "r");
+            } catch (FileNotFoundException fnfe) {
+                return -1;
+            }
+            cluster.mChannel = cluster.mOpenFile.getChannel();
+        }
+
+        try {
+            while (true) {
+                mBuffer.clear();
+                final int read = cluster.mChannel.read(mBuffer, 0);
+                if (read < mBuffer.capacity()) {
+                    return read;
+                }
+                // did not fit, try again with a bigger buffer
+                mBuffer = ByteBuffer.allocate(mBuffer.capacity() * 2);
+            }
+        } catch (IOException ioe) {
+            Logger.v(TAG, "could not read %s: %s", cluster.mFile, ioe.getMessage());
+            cluster.close();
+            return -1;
+        }
+    }
+
+    /**
+     * Parses "frequency time" lines of the buffer into the scratch arrays.
+     *
+     * @return The amount of parsed lines
+     */
+    private int parse(final int length) {
+        final byte[] bytes = mBuffer.array();
+        int count = 0;
+        int field = 0;
+        long value = 0;
+        boolean inNumber = false;
+
+        for (int i = 0; i <= length; i++) {
+            final byte b = (i < length ? bytes[i] : (byte) '\n');
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                inNumber = true;
+                continue;
+            }
+
+            if (inNumber) {
+                if (field == 0) {
+                    ensureScratch(count + 1);
+                    mScratchFreqs[count] = (int) value;
+                } else if (field == 1) {
+                    mScratchTimes[count] = value;
+                    count++;
+                }
+                field++;
+                value = 0;
+                inNumber = false;
+            }
+            if (b == '\n') {
+                field = 0;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sorts the parsed states by frequency, highest first. Most kernels list them ascending, some
+     * descending or unordered.
+     */
+    private void sortScratch(final int count) {
+        // insertion sort, a handful of states and no allocations
+        for (int i = 1; i < count; i++) {
+            final int freq = mScratchFreqs[i];
+            final long time = mScratchTimes[i];
+            int j = i - 1;
+            while (j >= 0 && mScratchFreqs[j] < freq) {
+                mScratchFreqs[j + 1] = mScratchFreqs[j];
+                mScratchTimes[j + 1] = mScratchTimes[j];
+                j--;
+            }
+            mScratchFreqs[j + 1] = freq;
+            mScratchTimes[j + 1] = time;
+        }
+    }
+
+    private void ensureScratch(final int size) {
+        if (size <= mScratchFreqs.length) {
+            return;
         }
+        final int[] freqs = new int[size * 2];
+        final long[] times = new long[size * 2];
+        System.arraycopy(mScratchFreqs, 0, freqs, 0, mScratchFreqs.length);
+        System.arraycopy(mScratchTimes, 0, times, 0, mScratchTimes.length);
+        mScratchFreqs = freqs;
+        mScratchTimes = times;
     }
 }
@@ -23,6 +23,7 @@ import org.namelessrom.devicecontrol.DeviceConstants;
 import org.namelessrom.devicecontrol.R;
 import org.namelessrom.devicecontrol.models.BootupConfig;
 import org.namelessrom.devicecontrol.ui.views.AttachViewPagerFragment;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 import java.util.ArrayList;
 
@@ -43,8 +44,8 @@ public class DeviceFeatureFragment extends AttachViewPagerFragment {
         return new ViewPagerAdapter(getChildFragmentManager(), fragments, titles);
     }
 
-    public static String restore(BootupConfig configuration) {
+    public static void restore(BootupConfig configuration, SysfsBatch batch) {
         // TODO: redo the whole restore on bootup stuff
-        return DeviceFeatureGeneralFragment.restore(configuration);
+        DeviceFeatureGeneralFragment.restore(configuration, batch);
     }
 }
@@ -39,6 +39,7 @@ import org.namelessrom.devicecontrol.ui.preferences.hardware.DisplayColor;
 import org.namelessrom.devicecontrol.ui.preferences.hardware.DisplayGamma;
 import org.namelessrom.devicecontrol.ui.preferences.hardware.VibratorIntensity;
 import org.namelessrom.devicecontrol.ui.views.CustomPreferenceFragment;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 import org.namelessrom.devicecontrol.utils.Utils;
 
 import java.io.BufferedReader;
@@ -321,27 +322,20 @@ public class DeviceFeatureGeneralFragment extends CustomPreferenceFragment imple
     // Methods
     //==============================================================================================
 
-    public static String restore(BootupConfig config) {
+    public static void restore(BootupConfig config, SysfsBatch batch) {
         final ArrayList<BootupItem> items = config
                 .getItemsByCategory(BootupConfig.CATEGORY_DEVICE);
-        if (items.size() == 0) {
-            return "";
-        }
-
-        final StringBuilder sbCmd = new StringBuilder();
         for (final BootupItem item : items) {
             if (!item.enabled) {
                 continue;
             }
             if ("input_glove_mode".equals(item.filename)) {
                 String mode = ("1".equals(item.value) ? GLOVE_MODE_ENABLE : GLOVE_MODE_DISABLE);
-                sbCmd.append(Utils.getWriteCommand(COMMAND_PATH, mode));
+                batch.add(COMMAND_PATH, mode);
             } else {
-                sbCmd.append(Utils.getWriteCommand(item.filename, item.value));
+                batch.add(item.filename, item.value);
             }
         }
-
-        return sbCmd.toString();
     }
 
     private static final String COMMAND_PATH = "/sys/class/sec/tsp/cmd";
@@ -38,6 +38,7 @@ import org.namelessrom.devicecontrol.ui.preferences.AwesomeTogglePreference;
 import org.namelessrom.devicecontrol.ui.preferences.CustomListPreference;
 import org.namelessrom.devicecontrol.ui.preferences.CustomPreference;
 import org.namelessrom.devicecontrol.ui.views.CustomPreferenceFragment;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 import org.namelessrom.devicecontrol.utils.Utils;
 
 import java.util.ArrayList;
@@ -235,26 +236,19 @@ public class DeviceFeatureKernelFragment extends CustomPreferenceFragment implem
     // Methods
     //==============================================================================================
 
-    public static String restore(BootupConfig config) {
+    public static void restore(BootupConfig config, SysfsBatch batch) {
         final ArrayList<BootupItem> items = config
                 .getItemsByCategory(BootupConfig.CATEGORY_EXTRAS);
-        if (items.size() == 0) {
-            return "";
-        }
-
-        final StringBuilder sbCmd = new StringBuilder();
         for (final BootupItem item : items) {
             if (!item.enabled) {
                 continue;
             }
             if (MpDecisionAction.MPDECISION_PATH.equals(item.name)) {
-                new MpDecisionAction(item.value, false).triggerAction();
+                new MpDecisionAction(item.value, false).addToBatch(batch);
             } else {
-                sbCmd.append(Utils.getWriteCommand(item.name, item.value));
+                batch.add(item.name, item.value);
             }
         }
-
-        return sbCmd.toString();
     }
 
 }
@@ -30,6 +30,7 @@ import org.namelessrom.devicecontrol.objects.BootupItem;
 import org.namelessrom.devicecontrol.ui.preferences.CustomPreference;
 import org.namelessrom.devicecontrol.ui.views.AttachPreferenceFragment;
 import org.namelessrom.devicecontrol.utils.DialogHelper;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 import org.namelessrom.devicecontrol.utils.Utils;
 
 import java.util.ArrayList;
@@ -150,22 +151,15 @@ public class SysctlFragment extends AttachPreferenceFragment {
         return super.onPreferenceTreeClick(preferenceScreen, preference);
     }
 
-    public static String restore(BootupConfig config) {
+    public static void restore(BootupConfig config, SysfsBatch batch) {
         final ArrayList<BootupItem> items = config
                 .getItemsByCategory(BootupConfig.CATEGORY_SYSCTL);
-        if (items.size() == 0) {
-            return "";
-        }
-
-        final StringBuilder sbCmd = new StringBuilder();
         for (final BootupItem item : items) {
             if (!item.enabled) {
                 continue;
             }
-            sbCmd.append(Utils.getWriteCommand(item.name, item.value));
+            batch.add(item.name, item.value);
         }
-
-        return sbCmd.toString();
     }
 
 }
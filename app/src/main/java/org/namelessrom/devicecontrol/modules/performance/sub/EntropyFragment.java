@@ -18,7 +18,6 @@
 package org.namelessrom.devicecontrol.modules.performance.sub;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
@@ -34,6 +33,8 @@ import org.namelessrom.devicecontrol.Application;
 import org.namelessrom.devicecontrol.DeviceConstants;
 import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.hardware.telemetry.Telemetry;
+import org.namelessrom.devicecontrol.hardware.telemetry.TelemetrySnapshot;
 import org.namelessrom.devicecontrol.models.ExtraConfig;
 import org.namelessrom.devicecontrol.hardware.ExtraUtils;
 import org.namelessrom.devicecontrol.objects.ShellOutput;
@@ -45,10 +46,9 @@ import org.namelessrom.devicecontrol.utils.AppHelper;
 import org.namelessrom.devicecontrol.utils.Utils;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
 
-public class EntropyFragment extends AttachPreferenceProgressFragment implements Preference.OnPreferenceChangeListener, ShellOutput.OnShellOutputListener {
+public class EntropyFragment extends AttachPreferenceProgressFragment implements Preference.OnPreferenceChangeListener, ShellOutput.OnShellOutputListener, Telemetry.Listener {
+    private static final int REFRESH_INTERVAL = 5000;
     private static final String URL_RNG =
             "http://sourceforge.net/projects/namelessrom/files/romextras/binaries/rngd/download";
     private static final File RNGD = new File(Application.get().getFilesDirectory(), "rngd");
@@ -99,11 +99,19 @@ public class EntropyFragment extends AttachPreferenceProgressFragment implements
         AppHelper.getProcess(this, RNGD.getAbsolutePath());
         mRngActive.setOnPreferenceChangeListener(this);
 
-        new RefreshTask().execute();
-
         isSupported(getPreferenceScreen(), getActivity());
     }
 
+    @Override public void onResume() {
+        super.onResume();
+        Telemetry.get().subscribe(this, Telemetry.SOURCE_ENTROPY, REFRESH_INTERVAL);
+    }
+
+    @Override public void onPause() {
+        super.onPause();
+        Telemetry.get().unsubscribe(this);
+    }
+
     @Override public boolean onPreferenceChange(final Preference preference, final Object o) {
         if (mReadWakeupThreshold == preference) {
             final String value = String.valueOf(o);
@@ -182,7 +190,7 @@ public class EntropyFragment extends AttachPreferenceProgressFragment implements
         final int id = item.getItemId();
         switch (id) {
             case R.id.menu_action_refresh:
-                new RefreshTask().execute();
+                Telemetry.get().refresh();
                 AppHelper.getProcess(this, RNGD.getAbsolutePath());
             default:
                 break;
@@ -217,27 +225,12 @@ public class EntropyFragment extends AttachPreferenceProgressFragment implements
         return "";
     }
 
-    private class RefreshTask extends AsyncTask<Void, Void, List<String>> {
-
-        @Override protected List<String> doInBackground(Void... params) {
-            final ArrayList<String> list = new ArrayList<>();
-
-            list.add(Utils.readOneLine(ExtraUtils.ENTROPY_AVAIL));     // 0
-
-            return list;
+    @Override public void onTelemetry(final TelemetrySnapshot snapshot) {
+        if (!isAdded()) {
+            return;
         }
-
-        @Override protected void onPostExecute(final List<String> strings) {
-            if (isAdded()) {
-                String tmp;
-                if (mEntropyAvail != null) {
-                    tmp = strings.get(0);
-                    Logger.v(this, "strings.get(0): " + tmp);
-                    mEntropyAvail.setSummary(tmp);
-                }
-            }
+        if (mEntropyAvail != null) {
+            mEntropyAvail.setSummary(snapshot.getValueString(TelemetrySnapshot.ENTROPY_AVAILABLE));
         }
     }
 }
-
-
@@ -17,7 +17,6 @@
  */
 package org.namelessrom.devicecontrol.modules.performance.sub;
 
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
@@ -28,8 +27,9 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 
 import org.namelessrom.devicecontrol.DeviceConstants;
-import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.hardware.telemetry.Telemetry;
+import org.namelessrom.devicecontrol.hardware.telemetry.TelemetrySnapshot;
 import org.namelessrom.devicecontrol.models.BootupConfig;
 import org.namelessrom.devicecontrol.hardware.KsmUtils;
 import org.namelessrom.devicecontrol.ui.preferences.AwesomeTogglePreference;
@@ -38,10 +38,8 @@ import org.namelessrom.devicecontrol.ui.views.AttachPreferenceFragment;
 import org.namelessrom.devicecontrol.utils.DialogHelper;
 import org.namelessrom.devicecontrol.utils.Utils;
 
-import java.util.ArrayList;
-import java.util.List;
-
-public class KsmFragment extends AttachPreferenceFragment implements Preference.OnPreferenceChangeListener {
+public class KsmFragment extends AttachPreferenceFragment implements Preference.OnPreferenceChangeListener, Telemetry.Listener {
+    private static final int REFRESH_INTERVAL = 5000;
 
     //----------------------------------------------------------------------------------------------
     private PreferenceScreen mRoot;
@@ -107,8 +105,6 @@ public class KsmFragment extends AttachPreferenceFragment implements Preference.
                     category.removePreference(mPagesVolatile);
                 }
             }
-
-            new RefreshTask().execute();
         }
         removeIfEmpty(category);
 
@@ -162,6 +158,16 @@ public class KsmFragment extends AttachPreferenceFragment implements Preference.
         isSupported(mRoot, getActivity());
     }
 
+    @Override public void onResume() {
+        super.onResume();
+        Telemetry.get().subscribe(this, Telemetry.SOURCE_KSM, REFRESH_INTERVAL);
+    }
+
+    @Override public void onPause() {
+        super.onPause();
+        Telemetry.get().unsubscribe(this);
+    }
+
     private void removeIfEmpty(final PreferenceCategory preferenceCategory) {
         if (mRoot != null && preferenceCategory.getPreferenceCount() == 0) {
             mRoot.removePreference(preferenceCategory);
@@ -209,58 +215,33 @@ public class KsmFragment extends AttachPreferenceFragment implements Preference.
         final int id = item.getItemId();
         switch (id) {
             case R.id.menu_action_refresh:
-                new RefreshTask().execute();
+                Telemetry.get().refresh();
                 break;
         }
 
         return false;
     }
 
-    private class RefreshTask extends AsyncTask<Void, Void, List<String>> {
-
-        @Override protected List<String> doInBackground(Void... params) {
-            final ArrayList<String> list = new ArrayList<>();
-
-            list.add(Utils.readOneLine(KsmUtils.KSM_FULL_SCANS));     // 0
-            list.add(Utils.readOneLine(KsmUtils.KSM_PAGES_SHARED));   // 1
-            list.add(Utils.readOneLine(KsmUtils.KSM_PAGES_SHARING));  // 2
-            list.add(Utils.readOneLine(KsmUtils.KSM_PAGES_UNSHARED)); // 3
-            list.add(Utils.readOneLine(KsmUtils.KSM_PAGES_VOLATILE)); // 4
-
-            return list;
+    @Override public void onTelemetry(final TelemetrySnapshot snapshot) {
+        if (!isAdded()) {
+            return;
         }
-
-        @Override protected void onPostExecute(final List<String> strings) {
-            if (isAdded()) {
-                String tmp;
-                if (mFullScans != null) {
-                    tmp = strings.get(0);
-                    Logger.v(this, "strings.get(0): " + tmp);
-                    mFullScans.setSummary(tmp);
-                }
-                if (mPagesShared != null) {
-                    tmp = strings.get(1);
-                    Logger.v(this, "strings.get(1): " + tmp);
-                    mPagesShared.setSummary(tmp);
-                }
-                if (mPagesSharing != null) {
-                    tmp = strings.get(2);
-                    Logger.v(this, "strings.get(2): " + tmp);
-                    mPagesSharing.setSummary(tmp);
-                }
-                if (mPagesUnshared != null) {
-                    tmp = strings.get(3);
-                    Logger.v(this, "strings.get(3): " + tmp);
-                    mPagesUnshared.setSummary(tmp);
-                }
-                if (mPagesVolatile != null) {
-                    tmp = strings.get(4);
-                    Logger.v(this, "strings.get(4): " + tmp);
-                    mPagesVolatile.setSummary(tmp);
-                }
-            }
+        if (mFullScans != null) {
+            mFullScans.setSummary(snapshot.getValueString(TelemetrySnapshot.KSM_FULL_SCANS));
+        }
+        if (mPagesShared != null) {
+            mPagesShared.setSummary(snapshot.getValueString(TelemetrySnapshot.KSM_PAGES_SHARED));
+        }
+        if (mPagesSharing != null) {
+            mPagesSharing.setSummary(snapshot.getValueString(TelemetrySnapshot.KSM_PAGES_SHARING));
+        }
+        if (mPagesUnshared != null) {
+            mPagesUnshared.setSummary(
+                    snapshot.getValueString(TelemetrySnapshot.KSM_PAGES_UNSHARED));
+        }
+        if (mPagesVolatile != null) {
+            mPagesVolatile.setSummary(
+                    snapshot.getValueString(TelemetrySnapshot.KSM_PAGES_VOLATILE));
         }
     }
 }
-
-
@@ -17,7 +17,6 @@
  */
 package org.namelessrom.devicecontrol.modules.performance.sub;
 
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
@@ -28,8 +27,9 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 
 import org.namelessrom.devicecontrol.DeviceConstants;
-import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.hardware.telemetry.Telemetry;
+import org.namelessrom.devicecontrol.hardware.telemetry.TelemetrySnapshot;
 import org.namelessrom.devicecontrol.actions.ActionProcessor;
 import org.namelessrom.devicecontrol.models.BootupConfig;
 import org.namelessrom.devicecontrol.hardware.UksmUtils;
@@ -40,9 +40,6 @@ import org.namelessrom.devicecontrol.ui.views.AttachPreferenceFragment;
 import org.namelessrom.devicecontrol.utils.DialogHelper;
 import org.namelessrom.devicecontrol.utils.Utils;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /*
 abundant_threshold
 cpu_governor                [full] medium low quiet
@@ -62,7 +59,8 @@ sleep_times
 thrash_threshold
  */
 
-public class UksmFragment extends AttachPreferenceFragment implements Preference.OnPreferenceChangeListener {
+public class UksmFragment extends AttachPreferenceFragment implements Preference.OnPreferenceChangeListener, Telemetry.Listener {
+    private static final int REFRESH_INTERVAL = 5000;
 
     //----------------------------------------------------------------------------------------------
     private PreferenceScreen mRoot;
@@ -130,7 +128,6 @@ public class UksmFragment extends AttachPreferenceFragment implements Preference
                     category.removePreference(mSleepTimes);
                 }
             }
-            new RefreshTask().execute();
         }
         removeIfEmpty(category);
 
@@ -178,6 +175,16 @@ public class UksmFragment extends AttachPreferenceFragment implements Preference
         isSupported(mRoot, getActivity());
     }
 
+    @Override public void onResume() {
+        super.onResume();
+        Telemetry.get().subscribe(this, Telemetry.SOURCE_UKSM, REFRESH_INTERVAL);
+    }
+
+    @Override public void onPause() {
+        super.onPause();
+        Telemetry.get().unsubscribe(this);
+    }
+
     private void removeIfEmpty(final PreferenceCategory preferenceCategory) {
         if (mRoot != null && preferenceCategory.getPreferenceCount() == 0) {
             mRoot.removePreference(preferenceCategory);
@@ -220,64 +227,34 @@ public class UksmFragment extends AttachPreferenceFragment implements Preference
         final int id = item.getItemId();
         switch (id) {
             case R.id.menu_action_refresh:
-                new RefreshTask().execute();
+                Telemetry.get().refresh();
                 break;
         }
 
         return false;
     }
 
-    private class RefreshTask extends AsyncTask<Void, Void, List<String>> {
-
-        @Override protected List<String> doInBackground(Void... params) {
-            final ArrayList<String> list = new ArrayList<>();
-
-            list.add(Utils.readOneLine(UksmUtils.UKSM_PAGES_SHARED));   // 0
-            list.add(Utils.readOneLine(UksmUtils.UKSM_PAGES_SCANNED));  // 1
-            list.add(Utils.readOneLine(UksmUtils.UKSM_FULL_SCANS));     // 2
-            list.add(Utils.readOneLine(UksmUtils.UKSM_HASH_STRENGTH));  // 3
-            list.add(Utils.readOneLine(UksmUtils.UKSM_PAGES_SHARING));  // 4
-            list.add(Utils.readOneLine(UksmUtils.UKSM_SLEEP_TIMES));    // 5
-
-            return list;
+    @Override public void onTelemetry(final TelemetrySnapshot snapshot) {
+        if (!isAdded()) {
+            return;
         }
-
-        @Override protected void onPostExecute(final List<String> strings) {
-            if (isAdded()) {
-                String tmp;
-                if (mPagesShared != null) {
-                    tmp = strings.get(0);
-                    Logger.v(this, "strings.get(0): " + tmp);
-                    mPagesShared.setSummary(tmp);
-                }
-                if (mPagesScanned != null) {
-                    tmp = strings.get(1);
-                    Logger.v(this, "strings.get(1): " + tmp);
-                    mPagesScanned.setSummary(tmp);
-                }
-                if (mFullScans != null) {
-                    tmp = strings.get(2);
-                    Logger.v(this, "strings.get(2): " + tmp);
-                    mFullScans.setSummary(tmp);
-                }
-                if (mHashStrength != null) {
-                    tmp = strings.get(3);
-                    Logger.v(this, "strings.get(3): " + tmp);
-                    mHashStrength.setSummary(tmp);
-                }
-                if (mPagesSharing != null) {
-                    tmp = strings.get(4);
-                    Logger.v(this, "strings.get(4): " + tmp);
-                    mPagesSharing.setSummary(tmp);
-                }
-                if (mSleepTimes != null) {
-                    tmp = strings.get(5);
-                    Logger.v(this, "strings.get(5): " + tmp);
-                    mSleepTimes.setSummary(tmp);
-                }
-            }
+        if (mPagesShared != null) {
+            mPagesShared.setSummary(snapshot.getValueString(TelemetrySnapshot.UKSM_PAGES_SHARED));
+        }
+        if (mPagesScanned != null) {
+            mPagesScanned.setSummary(snapshot.getValueString(TelemetrySnapshot.UKSM_PAGES_SCANNED));
+        }
+        if (mFullScans != null) {
+            mFullScans.setSummary(snapshot.getValueString(TelemetrySnapshot.UKSM_FULL_SCANS));
+        }
+        if (mHashStrength != null) {
+            mHashStrength.setSummary(snapshot.getValueString(TelemetrySnapshot.UKSM_HASH_STRENGTH));
+        }
+        if (mPagesSharing != null) {
+            mPagesSharing.setSummary(snapshot.getValueString(TelemetrySnapshot.UKSM_PAGES_SHARING));
+        }
+        if (mSleepTimes != null) {
+            mSleepTimes.setSummary(snapshot.getValueString(TelemetrySnapshot.UKSM_SLEEP_TIMES));
         }
     }
 }
-
-
@@ -17,28 +17,43 @@
  */
 package org.namelessrom.devicecontrol.modules.preferences;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.text.format.Formatter;
 import android.view.View;
 
+import com.jakewharton.disklrucache.DiskCacheBenchmark;
 import com.stericson.roottools.RootTools;
 
+import org.namelessrom.devicecontrol.Application;
 import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
 import org.namelessrom.devicecontrol.models.DeviceConfig;
 import org.namelessrom.devicecontrol.theme.AppResources;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.ShellBenchmark;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.ShellPool;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import alexander.martinz.libs.materialpreferences.MaterialListPreference;
 import alexander.martinz.libs.materialpreferences.MaterialPreference;
 import alexander.martinz.libs.materialpreferences.MaterialSupportPreferenceFragment;
 import alexander.martinz.libs.materialpreferences.MaterialSwitchPreference;
+import uk.co.senab.bitmapcache.MemoryCacheStats;
 
-public class AdvancedPreferencesFragment extends MaterialSupportPreferenceFragment implements MaterialPreference.MaterialPreferenceChangeListener {
+public class AdvancedPreferencesFragment extends MaterialSupportPreferenceFragment implements MaterialPreference.MaterialPreferenceChangeListener,
+        MaterialPreference.MaterialPreferenceClickListener {
     private MaterialSwitchPreference mSkipChecks;
 
     private MaterialListPreference mShellContext;
 
     private MaterialSwitchPreference mDebugStrictMode;
     private MaterialSwitchPreference mExtensiveLogging;
+    private MaterialPreference mShellBenchmark;
+    private MaterialPreference mDiskCacheBenchmark;
+    private MaterialPreference mMemoryCacheStats;
 
     @Override protected int getLayoutResourceId() {
         return R.layout.preferences_app_device_control_advanced;
@@ -70,6 +85,56 @@ public class AdvancedPreferencesFragment extends MaterialSupportPreferenceFragme
                 (MaterialSwitchPreference) view.findViewById(R.id.prefs_extensive_logging);
         mExtensiveLogging.setChecked(configuration.extensiveLogging);
         mExtensiveLogging.setOnPreferenceChangeListener(this);
+
+        mShellBenchmark = (MaterialPreference) view.findViewById(R.id.prefs_shell_benchmark);
+        mShellBenchmark.setOnPreferenceClickListener(this);
+
+        mDiskCacheBenchmark =
+                (MaterialPreference) view.findViewById(R.id.prefs_disk_cache_benchmark);
+        mDiskCacheBenchmark.setOnPreferenceClickListener(this);
+
+        mMemoryCacheStats = (MaterialPreference) view.findViewById(R.id.prefs_memory_cache_stats);
+        mMemoryCacheStats.setOnPreferenceClickListener(this);
+        updateMemoryCacheStats();
+    }
+
+    @Override public boolean onPreferenceClicked(MaterialPreference preference) {
+        if (mShellBenchmark == preference) {
+            mShellBenchmark.setEnabled(false);
+            mShellBenchmark.setSummary(getString(R.string.shell_benchmark_running));
+            new ShellBenchmarkTask().execute();
+            return true;
+        } else if (mDiskCacheBenchmark == preference) {
+            mDiskCacheBenchmark.setEnabled(false);
+            mDiskCacheBenchmark.setSummary(getString(R.string.shell_benchmark_running));
+            new DiskCacheBenchmarkTask(new File(getActivity().getCacheDir(), "benchmark"))
+                    .execute();
+            return true;
+        } else if (mMemoryCacheStats == preference) {
+            updateMemoryCacheStats();
+            return true;
+        }
+        return false;
+    }
+
+    private void updateMemoryCacheStats() {
+        final MemoryCacheStats stats = Application.get().getBitmapCache().getMemoryCacheStats();
+        if (stats == null) {
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(getString(R.string.memory_cache_stats_total,
+                Math.round(stats.getHitRate() * 100),
+                Formatter.formatFileSize(getActivity(), stats.size),
+                Formatter.formatFileSize(getActivity(), stats.maxSize), stats.count,
+                Formatter.formatFileSize(getActivity(), stats.protectedSize)));
+        for (final MemoryCacheStats.KeyClass keyClass : stats.keyClasses) {
+            sb.append('\n').append(getString(R.string.memory_cache_stats_class, keyClass.name,
+                    Math.round(keyClass.getHitRate() * 100), keyClass.misses, keyClass.evictions,
+                    Formatter.formatFileSize(getActivity(), keyClass.bytes)));
+        }
+        mMemoryCacheStats.setSummary(sb.toString());
     }
 
     @Override public boolean onPreferenceChanged(MaterialPreference preference, Object newValue) {
@@ -124,9 +189,72 @@ public class AdvancedPreferencesFragment extends MaterialSupportPreferenceFragme
         Logger.i(this, "reopening shells");
         try {
             RootTools.closeAllShells();
+            ShellPool.get().close();
         } catch (Exception e) {
             Logger.e(this, String.format("reopenShells() -> %s", e));
         }
     }
 
+    private class ShellBenchmarkTask extends AsyncTask<Void, Void, ShellBenchmark.Result> {
+        @Override protected ShellBenchmark.Result doInBackground(Void... params) {
+            return ShellBenchmark.run(ShellBenchmark.DEFAULT_COMMANDS);
+        }
+
+        @Override protected void onPostExecute(ShellBenchmark.Result result) {
+            if (!isAdded()) {
+                return;
+            }
+            mShellBenchmark.setEnabled(true);
+            if (result == null) {
+                mShellBenchmark.setSummary(getString(R.string.shell_benchmark_summary));
+                return;
+            }
+            mShellBenchmark.setSummary(getString(R.string.shell_benchmark_result, result.commands,
+                    TimeUnit.NANOSECONDS.toMillis(result.totalNanos),
+                    result.getCommandsPerSecond()));
+        }
+    }
+
+    private class DiskCacheBenchmarkTask
+            extends AsyncTask<Void, Void, List<DiskCacheBenchmark.Result>> {
+        private final File directory;
+
+        public DiskCacheBenchmarkTask(final File directory) {
+            this.directory = directory;
+        }
+
+        @Override protected List<DiskCacheBenchmark.Result> doInBackground(Void... params) {
+            try {
+                final List<DiskCacheBenchmark.Result> results = DiskCacheBenchmark.run(directory);
+                for (final DiskCacheBenchmark.Result result : results) {
+                    Logger.i(this, result.toString());
+                }
+                return results;
+            } catch (Exception e) {
+                Logger.e(this, "could not run benchmark", e);
+            }
+            return null;
+        }
+
+        @Override protected void onPostExecute(List<DiskCacheBenchmark.Result> results) {
+            if (!isAdded()) {
+                return;
+            }
+            mDiskCacheBenchmark.setEnabled(true);
+            if (results == null) {
+                mDiskCacheBenchmark.setSummary(getString(R.string.disk_cache_benchmark_summary));
+                return;
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (final DiskCacheBenchmark.Result result : results) {
+                if (sb.length() != 0) {
+                    sb.append('\n');
+                }
+                sb.append(getString(R.string.disk_cache_benchmark_result, result.threads,
+                        result.baselineOpsPerSecond, result.shardedOpsPerSecond));
+            }
+            mDiskCacheBenchmark.setSummary(sb.toString());
+        }
+    }
+
 }
@@ -0,0 +1,280 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.net;
+
+import android.content.res.AssetManager;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.utils.ContentTypes;
+import org.namelessrom.devicecontrol.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the assets of the web interface in memory.
+ * <p/>
+ * Every asset gets read once, together with a gzip compressed copy if it compresses well and a
+ * strong etag of its content. Requests get the compressed copy if the client accepts it and a
+ * 304 if they already have the current version.
+ */
+public class AssetCache {
+    private static final String TAG = AssetCache.class.getSimpleName();
+
+    // the directories of the web interface, the root holds android's own assets as well
+    private static final String[] DIRECTORIES = { "css", "fonts", "js", "lang", "snippets" };
+
+    // already compressed formats, gzip would not gain anything
+    private static final String[] UNCOMPRESSED = { ".png", ".ico", ".woff", ".gz", ".zip" };
+
+    private static AssetCache sInstance;
+
+    private final HashMap<String, Asset> mAssets = new HashMap<>();
+    private boolean mLoaded;
+
+    private static class Asset {
+        final String contentType;
+        final byte[] raw;
+        @Nullable final byte[] gzipped;
+        final String etag;
+
+        Asset(final String contentType, final byte[] raw, @Nullable final byte[] gzipped,
+                final String etag) {
+            this.contentType = contentType;
+            this.raw = raw;
+            this.gzipped = gzipped;
+            this.etag = etag;
+        }
+    }
+
+    private AssetCache() { }
+
+    public static synchronized AssetCache get() {
+        if (sInstance == null) {
+            sInstance = new AssetCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reads and compresses all assets of the web interface, if not done already. Blocks.
+     */
+    public synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final AssetManager assets = Application.get().getAssets();
+        long raw = 0;
+        long gzipped = 0;
+        try {
+            for (final String name : assets.list("")) {
+                // only files, directories and android's assets do not have an extension
+                if (name.indexOf('.') > 0) {
+                    raw += loadAsset(assets, name);
+                }
+            }
+            for (final String directory : DIRECTORIES) {
+                raw += loadDirectory(assets, directory);
+            }
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not list assets", ioe);
+        }
+        for (final Asset asset : mAssets.values()) {
+            gzipped += (asset.gzipped != null ? asset.gzipped.length : asset.raw.length);
+        }
+        mLoaded = true;
+        Logger.v(TAG, "loaded %s assets, %s bytes (%s gzipped) in %s ms", mAssets.size(), raw,
+                gzipped, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Drops all assets.
+     */
+    public synchronized void clear() {
+        mAssets.clear();
+        mLoaded = false;
+    }
+
+    /**
+     * Sends the asset if it is cached.
+     *
+     * @return false if the asset is not cached
+     */
+    public boolean send(final AsyncHttpServerRequest req, final AsyncHttpServerResponse res,
+            final String path) {
+        final Asset asset;
+        synchronized (this) {
+            asset = mAssets.get(cleanupPath(path));
+        }
+        if (asset == null) {
+            return false;
+        }
+
+        final boolean gzip = asset.gzipped != null && acceptsGzip(req);
+        // every representation needs its own strong etag
+        final String etag = String.format("\"%s%s\"", asset.etag, gzip ? "-gz" : "");
+        res.getHeaders().set("ETag", etag);
+        res.getHeaders().set("Vary", "Accept-Encoding");
+        res.getHeaders().set("Cache-Control",
+                asset.contentType.equals("text/html") ? "no-cache" : "max-age=3600");
+
+        final String ifNoneMatch = req.getHeaders().get("If-None-Match");
+        if (!TextUtils.isEmpty(ifNoneMatch) && ifNoneMatch.contains(etag)) {
+            res.code(304);
+            res.end();
+            return true;
+        }
+
+        if (gzip) {
+            res.getHeaders().set("Content-Encoding", "gzip");
+            res.send(asset.contentType, asset.gzipped);
+        } else {
+            res.send(asset.contentType, asset.raw);
+        }
+        return true;
+    }
+
+    private long loadDirectory(final AssetManager assets, final String directory)
+            throws IOException {
+        long size = 0;
+        for (final String name : assets.list(directory)) {
+            final String path = directory + '/' + name;
+            final String[] children = assets.list(path);
+            if (children != null && children.length > 0) {
+                size += loadDirectory(assets, path);
+            } else {
+                size += loadAsset(assets, path);
+            }
+        }
+        return size;
+    }
+
+    private long loadAsset(final AssetManager assets, final String path) {
+        final byte[] raw;
+        InputStream is = null;
+        try {
+            is = assets.open(path);
+            raw = readFully(is);
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not read " + path, ioe);
+            return 0;
+        } finally {
+            Utils.closeQuietly(is);
+        }
+
+        byte[] gzipped = null;
+        if (isCompressible(path)) {
+            gzipped = gzip(raw);
+            // not worth it
+            if (gzipped != null && gzipped.length >= raw.length) {
+                gzipped = null;
+            }
+        }
+
+        final String contentType = ContentTypes.getInstance().getContentType(path);
+        mAssets.put(path, new Asset(contentType, raw, gzipped, sha1(raw)));
+        return raw.length;
+    }
+
+    private static boolean acceptsGzip(final AsyncHttpServerRequest req) {
+        final String acceptEncoding = req.getHeaders().get("Accept-Encoding");
+        if (TextUtils.isEmpty(acceptEncoding)) {
+            return false;
+        }
+        for (final String encoding : acceptEncoding.split(",")) {
+            final String[] parts = encoding.trim().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                // gzip;q=0 explicitly refuses it
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCompressible(final String path) {
+        for (final String extension : UNCOMPRESSED) {
+            if (path.endsWith(extension)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String cleanupPath(final String path) {
+        if (path.startsWith("./")) {
+            return path.substring(2);
+        }
+        if (path.startsWith("/")) {
+            return path.substring(1);
+        }
+        return path;
+    }
+
+    private static byte[] readFully(final InputStream is) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, is.available()));
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Nullable private static byte[] gzip(final byte[] raw) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+        GZIPOutputStream gzip = null;
+        try {
+            gzip = new GZIPOutputStream(out);
+            gzip.write(raw);
+            gzip.finish();
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not compress", ioe);
+            return null;
+        } finally {
+            Utils.closeQuietly(gzip);
+        }
+        return out.toByteArray();
+    }
+
+    private static String sha1(final byte[] raw) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(raw);
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            // should never happen, fall back to something, which changes with the content
+            return Integer.toHexString(Arrays.hashCode(raw)) + '-' + raw.length;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.net;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.http.Multimap;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import org.namelessrom.devicecontrol.Logger;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Lists directories for the files api.
+ * <p/>
+ * Listings are streamed as json array, a chunk of entries at a time, whenever the socket is able
+ * to take more data. Clients can page through a listing with the {@code offset} and
+ * {@code limit} parameters and sort it by {@code name} (default, directories first),
+ * {@code size} or {@code mtime}, optionally with {@code order=desc}.
+ * <p/>
+ * Sorted listings get built on a background thread and cached, every cached directory is watched
+ * and dropped from the cache as soon as something changes. With {@code sort=none} entries are
+ * sent in directory order while the directory gets read, without waiting for all of it.
+ */
+public class DirectoryListing {
+    private static final String TAG = DirectoryListing.class.getSimpleName();
+
+    public static final int SORT_NONE = 0;
+    public static final int SORT_NAME = 1;
+    public static final int SORT_SIZE = 2;
+    public static final int SORT_MTIME = 3;
+
+    // the number of entries of all cached directories
+    private static final int CACHE_SIZE = 64 * 1024;
+    private static final int ENTRIES_PER_CHUNK = 128;
+
+    private static final int WATCH_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.ATTRIB | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static DirectoryListing sInstance;
+
+    private final LruCache<String, Listing> mCache;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private static class Entry {
+        final String name;
+        final boolean isDirectory;
+        final long size;
+        final long mtime;
+
+        Entry(final File file) {
+            name = file.getName();
+            isDirectory = file.isDirectory();
+            size = isDirectory ? 0 : file.length();
+            mtime = file.lastModified();
+        }
+    }
+
+    private static final Comparator<Entry> NAME_COMPARATOR = new Comparator<Entry>() {
+        @Override public int compare(final Entry lhs, final Entry rhs) {
+            // same order as SortHelper.sFileComparator, directories first
+            if (lhs.isDirectory != rhs.isDirectory) {
+                return lhs.isDirectory ? -1 : 1;
+            }
+            return lhs.name.toLowerCase().compareTo(rhs.name.toLowerCase());
+        }
+    };
+
+    private static final Comparator<Entry> SIZE_COMPARATOR = new Comparator<Entry>() {
+        @Override public int compare(final Entry lhs, final Entry rhs) {
+            if (lhs.size != rhs.size) {
+                return lhs.size < rhs.size ? -1 : 1;
+            }
+            return NAME_COMPARATOR.compare(lhs, rhs);
+        }
+    };
+
+    private static final Comparator<Entry> MTIME_COMPARATOR = new Comparator<Entry>() {
+        @Override public int compare(final Entry lhs, final Entry rhs) {
+            if (lhs.mtime != rhs.mtime) {
+                return lhs.mtime < rhs.mtime ? -1 : 1;
+            }
+            return NAME_COMPARATOR.compare(lhs, rhs);
+        }
+    };
+
+    /**
+     * The sorted entries of a directory, which watches the directory while it is cached.
+     */
+    private class Listing extends FileObserver {
+        final String path;
+        // set once, before the listing gets cached
+        Entry[] byName;
+        // sorted lazily, guarded by this
+        private Entry[] mBySize;
+        private Entry[] mByMtime;
+
+        volatile boolean stale;
+
+        Listing(final String path) {
+            super(path, WATCH_EVENTS);
+            this.path = path;
+        }
+
+        synchronized Entry[] get(final int sort) {
+            switch (sort) {
+                case SORT_SIZE: {
+                    if (mBySize == null) {
+                        mBySize = byName.clone();
+                        Arrays.sort(mBySize, SIZE_COMPARATOR);
+                    }
+                    return mBySize;
+                }
+                case SORT_MTIME: {
+                    if (mByMtime == null) {
+                        mByMtime = byName.clone();
+                        Arrays.sort(mByMtime, MTIME_COMPARATOR);
+                    }
+                    return mByMtime;
+                }
+                default: {
+                    return byName;
+                }
+            }
+        }
+
+        @Override public void onEvent(final int event, final String file) {
+            if (stale) {
+                return;
+            }
+            stale = true;
+            synchronized (mCache) {
+                // a newer listing of the same directory may be cached already
+                if (mCache.get(path) == this) {
+                    mCache.remove(path);
+                }
+            }
+        }
+    }
+
+    private DirectoryListing() {
+        mCache = new LruCache<String, Listing>(CACHE_SIZE) {
+            @Override protected int sizeOf(final String key, final Listing value) {
+                return Math.max(1, value.byName.length);
+            }
+
+            @Override protected void entryRemoved(final boolean evicted, final String key,
+                    final Listing oldValue, final Listing newValue) {
+                oldValue.stopWatching();
+            }
+        };
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public static synchronized DirectoryListing get() {
+        if (sInstance == null) {
+            sInstance = new DirectoryListing();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drops all cached listings.
+     */
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Sends the listing of the directory.
+     *
+     * @param root The path, which gets stripped from the path of every entry
+     */
+    public void send(final AsyncHttpServerRequest req, final AsyncHttpServerResponse res,
+            final File directory, final String root) {
+        final Multimap query = req.getQuery();
+        final int sort = parseSort(query.getString("sort"));
+        final boolean descending = "desc".equalsIgnoreCase(query.getString("order"));
+        final int offset = Math.max(0, parseInt(query.getString("offset"), 0));
+        final int limit = parseInt(query.getString("limit"), -1);
+
+        final String path = directory.getAbsolutePath();
+        String prefix = path.substring(Math.min(root.length(), path.length()));
+        if (!prefix.endsWith("/")) {
+            prefix += '/';
+        }
+        res.setContentType("application/json");
+
+        if (sort == SORT_NONE) {
+            final String[] names = directory.list();
+            if (names == null) {
+                res.send("An error occured!");
+                return;
+            }
+            new ListingWriter(res, directory, names, null, prefix, offset, limit, false).start();
+            return;
+        }
+
+        final Listing cached = mCache.get(path);
+        if (cached != null && !cached.stale) {
+            new ListingWriter(res, directory, null, cached.get(sort), prefix, offset, limit,
+                    descending).start();
+            return;
+        }
+
+        // building a big listing takes a while, do not block the server meanwhile
+        final String entryPrefix = prefix;
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                final Listing listing = build(directory);
+                AsyncServer.getDefault().post(new Runnable() {
+                    @Override public void run() {
+                        if (listing == null) {
+                            res.send("An error occured!");
+                            return;
+                        }
+                        new ListingWriter(res, directory, null, listing.get(sort), entryPrefix,
+                                offset, limit, descending).start();
+                    }
+                });
+            }
+        });
+    }
+
+    private Listing build(final File directory) {
+        final long start = System.currentTimeMillis();
+        final String path = directory.getAbsolutePath();
+
+        // observers of the same path share one inotify watch, stopping one stops all of them.
+        // keep exactly one observer per path, the one of the cached listing.
+        final Listing listing;
+        synchronized (mCache) {
+            final Listing cached = mCache.get(path);
+            if (cached != null && !cached.stale) {
+                // built by an earlier request, which was queued before us
+                return cached;
+            }
+            if (cached != null) {
+                // stops its watch before the new one gets started
+                mCache.remove(path);
+            }
+            // start watching before reading, to not miss changes while building the listing
+            listing = new Listing(path);
+            listing.startWatching();
+        }
+
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            listing.stopWatching();
+            return null;
+        }
+        int count = 0;
+        final Entry[] entries = new Entry[files.length];
+        for (final File file : files) {
+            final Entry entry = new Entry(file);
+            // got deleted meanwhile
+            if (entry.mtime == 0 && !file.exists()) {
+                continue;
+            }
+            entries[count++] = entry;
+        }
+        listing.byName = (count == entries.length) ? entries : Arrays.copyOf(entries, count);
+        Arrays.sort(listing.byName, NAME_COMPARATOR);
+
+        synchronized (mCache) {
+            if (listing.stale) {
+                // changed while we were reading it, serve it but do not cache it
+                listing.stopWatching();
+            } else {
+                mCache.put(listing.path, listing);
+            }
+        }
+        Logger.v(TAG, "listed %s entries of %s in %s ms", count, listing.path,
+                System.currentTimeMillis() - start);
+        return listing;
+    }
+
+    /**
+     * Writes a page of entries as json array, either from sorted entries or from plain names,
+     * which get looked up while writing.
+     */
+    private static class ListingWriter implements WritableCallback {
+        private final AsyncHttpServerResponse mResponse;
+        private final File mDirectory;
+        private final String[] mNames;
+        private final Entry[] mEntries;
+        private final String mPrefix;
+        private final boolean mDescending;
+
+        private final int mTotal;
+        private final int mEnd;
+        private int mPosition;
+        private boolean mOpened;
+        private boolean mClosed;
+        private boolean mEmpty = true;
+        private boolean mDone;
+        private final ByteBufferList mPending = new ByteBufferList();
+
+        ListingWriter(final AsyncHttpServerResponse res, final File directory,
+                final String[] names, final Entry[] entries, final String prefix,
+                final int offset, final int limit, final boolean descending) {
+            mResponse = res;
+            mDirectory = directory;
+            mNames = names;
+            mEntries = entries;
+            mPrefix = prefix;
+            mDescending = descending;
+
+            mTotal = (entries != null ? entries.length : names.length);
+            mPosition = Math.min(offset, mTotal);
+            mEnd = (limit < 0 ? mTotal : (int) Math.min((long) mPosition + limit, mTotal));
+        }
+
+        void start() {
+            mResponse.getHeaders().set("X-Total-Count", String.valueOf(mTotal));
+            mResponse.setClosedCallback(new CompletedCallback() {
+                @Override public void onCompleted(final Exception ex) {
+                    mDone = true;
+                    mPending.recycle();
+                }
+            });
+            mResponse.setWriteableCallback(this);
+            onWriteable();
+        }
+
+        @Override public void onWriteable() {
+            do {
+                if (mDone) {
+                    return;
+                }
+                if (!mPending.hasRemaining()) {
+                    if (!fill()) {
+                        mDone = true;
+                        mResponse.setWriteableCallback(null);
+                        mResponse.end();
+                        return;
+                    }
+                }
+                mResponse.write(mPending);
+            } while (!mPending.hasRemaining());
+        }
+
+        /**
+         * @return false, if everything got written already
+         */
+        private boolean fill() {
+            if (mClosed) {
+                return false;
+            }
+
+            final StringBuilder sb = new StringBuilder();
+            if (!mOpened) {
+                mOpened = true;
+                sb.append('[');
+            }
+            final int end = Math.min(mEnd, mPosition + ENTRIES_PER_CHUNK);
+            for (; mPosition < end; mPosition++) {
+                final Entry entry;
+                if (mEntries != null) {
+                    entry = mEntries[mDescending ? mEntries.length - 1 - mPosition : mPosition];
+                } else {
+                    final File file = new File(mDirectory, mNames[mPosition]);
+                    entry = new Entry(file);
+                    // got deleted meanwhile
+                    if (entry.mtime == 0 && !file.exists()) {
+                        continue;
+                    }
+                }
+                if (!mEmpty) {
+                    sb.append(',');
+                }
+                mEmpty = false;
+                appendEntry(sb, entry);
+            }
+            if (mPosition >= mEnd) {
+                mClosed = true;
+                sb.append(']');
+            }
+            if (sb.length() > 0) {
+                add(sb.toString());
+            }
+            return true;
+        }
+
+        private void appendEntry(final StringBuilder sb, final Entry entry) {
+            sb.append("{\"name\":");
+            appendString(sb, entry.name);
+            sb.append(",\"path\":");
+            appendString(sb, mPrefix + entry.name);
+            sb.append(",\"isDirectory\":").append(entry.isDirectory);
+            sb.append(",\"size\":").append(entry.size);
+            sb.append(",\"mtime\":").append(entry.mtime);
+            sb.append('}');
+        }
+
+        private void add(final String json) {
+            try {
+                mPending.add(ByteBuffer.wrap(json.getBytes("UTF-8")));
+            } catch (UnsupportedEncodingException ignored) { }
+        }
+    }
+
+    private static void appendString(final StringBuilder sb, final String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    private static int parseSort(final String sort) {
+        if (TextUtils.isEmpty(sort) || "name".equalsIgnoreCase(sort)) {
+            return SORT_NAME;
+        } else if ("size".equalsIgnoreCase(sort)) {
+            return SORT_SIZE;
+        } else if ("mtime".equalsIgnoreCase(sort)) {
+            return SORT_MTIME;
+        } else if ("none".equalsIgnoreCase(sort)) {
+            return SORT_NONE;
+        }
+        return SORT_NAME;
+    }
+
+    private static int parseInt(final String value, final int def) {
+        if (TextUtils.isEmpty(value)) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            return def;
+        }
+    }
+}
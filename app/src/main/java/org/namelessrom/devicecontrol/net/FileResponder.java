@@ -0,0 +1,289 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.net;
+
+import android.text.TextUtils;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import org.namelessrom.devicecontrol.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Sends files with support for byte ranges and conditional requests.
+ * <p/>
+ * The file gets read with positional reads from its channel into buffers of the shared buffer
+ * pool, which get handed to the socket as they are and recycled once written. Reading only
+ * happens when the socket is able to take more data, so a slow client never piles up buffers.
+ */
+public class FileResponder {
+    private static final String TAG = FileResponder.class.getSimpleName();
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+
+    private final AsyncHttpServerRequest mRequest;
+    private final AsyncHttpServerResponse mResponse;
+    private final File mFile;
+    private final String mContentType;
+
+    private FileChannel mChannel;
+    private long mPosition;
+    private long mEnd;
+    private final ByteBufferList mPending = new ByteBufferList();
+
+    public FileResponder(final AsyncHttpServerRequest req, final AsyncHttpServerResponse res,
+            final File file, final String contentType) {
+        mRequest = req;
+        mResponse = res;
+        mFile = file;
+        mContentType = contentType;
+    }
+
+    public void send() {
+        final long length = mFile.length();
+        // http dates only have a resolution of seconds
+        final long lastModified = (mFile.lastModified() / 1000) * 1000;
+        final String etag = String.format("\"%s-%s\"",
+                Long.toHexString(lastModified), Long.toHexString(length));
+
+        mResponse.getHeaders().set("ETag", etag);
+        mResponse.getHeaders().set("Last-Modified", formatDate(lastModified));
+        mResponse.getHeaders().set("Accept-Ranges", "bytes");
+
+        if (isNotModified(etag, lastModified)) {
+            mResponse.code(304);
+            mResponse.end();
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        final String range = mRequest.getHeaders().get("Range");
+        if (!TextUtils.isEmpty(range) && isRangeValid(etag, lastModified)) {
+            final long[] parsed = parseRange(range, length);
+            if (parsed == null) {
+                mResponse.getHeaders().set("Content-Range", "bytes */" + length);
+                mResponse.code(416);
+                mResponse.end();
+                return;
+            }
+            // multiple ranges are not supported, those get the whole file
+            if (parsed.length == 2) {
+                start = parsed[0];
+                end = parsed[1];
+                mResponse.getHeaders().set("Content-Range",
+                        String.format("bytes %s-%s/%s", start, end, length));
+                mResponse.code(206);
+            }
+        }
+
+        try {
+            mChannel = new FileInputStream(mFile).getChannel();
+        } catch (IOException ioe) {
+            Logger.e(TAG, "could not open " + mFile.getAbsolutePath(), ioe);
+            mResponse.code(500);
+            mResponse.end();
+            return;
+        }
+        mPosition = start;
+        mEnd = end + 1;
+
+        mResponse.setContentType(mContentType);
+        mResponse.getHeaders().set("Content-Length", String.valueOf(mEnd - mPosition));
+        if (mPosition >= mEnd) {
+            finish();
+            return;
+        }
+
+        mResponse.setClosedCallback(new CompletedCallback() {
+            @Override public void onCompleted(final Exception ex) {
+                if (mChannel != null) {
+                    Logger.v(TAG, "client went away at %s of %s", mPosition, mEnd);
+                }
+                close();
+            }
+        });
+        mResponse.setWriteableCallback(mWritable);
+        mWritable.onWriteable();
+    }
+
+    private final WritableCallback mWritable = new WritableCallback() {
+        @Override public void onWriteable() {
+            try {
+                do {
+                    if (!mPending.hasRemaining()) {
+                        if (mPosition >= mEnd || mChannel == null) {
+                            finish();
+                            return;
+                        }
+                        final int size = (int) Math.min(CHUNK_SIZE, mEnd - mPosition);
+                        final ByteBuffer buffer = ByteBufferList.obtain(size);
+                        buffer.clear();
+                        buffer.limit(size);
+                        final int read = mChannel.read(buffer, mPosition);
+                        if (read <= 0) {
+                            ByteBufferList.reclaim(buffer);
+                            // the file got truncated while sending it
+                            Logger.w(TAG, "unexpected end of %s", mFile.getAbsolutePath());
+                            close();
+                            mResponse.end();
+                            return;
+                        }
+                        mPosition += read;
+                        buffer.flip();
+                        mPending.add(buffer);
+                    }
+                    mResponse.write(mPending);
+                } while (!mPending.hasRemaining());
+            } catch (IOException ioe) {
+                Logger.e(TAG, "could not read " + mFile.getAbsolutePath(), ioe);
+                close();
+                mResponse.end();
+            }
+        }
+    };
+
+    private void finish() {
+        mResponse.setWriteableCallback(null);
+        close();
+        mResponse.end();
+    }
+
+    private void close() {
+        mPending.recycle();
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException ignored) { }
+            mChannel = null;
+        }
+    }
+
+    private boolean isNotModified(final String etag, final long lastModified) {
+        final String ifNoneMatch = mRequest.getHeaders().get("If-None-Match");
+        if (!TextUtils.isEmpty(ifNoneMatch)) {
+            // If-None-Match takes precedence over If-Modified-Since
+            return matchesETag(ifNoneMatch, etag);
+        }
+        final long ifModifiedSince = parseDate(mRequest.getHeaders().get("If-Modified-Since"));
+        return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+    }
+
+    private boolean isRangeValid(final String etag, final long lastModified) {
+        final String ifRange = mRequest.getHeaders().get("If-Range");
+        if (TextUtils.isEmpty(ifRange)) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return TextUtils.equals(ifRange.trim(), etag);
+        }
+        return parseDate(ifRange) == lastModified;
+    }
+
+    private static boolean matchesETag(final String header, final String etag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || TextUtils.equals(candidate, etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a range header.
+     *
+     * @return The first and last byte of a single range, an empty array for a header, which
+     * should get ignored, or null if the range can not be satisfied
+     */
+    private static long[] parseRange(final String header, final long length) {
+        final String value = header.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        final String spec = value.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+
+        final long start;
+        final long end;
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // suffix range, the last n bytes
+                final long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+        } catch (NumberFormatException nfe) {
+            return new long[0];
+        }
+
+        if (start >= length || start > end) {
+            return null;
+        }
+        return new long[]{ start, end };
+    }
+
+    private static String formatDate(final long time) {
+        final SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static long parseDate(final String date) {
+        if (TextUtils.isEmpty(date)) {
+            return -1;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(date.trim()).getTime();
+        } catch (ParseException pe) {
+            return -1;
+        }
+    }
+}
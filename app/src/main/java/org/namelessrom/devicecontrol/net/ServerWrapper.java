@@ -9,7 +9,6 @@ import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Base64;
 
-import com.google.gson.Gson;
 import com.koushikdutta.async.AsyncServerSocket;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.http.WebSocket;
@@ -19,21 +18,17 @@ import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
 import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 
 import org.namelessrom.devicecontrol.Application;
-import org.namelessrom.devicecontrol.Device;
 import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.models.WebServerConfig;
 import org.namelessrom.devicecontrol.services.WebServerService;
 import org.namelessrom.devicecontrol.utils.ContentTypes;
 import org.namelessrom.devicecontrol.utils.HtmlHelper;
-import org.namelessrom.devicecontrol.utils.SortHelper;
 
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 /**
  * A wrapper for the AsyncHttpServer
@@ -50,6 +45,8 @@ public class ServerWrapper {
     private AsyncServerSocket mServerSocket;
 
     private final WebServerService mService;
+    private final TelemetryStream mTelemetryStream = new TelemetryStream();
+    private TuningApi mTuningApi;
 
     private WebServerConfig webServerConfig;
 
@@ -74,6 +71,13 @@ public class ServerWrapper {
             socket.close();
         }
         _sockets.clear();
+        mTelemetryStream.closeAll();
+        if (mTuningApi != null) {
+            mTuningApi.stop();
+            mTuningApi = null;
+        }
+        DirectoryListing.get().clear();
+        AssetCache.get().clear();
 
         isStopped = true;
     }
@@ -94,6 +98,9 @@ public class ServerWrapper {
         mServer = new AsyncHttpServer();
         Logger.v(this, "[!] Server created");
 
+        AssetCache.get().load();
+        Logger.v(this, "[!] Loaded assets");
+
         setupFonts();
         Logger.v(this, "[!] Setup fonts");
 
@@ -142,6 +149,9 @@ public class ServerWrapper {
             }
             Logger.v(this, "[+] Received connection from: %s", req.getHeaders().get("User-Agent"));
             final String path = remapPath(req.getPath());
+            if (AssetCache.get().send(req, res, path)) {
+                return;
+            }
             res.getHeaders().set("Content-Type", ContentTypes.getInstance().getContentType(path));
 
             final InputStream is = HtmlHelper.loadPath(path);
@@ -201,47 +211,13 @@ public class ServerWrapper {
                 }
             }
             if (isDirectory) {
-                final File[] fs = file.listFiles();
-                if (fs == null) {
-                    res.send("An error occured!");
-                    return;
-                }
-                final List<File> directories = new ArrayList<>();
-                final List<File> files = new ArrayList<>();
-                for (final File f : fs) {
-                    if (f.exists()) {
-                        if (f.isDirectory()) {
-                            directories.add(f);
-                        } else {
-                            files.add(f);
-                        }
-                    }
-                }
-
-                final ArrayList<FileEntry> fileEntries = new ArrayList<>();
-                if (directories.size() > 0) {
-                    Collections.sort(directories, SortHelper.sFileComparator);
-                    for (final File f : directories) {
-                        fileEntries.add(new FileEntry(f.getName(),
-                                f.getAbsolutePath().replace(sdRoot, ""), true));
-                    }
-                }
-                if (files.size() > 0) {
-                    Collections.sort(files, SortHelper.sFileComparator);
-                    for (final File f : files) {
-                        fileEntries.add(new FileEntry(f.getName(),
-                                f.getAbsolutePath().replace(sdRoot, ""), false));
-                    }
-                }
-
-                res.send(new Gson().toJson(fileEntries));
+                DirectoryListing.get().send(req, res, file, sdRoot);
             } else {
                 final String contentType = ContentTypes.getInstance()
                         .getContentType(file.getAbsolutePath());
                 Logger.v(this, "Requested file: %s", file.getName());
                 Logger.v(this, "Content-Type: %s", contentType);
-                res.setContentType(contentType);
-                res.sendFile(file);
+                new FileResponder(req, res, file, contentType).send();
             }
         }
     };
@@ -249,7 +225,7 @@ public class ServerWrapper {
     private final HttpServerRequestCallback informationCallback = new HttpServerRequestCallback() {
         @Override public void onRequest(final AsyncHttpServerRequest req,
                 final AsyncHttpServerResponse res) {
-
+            res.redirect("/api/v" + TuningApi.VERSION);
         }
     };
 
@@ -261,26 +237,16 @@ public class ServerWrapper {
     }
 
     private void setupFonts() {
-        // Bootstrap glyphicons
-        mServer.directory(Application.get(), "/fonts/glyphicons-halflings-regular.eot",
-                "fonts/glyphicons-halflings-regular.eot");
-        mServer.directory(Application.get(), "/fonts/glyphicons-halflings-regular.svg",
-                "fonts/glyphicons-halflings-regular.svg");
-        mServer.directory(Application.get(), "/fonts/glyphicons-halflings-regular.ttf",
-                "fonts/glyphicons-halflings-regular.ttf");
-        mServer.directory(Application.get(), "/fonts/glyphicons-halflings-regular.woff",
-                "fonts/glyphicons-halflings-regular.woff");
-        // FontAwesome
-        mServer.directory(Application.get(), "/fonts/FontAwesome.otf",
-                "fonts/FontAwesome.otf");
-        mServer.directory(Application.get(), "/fonts/fontawesome-webfont.eot",
-                "fonts/fontawesome-webfont.eot");
-        mServer.directory(Application.get(), "/fonts/fontawesome-webfont.svg",
-                "fonts/fontawesome-webfont.svg");
-        mServer.directory(Application.get(), "/fonts/fontawesome-webfont.ttf",
-                "fonts/fontawesome-webfont.ttf");
-        mServer.directory(Application.get(), "/fonts/fontawesome-webfont.woff",
-                "fonts/fontawesome-webfont.woff");
+        // Bootstrap glyphicons and FontAwesome, served without authentication
+        mServer.get("/fonts/(?s).*", new HttpServerRequestCallback() {
+            @Override public void onRequest(final AsyncHttpServerRequest req,
+                    final AsyncHttpServerResponse res) {
+                if (!AssetCache.get().send(req, res, req.getPath())) {
+                    res.code(404);
+                    res.end();
+                }
+            }
+        });
     }
 
     private void setupWebSockets() {
@@ -315,26 +281,24 @@ public class ServerWrapper {
                 socket.send(ACTION_CONNECTED);
             }
         });
-    }
 
-    private void setupApi() {
-        mServer.get("/api", new HttpServerRequestCallback() {
-            @Override public void onRequest(final AsyncHttpServerRequest req,
-                    final AsyncHttpServerResponse res) {
-                res.redirect("/api/device");
+        mServer.websocket("/telemetry", new AsyncHttpServer.WebSocketRequestCallback() {
+            @Override public void onConnected(final WebSocket socket, AsyncHttpServerRequest req) {
+                if (isStopped || !isAuthenticated(req)) {
+                    socket.close();
+                    return;
+                }
+                mTelemetryStream.add(socket);
             }
         });
+    }
 
-        mServer.get("/api/device", new HttpServerRequestCallback() {
-            @Override public void onRequest(final AsyncHttpServerRequest req,
-                    final AsyncHttpServerResponse res) {
-                final String result = Device.get().update().toString();
-                res.send(result);
-            }
-        });
+    private void setupApi() {
+        mTuningApi = new TuningApi(this);
+        mTuningApi.register(mServer);
     }
 
-    private boolean isAuthenticated(final AsyncHttpServerRequest req) {
+    boolean isAuthenticated(final AsyncHttpServerRequest req) {
         final boolean isAuth = !webServerConfig.useAuth;
         final String authHeader = req.getHeaders().get("Authorization");
         if (!isAuth && !TextUtils.isEmpty(authHeader)) {
@@ -388,16 +352,4 @@ public class ServerWrapper {
 
     public AsyncServerSocket getServerSocket() { return mServerSocket; }
 
-    private class FileEntry {
-        public final String name;
-        public final String path;
-        public final boolean isDirectory;
-
-        public FileEntry(final String name, final String path, final boolean isDirectory) {
-            this.name = name;
-            this.path = path;
-            this.isDirectory = isDirectory;
-        }
-    }
-
 }
@@ -0,0 +1,333 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.net;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.http.WebSocket;
+
+import org.namelessrom.devicecontrol.Application;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.hardware.telemetry.Telemetry;
+import org.namelessrom.devicecontrol.hardware.telemetry.TelemetrySnapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Streams telemetry to websocket clients as compact binary frames.
+ * <p/>
+ * Clients pick what they want with a text message {@code subscribe|<sources>|<interval>}, where
+ * sources are the {@link Telemetry} source bits and interval is in milliseconds, and stop with
+ * {@code unsubscribe}. Nothing gets sampled for a client before it subscribed. Every frame is
+ * <pre>
+ * byte    version
+ * byte    flags, 1 for key frames
+ * varint  milliseconds since the last frame, since boot for key frames
+ * varint  the sources in this frame
+ * for every source, in the order of its bit:
+ *   cpu:   varint core count, then current, max and governor id of every core
+ *   other: the values of the source in the order of the TelemetrySnapshot constants
+ * </pre>
+ * All values are zigzag varints of the difference to the last frame, which got sent to the
+ * client, key frames are relative to 0. Unchanged values take one byte. Governor names get sent
+ * as text, {@code governor|<id>|<name>} for cpu governor ids the client did not see yet and
+ * {@code gpuGovernor|<name>} whenever the gpu governor changes.
+ * <p/>
+ * Frames for clients, which can not keep up, get dropped instead of buffered. As differences
+ * are relative to the last frame sent, a dropped frame does not break the stream.
+ */
+public class TelemetryStream {
+    private static final String TAG = TelemetryStream.class.getSimpleName();
+
+    private static final int VERSION = 1;
+    private static final int FLAG_KEYFRAME = 1;
+
+    private static final int MIN_INTERVAL = 250;
+    private static final int MAX_INTERVAL = 60000;
+
+    // the values of every source, indexed by the bit of the source
+    private static final int[][] SOURCE_VALUES = new int[][]{
+            // cpu, encoded separately
+            {},
+            { TelemetrySnapshot.CPU_TEMPERATURE },
+            {
+                    TelemetrySnapshot.GPU_FREQUENCY_CURRENT, TelemetrySnapshot.GPU_FREQUENCY_MAX,
+                    TelemetrySnapshot.GPU_FREQUENCY_MIN,
+            },
+            {
+                    TelemetrySnapshot.KSM_FULL_SCANS, TelemetrySnapshot.KSM_PAGES_SHARED,
+                    TelemetrySnapshot.KSM_PAGES_SHARING, TelemetrySnapshot.KSM_PAGES_UNSHARED,
+                    TelemetrySnapshot.KSM_PAGES_VOLATILE,
+            },
+            {
+                    TelemetrySnapshot.UKSM_PAGES_SHARED, TelemetrySnapshot.UKSM_PAGES_SCANNED,
+                    TelemetrySnapshot.UKSM_FULL_SCANS, TelemetrySnapshot.UKSM_HASH_STRENGTH,
+                    TelemetrySnapshot.UKSM_PAGES_SHARING, TelemetrySnapshot.UKSM_SLEEP_TIMES,
+            },
+            { TelemetrySnapshot.ENTROPY_AVAILABLE },
+            {
+                    TelemetrySnapshot.MEMORY_TOTAL, TelemetrySnapshot.MEMORY_FREE,
+                    TelemetrySnapshot.MEMORY_AVAILABLE, TelemetrySnapshot.MEMORY_CACHED,
+                    TelemetrySnapshot.MEMORY_BUFFERS,
+            },
+            { TelemetrySnapshot.IO_READ_RATE, TelemetrySnapshot.IO_WRITE_RATE },
+    };
+    private static final int VALUE_SLOTS = TelemetrySnapshot.IO_WRITE_RATE + 1;
+
+    private final ArrayList<Client> mClients = new ArrayList<>();
+
+    /**
+     * Takes care of the socket until it gets closed.
+     */
+    public void add(final WebSocket socket) {
+        final Client client = new Client(socket);
+        synchronized (mClients) {
+            mClients.add(client);
+        }
+
+        socket.setClosedCallback(new CompletedCallback() {
+            @Override public void onCompleted(final Exception ex) {
+                remove(client);
+            }
+        });
+        socket.setStringCallback(new WebSocket.StringCallback() {
+            @Override public void onStringAvailable(final String s) {
+                client.onMessage(s);
+            }
+        });
+        socket.send(String.format("hello|%s|%s", VERSION, Telemetry.SOURCE_ALL));
+    }
+
+    /**
+     * Unsubscribes and closes all clients.
+     */
+    public void closeAll() {
+        final Client[] clients;
+        synchronized (mClients) {
+            clients = mClients.toArray(new Client[mClients.size()]);
+            mClients.clear();
+        }
+        for (final Client client : clients) {
+            client.stop();
+            client.socket.close();
+        }
+    }
+
+    private void remove(final Client client) {
+        synchronized (mClients) {
+            mClients.remove(client);
+        }
+        client.stop();
+    }
+
+    private static class Client implements Telemetry.Listener, Runnable {
+        final WebSocket socket;
+
+        private volatile boolean mActive;
+        private volatile TelemetrySnapshot mPending;
+        private volatile boolean mPosted;
+
+        // everything below only gets touched on the server thread
+        private int mSources;
+        private boolean mKeyframe = true;
+        private long mLastTime;
+        private final long[] mLastValues = new long[VALUE_SLOTS];
+        private int[] mLastCpu = new int[0];
+        private final HashSet<Integer> mGovernors = new HashSet<>();
+        private String mGpuGovernor;
+        private int mDropped;
+        private final FrameWriter mWriter = new FrameWriter();
+
+        Client(final WebSocket socket) {
+            this.socket = socket;
+        }
+
+        void onMessage(final String message) {
+            final String[] parts = message.split("\\|");
+            if ("subscribe".equals(parts[0]) && parts.length == 3) {
+                final int sources;
+                final int interval;
+                try {
+                    sources = Integer.parseInt(parts[1]) & Telemetry.SOURCE_ALL;
+                    interval = Math.min(MAX_INTERVAL,
+                            Math.max(MIN_INTERVAL, Integer.parseInt(parts[2])));
+                } catch (NumberFormatException nfe) {
+                    Logger.w(TAG, "invalid subscription: %s", message);
+                    return;
+                }
+                mSources = sources;
+                // the next frame starts from scratch, the sources may have changed
+                mKeyframe = true;
+                mActive = true;
+                Application.HANDLER.post(new Runnable() {
+                    @Override public void run() {
+                        Telemetry.get().subscribe(Client.this, sources, interval);
+                    }
+                });
+            } else if ("unsubscribe".equals(parts[0])) {
+                stop();
+            }
+        }
+
+        void stop() {
+            mActive = false;
+            Application.HANDLER.post(new Runnable() {
+                @Override public void run() {
+                    Telemetry.get().unsubscribe(Client.this);
+                }
+            });
+            if (mDropped > 0) {
+                Logger.v(TAG, "dropped %s frames of a slow client", mDropped);
+            }
+        }
+
+        @Override public void onTelemetry(final TelemetrySnapshot snapshot) {
+            // the socket belongs to the server thread, only the latest snapshot is of interest
+            mPending = snapshot;
+            if (!mPosted) {
+                mPosted = true;
+                AsyncServer.getDefault().post(this);
+            }
+        }
+
+        @Override public void run() {
+            mPosted = false;
+            final TelemetrySnapshot snapshot = mPending;
+            if (!mActive || snapshot == null || !socket.isOpen()) {
+                return;
+            }
+            if (socket.isBuffering()) {
+                // the client did not take the last frame yet
+                mDropped++;
+                return;
+            }
+
+            sendGovernors(snapshot);
+            socket.send(encode(snapshot));
+        }
+
+        private void sendGovernors(final TelemetrySnapshot snapshot) {
+            if ((mSources & Telemetry.SOURCE_CPU) != 0) {
+                for (int i = 0; i < snapshot.getCpuCoreCount(); i++) {
+                    final int id = snapshot.getCpuGovernorId(i);
+                    if (mGovernors.add(id)) {
+                        socket.send(String.format("governor|%s|%s", id,
+                                snapshot.getCpuGovernor(i)));
+                    }
+                }
+            }
+            if ((mSources & Telemetry.SOURCE_GPU) != 0) {
+                final String gpuGovernor = snapshot.getGpuGovernor();
+                if (gpuGovernor != null && (mKeyframe || !gpuGovernor.equals(mGpuGovernor))) {
+                    socket.send("gpuGovernor|" + gpuGovernor);
+                }
+                mGpuGovernor = gpuGovernor;
+            }
+        }
+
+        private byte[] encode(final TelemetrySnapshot snapshot) {
+            final int cores = snapshot.getCpuCoreCount();
+            if (mKeyframe || mLastCpu.length != cores * 3) {
+                mKeyframe = true;
+                mLastTime = 0;
+                Arrays.fill(mLastValues, 0);
+                mLastCpu = new int[cores * 3];
+            }
+
+            int sources = 0;
+            for (int i = 0; i < SOURCE_VALUES.length; i++) {
+                if ((mSources & (1 << i)) != 0 && snapshot.has(1 << i)) {
+                    sources |= (1 << i);
+                }
+            }
+
+            final FrameWriter writer = mWriter;
+            writer.reset();
+            writer.writeByte(VERSION);
+            writer.writeByte(mKeyframe ? FLAG_KEYFRAME : 0);
+            writer.writeVarint(Math.max(0, snapshot.getTime() - mLastTime));
+            writer.writeVarint(sources);
+            mLastTime = snapshot.getTime();
+
+            for (int i = 0; i < SOURCE_VALUES.length; i++) {
+                if ((sources & (1 << i)) == 0) {
+                    continue;
+                }
+                if ((1 << i) == Telemetry.SOURCE_CPU) {
+                    writer.writeVarint(cores);
+                    for (int core = 0; core < cores; core++) {
+                        writeCpu(writer, core * 3, snapshot.getCpuCurrent(core));
+                        writeCpu(writer, core * 3 + 1, snapshot.getCpuMax(core));
+                        writeCpu(writer, core * 3 + 2, snapshot.getCpuGovernorId(core));
+                    }
+                    continue;
+                }
+                for (final int value : SOURCE_VALUES[i]) {
+                    final long current = snapshot.getValue(value);
+                    writer.writeZigzag(current - mLastValues[value]);
+                    mLastValues[value] = current;
+                }
+            }
+
+            mKeyframe = false;
+            return writer.toByteArray();
+        }
+
+        private void writeCpu(final FrameWriter writer, final int slot, final int value) {
+            writer.writeZigzag(value - mLastCpu[slot]);
+            mLastCpu[slot] = value;
+        }
+    }
+
+    /**
+     * A reusable buffer for frames.
+     */
+    private static class FrameWriter {
+        private byte[] mBytes = new byte[256];
+        private int mLength;
+
+        void reset() {
+            mLength = 0;
+        }
+
+        void writeByte(final int value) {
+            if (mLength == mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            }
+            mBytes[mLength++] = (byte) value;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        void writeZigzag(final long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mLength);
+        }
+    }
+}
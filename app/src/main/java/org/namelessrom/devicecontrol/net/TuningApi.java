@@ -0,0 +1,453 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.net;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.http.body.AsyncHttpRequestBody;
+import com.koushikdutta.async.http.body.JSONObjectBody;
+import com.koushikdutta.async.http.body.StringBody;
+import com.koushikdutta.async.http.body.UrlEncodedFormBody;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.namelessrom.devicecontrol.Device;
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.actions.ActionProcessor;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
+import org.namelessrom.devicecontrol.utils.SysfsHelper;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Versioned json api to read and apply tunables, using the same actions as the task scheduler.
+ * <pre>
+ * GET  /api/v1                  categories with their supported actions
+ * GET  /api/v1/actions/{action} current and allowed values of the action
+ * POST /api/v1/actions/{action} {"value": "...", "boot": false}
+ * POST /api/v1/batch            {"writes": [{"action": "...", "value": "..."}], "boot": false}
+ * GET  /api/device              device information
+ * </pre>
+ * Reads are cached, {@code maxAge} (in milliseconds) tells how old a cached value may be, 0
+ * forces a fresh read. Every write invalidates the cache. All writes of a batch get applied as
+ * one {@link SysfsBatch}, the response holds the result of every single node write.
+ */
+public class TuningApi {
+    private static final String TAG = TuningApi.class.getSimpleName();
+
+    public static final int VERSION = 1;
+
+    private static final String PREFIX = "/api/v" + VERSION;
+    private static final String ACTIONS = PREFIX + "/actions/";
+
+    private static final long DEFAULT_MAX_AGE = 2000;
+    private static final long DEVICE_MAX_AGE = 30000;
+
+    private final ServerWrapper mWrapper;
+
+    // reading may need root, keep it away from the server thread
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // guarded by mCache
+    private final HashMap<String, CachedValue> mCache = new HashMap<>();
+
+    private static class CachedValue {
+        final String value;
+        final long time;
+
+        CachedValue(final String value, final long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private interface Request {
+        /**
+         * Runs on the api thread.
+         *
+         * @return The response
+         */
+        JSONObject run() throws ApiException, JSONException;
+    }
+
+    private static class ApiException extends Exception {
+        final int code;
+
+        ApiException(final int code, final String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    public TuningApi(final ServerWrapper wrapper) {
+        mWrapper = wrapper;
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void register(final AsyncHttpServer server) {
+        server.get("/api", new HttpServerRequestCallback() {
+            @Override public void onRequest(final AsyncHttpServerRequest req,
+                    final AsyncHttpServerResponse res) {
+                res.redirect(PREFIX);
+            }
+        });
+
+        server.get("/api/device", new HttpServerRequestCallback() {
+            @Override public void onRequest(final AsyncHttpServerRequest req,
+                    final AsyncHttpServerResponse res) {
+                // public as it always was, the web interface shows it before logging in
+                respond(res, new Request() {
+                    @Override public JSONObject run() throws JSONException {
+                        final long maxAge = getMaxAge(req, DEVICE_MAX_AGE);
+                        return new JSONObject(read("device", null, maxAge));
+                    }
+                });
+            }
+        });
+
+        server.get(PREFIX, new HttpServerRequestCallback() {
+            @Override public void onRequest(final AsyncHttpServerRequest req,
+                    final AsyncHttpServerResponse res) {
+                handle(req, res, new Request() {
+                    @Override public JSONObject run() throws JSONException {
+                        return listActions();
+                    }
+                });
+            }
+        });
+
+        server.get(ACTIONS + "[^/]+", new HttpServerRequestCallback() {
+            @Override public void onRequest(final AsyncHttpServerRequest req,
+                    final AsyncHttpServerResponse res) {
+                final String action = req.getPath().substring(ACTIONS.length());
+                handle(req, res, new Request() {
+                    @Override public JSONObject run() throws ApiException, JSONException {
+                        return readAction(action, getMaxAge(req, DEFAULT_MAX_AGE));
+                    }
+                });
+            }
+        });
+
+        server.post(ACTIONS + "[^/]+", new HttpServerRequestCallback() {
+            @Override public void onRequest(final AsyncHttpServerRequest req,
+                    final AsyncHttpServerResponse res) {
+                final String action = req.getPath().substring(ACTIONS.length());
+                handle(req, res, new Request() {
+                    @Override public JSONObject run() throws ApiException, JSONException {
+                        final JSONObject body = getBody(req);
+                        final JSONArray writes = new JSONArray();
+                        writes.put(new JSONObject()
+                                .put("action", action)
+                                .put("value", body.optString("value")));
+                        return write(writes, body.optBoolean("boot", false));
+                    }
+                });
+            }
+        });
+
+        server.post(PREFIX + "/batch", new HttpServerRequestCallback() {
+            @Override public void onRequest(final AsyncHttpServerRequest req,
+                    final AsyncHttpServerResponse res) {
+                handle(req, res, new Request() {
+                    @Override public JSONObject run() throws ApiException, JSONException {
+                        final JSONObject body = getBody(req);
+                        final JSONArray writes = body.optJSONArray("writes");
+                        if (writes == null || writes.length() == 0) {
+                            throw new ApiException(400, "no writes");
+                        }
+                        return write(writes, body.optBoolean("boot", false));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops the api thread.
+     */
+    public void stop() {
+        mThread.quit();
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+
+    private void handle(final AsyncHttpServerRequest req, final AsyncHttpServerResponse res,
+            final Request request) {
+        if (!mWrapper.isAuthenticated(req)) {
+            res.getHeaders().add("WWW-Authenticate", "Basic realm=\"DeviceControl\"");
+            res.code(401);
+            res.end();
+            return;
+        }
+        respond(res, request);
+    }
+
+    private void respond(final AsyncHttpServerResponse res, final Request request) {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                int code = 200;
+                JSONObject result;
+                try {
+                    result = request.run();
+                } catch (ApiException ae) {
+                    code = ae.code;
+                    result = error(ae.getMessage());
+                } catch (JSONException je) {
+                    Logger.e(TAG, "invalid json", je);
+                    code = 400;
+                    result = error(je.getMessage());
+                } catch (RuntimeException re) {
+                    // keep the api thread alive, later requests would hang otherwise
+                    Logger.e(TAG, "request failed", re);
+                    code = 500;
+                    result = error(String.valueOf(re.getMessage()));
+                }
+
+                final int responseCode = code;
+                final JSONObject response = result;
+                AsyncServer.getDefault().post(new Runnable() {
+                    @Override public void run() {
+                        res.code(responseCode);
+                        res.send(response);
+                    }
+                });
+            }
+        });
+    }
+
+    private JSONObject listActions() throws JSONException {
+        final JSONArray categories = new JSONArray();
+        for (final ActionProcessor.Entry category : ActionProcessor.getCategories()) {
+            final JSONArray actions = new JSONArray();
+            for (final ActionProcessor.Entry action : ActionProcessor.getActions(category.value)) {
+                actions.put(new JSONObject()
+                        .put("action", action.value)
+                        .put("label", action.name)
+                        .put("href", ACTIONS + action.value));
+            }
+            categories.put(new JSONObject()
+                    .put("category", category.value)
+                    .put("label", category.name)
+                    .put("actions", actions));
+        }
+        return new JSONObject()
+                .put("version", VERSION)
+                .put("categories", categories);
+    }
+
+    private JSONObject readAction(final String action, final long maxAge)
+            throws ApiException, JSONException {
+        final String path = ActionProcessor.getPath(action);
+        if (!getSupportedActions().contains(action)) {
+            throw new ApiException(404, "unknown action: " + action);
+        }
+
+        final JSONArray values = new JSONArray();
+        for (final ActionProcessor.Entry value : ActionProcessor.getValues(action)) {
+            values.put(new JSONObject()
+                    .put("value", value.value)
+                    .put("label", value.name));
+        }
+        final JSONObject result = new JSONObject()
+                .put("action", action)
+                .put("values", values);
+        if (path != null) {
+            result.put("path", path);
+            result.put("value", read(action, path, maxAge));
+        }
+        return result;
+    }
+
+    private JSONObject write(final JSONArray writes, final boolean boot)
+            throws ApiException, JSONException {
+        final HashSet<String> supported = getSupportedActions();
+        final String[] actions = new String[writes.length()];
+        final String[] values = new String[writes.length()];
+        // check everything first, adding an action to the batch already saves it for boot
+        for (int i = 0; i < writes.length(); i++) {
+            final JSONObject write = writes.getJSONObject(i);
+            actions[i] = write.optString("action");
+            values[i] = write.optString("value");
+            if (!supported.contains(actions[i])) {
+                throw new ApiException(404, "unknown action: " + actions[i]);
+            }
+            if (!isAllowedValue(actions[i], values[i])) {
+                throw new ApiException(400, "invalid value for action: " + actions[i]);
+            }
+        }
+
+        final SysfsBatch batch = new SysfsBatch();
+        for (int i = 0; i < actions.length; i++) {
+            if (!ActionProcessor.addToBatch(batch, actions[i], values[i], boot)) {
+                throw new ApiException(400, "invalid value for action: " + actions[i]);
+            }
+        }
+
+        final List<SysfsBatch.Entry> entries = batch.apply();
+        synchronized (mCache) {
+            mCache.clear();
+        }
+
+        final JSONArray results = new JSONArray();
+        for (final SysfsBatch.Entry entry : entries) {
+            results.put(new JSONObject()
+                    .put("path", entry.path)
+                    .put("value", entry.value)
+                    .put("result", SysfsBatch.resultToString(entry.getResult())));
+        }
+        Logger.v(TAG, "applied %s writes, %s failed", entries.size(), batch.getFailedCount());
+        return new JSONObject()
+                .put("success", batch.getFailedCount() == 0)
+                .put("results", results);
+    }
+
+    /**
+     * @return true if the value is one of the values the action offers or, for actions without
+     * a fixed list of values, if it has the format the node takes
+     */
+    private static boolean isAllowedValue(final String action, final String value) {
+        if (!ActionProcessor.isValidValue(action, value)) {
+            return false;
+        }
+        final List<ActionProcessor.Entry> allowed = ActionProcessor.getValues(action);
+        if (allowed.isEmpty()) {
+            return true;
+        }
+        for (final ActionProcessor.Entry entry : allowed) {
+            if (TextUtils.equals(entry.value, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The actions, which are supported by this device
+     */
+    private static HashSet<String> getSupportedActions() {
+        final HashSet<String> actions = new HashSet<>();
+        for (final ActionProcessor.Entry category : ActionProcessor.getCategories()) {
+            for (final ActionProcessor.Entry action : ActionProcessor.getActions(category.value)) {
+                actions.add(action.value);
+            }
+        }
+        return actions;
+    }
+
+    /**
+     * Reads the node or the device information if the path is null, from the cache if the
+     * cached value is recent enough.
+     */
+    private String read(final String key, @Nullable final String path, final long maxAge) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mCache) {
+            final CachedValue cached = mCache.get(key);
+            if (cached != null && now - cached.time <= maxAge) {
+                return cached.value;
+            }
+        }
+
+        String value;
+        if (path == null) {
+            value = Device.get().update().toString();
+        } else {
+            value = SysfsHelper.readOneLine(path);
+            if (value != null) {
+                value = parseSelected(value.trim());
+            }
+        }
+        if (value != null) {
+            synchronized (mCache) {
+                mCache.put(key, new CachedValue(value, now));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Nodes like the io scheduler list all choices and mark the selected one, "noop [cfq]".
+     *
+     * @return The selected choice or the value itself if nothing is marked
+     */
+    private static String parseSelected(final String value) {
+        final int start = value.indexOf('[');
+        final int end = value.indexOf(']', start + 1);
+        if (start >= 0 && end > start) {
+            return value.substring(start + 1, end);
+        }
+        return value;
+    }
+
+    private static long getMaxAge(final AsyncHttpServerRequest req, final long def) {
+        final String maxAge = req.getQuery().getString("maxAge");
+        if (TextUtils.isEmpty(maxAge)) {
+            return def;
+        }
+        try {
+            return Math.max(0, Long.parseLong(maxAge));
+        } catch (NumberFormatException nfe) {
+            return def;
+        }
+    }
+
+    private static JSONObject getBody(final AsyncHttpServerRequest req)
+            throws ApiException, JSONException {
+        final AsyncHttpRequestBody body = req.getBody();
+        if (body instanceof JSONObjectBody) {
+            return ((JSONObjectBody) body).get();
+        }
+        if (body instanceof StringBody) {
+            return new JSONObject(((StringBody) body).get());
+        }
+        if (body instanceof UrlEncodedFormBody) {
+            // allows simple writes like curl -d value=1
+            final JSONObject json = new JSONObject();
+            final UrlEncodedFormBody form = (UrlEncodedFormBody) body;
+            json.put("value", form.get().getString("value"));
+            json.put("boot", Boolean.parseBoolean(form.get().getString("boot")));
+            return json;
+        }
+        throw new ApiException(400, "expected a json body");
+    }
+
+    private static JSONObject error(final String message) {
+        final JSONObject error = new JSONObject();
+        try {
+            error.put("error", message);
+        } catch (JSONException ignored) { }
+        return error;
+    }
+}
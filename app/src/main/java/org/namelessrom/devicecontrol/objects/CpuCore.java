@@ -25,6 +25,7 @@ public class CpuCore {
     public String core;
     public int max;
     public int current;
+    public int governorId;
     public String governor;
 
     public CpuCore(String core, String current, String max, String governor) {
@@ -49,6 +50,17 @@ public class CpuCore {
         return this;
     }
 
+    /**
+     * Updates the sample without parsing, the governor name should be interned.
+     */
+    public CpuCore set(int current, int max, int governorId, String governor) {
+        this.current = current;
+        this.max = max;
+        this.governorId = governorId;
+        this.governor = governor;
+        return this;
+    }
+
     public CpuCore setGovernor(String governor) {
         this.governor = (!TextUtils.isEmpty(governor) ? governor : "0");
         return this;
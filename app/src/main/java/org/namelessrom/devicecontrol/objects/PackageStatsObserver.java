@@ -2,6 +2,7 @@ package org.namelessrom.devicecontrol.objects;
 
 import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageStats;
+import android.os.Handler;
 import android.os.Parcel;
 import android.os.RemoteException;
 
@@ -18,9 +19,18 @@ public class PackageStatsObserver extends IPackageStatsObserver.Stub {
     private static final String DESCRIPTOR = "android.content.pm.IPackageStatsObserver";
 
     private OnPackageStatsListener packageStatsListener;
+    private final Handler handler;
 
     public PackageStatsObserver(final OnPackageStatsListener listener) {
+        this(listener, Application.HANDLER);
+    }
+
+    /**
+     * @param handler The handler to deliver the package stats on
+     */
+    public PackageStatsObserver(final OnPackageStatsListener listener, final Handler handler) {
         packageStatsListener = listener;
+        this.handler = handler;
     }
 
     @Override public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
@@ -49,7 +59,7 @@ public class PackageStatsObserver extends IPackageStatsObserver.Stub {
     @Override public void onGetStatsCompleted(final PackageStats pStats, final boolean success)
             throws RemoteException {
         Logger.v(this, "onGetStatsCompleted(): %s", success);
-        Application.HANDLER.post(new Runnable() {
+        handler.post(new Runnable() {
             @Override
             public void run() {
                 packageStatsListener.onPackageStats(pStats);
@@ -26,6 +26,7 @@ import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.actions.ActionProcessor;
 import org.namelessrom.devicecontrol.models.TaskerConfig;
 import org.namelessrom.devicecontrol.modules.tasker.TaskerItem;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 
 import java.util.List;
 
@@ -55,13 +56,19 @@ public class ScreenReceiver extends BroadcastReceiver {
 
             Logger.v(this, "Items: %s", itemList.size());
 
+            final SysfsBatch batch = new SysfsBatch();
             for (final TaskerItem item : itemList) {
                 Logger.v(this, "Processing: %s | %s | %s", item.name, item.value, item.enabled);
                 if (item.enabled) {
-                    ActionProcessor.getProcessAction(item.name, item.value, false);
+                    ActionProcessor.addToBatch(batch, item.name, item.value, false);
                 }
             }
 
+            if (!batch.isEmpty()) {
+                batch.apply();
+                Logger.v(this, "Writes: %s, failed: %s", batch.size(), batch.getFailedCount());
+            }
+
             return null;
         }
     }
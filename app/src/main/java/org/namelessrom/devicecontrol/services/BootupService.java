@@ -37,6 +37,7 @@ import org.namelessrom.devicecontrol.modules.performance.sub.EntropyFragment;
 import org.namelessrom.devicecontrol.modules.performance.sub.VoltageFragment;
 import org.namelessrom.devicecontrol.objects.BootupItem;
 import org.namelessrom.devicecontrol.utils.AlarmHelper;
+import org.namelessrom.devicecontrol.utils.SysfsBatch;
 import org.namelessrom.devicecontrol.utils.Utils;
 
 import java.io.File;
@@ -118,105 +119,85 @@ public class BootupService extends IntentService {
         //==================================================================================
         // Fields For Reapplying
         //==================================================================================
-        final StringBuilder sbCmd = new StringBuilder();
+        final SysfsBatch batch = new SysfsBatch();
         String cmd;
 
         //==================================================================================
         // Custom Shell Command
         //==================================================================================
-                /*sbCmd.append(PreferenceHelper.getString(CUSTOM_SHELL_COMMAND,
-                        "echo \"Hello world!\""))
-                        .append(";\n");
+                /*batch.addCommand(PreferenceHelper.getString(CUSTOM_SHELL_COMMAND,
+                        "echo \"Hello world!\""));
                 */
         //==================================================================================
         // Device
         //==================================================================================
         Logger.i(this, "----- DEVICE START -----");
-        cmd = DeviceFeatureFragment.restore(bootupConfig);
-        Logger.v(this, cmd);
-        sbCmd.append(cmd);
+        DeviceFeatureFragment.restore(bootupConfig, batch);
         Logger.i(this, "----- DEVICE END -----");
 
         //==================================================================================
         // Performance
         //==================================================================================
         Logger.i(this, "----- CPU START -----");
-        cmd = CpuUtils.get().restore(bootupConfig);
-        Logger.v(this, cmd);
-        sbCmd.append(cmd);
+        CpuUtils.get().restore(bootupConfig, batch);
         Logger.i(this, "----- CPU END -----");
 
         Logger.i(this, "----- GPU START -----");
-        cmd = GpuUtils.get().restore(bootupConfig);
-        Logger.v(this, cmd);
-        sbCmd.append(cmd);
+        GpuUtils.get().restore(bootupConfig, batch);
         Logger.i(this, "----- GPU END -----");
 
         Logger.i(this, "----- EXTRAS START -----");
-        cmd = DeviceFeatureKernelFragment.restore(bootupConfig);
-        Logger.v(this, cmd);
-        sbCmd.append(cmd);
+        DeviceFeatureKernelFragment.restore(bootupConfig, batch);
         Logger.i(this, "----- EXTRAS END -----");
 
         Logger.i(this, "----- VOLTAGE START -----");
         // TODO: FULLY convert to bootup
+        // voltage tables get written line by line to the same file, keep them as plain commands
         cmd = VoltageFragment.restore(bootupConfig);
         Logger.v(this, cmd);
-        sbCmd.append(cmd);
+        batch.addCommand(cmd);
         Logger.i(this, "----- VOLTAGE END -----");
 
         //==================================================================================
         // Tools
         //==================================================================================
         Logger.i(this, "----- TOOLS START -----");
-        cmd = SysctlFragment.restore(bootupConfig);
-        Logger.v(this, cmd);
-        sbCmd.append(cmd);
+        SysctlFragment.restore(bootupConfig, batch);
         if (new File("/system/etc/sysctl.conf").exists()) {
-            sbCmd.append("busybox sysctl -p;\n");
+            batch.addCommand("busybox sysctl -p;\n");
         }
 
         cmd = EntropyFragment.restore();
         if (!TextUtils.isEmpty(cmd)) {
             Logger.v(this, cmd);
-            sbCmd.append(cmd);
+            batch.addCommand(cmd);
         }
         Logger.i(this, "----- TOOLS END -----");
 
         Logger.i(this, "----- SPECIAL START -----");
-        cmd = restoreCategory(bootupConfig, BootupConfig.CATEGORY_INTELLI_HOTPLUG);
-        Logger.v(this, cmd);
-        sbCmd.append(cmd);
-
-        cmd = restoreCategory(bootupConfig, BootupConfig.CATEGORY_MAKO_HOTPLUG);
-        Logger.v(this, cmd);
-        sbCmd.append(cmd);
+        restoreCategory(bootupConfig, BootupConfig.CATEGORY_INTELLI_HOTPLUG, batch);
+        restoreCategory(bootupConfig, BootupConfig.CATEGORY_MAKO_HOTPLUG, batch);
         Logger.i(this, "----- SPECIAL END -----");
 
         //==================================================================================
         // Execute
         //==================================================================================
-        cmd = sbCmd.toString();
-        if (!cmd.isEmpty()) {
-            Utils.runRootCommand(cmd);
+        if (!batch.isEmpty()) {
+            for (final SysfsBatch.Entry entry : batch.apply()) {
+                Logger.v(this, entry.toString());
+            }
+            Logger.i(this, "Restored %s values, %s failed", batch.size(), batch.getFailedCount());
         }
         Logger.i(this, "Bootup Done!");
     }
 
-    private String restoreCategory(BootupConfig config, String category) {
+    private void restoreCategory(BootupConfig config, String category, SysfsBatch batch) {
         final ArrayList<BootupItem> items = config.getItemsByCategory(category);
-        if (items.size() == 0) {
-            return "";
-        }
-
-        final StringBuilder sbCmd = new StringBuilder();
         for (final BootupItem item : items) {
             if (!item.enabled) {
                 continue;
             }
-            sbCmd.append(Utils.getWriteCommand(item.filename, item.value));
+            batch.add(item.filename, item.value);
         }
-
-        return sbCmd.toString();
     }
 }
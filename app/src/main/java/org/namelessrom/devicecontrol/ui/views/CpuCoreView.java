@@ -1,6 +1,10 @@
 package org.namelessrom.devicecontrol.ui.views;
 
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.LinearLayout;
@@ -9,6 +13,9 @@ import android.widget.TextView;
 import com.daimajia.numberprogressbar.NumberProgressBar;
 
 import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.modules.cpu.monitors.CpuCoreHistory;
+import org.namelessrom.devicecontrol.objects.CpuCore;
+import org.namelessrom.devicecontrol.theme.AppResources;
 
 public class CpuCoreView extends LinearLayout {
 
@@ -16,6 +23,18 @@ public class CpuCoreView extends LinearLayout {
     public TextView freq;
     public NumberProgressBar bar;
 
+    private String mCore;
+    private int mCurrent = -1;
+    private int mMax = -1;
+    private int mGovernorId = -1;
+
+    // frequency history, drawn behind the row, the buffers get reused
+    private final Paint mHistoryPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path mHistoryPath = new Path();
+    private int[] mHistoryCurrent;
+    private int[] mHistoryMax;
+    private int mHistoryCount;
+
     public CpuCoreView(final Context context) {
         super(context);
         init(context);
@@ -28,7 +47,73 @@ public class CpuCoreView extends LinearLayout {
         core = (TextView) v.findViewById(R.id.ui_device_title);
         freq = (TextView) v.findViewById(R.id.ui_device_value);
         bar = (NumberProgressBar) v.findViewById(R.id.ui_device_bar);
+
+        final int accent = AppResources.get().getAccentColor();
+        mHistoryPaint.setStyle(Paint.Style.STROKE);
+        mHistoryPaint.setStrokeWidth(context.getResources().getDisplayMetrics().density * 1.5f);
+        mHistoryPaint.setColor(Color.argb(0x60, Color.red(accent), Color.green(accent),
+                Color.blue(accent)));
+        setWillNotDraw(false);
+    }
+
+    /**
+     * Copies the frequency history of the core, to draw it behind the row.
+     */
+    public void setHistory(final CpuCoreHistory history, final int core) {
+        if (core >= history.getCoreCount()) {
+            return;
+        }
+        final int size = history.getSize();
+        if (mHistoryCurrent == null || mHistoryCurrent.length != size) {
+            mHistoryCurrent = new int[size];
+            mHistoryMax = new int[size];
+        }
+        mHistoryCount = history.copySamples(core, mHistoryCurrent, mHistoryMax);
+        invalidate();
     }
 
+    @Override protected void onDraw(final Canvas canvas) {
+        super.onDraw(canvas);
+        if (mHistoryCount < 2) {
+            return;
+        }
+
+        // the newest sample is at the right edge, older ones scroll out to the left
+        final float width = getWidth();
+        final float height = getHeight();
+        final float step = width / (mHistoryCurrent.length - 1);
+        final float start = width - (mHistoryCount - 1) * step;
+
+        mHistoryPath.rewind();
+        for (int i = 0; i < mHistoryCount; i++) {
+            final int max = mHistoryMax[i];
+            final float ratio = (max > 0 ? Math.min(1f, (float) mHistoryCurrent[i] / max) : 0f);
+            final float x = start + i * step;
+            final float y = height - ratio * height;
+            if (i == 0) {
+                mHistoryPath.moveTo(x, y);
+            } else {
+                mHistoryPath.lineTo(x, y);
+            }
+        }
+        canvas.drawPath(mHistoryPath, mHistoryPaint);
+    }
+
+    /**
+     * Remembers the shown sample.
+     *
+     * @return true if the sample differs from the shown one and the view needs to be updated
+     */
+    public boolean update(final CpuCore cpuCore) {
+        if (cpuCore.current == mCurrent && cpuCore.max == mMax
+                && cpuCore.governorId == mGovernorId && cpuCore.core.equals(mCore)) {
+            return false;
+        }
+        mCore = cpuCore.core;
+        mCurrent = cpuCore.current;
+        mMax = cpuCore.max;
+        mGovernorId = cpuCore.governorId;
+        return true;
+    }
 
 }
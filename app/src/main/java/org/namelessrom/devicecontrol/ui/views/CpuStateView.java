@@ -36,7 +36,6 @@ import org.namelessrom.devicecontrol.R;
 import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
 import org.namelessrom.devicecontrol.modules.cpu.monitors.CpuStateMonitor;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,7 +49,10 @@ public class CpuStateView extends LinearLayout implements CpuUtils.StateListener
     private TextView mHeaderTotalStateTime;
     private TextView mStatesWarning;
 
+    private static final int REFRESH_INTERVAL = 1000;
+
     private boolean mUpdatingData = false;
+    private List<CpuStateMonitor.Cluster> mShownClusters;
 
     public CpuStateView(final Context context) { this(context, null); }
 
@@ -65,10 +67,12 @@ public class CpuStateView extends LinearLayout implements CpuUtils.StateListener
 
     public void onResume() {
         Logger.d(this, "onResume");
+        CpuStateMonitor.getInstance().start(this, REFRESH_INTERVAL);
     }
 
     public void onPause() {
         Logger.d(this, "onPause");
+        CpuStateMonitor.getInstance().stop();
     }
 
     public void onDestroy() {
@@ -96,11 +100,7 @@ public class CpuStateView extends LinearLayout implements CpuUtils.StateListener
         @Override protected Void doInBackground(Void... params) {
             if (!mUpdatingData) {
                 mUpdatingData = true;
-                try {
-                    CpuStateMonitor.getInstance().updateStates(CpuStateView.this);
-                } catch (IOException e) {
-                    Logger.e(this, "updateStates()", e);
-                }
+                CpuStateMonitor.getInstance().updateStates(CpuStateView.this);
             }
             return null;
         }
@@ -127,59 +127,125 @@ public class CpuStateView extends LinearLayout implements CpuUtils.StateListener
         return sDur.toString();
     }
 
-    private View generateStateRow(final CpuStateMonitor.CpuState state, final ViewGroup parent,
-            final long totalStateTime) {
-        final LinearLayout view = (LinearLayout) inflate(getContext(), R.layout.row_state, null);
-
-        int per = ((int) ((float) state.duration * 100 / totalStateTime));
-        if (per > 100) { per = 100; } else if (per < 0) { per = 0; }
-
-        final String sFreq;
-        if (state.freq == 0) {
-            sFreq = getContext().getString(R.string.deep_sleep);
-        } else {
-            sFreq = state.freq / 1000 + " MHz";
+    private static class StateRow {
+        public final View view;
+        public final TextView freq;
+        public final TextView duration;
+        public final NumberProgressBar bar;
+        public int frequency;
+
+        public StateRow(final View view) {
+            this.view = view;
+            freq = (TextView) view.findViewById(R.id.ui_freq_text);
+            duration = (TextView) view.findViewById(R.id.ui_duration_text);
+            bar = (NumberProgressBar) view.findViewById(R.id.ui_bar);
         }
+    }
 
-        long tSec = state.duration / 100;
-        final String sDur = toString(tSec);
-
-        final TextView freqText = (TextView) view.findViewById(R.id.ui_freq_text);
-        final TextView durText = (TextView) view.findViewById(R.id.ui_duration_text);
-        final NumberProgressBar bar = (NumberProgressBar) view.findViewById(R.id.ui_bar);
-
-        freqText.setText(sFreq);
-        durText.setText(sDur);
-        bar.setProgress(per);
-
-        parent.addView(view);
-        return view;
+    /**
+     * Fills the state rows with the current times.
+     *
+     * @return false if the rows do not match the states anymore
+     */
+    private boolean bindRows(final List<CpuStateMonitor.Cluster> clusters,
+            final List<String> extraStates) {
+        final boolean showHeaders = clusters.size() > 1;
+        int child = 0;
+        for (final CpuStateMonitor.Cluster cluster : clusters) {
+            if (showHeaders) {
+                child++;
+            }
+            synchronized (cluster) {
+                final int count = cluster.getStateCount();
+                for (int i = 0; i < count; i++) {
+                    final View view = mStatesView.getChildAt(child++);
+                    final Object tag = (view != null ? view.getTag() : null);
+                    if (!(tag instanceof StateRow)
+                            || ((StateRow) tag).frequency != cluster.getFrequency(i)) {
+                        return false;
+                    }
+                    final StateRow row = (StateRow) tag;
+                    final long total = cluster.getTotal(i);
+                    if (total > 0) {
+                        row.view.setVisibility(View.VISIBLE);
+                        row.duration.setText(toString(total / 100));
+                        row.bar.setProgress(cluster.getResidency(i));
+                    } else {
+                        row.view.setVisibility(View.GONE);
+                        extraStates.add(row.freq.getText().toString());
+                    }
+                }
+            }
+        }
+        return true;
     }
 
-    @Override public void onStates(@NonNull final CpuUtils.State states) {
+    /**
+     * Creates the header and state rows of all clusters, only if the layout changed.
+     */
+    private void generateRows(final List<CpuStateMonitor.Cluster> clusters) {
+        int rows = 0;
+        final boolean showHeaders = clusters.size() > 1;
+        for (final CpuStateMonitor.Cluster cluster : clusters) {
+            rows += cluster.getStateCount() + (showHeaders ? 1 : 0);
+        }
+        if (clusters == mShownClusters && rows == mStatesView.getChildCount()) {
+            return;
+        }
         mStatesView.removeAllViews();
+        mShownClusters = clusters;
+
+        final Context context = getContext();
+        for (final CpuStateMonitor.Cluster cluster : clusters) {
+            if (showHeaders) {
+                final TextView header = new TextView(context, null,
+                        android.R.attr.listSeparatorTextViewStyle);
+                header.setText(context.getString(R.string.cpu_cluster,
+                        cluster.firstCpu, cluster.lastCpu));
+                mStatesView.addView(header);
+            }
 
-        final List<String> extraStates = new ArrayList<>();
-        for (CpuStateMonitor.CpuState state : states.states) {
-            if (state.duration > 0) {
-                generateStateRow(state, mStatesView, states.totalTime);
-            } else {
-                if (state.freq == 0) {
-                    extraStates.add(getContext().getString(R.string.deep_sleep));
-                } else {
-                    extraStates.add(state.freq / 1000 + " MHz");
-                }
+            final int count = cluster.getStateCount();
+            for (int i = 0; i < count; i++) {
+                final View view = inflate(context, R.layout.row_state, null);
+                final StateRow row = new StateRow(view);
+                final int freq = cluster.getFrequency(i);
+                row.frequency = freq;
+                row.freq.setText(freq == 0
+                        ? context.getString(R.string.deep_sleep) : freq / 1000 + " MHz");
+                view.setTag(row);
+                mStatesView.addView(view);
             }
         }
+    }
 
-        if (states.states.size() == 0) {
+    @Override public void onStates(@NonNull final CpuUtils.State states) {
+        final List<CpuStateMonitor.Cluster> clusters = states.clusters;
+        if (clusters.size() == 0) {
             mStatesWarning.setVisibility(View.VISIBLE);
             mHeaderTotalStateTime.setVisibility(View.GONE);
             mTotalStateTime.setVisibility(View.GONE);
             mStatesView.setVisibility(View.GONE);
+            return;
+        }
+
+        mStatesWarning.setVisibility(View.GONE);
+        mHeaderTotalStateTime.setVisibility(View.VISIBLE);
+        mTotalStateTime.setVisibility(View.VISIBLE);
+        mStatesView.setVisibility(View.VISIBLE);
+        generateRows(clusters);
+
+        final List<String> extraStates = new ArrayList<>();
+        if (!bindRows(clusters, extraStates)) {
+            // the states changed after the rows got generated, the next sample catches up if
+            // they change again
+            mShownClusters = null;
+            generateRows(clusters);
+            extraStates.clear();
+            bindRows(clusters, extraStates);
         }
 
-        final long totTime = states.totalTime / 100;
+        final long totTime = clusters.get(0).getTotalTime() / 100;
         mTotalStateTime.setText(toString(totTime));
 
         if (extraStates.size() > 0) {
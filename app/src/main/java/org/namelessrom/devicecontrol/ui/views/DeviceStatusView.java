@@ -21,10 +21,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.os.Build;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -36,10 +34,11 @@ import com.daimajia.numberprogressbar.NumberProgressBar;
 
 import org.namelessrom.devicecontrol.Application;
 import org.namelessrom.devicecontrol.R;
-import org.namelessrom.devicecontrol.modules.cpu.CpuUtils;
+import org.namelessrom.devicecontrol.hardware.telemetry.Telemetry;
+import org.namelessrom.devicecontrol.hardware.telemetry.TelemetrySnapshot;
 import org.namelessrom.devicecontrol.utils.Utils;
 
-public class DeviceStatusView extends LinearLayout {
+public class DeviceStatusView extends LinearLayout implements Telemetry.Listener {
 
     private LinearLayout mDeviceInfo;
 
@@ -50,9 +49,6 @@ public class DeviceStatusView extends LinearLayout {
     private boolean mIsAttached = false;
 
     private static final int mInterval = 2000;
-    private static final Handler mHandler = new Handler();
-
-    private static final Object mLockObject = new Object();
 
     public DeviceStatusView(final Context context) { this(context, null); }
 
@@ -73,6 +69,7 @@ public class DeviceStatusView extends LinearLayout {
         if (sticky != null) {
             mBatteryReceiver.onReceive(getContext(), sticky);
         }
+        Telemetry.get().subscribe(this, Telemetry.SOURCE_TEMPERATURE, mInterval);
     }
 
     public void onPause() {
@@ -80,7 +77,7 @@ public class DeviceStatusView extends LinearLayout {
         try {
             getContext().unregisterReceiver(mBatteryReceiver);
         } catch (Exception ignored) { }
-        stopRepeatingTask();
+        Telemetry.get().unsubscribe(this);
     }
 
     private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
@@ -97,8 +94,6 @@ public class DeviceStatusView extends LinearLayout {
         final View view = LayoutInflater.from(context).inflate(R.layout.widget_device_stats, this);
 
         mDeviceInfo = (LinearLayout) view.findViewById(R.id.ui_device_stats_view);
-
-        startRepeatingTask();
     }
 
     private View generateRow(final ViewGroup parent, final String title,
@@ -122,29 +117,17 @@ public class DeviceStatusView extends LinearLayout {
         return view;
     }
 
-    private class UpdateTask extends AsyncTask<Void, Void, Void> {
-
-        private int cpuTemp;
-
-        @Override protected Void doInBackground(Void... voids) {
-            cpuTemp = CpuUtils.get().getCpuTemperature();
-            return null;
-        }
-
-        @Override protected void onPostExecute(Void aVoid) {
-            if (isAttached() && getContext() != null) {
-                mDeviceInfo.removeAllViews();
-                if (cpuTemp != -1) {
-                    generateRow(mDeviceInfo, getContext().getString(R.string.cpu_temperature),
-                            cpuTemp + " °C", "0°C", "100°C", cpuTemp);
-                }
-                generateRow(mDeviceInfo, getContext().getString(R.string.battery_temperature),
-                        ((float) mBatteryTemperature) / 10 + " °C" + mBatteryExtra,
-                        "0°C", "100°C", (mBatteryTemperature / 10));
-
-                mHandler.removeCallbacks(mDeviceUpdater);
-                mHandler.postDelayed(mDeviceUpdater, mInterval);
+    @Override public void onTelemetry(final TelemetrySnapshot snapshot) {
+        if (isAttached() && getContext() != null) {
+            final int cpuTemp = (int) snapshot.getValue(TelemetrySnapshot.CPU_TEMPERATURE);
+            mDeviceInfo.removeAllViews();
+            if (cpuTemp != -1) {
+                generateRow(mDeviceInfo, getContext().getString(R.string.cpu_temperature),
+                        cpuTemp + " °C", "0°C", "100°C", cpuTemp);
             }
+            generateRow(mDeviceInfo, getContext().getString(R.string.battery_temperature),
+                    ((float) mBatteryTemperature) / 10 + " °C" + mBatteryExtra,
+                    "0°C", "100°C", (mBatteryTemperature / 10));
         }
     }
 
@@ -156,20 +139,4 @@ public class DeviceStatusView extends LinearLayout {
         }
     }
 
-    final Runnable mDeviceUpdater = new Runnable() {
-        @Override
-        public void run() {
-            synchronized (mLockObject) {
-                new UpdateTask().execute();
-            }
-        }
-    };
-
-    void startRepeatingTask() {
-        stopRepeatingTask();
-        mDeviceUpdater.run();
-    }
-
-    void stopRepeatingTask() { mHandler.removeCallbacks(mDeviceUpdater); }
-
 }
@@ -56,10 +56,20 @@ public class AppHelper {
      */
     public static void getSize(final PackageManager pm,
             final PackageStatsObserver.OnPackageStatsListener l, final String pkg) {
+        getSize(pm, new PackageStatsObserver(l), pkg);
+    }
+
+    /**
+     * Gets the package stats of the given application and passes them to the observer.
+     *
+     * @param pkg The package name of the application
+     */
+    public static void getSize(final PackageManager pm, final PackageStatsObserver observer,
+            final String pkg) {
         try {
             final Method getPackageSizeInfo = pm.getClass().getMethod("getPackageSizeInfo",
                     String.class, IPackageStatsObserver.class);
-            getPackageSizeInfo.invoke(pm, pkg, new PackageStatsObserver(l));
+            getPackageSizeInfo.invoke(pm, pkg, observer);
         } catch (Exception e) {
             Logger.e(AppHelper.class, "AppHelper.getSize()", e);
         }
@@ -83,50 +93,74 @@ public class AppHelper {
         deleteCacheOrData(pm, pkg, false);
     }
 
+    /**
+     * Asks the package manager to delete the cache files of the given package, which only works
+     * for system apps. Use {@link #getClearCacheCommand(String)} with root as well.
+     *
+     * @param pkg      The package name of the application
+     * @param observer Gets notified once the cache files got deleted, may be null
+     * @return false if the package manager could not be asked, the observer will not get called
+     */
+    public static boolean deleteApplicationCacheFiles(final PackageManager pm, final String pkg,
+            final IPackageDataObserver observer) {
+        return invokeDeleteMethod(pm, pkg, "deleteApplicationCacheFiles", observer);
+    }
+
+    /**
+     * Only the cache directories, the app_* directories are kept, as they hold webview profiles
+     * and databases of some apps.
+     *
+     * @param pkg The package name of the application
+     * @return The root command, which clears the internal and external cache of the package
+     */
+    public static String getClearCacheCommand(final String pkg) {
+        final String internalBase = String.format("rm -rf /data/data/%s", pkg);
+        final String externalBase = String.format("rm -rf %s/Android/data/%s",
+                Environment.getExternalStorageDirectory().getAbsolutePath(), pkg);
+        final String dirs = "%s/cache/*;%s/code_cache/*;";
+        return String.format(dirs, internalBase, internalBase)
+                + String.format(dirs, externalBase, externalBase);
+    }
+
     private static void deleteCacheOrData(PackageManager pm, String pkg, boolean clearCache) {
-        // internal (/data)
-        final String internal;
-        // external (/sdcard/Android)
-        final String external;
-        final String method;
-        final String cmdPrefix;
+        invokeDeleteMethod(pm, pkg,
+                clearCache ? "deleteApplicationCacheFiles" : "clearApplicationUserData", null);
+        Utils.runRootCommand(clearCache ? getClearCacheCommand(pkg) : getClearDataCommand(pkg));
+    }
 
+    private static String getClearDataCommand(String pkg) {
         final String internalBase = String.format("rm -rf /data/data/%s", pkg);
         final String externalBase = String.format("rm -rf %s/Android/data/%s",
                 Environment.getExternalStorageDirectory().getAbsolutePath(), pkg);
 
-        if (clearCache) {
-            // 3 x base
-            final String dirs = "%s/app_*/*;%s/cache/*;%s/code_cache/*;";
-            method = "deleteApplicationCacheFiles";
-            cmdPrefix = "";
-
-            internal = String.format(dirs, internalBase, internalBase, internalBase);
-            external = String.format(dirs, externalBase, externalBase, externalBase);
-        } else {
-            // 5 x base
-            final String dirs = "%s/app_*;%s/cache;%s/databases;%s/files;%s/shared_prefs;";
-            method = "clearApplicationUserData";
-            cmdPrefix = String.format("pkill -TERM %s;", pkg);
-
-            internal = String.format(dirs, internalBase, internalBase, internalBase, internalBase,
-                    internalBase);
-            external = String.format(dirs, externalBase, externalBase, externalBase, externalBase,
-                    externalBase);
-        }
+        // 5 x base
+        final String dirs = "%s/app_*;%s/cache;%s/databases;%s/files;%s/shared_prefs;";
+        final String cmdPrefix = String.format("pkill -TERM %s;", pkg);
+
+        // internal (/data)
+        final String internal = String.format(dirs, internalBase, internalBase, internalBase,
+                internalBase, internalBase);
+        // external (/sdcard/Android)
+        final String external = String.format(dirs, externalBase, externalBase, externalBase,
+                externalBase, externalBase);
 
         Logger.d(TAG, "internal -> %s", internal);
         Logger.d(TAG, "external -> %s", external);
 
+        return cmdPrefix + internal + external;
+    }
+
+    private static boolean invokeDeleteMethod(PackageManager pm, String pkg, String method,
+            IPackageDataObserver observer) {
         try {
             final Method m = pm.getClass().getDeclaredMethod(method,
                     String.class, IPackageDataObserver.class);
-            m.invoke(pm, pkg, null);
+            m.invoke(pm, pkg, observer);
+            return true;
         } catch (Exception e) {
             Logger.e(TAG, "could not call " + method + " via reflection", e);
+            return false;
         }
-
-        Utils.runRootCommand(cmdPrefix + internal + external);
     }
 
     public static void uninstallPackage(PackageManager pm, String pkg) {
@@ -45,6 +45,7 @@ public class ContentTypes {
         mContentTypes.put("deb", "application/x-debian-package");
         mContentTypes.put("doc", "application/msword");
         mContentTypes.put("dot", "application/msword");
+        mContentTypes.put("eot", "application/vnd.ms-fontobject");
         mContentTypes.put("exe", "application/octet-stream");
         mContentTypes.put("flv", "video/x-flv");
         mContentTypes.put("gif", "image/gif");
@@ -65,6 +66,7 @@ public class ContentTypes {
         mContentTypes.put("mp4", "video/mp4");
         mContentTypes.put("mpeg", "video/mpeg");
         mContentTypes.put("ogg", "audio/ogg");
+        mContentTypes.put("otf", "application/x-font-opentype");
         mContentTypes.put("pdf", "application/pdf");
         mContentTypes.put("png", "image/png");
         mContentTypes.put("ppt", "application/powerpoint");
@@ -72,6 +74,7 @@ public class ContentTypes {
         mContentTypes.put("rss", "application/rss+xml");
         mContentTypes.put("rtf", "application/rtf");
         mContentTypes.put("shtml", "text/html");
+        mContentTypes.put("svg", "image/svg+xml");
         mContentTypes.put("swf", "application/x-shockwave-flash");
         mContentTypes.put("tar", "application/x-tar");
         mContentTypes.put("tgz", "application/x-compressed");
@@ -81,6 +84,7 @@ public class ContentTypes {
         mContentTypes.put("wav", "audio/wav");
         mContentTypes.put("webm", "video/webm");
         mContentTypes.put("wmv", "video/x-ms-wmv");
+        mContentTypes.put("woff", "application/font-woff");
         mContentTypes.put("xhtml", "application/xhtml+xml");
         mContentTypes.put("xml", "application/rss+xml");
         mContentTypes.put("zip", "application/zip");
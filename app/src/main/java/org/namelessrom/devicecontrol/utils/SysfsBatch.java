@@ -0,0 +1,367 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.utils;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.namelessrom.devicecontrol.Logger;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.CommandResult;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.ShellPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects sysfs / procfs writes and applies them as one transaction.
+ * <p/>
+ * Writes to the same node get merged, the last value wins. Cpu core online writes are applied
+ * right before the first write to a node of that core, as writes to the nodes of an offline core
+ * would fail, online writes of cores without other writes come first. Writes are done
+ * directly as long as possible, as soon as one needs root, it and all following writes get
+ * sent to the root shell as one single command, which reports the result of every write.
+ */
+public class SysfsBatch {
+    private static final String TAG = SysfsBatch.class.getSimpleName();
+
+    public static final int RESULT_PENDING = -1;
+
+    private static final String MARKER = "@sysfs:";
+    private static final String CPU_CORE_PREFIX = "/sys/devices/system/cpu/cpu";
+
+    public interface Callback {
+        /**
+         * Gets called once all writes got applied. If writes had to be sent to the root shell,
+         * this gets called from the shell's output thread.
+         */
+        void onBatchApplied(SysfsBatch batch);
+    }
+
+    public static class Entry {
+        public final String path;
+        public final String value;
+        public final boolean lock;
+        /** Gets written right before the value, may be null */
+        @Nullable public final String reset;
+
+        private volatile int result = RESULT_PENDING;
+
+        private Entry(final String path, final String value, final boolean lock,
+                @Nullable final String reset) {
+            this.path = path;
+            this.value = value;
+            this.lock = lock;
+            this.reset = reset;
+        }
+
+        /**
+         * @return One of {@link SysfsHelper#WRITE_OK}, {@link SysfsHelper#WRITE_DENIED},
+         * {@link SysfsHelper#WRITE_MISSING}, {@link SysfsHelper#WRITE_REJECTED} or
+         * {@link #RESULT_PENDING} if the batch has not been applied yet
+         */
+        public int getResult() { return result; }
+
+        public boolean isOk() { return result == SysfsHelper.WRITE_OK; }
+
+        @Override public String toString() {
+            return String.format("%s -> %s (lock: %s, result: %s)", value, path, lock,
+                    resultToString(result));
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+    private final ArrayList<String> mCommands = new ArrayList<>();
+
+    private List<Entry> mApplied;
+
+    public SysfsBatch add(final String path, final String value) {
+        return add(path, value, false);
+    }
+
+    /**
+     * Adds the write, replacing an earlier write to the same path.
+     *
+     * @param lock Whether the file should be made read only after writing to it
+     */
+    public SysfsBatch add(final String path, final String value, final boolean lock) {
+        return add(new Entry(path, value, lock, null));
+    }
+
+    /**
+     * Adds the write, which writes the reset value first and the value right after it, like
+     * taking a cpu core offline and back online again. Replaces an earlier write to the same path.
+     */
+    public SysfsBatch addWithReset(final String path, final String reset, final String value) {
+        return add(new Entry(path, value, false, reset));
+    }
+
+    private SysfsBatch add(final Entry entry) {
+        if (TextUtils.isEmpty(entry.path) || entry.value == null) {
+            return this;
+        }
+        // remove first, so the write moves to its new position
+        mEntries.remove(entry.path);
+        mEntries.put(entry.path, entry);
+        return this;
+    }
+
+    /**
+     * Adds a shell command, which gets run as root after all writes, for everything which is
+     * not a plain write to a file, like starting or stopping services.
+     */
+    public SysfsBatch addCommand(final String command) {
+        if (!TextUtils.isEmpty(command)) {
+            mCommands.add(command);
+        }
+        return this;
+    }
+
+    public boolean isEmpty() { return mEntries.isEmpty() && mCommands.isEmpty(); }
+
+    public int size() { return mEntries.size(); }
+
+    /**
+     * @return The writes in the order they get applied
+     */
+    public List<Entry> getEntries() {
+        final LinkedHashMap<String, Entry> online = new LinkedHashMap<>();
+        for (final Entry entry : mEntries.values()) {
+            final String core = getCorePrefix(entry.path);
+            if (core != null && entry.path.equals(core + "online")) {
+                online.put(core, entry);
+            }
+        }
+
+        final ArrayList<Entry> others = new ArrayList<>(mEntries.size());
+        for (final Entry entry : mEntries.values()) {
+            final String core = getCorePrefix(entry.path);
+            if (core == null) {
+                others.add(entry);
+            } else if (!entry.path.equals(core + "online")) {
+                // bring the core online right before its first write
+                final Entry onlineEntry = online.remove(core);
+                if (onlineEntry != null) {
+                    others.add(onlineEntry);
+                }
+                others.add(entry);
+            }
+        }
+
+        final ArrayList<Entry> entries = new ArrayList<>(online.values());
+        entries.addAll(others);
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Nullable public Entry getEntry(final String path) { return mEntries.get(path); }
+
+    /**
+     * @return The amount of writes, which did not succeed
+     */
+    public int getFailedCount() {
+        int failed = 0;
+        for (final Entry entry : mEntries.values()) {
+            if (!entry.isOk()) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Applies all writes and blocks until the root shell, if needed, reported back.
+     *
+     * @return The writes in the order they got applied, with their results
+     */
+    public List<Entry> apply() {
+        final String rootCmd = prepare();
+        if (rootCmd != null) {
+            final CommandResult result = ShellPool.get().run(rootCmd);
+            parseResults(result);
+        }
+        logResults();
+        return mApplied;
+    }
+
+    /**
+     * Applies all writes without waiting for the root shell.
+     *
+     * @param callback The callback to notify once all writes got applied, may be null
+     */
+    public void applyAsync(@Nullable final Callback callback) {
+        final String rootCmd = prepare();
+        if (rootCmd == null) {
+            logResults();
+            if (callback != null) {
+                callback.onBatchApplied(this);
+            }
+            return;
+        }
+
+        ShellPool.get().submit(rootCmd, new ShellPool.Callback() {
+            @Override public void onCommandResult(final CommandResult result) {
+                parseResults(result);
+                logResults();
+                if (callback != null) {
+                    callback.onBatchApplied(SysfsBatch.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Does all direct writes and builds the root command for the rest.
+     *
+     * @return The root command or null if everything could be written directly
+     */
+    @Nullable private String prepare() {
+        mApplied = getEntries();
+
+        final StringBuilder rootCmd = new StringBuilder();
+        final StringBuilder lockCmd = new StringBuilder();
+        boolean needsRoot = false;
+
+        final int size = mApplied.size();
+        for (int i = 0; i < size; i++) {
+            final Entry entry = mApplied.get(i);
+
+            if (!needsRoot) {
+                // a rejected reset, like taking cpu0 offline, must not keep the value back
+                final int reset = (entry.reset != null
+                        ? SysfsHelper.writeDirect(entry.path, entry.reset) : SysfsHelper.WRITE_OK);
+                entry.result = (reset == SysfsHelper.WRITE_DENIED ? reset
+                        : SysfsHelper.writeDirect(entry.path, entry.value));
+                if (entry.result != SysfsHelper.WRITE_DENIED) {
+                    if (entry.result == SysfsHelper.WRITE_OK && entry.lock) {
+                        lockCmd.append(Utils.lockFile(entry.path)).append('\n');
+                    }
+                    continue;
+                }
+                // keep the order intact, everything from here on goes through root
+                needsRoot = true;
+            }
+
+            entry.result = RESULT_PENDING;
+            rootCmd.append(getCheckedWriteCommand(i, entry));
+        }
+
+        rootCmd.append(lockCmd);
+        for (final String command : mCommands) {
+            rootCmd.append(command);
+            if (!command.endsWith("\n")) {
+                rootCmd.append('\n');
+            }
+        }
+        return (rootCmd.length() > 0 ? rootCmd.toString() : null);
+    }
+
+    private static String getCheckedWriteCommand(final int index, final Entry entry) {
+        // path and value may come from outside, quote them so the shell never interprets them
+        final String path = Utils.shellQuote(entry.path);
+        final String value = Utils.shellQuote(entry.value);
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("if [ -e %s ]; then\n", path));
+        sb.append(String.format("busybox chmod 644 %s;\n", path));
+        if (entry.reset != null) {
+            sb.append(String.format("busybox echo %s > %s;\n", Utils.shellQuote(entry.reset),
+                    path));
+        }
+        sb.append(String.format("if busybox echo %s > %s; then echo \"%s%s:%s\";",
+                value, path, MARKER, index, SysfsHelper.WRITE_OK));
+        sb.append(String.format(" else echo \"%s%s:%s\"; fi;\n",
+                MARKER, index, SysfsHelper.WRITE_REJECTED));
+        if (entry.lock) {
+            sb.append(Utils.lockFile(entry.path)).append('\n');
+        }
+        sb.append(String.format("else echo \"%s%s:%s\"; fi;\n",
+                MARKER, index, SysfsHelper.WRITE_MISSING));
+        return sb.toString();
+    }
+
+    private void parseResults(final CommandResult result) {
+        final String output = (result != null ? result.getStdout() : null);
+        if (!TextUtils.isEmpty(output)) {
+            for (final String line : output.split("\n")) {
+                if (!line.startsWith(MARKER)) {
+                    continue;
+                }
+                final String[] parts = line.substring(MARKER.length()).trim().split(":");
+                if (parts.length != 2) {
+                    continue;
+                }
+                try {
+                    final int index = Integer.parseInt(parts[0]);
+                    if (index >= 0 && index < mApplied.size()) {
+                        mApplied.get(index).result = Integer.parseInt(parts[1]);
+                    }
+                } catch (NumberFormatException nfe) {
+                    Logger.w(TAG, "could not parse result -> %s", line);
+                }
+            }
+        }
+
+        // the shell died or root got denied before it could report back
+        for (final Entry entry : mApplied) {
+            if (entry.result == RESULT_PENDING) {
+                entry.result = SysfsHelper.WRITE_DENIED;
+            }
+        }
+    }
+
+    private void logResults() {
+        for (final Entry entry : mApplied) {
+            if (!entry.isOk()) {
+                Logger.w(TAG, "write failed: %s", entry);
+            }
+        }
+    }
+
+    /**
+     * @return The directory of the cpu core, like "/sys/devices/system/cpu/cpu1/", the path
+     * belongs to or null if it does not belong to a single core
+     */
+    @Nullable private static String getCorePrefix(final String path) {
+        if (!path.startsWith(CPU_CORE_PREFIX)) {
+            return null;
+        }
+        int end = CPU_CORE_PREFIX.length();
+        while (end < path.length() && Character.isDigit(path.charAt(end))) {
+            end++;
+        }
+        if (end == CPU_CORE_PREFIX.length() || end >= path.length() || path.charAt(end) != '/') {
+            return null;
+        }
+        return path.substring(0, end + 1);
+    }
+
+    public static String resultToString(final int result) {
+        switch (result) {
+            case SysfsHelper.WRITE_OK:
+                return "ok";
+            case SysfsHelper.WRITE_DENIED:
+                return "denied";
+            case SysfsHelper.WRITE_MISSING:
+                return "missing";
+            case SysfsHelper.WRITE_REJECTED:
+                return "rejected";
+            default:
+                return "pending";
+        }
+    }
+}
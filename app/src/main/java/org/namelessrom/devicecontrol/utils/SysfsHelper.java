@@ -0,0 +1,185 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.utils;
+
+import android.support.annotation.Nullable;
+
+import org.namelessrom.devicecontrol.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads and writes sysfs / procfs nodes directly if we are allowed to and only falls back to a
+ * root shell if direct access got denied. Paths, which got denied once, are remembered and go
+ * to the root shell straight away.
+ */
+public class SysfsHelper {
+    private static final String TAG = SysfsHelper.class.getSimpleName();
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final Set<String> sRootRead =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final Set<String> sRootWrite =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    };
+
+    public static final int WRITE_OK = 0;
+    public static final int WRITE_DENIED = 1;
+    public static final int WRITE_MISSING = 2;
+    public static final int WRITE_REJECTED = 3;
+
+    /**
+     * Reads the first line of the file, directly if possible, else via root.
+     *
+     * @param path The file to read from
+     * @return The first line without the line break OR null if it could not be read
+     */
+    @Nullable public static String readOneLine(final String path) {
+        if (!sRootRead.contains(path)) {
+            try {
+                return readOneLineDirect(path);
+            } catch (FileNotFoundException fnfe) {
+                if (!new File(path).exists()) {
+                    return null;
+                }
+                Logger.w(TAG, "file exists but can not be read, using root from now on -> %s",
+                        path);
+                sRootRead.add(path);
+            } catch (IOException ioe) {
+                Logger.e(TAG, "could not read file: " + path, ioe);
+            }
+        }
+
+        final String output = Utils.readFileViaShell(path, true);
+        if (output == null) {
+            return null;
+        }
+        final int lineEnd = output.indexOf('\n');
+        return (lineEnd == -1 ? output : output.substring(0, lineEnd));
+    }
+
+    private static String readOneLineDirect(final String path) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            ByteBuffer buffer = sBuffer.get();
+            buffer.clear();
+            int lineEnd = 0;
+
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    // rare, only for long lines, the thread's buffer stays small
+                    final ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+                final int read = channel.read(buffer);
+                if (read <= 0) {
+                    break;
+                }
+
+                final byte[] bytes = buffer.array();
+                final int end = buffer.position();
+                while (lineEnd < end && bytes[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd < end) {
+                    break;
+                }
+            }
+            // decode once, chunks could split multi byte characters
+            return new String(buffer.array(), 0, lineEnd, CHARSET);
+        } finally {
+            Utils.closeQuietly(file);
+        }
+    }
+
+    /**
+     * Writes the value directly to the file, without falling back to root.
+     *
+     * @return One of {@link #WRITE_OK}, {@link #WRITE_DENIED}, {@link #WRITE_MISSING} or
+     * {@link #WRITE_REJECTED}
+     */
+    public static int writeDirect(final String path, final String value) {
+        if (sRootWrite.contains(path)) {
+            return WRITE_DENIED;
+        }
+
+        final FileOutputStream fos;
+        try {
+            fos = new FileOutputStream(path);
+        } catch (FileNotFoundException fnfe) {
+            if (!new File(path).exists()) {
+                return WRITE_MISSING;
+            }
+            Logger.v(TAG, "can not write directly, using root from now on -> %s", path);
+            sRootWrite.add(path);
+            return WRITE_DENIED;
+        }
+
+        try {
+            fos.getChannel().write(ByteBuffer.wrap(value.getBytes(CHARSET)));
+            return WRITE_OK;
+        } catch (IOException ioe) {
+            // opening worked, the kernel did not like the value
+            Logger.w(TAG, "value rejected: %s -> %s (%s)", value, path, ioe.getMessage());
+            return WRITE_REJECTED;
+        } finally {
+            Utils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Writes the value directly if possible and queues it for the root shell else, without
+     * waiting for the root shell, so it is safe to call from the main thread.
+     *
+     * @return true if the value got written directly, false if it got queued for root or the
+     * direct write failed
+     */
+    public static boolean write(final String path, final String value) {
+        final SysfsBatch batch = new SysfsBatch().add(path, value);
+        batch.applyAsync(null);
+        final SysfsBatch.Entry entry = batch.getEntry(path);
+        return entry != null && entry.isOk();
+    }
+
+    /**
+     * @return true if writing to the path is known to require root
+     */
+    public static boolean needsRoot(final String path) {
+        return sRootWrite.contains(path);
+    }
+}
@@ -36,17 +36,18 @@ import org.namelessrom.devicecontrol.Application;
 import org.namelessrom.devicecontrol.DeviceConstants;
 import org.namelessrom.devicecontrol.Logger;
 import org.namelessrom.devicecontrol.R;
+import org.namelessrom.devicecontrol.hardware.CapabilityIndex;
 import org.namelessrom.devicecontrol.models.TaskerConfig;
 import org.namelessrom.devicecontrol.modules.tasker.TaskerItem;
 import org.namelessrom.devicecontrol.objects.ShellOutput;
 import org.namelessrom.devicecontrol.services.TaskerService;
 import org.namelessrom.devicecontrol.utils.cmdprocessor.CMDProcessor;
+import org.namelessrom.devicecontrol.utils.cmdprocessor.ShellPool;
 
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -145,25 +146,8 @@ public class Utils {
 
     @Nullable public static String readOneLine(final String sFile, final boolean trim) {
         if (fileExists(sFile)) {
-            FileReader fileReader = null;
-            BufferedReader brBuffer = null;
-            try {
-                fileReader = new FileReader(sFile);
-                brBuffer = new BufferedReader(fileReader, 512);
-
-                final String value = brBuffer.readLine();
-                return ((trim && value != null) ? value.trim() : value);
-            } catch (Exception e) {
-                if (e instanceof FileNotFoundException) {
-                    Logger.w(TAG, "file exists but can not be read, trying with root");
-                } else {
-                    Logger.e(TAG, "could not read file: " + sFile, e);
-                }
-                return readFileViaShell(sFile, true);
-            } finally {
-                Utils.closeQuietly(brBuffer);
-                Utils.closeQuietly(fileReader);
-            }
+            final String value = SysfsHelper.readOneLine(sFile);
+            return ((trim && value != null) ? value.trim() : value);
         } else {
             Logger.w(TAG, "File does not exist or is not readable -> %s", sFile);
         }
@@ -205,44 +189,26 @@ public class Utils {
     public static String readFileViaShell(final String filePath, final boolean useSu) {
         final String command = String.format("cat %s;", filePath);
         return useSu
-                ? CMDProcessor.runSuCommand(command).getStdout()
+                ? ShellPool.get().run(command).getStdout()
                 : CMDProcessor.runShellCommand(command).getStdout();
     }
 
     /**
-     * Write a string value to the specified file.
+     * Write a string value to the specified file, without waiting for the root shell if the
+     * value can not be written directly.
      *
      * @param filename The filename
      * @param value    The value
+     * @return false if the value could not be written directly
      */
     public static boolean writeValue(final String filename, final String value) {
+        //noinspection SimplifiableIfStatement
         if (fileExists(filename)) {
-            try {
-                final FileWriter fw = new FileWriter(filename);
-                //noinspection TryFinallyCanBeTryWithResources
-                try {
-                    fw.write(value);
-                } finally {
-                    Utils.closeQuietly(fw);
-                }
-            } catch (IOException ignored) {
-                writeValueViaShell(filename, value);
-                return false;
-            }
+            return SysfsHelper.write(filename, value);
         }
         return true;
     }
 
-    /**
-     * Fallback if everything fails
-     *
-     * @param filename The file to write
-     * @param value    The value to write
-     */
-    private static void writeValueViaShell(final String filename, final String value) {
-        runRootCommand(Utils.getWriteCommand(filename, value));
-    }
-
     /**
      * Check if the specified file exists.
      *
@@ -271,14 +237,14 @@ public class Utils {
     /**
      * Checks if the given paths in a string array are existing and returns the existing path.
      *
+     * The result is taken from the {@link CapabilityIndex}, so every path gets probed only
+     * once per boot.
+     *
      * @param paths The string array, containing the file paths
      * @return The path of the existing file as string
      */
     public static String checkPaths(final String[] paths) {
-        for (final String s : paths) {
-            if (fileExists(s)) { return s; }
-        }
-        return "";
+        return CapabilityIndex.get().checkPaths(paths);
     }
 
     /**
@@ -359,11 +325,11 @@ public class Utils {
     }
 
     public static String execute(final String command) {
-        return new CMDProcessor().su.runWaitFor(command).stdout;
+        return ShellPool.get().run(command).getStdout();
     }
 
     public static String getCommandResult(final String command, final String def) {
-        String result = new CMDProcessor().su.runWaitFor(command).stdout;
+        String result = ShellPool.get().run(command).getStdout();
         if (result == null) {
             return def;
         }
@@ -379,19 +345,17 @@ public class Utils {
      * Runs a shell command with root (super user) rights
      *
      * @param command The command to run
-     * @param wait    If true, this command is blocking until execution finished
+     * @param wait    If true, this command is blocking until execution finished or timed out
      */
     public static void runRootCommand(final String command, final boolean wait) {
         Logger.v("runRootCommand", "executing -> %s", command);
         final CommandCapture comm = new CommandCapture(0, command);
+        if (wait) {
+            ShellPool.get().runAndWait(comm, RootTools.default_Command_Timeout);
+            return;
+        }
         try {
-            RootTools.getShell(true).add(comm);
-            if (wait) {
-                //noinspection StatementWithEmptyBody
-                while (comm.isExecuting()) {
-                    // wait for it
-                }
-            }
+            ShellPool.get().add(comm);
         } catch (Exception e) {
             Logger.v(Utils.class, "runRootCommand", e);
         }
@@ -431,7 +395,7 @@ public class Utils {
             }
         };
         try {
-            RootTools.getShell(true).add(comm);
+            ShellPool.get().add(comm);
         } catch (Exception e) {
             Logger.v(Utils.class, "runRootCommand: " + e.getMessage());
         }
@@ -447,7 +411,14 @@ public class Utils {
     }
 
     public static String lockFile(String path) {
-        return String.format("busybox chmod 444 %s;", path);
+        return String.format("busybox chmod 444 %s;", shellQuote(path));
+    }
+
+    /**
+     * Quotes the argument for the shell, nothing inside of it gets interpreted.
+     */
+    public static String shellQuote(final String arg) {
+        return '\'' + arg.replace("'", "'\\''") + '\'';
     }
 
     public static void toggleComponent(final ComponentName component, final boolean disable) {
@@ -610,6 +581,22 @@ public class Utils {
         } catch (IOException ignored) { }
     }
 
+    /**
+     * Deletes the file or the directory with everything inside of it.
+     *
+     * @return true if everything got deleted
+     */
+    public static boolean deleteRecursive(final File file) {
+        boolean success = true;
+        final File[] files = file.isDirectory() ? file.listFiles() : null;
+        if (files != null) {
+            for (final File child : files) {
+                success &= deleteRecursive(child);
+            }
+        }
+        return file.delete() && success;
+    }
+
     public static boolean writeToFile(final File file, final String content) {
         FileWriter fw = null;
         try {
@@ -45,9 +45,7 @@ public final class CMDProcessor {
     }
 
     public static CommandResult runSuCommand(String cmd) {
-        ChildProcess proc = startSuCommand(cmd);
-        proc.waitFinished();
-        return proc.getResult();
+        return ShellPool.get().run(cmd);
     }
 
     public class CommandResult2 {
@@ -117,6 +115,14 @@ public final class CMDProcessor {
         }
 
         public CommandResult2 runWaitFor(final String s) {
+            if ("su".equals(SHELL)) {
+                // no need to spawn a new su process, reuse the pooled root shells
+                final CommandResult result = ShellPool.get().run(s);
+                final String stdout = result.getStdout();
+                return new CommandResult2(result.getExitValue(),
+                        stdout.isEmpty() ? null : stdout, null);
+            }
+
             final Process process = run(s);
             Integer exit_value = null;
             String stdout = null;
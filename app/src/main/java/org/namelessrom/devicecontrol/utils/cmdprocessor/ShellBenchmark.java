@@ -0,0 +1,99 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.utils.cmdprocessor;
+
+import android.support.annotation.Nullable;
+
+import com.stericson.roottools.execution.Command;
+import com.stericson.roottools.execution.CommandCapture;
+import com.stericson.roottools.execution.Shell;
+
+import org.namelessrom.devicecontrol.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stress test for a single root shell, floods it with no-op commands and measures
+ * how many of them it can get through per second.
+ */
+public class ShellBenchmark {
+    private static final String TAG = ShellBenchmark.class.getSimpleName();
+
+    public static final int DEFAULT_COMMANDS = 500;
+
+    public static class Result {
+        public final int commands;
+        public final long enqueueNanos;
+        public final long totalNanos;
+
+        private Result(final int commands, final long enqueueNanos, final long totalNanos) {
+            this.commands = commands;
+            this.enqueueNanos = enqueueNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        public long getCommandsPerSecond() {
+            if (totalNanos <= 0) return 0;
+            return (commands * TimeUnit.SECONDS.toNanos(1)) / totalNanos;
+        }
+
+        @Override public String toString() {
+            return String.format("%s commands in %s ms (%s/s), enqueued in %s us",
+                    commands, TimeUnit.NANOSECONDS.toMillis(totalNanos),
+                    getCommandsPerSecond(), TimeUnit.NANOSECONDS.toMicros(enqueueNanos));
+        }
+    }
+
+    /**
+     * Runs the benchmark on a dedicated root shell, blocks until it is done.
+     *
+     * @param commands The amount of commands to run
+     * @return The result or null if the shell could not be opened or did not finish in time
+     */
+    @Nullable public static Result run(final int commands) {
+        Shell shell = null;
+        try {
+            shell = Shell.startPooledRootShell(25000, 3);
+
+            final Command[] queued = new Command[commands];
+            final long start = System.nanoTime();
+            for (int i = 0; i < commands; i++) {
+                queued[i] = shell.add(new CommandCapture(i, ":"));
+            }
+            final long enqueued = System.nanoTime();
+
+            // commands finish in order, waiting for the last one is enough
+            if (!queued[commands - 1].waitForFinish(TimeUnit.MINUTES.toMillis(1))) {
+                Logger.w(TAG, "benchmark timed out");
+                return null;
+            }
+            final Result result = new Result(commands, enqueued - start, System.nanoTime() - start);
+            Logger.i(TAG, result.toString());
+            return result;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Logger.e(TAG, "could not run benchmark", e);
+        } finally {
+            if (shell != null) {
+                shell.close();
+            }
+        }
+        return null;
+    }
+}
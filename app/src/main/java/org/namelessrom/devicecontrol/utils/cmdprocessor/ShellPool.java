@@ -0,0 +1,344 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.namelessrom.devicecontrol.utils.cmdprocessor;
+
+import com.stericson.roottools.RootTools;
+import com.stericson.roottools.exceptions.RootDeniedException;
+import com.stericson.roottools.execution.Command;
+import com.stericson.roottools.execution.CommandCapture;
+import com.stericson.roottools.execution.Shell;
+
+import org.namelessrom.devicecontrol.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a small pool of long living root shells around and dispatches commands to the least
+ * busy one, which saves us from spawning a new su process for every single command.
+ */
+public class ShellPool {
+    private static final String TAG = ShellPool.class.getSimpleName();
+
+    private static final int POOL_SIZE = 2;
+    private static final int SHELL_TIMEOUT = 25000;
+
+    public interface Callback {
+        /**
+         * Gets called from the shell's output thread once the command finished or got terminated.
+         */
+        void onCommandResult(CommandResult result);
+    }
+
+    private static ShellPool sInstance;
+
+    private final Shell[] mShells = new Shell[POOL_SIZE];
+    // slots, which got reserved while their shell is being opened, guarded by this
+    private final boolean[] mOpening = new boolean[POOL_SIZE];
+
+    private final AtomicLong mCommandCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mTotalLatency = new AtomicLong();
+    private final AtomicLong mMaxLatency = new AtomicLong();
+
+    private ShellPool() { }
+
+    public static synchronized ShellPool get() {
+        if (sInstance == null) {
+            sInstance = new ShellPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Adds the command to the least busy root shell of the pool.
+     *
+     * @param command The command to add
+     * @return The added command
+     */
+    public <T extends Command> T add(final T command)
+            throws IOException, TimeoutException, RootDeniedException {
+        obtainShell().add(command);
+        return command;
+    }
+
+    /**
+     * Runs the command and blocks until it finished, stderr gets discarded.
+     *
+     * @param command The command to run
+     * @return The result of the command, the exit value is -1 if it could not be run
+     */
+    public CommandResult run(final String command) {
+        return run(command, RootTools.default_Command_Timeout);
+    }
+
+    /**
+     * Runs the command and blocks until it finished or the timeout expired, stderr gets discarded.
+     *
+     * @param command The command to run
+     * @param timeout The timeout in milliseconds
+     * @return The result of the command, the exit value is -1 if it could not be run in time
+     */
+    public CommandResult run(final String command, final long timeout) {
+        final PooledCommand cmd = (PooledCommand) submit(command);
+        try {
+            return cmd.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException te) {
+            Logger.w(TAG, "timed out after %s ms -> %s", timeout, command);
+        }
+        // cancelling terminates the command, which sets the result
+        cmd.cancel();
+        return cmd.mResult;
+    }
+
+    /**
+     * Adds the command and blocks until it finished. If it does not finish in time, the command
+     * gets cancelled.
+     *
+     * @param command The command to run
+     * @param timeout The timeout in milliseconds
+     * @return true if the command finished, false if it could not be run or timed out
+     */
+    public boolean runAndWait(final Command command, final long timeout) {
+        try {
+            add(command);
+            if (command.waitForFinish(timeout)) {
+                return !command.isCancelled();
+            }
+            Logger.w(TAG, "timed out after %s ms -> %s", timeout, command.getCommand());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Logger.e(TAG, "could not run command -> " + command.getCommand(), e);
+        }
+        command.cancel();
+        return false;
+    }
+
+    /**
+     * Submits the command without blocking, stderr gets discarded.
+     *
+     * @param command The command to run
+     * @return A future, which holds the result once the command finished
+     */
+    public Future<CommandResult> submit(final String command) {
+        return submit(command, null);
+    }
+
+    /**
+     * Submits the command without blocking, stderr gets discarded.
+     *
+     * @param command  The command to run
+     * @param callback The callback to notify once the command finished, may be null
+     * @return A future, which holds the result once the command finished
+     */
+    public Future<CommandResult> submit(final String command, final Callback callback) {
+        final PooledCommand cmd = new PooledCommand(discardStderr(command), callback);
+        try {
+            add(cmd);
+        } catch (Exception e) {
+            Logger.e(TAG, "could not submit command -> " + command, e);
+            cmd.fail(e.getMessage());
+        }
+        return cmd;
+    }
+
+    /**
+     * Closes all shells of the pool, they get reopened on demand.
+     */
+    public synchronized void close() {
+        for (int i = 0; i < mShells.length; i++) {
+            if (mShells[i] != null) {
+                mShells[i].close();
+                mShells[i] = null;
+            }
+        }
+    }
+
+    public long getCommandCount() { return mCommandCount.get(); }
+
+    public long getFailedCount() { return mFailedCount.get(); }
+
+    /**
+     * @return The average time from submitting a command until it finished, in milliseconds
+     */
+    public long getAverageLatency() {
+        final long count = mCommandCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(mTotalLatency.get() / count);
+    }
+
+    /**
+     * @return The longest time from submitting a command until it finished, in milliseconds
+     */
+    public long getMaxLatency() { return TimeUnit.NANOSECONDS.toMillis(mMaxLatency.get()); }
+
+    @Override public String toString() {
+        return String.format("ShellPool{commands=%s, failed=%s, avgLatency=%sms, maxLatency=%sms}",
+                getCommandCount(), getFailedCount(), getAverageLatency(), getMaxLatency());
+    }
+
+    private Shell obtainShell() throws IOException, TimeoutException, RootDeniedException {
+        final int slot;
+        synchronized (this) {
+            while (true) {
+                Shell best = null;
+                int free = -1;
+                boolean opening = false;
+                for (int i = 0; i < mShells.length; i++) {
+                    if (mOpening[i]) {
+                        opening = true;
+                        continue;
+                    }
+                    final Shell shell = mShells[i];
+                    if (shell == null || shell.isClosed || shell.isClosed()) {
+                        mShells[i] = null;
+                        if (free == -1) free = i;
+                        continue;
+                    }
+                    // callbacks run on the output thread, do not queue behind ourselves
+                    if (shell.isOutputThread()) {
+                        continue;
+                    }
+                    if (best == null
+                            || shell.getPendingCommandCount() < best.getPendingCommandCount()) {
+                        best = shell;
+                    }
+                }
+
+                if (free != -1 && (best == null || best.getPendingCommandCount() > 0)) {
+                    // reserve the slot, opening the shell may block on the root prompt
+                    mOpening[free] = true;
+                    slot = free;
+                    break;
+                }
+                if (best != null) {
+                    return best;
+                }
+                if (!opening) {
+                    throw new IOException("No usable shell in pool");
+                }
+                // another caller is opening a shell, wait for it instead of failing
+                try {
+                    wait(SHELL_TIMEOUT);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a shell");
+                }
+            }
+        }
+
+        Shell shell = null;
+        try {
+            shell = Shell.startPooledRootShell(SHELL_TIMEOUT, 3);
+            return shell;
+        } finally {
+            synchronized (this) {
+                mShells[slot] = shell;
+                mOpening[slot] = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void recordLatency(final long latency, final boolean failed) {
+        mCommandCount.incrementAndGet();
+        if (failed) {
+            mFailedCount.incrementAndGet();
+        }
+        mTotalLatency.addAndGet(latency);
+
+        long max;
+        do {
+            max = mMaxLatency.get();
+        } while (latency > max && !mMaxLatency.compareAndSet(max, latency));
+    }
+
+    private static String discardStderr(final String command) {
+        return String.format("{\n%s\n} 2> /dev/null", command);
+    }
+
+    private class PooledCommand extends CommandCapture implements Future<CommandResult> {
+        private final Callback mCallback;
+        private final long mStartTime;
+
+        private volatile CommandResult mResult;
+
+        public PooledCommand(final String command, final Callback callback) {
+            super(0, command);
+            mCallback = callback;
+            mStartTime = System.nanoTime();
+        }
+
+        @Override public void commandCompleted(final int id, final int exitcode) {
+            finish(exitcode);
+        }
+
+        @Override public void commandTerminated(final int id, final String reason) {
+            finish(-1);
+        }
+
+        private void fail(final String reason) {
+            terminated(reason);
+        }
+
+        private synchronized void finish(final int exitValue) {
+            if (mResult != null) {
+                return;
+            }
+            mResult = createResult(exitValue);
+            recordLatency(mResult.getEndTime() - mStartTime, exitValue == -1);
+
+            if (mCallback != null) {
+                mCallback.onCommandResult(mResult);
+            }
+        }
+
+        private CommandResult createResult(final int exitValue) {
+            String output = toString();
+            if (output.endsWith("\n")) {
+                output = output.substring(0, output.length() - 1);
+            }
+            return new CommandResult(mStartTime, exitValue, output, "", System.nanoTime());
+        }
+
+        @Override public boolean cancel(final boolean mayInterruptIfRunning) { return cancel(); }
+
+        @Override public boolean isDone() { return isFinished(); }
+
+        @Override public CommandResult get() throws InterruptedException {
+            waitForFinish();
+            return mResult;
+        }
+
+        @Override public CommandResult get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            if (!waitForFinish(unit.toMillis(timeout))) {
+                throw new TimeoutException();
+            }
+            return mResult;
+        }
+    }
+}
@@ -16,7 +16,7 @@
 
 package uk.co.senab.bitmapcache;
 
-import com.jakewharton.disklrucache.DiskLruCache;
+import com.jakewharton.disklrucache.ShardedDiskLruCache;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -112,6 +112,21 @@ public class BitmapLruCache {
         }
     }
 
+    /**
+     * Sorts keys into classes, the memory cache keeps hits, misses and evictions per class. Gets
+     * called with the lock of the memory cache held, so it should be quick.
+     */
+    public interface KeyClassifier {
+        String classify(String key);
+    }
+
+    static final KeyClassifier DEFAULT_KEY_CLASSIFIER = new KeyClassifier() {
+        @Override
+        public String classify(String key) {
+            return "default";
+        }
+    };
+
     // The number of seconds after the last edit that the Disk Cache should be
     // flushed
     static final int DISK_CACHE_FLUSH_DELAY_SECS = 5;
@@ -128,8 +143,8 @@ public class BitmapLruCache {
 
     /**
      * The disk cache only accepts a reduced range of characters for the key values. This method
-     * transforms the {@code url} into something accepted from {@link DiskLruCache}. Currently we
-     * simply return a MD5 hash of the url.
+     * transforms the {@code url} into something accepted from {@link ShardedDiskLruCache}.
+     * Currently we simply return a MD5 hash of the url.
      *
      * @param url - Key to be transformed
      * @return key which can be used for the disk cache
@@ -152,7 +167,7 @@ public class BitmapLruCache {
     /**
      * Disk Cache Variables
      */
-    private DiskLruCache mDiskCache;
+    private ShardedDiskLruCache mDiskCache;
 
     // Variables which are only used when the Disk Cache is enabled
     private HashMap<String, ReentrantLock> mDiskCacheEditLocks;
@@ -217,7 +232,7 @@ public class BitmapLruCache {
      *         false} otherwise.
      */
     public boolean containsInMemoryCache(String url) {
-        return null != mMemoryCache && null != mMemoryCache.get(url);
+        return null != mMemoryCache && null != mMemoryCache.peek(url);
     }
 
     /**
@@ -305,20 +320,29 @@ public class BitmapLruCache {
         CacheableBitmapDrawable result = null;
 
         if (null != mMemoryCache) {
-            synchronized (mMemoryCache) {
-                result = mMemoryCache.get(url);
-
-                // If we get a value, but it has a invalid bitmap, remove it
-                if (null != result && !result.isBitmapValid()) {
-                    mMemoryCache.remove(url);
-                    result = null;
-                }
-            }
+            // entries with an invalid bitmap get removed by the memory cache
+            result = mMemoryCache.get(url);
         }
 
         return result;
     }
 
+    /**
+     * Returns the value for {@code url} in the memory cache only, without promoting it or counting
+     * a hit or miss. Use this for probes, which do not display the result, so they do not defeat
+     * the scan resistance of the memory cache.
+     *
+     * @param url - String representing the URL of the image
+     * @return Value for {@code url} from memory cache, or {@code null}
+     */
+    public CacheableBitmapDrawable peekInMemoryCache(final String url) {
+        if (null == mMemoryCache) {
+            return null;
+        }
+        final CacheableBitmapDrawable result = mMemoryCache.peek(url);
+        return (null != result && result.isBitmapValid() ? result : null);
+    }
+
     /**
      * @return true if the Disk Cache is enabled.
      */
@@ -333,6 +357,19 @@ public class BitmapLruCache {
         return null != mMemoryCache;
     }
 
+    /**
+     * Returns the bitmap of an entry, which got removed from the memory cache and is not displayed
+     * anymore, so it can be reused to decode or draw into.
+     *
+     * @return A mutable bitmap of the given size or null if there is none
+     */
+    public Bitmap getReusableBitmap(final int width, final int height) {
+        if (null != mMemoryCache && mRecyclePolicy.canInBitmap()) {
+            return mMemoryCache.getBitmapFromRemoved(width, height);
+        }
+        return null;
+    }
+
     /**
      * Caches {@code bitmap} for {@code url} into all enabled caches. If the disk cache is enabled,
      * the bitmap will be compressed losslessly. <p/> If you have the disk cache enabled, you should
@@ -379,7 +416,7 @@ public class BitmapLruCache {
             OutputStream os = null;
 
             try {
-                DiskLruCache.Editor editor = mDiskCache.edit(key);
+                ShardedDiskLruCache.Editor editor = mDiskCache.edit(key);
                 os = editor.newOutputStream(0);
                 bitmap.compress(compressFormat, compressQuality, os);
                 os.flush();
@@ -463,7 +500,7 @@ public class BitmapLruCache {
                     lock.lock();
 
                     try {
-                        DiskLruCache.Editor editor = mDiskCache.edit(key);
+                        ShardedDiskLruCache.Editor editor = mDiskCache.edit(key);
                         IoUtils.copy(tmpFile, editor.newOutputStream(0));
                         editor.commit();
                     } catch (IOException e) {
@@ -514,7 +551,27 @@ public class BitmapLruCache {
         }
     }
 
-    synchronized void setDiskCache(DiskLruCache diskCache) {
+    /**
+     * Shrinks the memory cache (if enabled) in steps, depending on {@code level}. Call it from
+     * {@link android.app.Application#onTrimMemory(int) Application.onTrimMemory()}.
+     *
+     * @param level The level passed to {@code onTrimMemory()}
+     */
+    public void trimMemory(int level) {
+        if (null != mMemoryCache) {
+            mMemoryCache.trimMemory(level);
+        }
+    }
+
+    /**
+     * @return A snapshot of the size and the hit rates of the memory cache or null if the memory
+     *         cache is not enabled.
+     */
+    public MemoryCacheStats getMemoryCacheStats() {
+        return null != mMemoryCache ? mMemoryCache.getStats() : null;
+    }
+
+    synchronized void setDiskCache(ShardedDiskLruCache diskCache) {
         mDiskCache = diskCache;
 
         if (null != diskCache) {
@@ -668,6 +725,8 @@ public class BitmapLruCache {
 
         private RecyclePolicy mRecyclePolicy;
 
+        private KeyClassifier mKeyClassifier;
+
         /**
          * @deprecated You should now use {@link Builder(Context)}. This is so that we can reliably
          *             set up correctly.
@@ -686,6 +745,7 @@ public class BitmapLruCache {
             mMemoryCacheEnabled = true;
             mMemoryCacheMaxSize = DEFAULT_MEM_CACHE_MAX_SIZE_MB * MEGABYTE;
             mRecyclePolicy = DEFAULT_RECYCLE_POLICY;
+            mKeyClassifier = DEFAULT_KEY_CLASSIFIER;
         }
 
         /**
@@ -699,16 +759,18 @@ public class BitmapLruCache {
                 if (Constants.DEBUG) {
                     Log.d("BitmapLruCache.Builder", "Creating Memory Cache");
                 }
-                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy));
+                cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy,
+                        mKeyClassifier));
             }
 
             if (isValidOptionsForDiskCache()) {
-                new AsyncTask<Void, Void, DiskLruCache>() {
+                new AsyncTask<Void, Void, ShardedDiskLruCache>() {
 
                     @Override
-                    protected DiskLruCache doInBackground(Void... params) {
+                    protected ShardedDiskLruCache doInBackground(Void... params) {
                         try {
-                            return DiskLruCache.open(mDiskCacheLocation, 0, 1, mDiskCacheMaxSize);
+                            return ShardedDiskLruCache.open(mDiskCacheLocation, 0, 1,
+                                    mDiskCacheMaxSize, ShardedDiskLruCache.DEFAULT_SHARD_COUNT);
                         } catch (IOException e) {
                             e.printStackTrace();
                             return null;
@@ -716,7 +778,7 @@ public class BitmapLruCache {
                     }
 
                     @Override
-                    protected void onPostExecute(DiskLruCache result) {
+                    protected void onPostExecute(ShardedDiskLruCache result) {
                         cache.setDiskCache(result);
                     }
 
@@ -818,6 +880,21 @@ public class BitmapLruCache {
             return this;
         }
 
+        /**
+         * Sets the {@link KeyClassifier}, which sorts the keys into classes for the statistics of
+         * the memory cache. By default every key has the same class.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setKeyClassifier(KeyClassifier keyClassifier) {
+            if (null == keyClassifier) {
+                throw new IllegalArgumentException("The key classifier can not be null");
+            }
+
+            mKeyClassifier = keyClassifier;
+            return this;
+        }
+
         private boolean isValidOptionsForDiskCache() {
             boolean valid = mDiskCacheEnabled;
 
@@ -843,9 +920,9 @@ public class BitmapLruCache {
 
     static final class DiskCacheFlushRunnable implements Runnable {
 
-        private final DiskLruCache mDiskCache;
+        private final ShardedDiskLruCache mDiskCache;
 
-        public DiskCacheFlushRunnable(DiskLruCache cache) {
+        public DiskCacheFlushRunnable(ShardedDiskLruCache cache) {
             mDiskCache = cache;
         }
 
@@ -897,7 +974,7 @@ public class BitmapLruCache {
         @Override
         public InputStream getInputStream() {
             try {
-                DiskLruCache.Snapshot snapshot = mDiskCache.get(mKey);
+                ShardedDiskLruCache.Snapshot snapshot = mDiskCache.get(mKey);
                 if (snapshot != null) {
                     return snapshot.getInputStream(0);
                 }
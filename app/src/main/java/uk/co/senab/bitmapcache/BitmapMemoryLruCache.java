@@ -15,23 +15,64 @@
  ******************************************************************************/
 package uk.co.senab.bitmapcache;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
-import android.support.v4.util.LruCache;
 
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
-final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawable> {
+/**
+ * Segmented LRU cache for the drawables.
+ * <p/>
+ * New entries go to the probation segment, entries get promoted to the protected segment on
+ * their second hit. Evictions take the least recently used entry of the probation segment
+ * first, so a single pass over many entries, like a fling through a long list, only churns the
+ * probation segment and leaves the entries, which are used over and over, alone.
+ */
+final class BitmapMemoryLruCache {
+
+    // share of the maximum size the protected segment may take
+    private static final float PROTECTED_RATIO = 0.8f;
 
     private final Set<SoftReference<CacheableBitmapDrawable>> mRemovedEntries;
     private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
+    private final BitmapLruCache.KeyClassifier mKeyClassifier;
+
+    private final int mMaxSize;
+    private final int mMaxProtectedSize;
+
+    // guarded by this, both in least recently used order, entries leave probation on their hit
+    private final LinkedHashMap<String, Node> mProbation = new LinkedHashMap<>(16, 0.75f, false);
+    private final LinkedHashMap<String, Node> mProtected = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<String, MemoryCacheStats.KeyClass> mKeyClasses = new HashMap<>();
+    private int mSize;
+    private int mProtectedSize;
+
+    private static final class Node {
+        final CacheableBitmapDrawable value;
+        final MemoryCacheStats.KeyClass keyClass;
+        final int size;
 
-    BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy) {
-        super(maxSize);
+        Node(CacheableBitmapDrawable value, MemoryCacheStats.KeyClass keyClass, int size) {
+            this.value = value;
+            this.keyClass = keyClass;
+            this.size = size;
+        }
+    }
+
+    BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy,
+            BitmapLruCache.KeyClassifier keyClassifier) {
+        mMaxSize = maxSize;
+        mMaxProtectedSize = (int) (maxSize * PROTECTED_RATIO);
+        mKeyClassifier = keyClassifier;
 
         mRecyclePolicy = policy;
         mRemovedEntries = policy.canInBitmap()
@@ -41,31 +82,179 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
 
     CacheableBitmapDrawable put(CacheableBitmapDrawable value) {
         if (null != value) {
-            value.setCached(true);
             return put(value.getUrl(), value);
         }
 
         return null;
     }
 
+    synchronized CacheableBitmapDrawable put(String key, CacheableBitmapDrawable value) {
+        value.setCached(true);
+
+        // a replaced entry keeps its segment
+        final boolean wasProtected = mProtected.containsKey(key);
+        final Node previous = removeNode(key);
+        final Node node = new Node(value, getKeyClass(key), value.getMemorySize());
+        if (previous != null && previous.value != value) {
+            entryRemoved(previous);
+        }
+
+        if (wasProtected) {
+            mProtected.put(key, node);
+            mProtectedSize += node.size;
+        } else {
+            mProbation.put(key, node);
+        }
+        mSize += node.size;
+        node.keyClass.bytes += node.size;
+
+        trimProtected();
+        trimToSize(mMaxSize);
+        return (previous != null ? previous.value : null);
+    }
+
+    /**
+     * Returns the entry and counts a hit or a miss for its key class. A hit on the probation
+     * segment promotes the entry to the protected segment.
+     */
+    synchronized CacheableBitmapDrawable get(String key) {
+        Node node = mProtected.get(key);
+        if (node == null) {
+            node = mProbation.remove(key);
+            if (node != null) {
+                mProtected.put(key, node);
+                mProtectedSize += node.size;
+                trimProtected();
+            }
+        }
+
+        if (node != null && !node.value.isBitmapValid()) {
+            // it got recycled somewhere else
+            remove(key);
+            node = null;
+        }
+
+        if (node == null) {
+            getKeyClass(key).misses++;
+            return null;
+        }
+        node.keyClass.hits++;
+        return node.value;
+    }
+
+    /**
+     * Returns the entry without promoting it or touching the statistics.
+     */
+    synchronized CacheableBitmapDrawable peek(String key) {
+        Node node = mProtected.get(key);
+        if (node == null) {
+            node = mProbation.get(key);
+        }
+        return (node != null ? node.value : null);
+    }
+
+    synchronized CacheableBitmapDrawable remove(String key) {
+        final Node node = removeNode(key);
+        if (node == null) {
+            return null;
+        }
+        entryRemoved(node);
+        return node.value;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    int maxSize() {
+        return mMaxSize;
+    }
+
     BitmapLruCache.RecyclePolicy getRecyclePolicy() {
         return mRecyclePolicy;
     }
 
-    @Override
-    protected int sizeOf(String key, CacheableBitmapDrawable value) {
-        return value.getMemorySize();
+    synchronized MemoryCacheStats getStats() {
+        final ArrayList<MemoryCacheStats.KeyClass> keyClasses =
+                new ArrayList<>(mKeyClasses.size());
+        for (final MemoryCacheStats.KeyClass keyClass : mKeyClasses.values()) {
+            keyClasses.add(new MemoryCacheStats.KeyClass(keyClass));
+        }
+        return new MemoryCacheStats(mSize, mMaxSize, mProtectedSize,
+                mProbation.size() + mProtected.size(), keyClasses);
+    }
+
+    private Node removeNode(String key) {
+        Node node = mProbation.remove(key);
+        if (node == null) {
+            node = mProtected.remove(key);
+            if (node != null) {
+                mProtectedSize -= node.size;
+            }
+        }
+        if (node != null) {
+            mSize -= node.size;
+            node.keyClass.bytes -= node.size;
+        }
+        return node;
+    }
+
+    /**
+     * Demotes the least recently used entries of the protected segment back to probation, until
+     * the protected segment fits again. Demoted entries become the most recently used ones of the
+     * probation segment.
+     */
+    private void trimProtected() {
+        final Iterator<Map.Entry<String, Node>> it = mProtected.entrySet().iterator();
+        while (mProtectedSize > mMaxProtectedSize && it.hasNext()) {
+            final Map.Entry<String, Node> entry = it.next();
+            it.remove();
+            mProtectedSize -= entry.getValue().size;
+            mProbation.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Evicts entries, probation first, until the cache is not bigger than {@code maxSize}.
+     */
+    private void trimToSize(int maxSize) {
+        evict(mProbation, maxSize, false);
+        evict(mProtected, maxSize, true);
     }
 
-    @Override
-    protected void entryRemoved(boolean evicted, String key, CacheableBitmapDrawable oldValue,
-            CacheableBitmapDrawable newValue) {
+    private void evict(LinkedHashMap<String, Node> segment, int maxSize, boolean isProtected) {
+        final Iterator<Map.Entry<String, Node>> it = segment.entrySet().iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            final Node node = it.next().getValue();
+            it.remove();
+            mSize -= node.size;
+            if (isProtected) {
+                mProtectedSize -= node.size;
+            }
+            node.keyClass.bytes -= node.size;
+            node.keyClass.evictions++;
+            entryRemoved(node);
+        }
+    }
+
+    private MemoryCacheStats.KeyClass getKeyClass(String key) {
+        final String name = mKeyClassifier.classify(key);
+        MemoryCacheStats.KeyClass keyClass = mKeyClasses.get(name);
+        if (keyClass == null) {
+            keyClass = new MemoryCacheStats.KeyClass(name);
+            mKeyClasses.put(name, keyClass);
+        }
+        return keyClass;
+    }
+
+    private void entryRemoved(Node node) {
+        final CacheableBitmapDrawable oldValue = node.value;
         // Notify the wrapper that it's no longer being cached
         oldValue.setCached(false);
 
         if (mRemovedEntries != null && oldValue.isBitmapValid() && oldValue.isBitmapMutable()) {
             synchronized (mRemovedEntries) {
-                mRemovedEntries.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
+                mRemovedEntries.add(new SoftReference<>(oldValue));
             }
         }
     }
@@ -84,6 +273,10 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
                 CacheableBitmapDrawable value = it.next().get();
 
                 if (value != null && value.isBitmapValid() && value.isBitmapMutable()) {
+                    if (value.isBeingDisplayed()) {
+                        // still on screen, maybe it is free next time
+                        continue;
+                    }
                     if (value.getIntrinsicWidth() == width
                             && value.getIntrinsicHeight() == height) {
                         it.remove();
@@ -99,15 +292,54 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
         return result;
     }
 
-    void trimMemory() {
-        final Set<Entry<String, CacheableBitmapDrawable>> values = snapshot().entrySet();
+    /**
+     * Shrinks the cache in steps, depending on how hard the system is looking for memory.
+     *
+     * @param level A level of {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            trimMemory();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(mMaxSize / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSize(mMaxSize / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // nothing is on screen, entries, which got used once, are not worth keeping
+            evict(mProbation, 0, false);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(mMaxSize / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxSize / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize((mMaxSize / 4) * 3);
+        }
+    }
 
-        for (Entry<String, CacheableBitmapDrawable> entry : values) {
-            CacheableBitmapDrawable value = entry.getValue();
-            if (null == value || !value.isBeingDisplayed()) {
-                remove(entry.getKey());
+    /**
+     * Removes every entry, which is not being displayed, and forgets about the removed bitmaps.
+     */
+    synchronized void trimMemory() {
+        final ArrayList<String> keys = new ArrayList<>(mProbation.size() + mProtected.size());
+        for (Entry<String, Node> entry : mProbation.entrySet()) {
+            if (!entry.getValue().value.isBeingDisplayed()) {
+                keys.add(entry.getKey());
+            }
+        }
+        for (Entry<String, Node> entry : mProtected.entrySet()) {
+            if (!entry.getValue().value.isBeingDisplayed()) {
+                keys.add(entry.getKey());
             }
         }
+        for (String key : keys) {
+            final Node node = removeNode(key);
+            node.keyClass.evictions++;
+            entryRemoved(node);
+        }
+
+        if (mRemovedEntries != null) {
+            mRemovedEntries.clear();
+        }
     }
 
 }
@@ -0,0 +1,86 @@
+/*
+ *  Copyright (C) 2013 - 2015 Alexander "Evisceration" Martinz
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.co.senab.bitmapcache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the size and the hit rates of the memory cache.
+ */
+public final class MemoryCacheStats {
+    public final int size;
+    public final int maxSize;
+    public final int protectedSize;
+    public final int count;
+    public final List<KeyClass> keyClasses;
+
+    /**
+     * Statistics of all keys, which got the same class from the
+     * {@link BitmapLruCache.KeyClassifier}.
+     */
+    public static final class KeyClass {
+        public final String name;
+        public long hits;
+        public long misses;
+        public long evictions;
+        public int bytes;
+
+        KeyClass(String name) {
+            this.name = name;
+        }
+
+        KeyClass(KeyClass other) {
+            this.name = other.name;
+            this.hits = other.hits;
+            this.misses = other.misses;
+            this.evictions = other.evictions;
+            this.bytes = other.bytes;
+        }
+
+        /**
+         * @return The hit rate between 0 and 1 or 0 if there was no request yet
+         */
+        public float getHitRate() {
+            final long requests = hits + misses;
+            return (requests == 0 ? 0f : (float) hits / requests);
+        }
+    }
+
+    MemoryCacheStats(int size, int maxSize, int protectedSize, int count,
+            List<KeyClass> keyClasses) {
+        this.size = size;
+        this.maxSize = maxSize;
+        this.protectedSize = protectedSize;
+        this.count = count;
+        this.keyClasses = Collections.unmodifiableList(keyClasses);
+    }
+
+    /**
+     * @return The hit rate over all key classes between 0 and 1
+     */
+    public float getHitRate() {
+        long hits = 0;
+        long requests = 0;
+        for (final KeyClass keyClass : keyClasses) {
+            hits += keyClass.hits;
+            requests += keyClass.hits + keyClass.misses;
+        }
+        return (requests == 0 ? 0f : (float) hits / requests);
+    }
+}